@@ -0,0 +1,229 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Threshold rules evaluated on every frame, such as "heel load above X for more than 2 s" or
+ * "trunk pitch beyond Y", raising and clearing alerts without the consumers polling the stream.
+ *
+ * Each rule watches one signal against a threshold. Once the condition is met it holds until the
+ * signal falls back past the threshold by the hysteresis, so a signal hovering at the threshold
+ * does not toggle the alert. The alert is raised when the condition has held for the duration and
+ * cleared when the condition ends. Only these two events reach the listener.
+ *
+ * Evaluation walks the rules of the frame's stream once, in constant time per rule and without
+ * allocating. Rules keep their state in themselves, so a rule belongs to one AlertRules. The frame
+ * methods must be called from one thread, normally the bluetooth callback thread.
+ */
+public class AlertRules {
+    private static final int FSR_CHANNELS = PacketDecoders.FSR_CHANNELS;
+
+    public static final int SIGNAL_FSR = 0;
+    public static final int SIGNAL_FORCE = 1;
+    public static final int SIGNAL_LOAD = 2;
+    public static final int SIGNAL_ROLL = 3;
+    public static final int SIGNAL_PITCH = 4;
+    public static final int SIGNAL_YAW = 5;
+
+    /**
+     * Implement this interface to be told about alerts, called on the frame thread
+     */
+    public interface Listener {
+        /**
+         * @param rule rule whose alert changed
+         * @param raised true when the alert is raised, false when it clears
+         * @param host_micros time of the frame that changed the alert, host clock in microseconds
+         * @param value signal of that frame
+         */
+        void onAlert(Rule rule, boolean raised, long host_micros, float value);
+    }
+
+    /**
+     * One compiled rule and its state
+     */
+    public static final class Rule {
+        private final String id;
+        private final int signal;
+        private final int channel;
+        private final boolean above;
+        private final boolean absolute;
+        private final float threshold;
+        private final float hysteresis;
+        private final long durationMicros;
+
+        // the condition holds, since conditionStart
+        private boolean active = false;
+        private long conditionStart;
+        private boolean raised = false;
+        private int raisedCount = 0;
+
+        /**
+         * @param id name reported with the alerts
+         * @param signal one of the SIGNAL constants
+         * @param channel fsr channel for SIGNAL_FSR and SIGNAL_FORCE, ignored otherwise
+         * @param above true to alert above the threshold, false below it
+         * @param absolute compare the magnitude of the signal, as for a tilt either way
+         * @param threshold raw counts for SIGNAL_FSR and SIGNAL_LOAD, calibrated force for
+         *                  SIGNAL_FORCE, degrees for the imu signals
+         * @param hysteresis how far back past the threshold the signal goes before the condition ends
+         * @param duration_ms time the condition holds before the alert is raised, 0 for at once
+         */
+        public Rule(String id, int signal, int channel, boolean above, boolean absolute,
+                    float threshold, float hysteresis, long duration_ms){
+            if(signal < SIGNAL_FSR || signal > SIGNAL_YAW){
+                throw new IllegalArgumentException("unknown signal " + signal);
+            }
+            if((signal == SIGNAL_FSR || signal == SIGNAL_FORCE) && (channel < 0 || channel >= FSR_CHANNELS)){
+                throw new IllegalArgumentException("fsr channel " + channel + " out of range");
+            }
+            this.id = id;
+            this.signal = signal;
+            this.channel = channel;
+            this.above = above;
+            this.absolute = absolute;
+            this.threshold = threshold;
+            this.hysteresis = Math.abs(hysteresis);
+            durationMicros = duration_ms * 1000;
+        }
+
+        public String getId(){
+            return id;
+        }
+
+        public int getSignal(){
+            return signal;
+        }
+
+        /**
+         * @return true while the alert is raised
+         */
+        public boolean isRaised(){
+            return raised;
+        }
+
+        /**
+         * @return number of times the alert was raised
+         */
+        public int getRaisedCount(){
+            return raisedCount;
+        }
+
+        private boolean evaluate(float value, long host_micros, Listener listener){
+            if(absolute){
+                value = Math.abs(value);
+            }
+            // NaN, as force without calibration, never meets the condition
+            boolean met;
+            if(active){
+                met = above ? value > threshold - hysteresis : value < threshold + hysteresis;
+            }else{
+                met = above ? value > threshold : value < threshold;
+            }
+            if(met){
+                if(!active){
+                    active = true;
+                    conditionStart = host_micros;
+                }
+                if(!raised && host_micros - conditionStart >= durationMicros){
+                    raised = true;
+                    raisedCount++;
+                    listener.onAlert(this, true, host_micros, value);
+                    return true;
+                }
+            }else if(active){
+                active = false;
+                if(raised){
+                    raised = false;
+                    listener.onAlert(this, false, host_micros, value);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Rule[] fsrRules;
+    private final Rule[] imuRules;
+    private final boolean needsLoad;
+    private final Listener listener;
+    private long events = 0;
+
+    /**
+     * @param rules rules to evaluate, not shared with another AlertRules
+     * @param listener told about raised and cleared alerts
+     */
+    public AlertRules(Rule[] rules, Listener listener){
+        int fsr = 0;
+        boolean load = false;
+        for(Rule rule : rules){
+            if(rule.signal <= SIGNAL_LOAD){
+                fsr++;
+            }
+            load |= rule.signal == SIGNAL_LOAD;
+        }
+        fsrRules = new Rule[fsr];
+        imuRules = new Rule[rules.length - fsr];
+        int f = 0;
+        int i = 0;
+        for(Rule rule : rules){
+            if(rule.signal <= SIGNAL_LOAD){
+                fsrRules[f++] = rule;
+            }else{
+                imuRules[i++] = rule;
+            }
+        }
+        needsLoad = load;
+        this.listener = listener;
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values, the first 10 are used
+     * @param force calibrated force of every channel, null if not calibrated
+     */
+    public void onFsr(long host_micros, int[] data, float[] force){
+        int load = 0;
+        if(needsLoad){
+            for(int c = 0; c < FSR_CHANNELS; c++){
+                load += data[c];
+            }
+        }
+        for(Rule rule : fsrRules){
+            float value;
+            switch(rule.signal){
+                case SIGNAL_FSR: value = data[rule.channel]; break;
+                case SIGNAL_FORCE: value = force != null ? force[rule.channel] : Float.NaN; break;
+                default: value = load; break;
+            }
+            if(rule.evaluate(value, host_micros, listener)){
+                events++;
+            }
+        }
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     */
+    public void onImu(long host_micros, float roll, float pitch, float yaw){
+        for(Rule rule : imuRules){
+            float value;
+            switch(rule.signal){
+                case SIGNAL_ROLL: value = roll; break;
+                case SIGNAL_PITCH: value = pitch; break;
+                default: value = yaw; break;
+            }
+            if(rule.evaluate(value, host_micros, listener)){
+                events++;
+            }
+        }
+    }
+
+    public int getRuleCount(){
+        return fsrRules.length + imuRules.length;
+    }
+
+    /**
+     * @return alerts raised and cleared so far, read from the frame thread
+     */
+    public long getEventCount(){
+        return events;
+    }
+}
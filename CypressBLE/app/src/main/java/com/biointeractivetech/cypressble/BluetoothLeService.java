@@ -17,19 +17,32 @@
 package com.biointeractivetech.cypressble;
 
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import static android.os.SystemClock.sleep;
 
@@ -37,11 +50,90 @@ import static android.os.SystemClock.sleep;
  * Service for managing connection and data communication with a GATT server hosted on a
  * given Bluetooth LE device.
  */
-public class BluetoothLeService extends Service implements DaqBleManager.CypressInterface {
+public class BluetoothLeService extends Service implements DaqBleManager.CypressInterface, DaqBleManager.CalibratedFsrInterface {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     DaqBleManager daqManager = new DaqBleManager();
 
+    private static final long WARM_START_SCAN_PERIOD = 10000;
+    // put the device in real time mode before enabling streams, and the time it takes to switch
+    private static final String REAL_TIME_COMMAND = "$real,enable;";
+    private static final long REAL_TIME_SETTLE_TIME = 2000;
+
+    private RecentDeviceStore deviceStore;
+    private CalibrationStore calibrationStore;
+    private BluetoothAdapter mBluetoothAdapter;
+    private Handler mHandler;
+    private String warmStartAddress = null;
+    private ScanScheduler<BluetoothDevice> warmStartScanner;
+    private long createTime;
+    private boolean firstSampleReceived = false;
+
+    private static final int FSR_CHANNELS = 10;
+    private static final int RESAMPLE_LOOK_BEHIND = 8;
+    private volatile StreamResampler fsrResampler = null;
+
+    // one clock per device address, the map is only touched on the DaqBleManager event loop
+    private final HashMap<String, ClockSynchronizer> deviceClocks = new HashMap<String, ClockSynchronizer>();
+    private volatile ClockSynchronizer deviceClock = new ClockSynchronizer();
+
+    private static final String SESSION_DIRECTORY = "sessions";
+    private static final String SESSION_EXTENSION = ".hbs";
+    private volatile SessionRecorder sessionRecorder = null;
+    // summary of the fsr history of the recording for zoomable views, null while not recording
+    // as it grows with every frame
+    private volatile SummaryPyramid fsrSummary = null;
+
+    // the timer only touches the handler once a probe is sent, after onCreate
+    private final LinkProbe linkProbe = createLinkProbe();
+
+    // about 1 s, 10 s and 1 min at the default fsr rate of 20 Hz
+    private static final int[] STATISTICS_WINDOWS = {20, 200, 1200};
+    private final RollingStatistics statistics = new RollingStatistics(STATISTICS_WINDOWS);
+
+    // features of the stream since start or since the last recording started, guarded by itself
+    private volatile SessionFeatures liveFeatures = new SessionFeatures();
+
+    private static final String CAPTURE_DIRECTORY = "captures";
+    // frames per second the capture buffers are sized for, fsr and imu together
+    private static final int CAPTURE_MAX_RATE = 500;
+    private volatile TriggeredCapture triggeredCapture = null;
+
+    // alert rules evaluated on every fsr and imu frame, replaced whole when reconfigured
+    private volatile AlertRules alertRules = null;
+
+    // optional stream of every frame to a collector on the network
+    private volatile StreamUplink uplink = null;
+
+    // fsr and imu frames for other processes, mapped by them after the binder handshake
+    private static final String SHARED_RING_FILE = "stream.ring";
+    private volatile SharedRingBuffer sharedRing = null;
+    private Messenger sharedRingMessenger;
+
+    // replaced whole on every change, so the frame paths walk it without locking or an iterator
+    private volatile DaqBleManager.CypressInterface[] dataListeners = new DaqBleManager.CypressInterface[0];
+    // data listener feeding the window engines of setSensorWindows, guarded by this
+    private SensorWindowFeeder windowFeeder = null;
+
+    // fsr and imu frames shared by the frame listeners without copies
+    private static final int FRAME_POOL_SIZE = 256;
+    private static final long FRAME_LEAK_CHECK_PERIOD = 10000;
+    private static final long FRAME_LEAK_AGE = 5000;
+    private final FramePool framePool = new FramePool(FRAME_POOL_SIZE, BuildConfig.DEBUG);
+    private volatile FramePool.Listener[] frameListeners = new FramePool.Listener[0];
+
+    // fsr subscribers wanting fewer channels or a lower rate, replaced whole on every change
+    private volatile StreamDecimator[] fsrSubscribers = new StreamDecimator[0];
+
+    // per frame json broadcasts of fsr and imu data, consumers of the shared ring or of data
+    // listeners can turn them off to keep the frame path free of allocations
+    private volatile boolean broadcastFrames = true;
+    // clients holding the full rate json stream and clients doing without it, by subscriber
+    // name, guarded by this; the stream stops once a client does without it and none holds it
+    private final HashSet<String> fullStreamHolders = new HashSet<String>();
+    private final HashSet<String> fullStreamReleased = new HashSet<String>();
+    private volatile boolean fullStreamWanted = true;
+
     public final static String BROADCAST_STATUS_GATT_CONNECTED =              "MENRVA.bluetooth.le.STATUS_GATT_CONNECTED";
     public final static String BROADCAST_STATUS_GATT_CONNECTING =             "MENRVA.bluetooth.le.STATUS_GATT_CONNECTING";
     public final static String BROADCAST_STATUS_GATT_DISCONNECTED =           "MENRVA.bluetooth.le.STATUS_GATT_DISCONNECTED";
@@ -56,6 +148,22 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
     public final static String BROADCAST_ACTION_JSON_DATA_AVAILABLE =         "MENRVA.bluetooth.le.ACTION_JSON_DATA_AVAILABLE";
     public final static String BROADCAST_ACTION_JSON_DATA_SEND =              "MENRVA.bluetooth.le.ACTION_JSON_SEND_DATA";
     public final static String BROADCAST_EXTRA_DATA =                         "MENRVA.bluetooth.le.EXTRA_DATA";
+    public final static String BROADCAST_EXTRA_ARRIVAL_TIME =                 "MENRVA.bluetooth.le.EXTRA_ARRIVAL_TIME";
+    public final static String BROADCAST_EXTRA_SENT_TIME =                    "MENRVA.bluetooth.le.EXTRA_SENT_TIME";
+
+    // bind with this action to get a Messenger, send it MSG_OPEN_SHARED_RING with replyTo set and
+    // the reply carries the descriptor of the shared ring and its layout, see SharedRingBuffer
+    public final static String ACTION_BIND_SHARED_RING =                      "MENRVA.bluetooth.le.ACTION_BIND_SHARED_RING";
+    // bind with this action from inside the app to get the LocalBinder, any other bind of the
+    // exported service gets the shared ring Messenger
+    // held by the senders of the client broadcasts the service takes commands from
+    public final static String CONTROL_PERMISSION =                           "com.biointeractivetech.cypressble.permission.CONTROL";
+    public final static String ACTION_BIND_LOCAL =                            "MENRVA.bluetooth.le.ACTION_BIND_LOCAL";
+    public final static int MSG_OPEN_SHARED_RING = 1;
+    public final static int MSG_SHARED_RING = 2;
+    public final static String SHARED_RING_DESCRIPTOR =                       "descriptor";
+    public final static String SHARED_RING_LAYOUT_VERSION =                   "layout version";
+    public final static String SHARED_RING_SLOT_COUNT =                       "slot count";
 
 
 
@@ -69,18 +177,19 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            Log.d(TAG, action);
+            EventTrace.get().event(EventTrace.EVENT_SERVICE_ACTION, action.hashCode());
 
             if(action.equals(BROADCAST_ACTION_SEND_DATA)){
                 String str = intent.getStringExtra(BROADCAST_EXTRA_DATA);
-                Log.d(TAG, str);
+                EventTrace.get().event(EventTrace.EVENT_UART_FORWARD, str.length(),
+                        EventTrace.packAscii(str, 0), EventTrace.packAscii(str, 8));
                 daqManager.sendUartData(str);
             }else if(action.equals(BROADCAST_ACTION_GATT_CONNECT)){
                 if((daqManager.getStatus() != DaqBleManager.STATE_CONNECTED) && (daqManager.getStatus() != DaqBleManager.STATE_CONNECTING)){
                     String adr = intent.getStringExtra(BROADCAST_EXTRA_DATA);
                     daqManager.connect(adr);
                 }else{
-                    Log.d(TAG, "Already in connected state");
+                    EventTrace.get().event(EventTrace.EVENT_ALREADY_CONNECTED, daqManager.getStatus());
                     broadcastCurrentState();
                 }
             }else if(action.equals(BROADCAST_ACTION_GATT_DISCONNECT)){
@@ -88,9 +197,10 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
             }else if(action.equals(BROADCAST_ACTION_GET_STATUS)){
                 broadcastCurrentState();
             }else if(action.equals(BROADCAST_ACTION_JSON_DATA_SEND)){
-                Log.d(TAG, "JSON message = " + intent.getStringExtra(BROADCAST_EXTRA_DATA));
+                final String json = intent.getStringExtra(BROADCAST_EXTRA_DATA);
+                EventTrace.get().event(EventTrace.EVENT_JSON_COMMAND, json == null ? 0 : json.length());
                 try{
-                    JSONObject jsonObj = new JSONObject(intent.getStringExtra(BROADCAST_EXTRA_DATA));
+                    JSONObject jsonObj = new JSONObject(json);
                     String message = "";
                     switch(jsonObj.getString("message")){
                         case "settings":{
@@ -98,6 +208,52 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
                             if(jsonObj.has("fsr delay")){   daqManager.setFsrDelay(jsonObj.getInt("fsr delay"));}
                             if(jsonObj.has("enable imu")){  daqManager.setImuData(jsonObj.getBoolean("enable imu"));}
                             if(jsonObj.has("imu delay")){   daqManager.setImuDelay(jsonObj.getInt("imu delay"));}
+                            rememberStreamSettings(jsonObj);
+                            if(jsonObj.has("resample rate")){ configureResampler(jsonObj);}
+                            if(jsonObj.has("broadcast frames")){ setClientBroadcastFrames(jsonObj.optString("subscriber", ""), jsonObj.getBoolean("broadcast frames"));}
+                        }break;
+                        case "probe":{
+                            if(!jsonObj.has("period")){
+                                linkProbe.probe();
+                            }else if(jsonObj.getLong("period") > 0){
+                                linkProbe.start(jsonObj.getLong("period"));
+                            }else{
+                                linkProbe.stop();
+                            }
+                        }break;
+                        case "uplink":{
+                            if(jsonObj.getBoolean("enable")){
+                                startUplink(jsonObj.getString("host"), jsonObj.optInt("port", StreamUplink.DEFAULT_PORT));
+                            }else{
+                                stopUplink();
+                            }
+                        }break;
+                        case "calibration":{
+                            calibrate(jsonObj);
+                        }break;
+                        case "subscribe":{
+                            if(jsonObj.optBoolean("enable", true)){
+                                subscribe(jsonObj);
+                            }else{
+                                unsubscribe(jsonObj.getString("subscriber"));
+                            }
+                        }break;
+                        case "alerts":{
+                            configureAlerts(jsonObj);
+                        }break;
+                        case "capture":{
+                            if(jsonObj.getBoolean("enable")){
+                                startCapture(jsonObj);
+                            }else{
+                                stopCapture();
+                            }
+                        }break;
+                        case "record":{
+                            if(jsonObj.getBoolean("enable")){
+                                startRecording();
+                            }else{
+                                stopRecording();
+                            }
                         }break;
                     }
 
@@ -136,32 +292,725 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
         sendBroadcast(intent);
     }
 
+    /**
+     * Connect straight to the most recently used device while a background scan
+     * looks for it, so a launch does not have to wait for the user to pick it from the scan list
+     */
+    private void warmStart(){
+        RecentDeviceStore.KnownDevice preferred = deviceStore.getPreferredDevice();
+        if(preferred == null || mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()){
+            return;
+        }
+        Log.d(TAG, "Warm start with " + preferred.address);
+        warmStartAddress = preferred.address;
+        daqManager.connect(warmStartAddress);
+
+        warmStartScanner = createWarmStartScanner();
+        warmStartScanner.setTargetAddress(warmStartAddress);
+        warmStartScanner.start();
+    }
+
+    private void stopWarmStartScan(){
+        if(warmStartScanner != null){
+            warmStartScanner.stop();
+        }
+    }
+
+    private final BluetoothAdapter.LeScanCallback warmStartScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    warmStartScanner.onAdvertisement(device, device.getAddress(), rssi, scanRecord);
+                }
+            });
+        }
+    };
+
+    private final ScanScheduler.Listener<BluetoothDevice> warmStartScanListener = new ScanScheduler.Listener<BluetoothDevice>() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device, String address, int rssi) {
+            // the direct attempt gave up before the device came into range, retry now that it is
+            // visible; a retry while it is still pending would turn it into a slow auto connect
+            if(daqManager.getStatus() == DaqBleManager.STATE_DISCONNECTED && !daqManager.isConnectPending()){
+                daqManager.connect(address);
+            }
+        }
+
+        @Override
+        public void onScanStateChanged(boolean active) {
+        }
+    };
+
+    private ScanScheduler<BluetoothDevice> createWarmStartScanner(){
+        ScanScheduler.AdvertisementSource source = new ScanScheduler.AdvertisementSource() {
+            @Override
+            public void startScan() {
+                mBluetoothAdapter.startLeScan(warmStartScanCallback);
+            }
+
+            @Override
+            public void stopScan() {
+                mBluetoothAdapter.stopLeScan(warmStartScanCallback);
+            }
+        };
+        // scan continuously, the session only lasts until the device is seen
+        return new ScanScheduler<BluetoothDevice>(source, handlerTimer(), warmStartScanListener,
+                WARM_START_SCAN_PERIOD, 0, 0, WARM_START_SCAN_PERIOD);
+    }
+
+    private ScanScheduler.Timer handlerTimer(){
+        return new ScanScheduler.Timer() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                mHandler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                mHandler.removeCallbacks(task);
+            }
+        };
+    }
+
+    private LinkProbe createLinkProbe(){
+        LinkProbe.Sender sender = new LinkProbe.Sender() {
+            @Override
+            public void send(String command) {
+                daqManager.sendUartData(command);
+            }
+        };
+        LinkProbe probe = new LinkProbe(sender, handlerTimer(), LatencyTracer.get().getHistogram(LatencyTracer.STAGE_LINK_ROUND_TRIP),
+                LinkProbe.DEFAULT_COMMAND, LinkProbe.DEFAULT_REPLY, LinkProbe.DEFAULT_STALL_TIMEOUT);
+        probe.setListener(new LinkProbe.Listener() {
+            @Override
+            public void onRoundTrip(long round_trip_nanos) {
+                broadcastLinkState("link ok", "round trip", round_trip_nanos / 1000);
+            }
+
+            @Override
+            public void onStall(long waited_nanos) {
+                broadcastLinkState("link stall", "waited", waited_nanos / 1000000);
+            }
+        });
+        return probe;
+    }
+
+    // link state changes for the status of clients, sent once per probe rather than per frame
+    private void broadcastLinkState(String message, String key, long value){
+        JSONObject jsonObj = new JSONObject();
+        try{
+            jsonObj.put("message", message);
+            jsonObj.put(key, value);
+            Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
+            intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
+            sendBroadcast(intent);
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return probe measuring the command round trip time of the link, started by the
+     * json message "probe" with an optional "period" in milliseconds, 0 to stop. Each reply is
+     * broadcast as "link ok" with the "round trip" in microseconds, a lost one as "link stall".
+     */
+    public LinkProbe getLinkProbe(){
+        return linkProbe;
+    }
+
+    private void onServicesDiscovered(){
+        final String address = daqManager.getDeviceAddress();
+        if(address == null){
+            return;
+        }
+        String name = null;
+        if(mBluetoothAdapter != null){
+            name = mBluetoothAdapter.getRemoteDevice(address).getName();
+        }
+        deviceStore.markConnected(address, name);
+
+        if(address.equals(warmStartAddress)){
+            warmStartAddress = null;
+            stopWarmStartScan();
+            applyStreamSettings(deviceStore.getPreferredDevice());
+        }
+    }
+
+    // the same sequence as enabling a stream from DeviceControlActivity: real time mode first,
+    // then the stream commands once the device has switched
+    private void applyStreamSettings(final RecentDeviceStore.KnownDevice device){
+        if(!device.fsrEnabled && !device.imuEnabled){
+            return;
+        }
+        daqManager.sendUartData(REAL_TIME_COMMAND);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // the device may have gone away while switching
+                if(device.address.equals(daqManager.getDeviceAddress())
+                        && daqManager.getStatus() == DaqBleManager.STATE_SERVICES_DISCOVERED){
+                    enableStreams(device);
+                }
+            }
+        }, REAL_TIME_SETTLE_TIME);
+    }
+
+    private void enableStreams(RecentDeviceStore.KnownDevice device){
+        if(device.fsrEnabled){
+            daqManager.setFsrData(true);
+            if(device.fsrDelay >= 0){ daqManager.setFsrDelay(device.fsrDelay);}
+        }
+        if(device.imuEnabled){
+            daqManager.setImuData(true);
+            if(device.imuDelay >= 0){ daqManager.setImuDelay(device.imuDelay);}
+        }
+    }
+
+    private void rememberStreamSettings(JSONObject settings){
+        String address = daqManager.getDeviceAddress();
+        if(address == null){
+            return;
+        }
+        RecentDeviceStore.KnownDevice device = deviceStore.getPreferredDevice();
+        if(device == null || !device.address.equals(address)){
+            return;
+        }
+        if(settings.has("enable fsr") || settings.has("fsr delay")){
+            deviceStore.updateFsrSettings(address,
+                    settings.optBoolean("enable fsr", device.fsrEnabled),
+                    settings.optInt("fsr delay", -1));
+        }
+        if(settings.has("enable imu") || settings.has("imu delay")){
+            deviceStore.updateImuSettings(address,
+                    settings.optBoolean("enable imu", device.imuEnabled),
+                    settings.optInt("imu delay", -1));
+        }
+    }
+
+    /**
+     * Put fsr frames on a uniform grid before they are broadcast, a rate of 0 turns resampling off.
+     * Settings keys: "resample rate" in Hz, "resample mode" linear or hold,
+     * "resample max gap" in ms (default 3 output periods), "resample delay" in ms (default 0)
+     */
+    private void configureResampler(JSONObject settings){
+        double rate = settings.optDouble("resample rate", 0);
+        if(rate <= 0){
+            fsrResampler = null;
+            return;
+        }
+        int mode = "hold".equals(settings.optString("resample mode")) ? StreamResampler.MODE_HOLD : StreamResampler.MODE_LINEAR;
+        long maxGap = settings.optLong("resample max gap", (long) Math.ceil(3000.0 / rate));
+        long delay = settings.optLong("resample delay", 0);
+        fsrResampler = new StreamResampler(FSR_CHANNELS, rate, mode, maxGap, delay, RESAMPLE_LOOK_BEHIND, fsrResampleListener);
+    }
+
+    private final StreamResampler.Listener fsrResampleListener = new StreamResampler.Listener() {
+        @Override
+        public void onResampledFrame(long index, double time, float[] values, int flags) {
+            JSONObject jsonObj = new JSONObject();
+            try{
+                jsonObj.put("message", "fsr data");
+                jsonObj.put("time", Math.round(time));
+                jsonObj.put("host time", deviceClock.toHostTime((int) Math.round(time)));
+                jsonObj.put("resampled", true);
+                jsonObj.put("gap", (flags & StreamResampler.FLAG_GAP) != 0);
+                JSONArray array = new JSONArray();
+                for(int j = 0; j < values.length; j++){
+                    array.put(j, (double) values[j]);
+                }
+                jsonObj.put("fsr", array);
+                Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
+                intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
+                sendFrameBroadcast(intent, LatencyTracer.now());
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Receive the decoded device data in this process without going through broadcasts.
+     * Listeners are called on the bluetooth callback thread and must return quickly.
+     * @param listener listener to add
+     */
+    public synchronized void addDataListener(DaqBleManager.CypressInterface listener){
+        final DaqBleManager.CypressInterface[] listeners = dataListeners;
+        for(DaqBleManager.CypressInterface known : listeners){
+            if(known == listener){
+                return;
+            }
+        }
+        DaqBleManager.CypressInterface[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        dataListeners = added;
+    }
+
+    public synchronized void removeDataListener(DaqBleManager.CypressInterface listener){
+        final DaqBleManager.CypressInterface[] listeners = dataListeners;
+        for(int i = 0; i < listeners.length; i++){
+            if(listeners[i] == listener){
+                DaqBleManager.CypressInterface[] removed = new DaqBleManager.CypressInterface[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                dataListeners = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run sliding windows over the fsr and imu streams, stamped with the frame arrival time in
+     * milliseconds. Replaces the engines of an earlier call; add the windows before passing them.
+     * @param fsr_engine engine with SensorWindowFeeder.FSR_CHANNELS channels, or null
+     * @param imu_engine engine with SensorWindowFeeder.IMU_CHANNELS channels, or null
+     */
+    public synchronized void setSensorWindows(SensorWindowEngine fsr_engine, SensorWindowEngine imu_engine){
+        if(windowFeeder != null){
+            removeDataListener(windowFeeder);
+            windowFeeder = null;
+        }
+        if(fsr_engine != null || imu_engine != null){
+            windowFeeder = new SensorWindowFeeder(daqManager, fsr_engine, imu_engine);
+            addDataListener(windowFeeder);
+        }
+    }
+
+    /**
+     * Receive fsr and imu frames from the shared pool, on the bluetooth callback thread. A listener
+     * keeping a frame past the call retains it and releases it when done, see FramePool.
+     * @param listener listener to add
+     */
+    public synchronized void addFrameListener(FramePool.Listener listener){
+        final FramePool.Listener[] listeners = frameListeners;
+        for(FramePool.Listener known : listeners){
+            if(known == listener){
+                return;
+            }
+        }
+        FramePool.Listener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        frameListeners = added;
+    }
+
+    public synchronized void removeFrameListener(FramePool.Listener listener){
+        final FramePool.Listener[] listeners = frameListeners;
+        for(int i = 0; i < listeners.length; i++){
+            if(listeners[i] == listener){
+                FramePool.Listener[] removed = new FramePool.Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                frameListeners = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return pool the frame listeners are served from, for its metrics
+     */
+    public FramePool getFramePool(){
+        return framePool;
+    }
+
+    private void dispatchFrame(FramePool.Frame frame, FramePool.Listener[] listeners){
+        if(frame == null){
+            // pool exhausted, counted by the pool
+            return;
+        }
+        try{
+            for(FramePool.Listener listener : listeners){
+                listener.onFrame(frame);
+            }
+        }finally{
+            frame.release();
+        }
+    }
+
+    private final Runnable frameLeakCheck = new Runnable() {
+        @Override
+        public void run() {
+            if(framePool.checkLeaks(FRAME_LEAK_AGE) > 0){
+                Log.w(TAG, "Frames held too long, " + framePool.report());
+            }
+            mHandler.postDelayed(this, FRAME_LEAK_CHECK_PERIOD);
+        }
+    };
+
+    /**
+     * Turn the json broadcast of every fsr and imu frame on or off for every client, uart text is
+     * always broadcast. Clients in other processes use setClientBroadcastFrames instead.
+     */
+    public void setBroadcastFrames(boolean enable){
+        broadcastFrames = enable;
+    }
+
+    /**
+     * Record whether a client uses the json broadcast of every fsr and imu frame. The broadcast
+     * goes on while any client holds it or no client has declared it does without it, so a
+     * client relying on the full stream holds it by name. Unsubscribing drops the declaration.
+     * json message "settings" or "subscribe" with "subscriber" and "broadcast frames"
+     */
+    public synchronized void setClientBroadcastFrames(String subscriber, boolean enable){
+        if(enable){
+            fullStreamReleased.remove(subscriber);
+            fullStreamHolders.add(subscriber);
+        }else{
+            fullStreamHolders.remove(subscriber);
+            fullStreamReleased.add(subscriber);
+        }
+        updateFullStream();
+    }
+
+    // called with this held
+    private void updateFullStream(){
+        fullStreamWanted = !fullStreamHolders.isEmpty() || fullStreamReleased.isEmpty();
+    }
+
+    private boolean shouldBroadcastFrames(){
+        return broadcastFrames && fullStreamWanted;
+    }
+
+    /**
+     * Send a subscriber only the fsr channels it uses at the rate it needs, replacing its earlier
+     * subscription. json message "subscribe" with "subscriber" (its name), "channels" (default
+     * all), "rate" in Hz (default 0, every frame), "mode" latest, average or min max (default
+     * latest) and "package" to deliver to that app only; "enable" false ends the subscription.
+     * Frames are broadcast as json message "fsr subscription", apart from the "fsr data" of the
+     * full stream, with "subscriber", "host time" in ms, "frames" in the window, "channels", and
+     * "fsr" or "fsr min" and "fsr max". A subscriber with no use for the full stream also sets
+     * "broadcast frames" false, see setClientBroadcastFrames.
+     */
+    public void subscribe(JSONObject settings) throws JSONException {
+        String id = settings.getString("subscriber");
+        JSONArray array = settings.optJSONArray("channels");
+        int[] channels = new int[array == null ? FSR_CHANNELS : array.length()];
+        for(int i = 0; i < channels.length; i++){
+            channels[i] = array == null ? i : array.getInt(i);
+        }
+        int mode;
+        switch(settings.optString("mode", "latest")){
+            case "average": mode = StreamDecimator.MODE_AVERAGE; break;
+            case "min max": mode = StreamDecimator.MODE_MIN_MAX; break;
+            default: mode = StreamDecimator.MODE_LATEST; break;
+        }
+        StreamDecimator subscriber = new StreamDecimator(id, channels, settings.optDouble("rate", 0), mode,
+                subscriberBroadcaster(settings.optString("package", null)));
+        synchronized(this){
+            if(settings.has("broadcast frames")){
+                setClientBroadcastFrames(id, settings.getBoolean("broadcast frames"));
+            }
+            final StreamDecimator[] subscribers = fsrSubscribers;
+            for(int i = 0; i < subscribers.length; i++){
+                if(subscribers[i].getId().equals(id)){
+                    StreamDecimator[] replaced = subscribers.clone();
+                    replaced[i] = subscriber;
+                    fsrSubscribers = replaced;
+                    return;
+                }
+            }
+            StreamDecimator[] added = Arrays.copyOf(subscribers, subscribers.length + 1);
+            added[subscribers.length] = subscriber;
+            fsrSubscribers = added;
+        }
+    }
+
+    public synchronized void unsubscribe(String id){
+        fullStreamHolders.remove(id);
+        fullStreamReleased.remove(id);
+        updateFullStream();
+        final StreamDecimator[] subscribers = fsrSubscribers;
+        for(int i = 0; i < subscribers.length; i++){
+            if(subscribers[i].getId().equals(id)){
+                StreamDecimator[] removed = new StreamDecimator[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, removed, 0, i);
+                System.arraycopy(subscribers, i + 1, removed, i, subscribers.length - i - 1);
+                fsrSubscribers = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the fsr subscribers, with their frame counts in and out
+     */
+    public StreamDecimator[] getSubscribers(){
+        return fsrSubscribers.clone();
+    }
+
+    private StreamDecimator.Listener subscriberBroadcaster(final String package_name){
+        return new StreamDecimator.Listener() {
+            @Override
+            public void onDecimatedFrame(StreamDecimator decimator, long host_micros, int frames, float[] values) {
+                final long dispatchStart = LatencyTracer.now();
+                LatencyTracer.beginSection(LatencyTracer.STAGE_DISPATCH);
+                JSONObject jsonObj = new JSONObject();
+                try{
+                    int n = decimator.getChannelCount();
+                    jsonObj.put("message", "fsr subscription");
+                    jsonObj.put("subscriber", decimator.getId());
+                    jsonObj.put("host time", host_micros / 1000.0);
+                    jsonObj.put("frames", frames);
+                    JSONArray channels = new JSONArray();
+                    for(int channel : decimator.getChannels()){
+                        channels.put(channel);
+                    }
+                    jsonObj.put("channels", channels);
+                    if(decimator.getMode() == StreamDecimator.MODE_MIN_MAX){
+                        JSONArray min = new JSONArray();
+                        JSONArray max = new JSONArray();
+                        for(int j = 0; j < n; j++){
+                            min.put(j, (double) values[j]);
+                            max.put(j, (double) values[n + j]);
+                        }
+                        jsonObj.put("fsr min", min);
+                        jsonObj.put("fsr max", max);
+                    }else{
+                        JSONArray array = new JSONArray();
+                        for(int j = 0; j < n; j++){
+                            array.put(j, (double) values[j]);
+                        }
+                        jsonObj.put("fsr", array);
+                    }
+                    Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
+                    if(package_name != null){
+                        intent.setPackage(package_name);
+                    }
+                    intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
+                    sendFrameBroadcast(intent, dispatchStart);
+                }catch(Exception e){
+                    e.printStackTrace();
+                }finally{
+                    LatencyTracer.endSection();
+                }
+            }
+        };
+    }
+
+    /**
+     * Device time stamps of the connected device mapped onto the host clock,
+     * on the SystemClock.elapsedRealtime timebase shared by every device
+     * @return synchronizer of the device currently streaming
+     */
+    public ClockSynchronizer getClockSynchronizer(){
+        return deviceClock;
+    }
+
+    private ClockSynchronizer clockFor(String address){
+        if(address == null){
+            return deviceClock;
+        }
+        ClockSynchronizer clock = deviceClocks.get(address);
+        if(clock == null){
+            clock = new ClockSynchronizer();
+            deviceClocks.put(address, clock);
+        }
+        return clock;
+    }
+
     @Override
     public void bleConnectionStateUpdate(int state) {
+        if(state == DaqBleManager.STATE_CONNECTED){
+            // the device may have restarted while away, its clock checks the first frame
+            final ClockSynchronizer clock = clockFor(daqManager.getDeviceAddress());
+            clock.onReconnect();
+            deviceClock = clock;
+            if(calibrationStore != null){
+                daqManager.setFsrCalibration(calibrationStore.get(daqManager.getDeviceAddress()));
+            }
+        }
+        for(DaqBleManager.CypressInterface listener : dataListeners){
+            listener.bleConnectionStateUpdate(state);
+        }
+        if(state == DaqBleManager.STATE_SERVICES_DISCOVERED){
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onServicesDiscovered();
+                }
+            });
+        }
         broadcastCurrentState();
     }
 
+    /**
+     * Store the fsr calibration of a device and apply it right away if the device is connected.
+     * Message keys: "address" (default the connected device), "polynomials" with the coefficients
+     * of every channel lowest order first, leave it out to remove the calibration
+     */
+    private void calibrate(JSONObject message) throws JSONException {
+        String address = message.optString("address", daqManager.getDeviceAddress());
+        if(address == null){
+            return;
+        }
+        FsrCalibration calibration = null;
+        JSONArray channels = message.optJSONArray("polynomials");
+        if(channels == null){
+            calibrationStore.remove(address);
+        }else{
+            double[][] polynomials = new double[channels.length()][];
+            for(int c = 0; c < channels.length(); c++){
+                JSONArray poly = channels.getJSONArray(c);
+                polynomials[c] = new double[poly.length()];
+                for(int i = 0; i < poly.length(); i++){
+                    polynomials[c][i] = poly.getDouble(i);
+                }
+            }
+            calibration = calibrationStore.put(address, polynomials);
+        }
+        if(address.equals(daqManager.getDeviceAddress())){
+            daqManager.setFsrCalibration(calibration);
+        }
+    }
+
     @Override
     public void fsrDataRecieved(int time, int[] data) {
+        onFsrSample(time, data, null);
+    }
+
+    @Override
+    public void fsrForceRecieved(int time, int[] data, float[] force) {
+        onFsrSample(time, data, force);
+    }
+
+    // force is null unless the device is calibrated
+    private void onFsrSample(int time, int[] data, float[] force) {
+        if(!firstSampleReceived){
+            firstSampleReceived = true;
+            Log.i(TAG, "First fsr sample " + (SystemClock.elapsedRealtime() - createTime) + " ms after service start");
+        }
+        final double hostTime = deviceClock.onFrame(time, daqManager.getFrameArrivalTime());
+        final SummaryPyramid summary = fsrSummary;
+        if(summary != null){
+            summary.push((long) hostTime, data);
+        }
+        final SessionRecorder recorder = sessionRecorder;
+        if(recorder != null){
+            try{
+                recorder.writeFsr(time, (long) (hostTime * 1000), data);
+            }catch(IOException e){
+                e.printStackTrace();
+                stopRecording();
+            }
+        }
+        statistics.fsrDataRecieved(time, data);
+        final SessionFeatures features = liveFeatures;
+        synchronized(features){
+            features.addFsr((long) (hostTime * 1000), data);
+        }
+        final AlertRules alerts = alertRules;
+        if(alerts != null){
+            alerts.onFsr((long) (hostTime * 1000), data, force);
+        }
+        final TriggeredCapture capture = triggeredCapture;
+        if(capture != null){
+            capture.onFsr(time, (long) (hostTime * 1000), data);
+        }
+        final StreamUplink link = uplink;
+        if(link != null){
+            link.offerFsr(time, (long) (hostTime * 1000), data);
+        }
+        final SharedRingBuffer ring = sharedRing;
+        if(ring != null){
+            ring.publishFsr(time, (long) (hostTime * 1000), data);
+        }
+        for(DaqBleManager.CypressInterface listener : dataListeners){
+            if(force != null && listener instanceof DaqBleManager.CalibratedFsrInterface){
+                ((DaqBleManager.CalibratedFsrInterface) listener).fsrForceRecieved(time, data, force);
+            }else{
+                listener.fsrDataRecieved(time, data);
+            }
+        }
+        for(StreamDecimator subscriber : fsrSubscribers){
+            subscriber.push((long) (hostTime * 1000), data);
+        }
+        final FramePool.Listener[] pooled = frameListeners;
+        if(pooled.length > 0){
+            dispatchFrame(framePool.acquireFsr(time, (long) (hostTime * 1000), data, force), pooled);
+        }
+        // the resampled stream replaces the full stream and is asked for on its own
+        final StreamResampler resampler = fsrResampler;
+        if(resampler != null){
+            resampler.push(time, data);
+            return;
+        }
+        if(!shouldBroadcastFrames()){
+            return;
+        }
+        final long dispatchStart = LatencyTracer.now();
+        LatencyTracer.beginSection(LatencyTracer.STAGE_DISPATCH);
         JSONObject jsonObj = new JSONObject();
         try{
             jsonObj.put("message", "fsr data");
             jsonObj.put("time", time);
+            jsonObj.put("host time", hostTime);
             JSONArray array = new JSONArray();
             for(int j = 0; j < data.length; j++){
                 array.put(j, data[j]);
             }
             jsonObj.put("fsr", array);
+            if(force != null){
+                JSONArray forces = new JSONArray();
+                for(int j = 0; j < force.length; j++){
+                    forces.put(j, (double) force[j]);
+                }
+                jsonObj.put("force", forces);
+            }
             Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
             intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
-            sendBroadcast(intent);
+            sendFrameBroadcast(intent, dispatchStart);
         }catch(Exception e){
             e.printStackTrace();
+        }finally{
+            LatencyTracer.endSection();
         }
     }
 
     @Override
     public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+        final SessionRecorder recorder = sessionRecorder;
+        if(recorder != null){
+            try{
+                recorder.writeImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+            }catch(IOException e){
+                e.printStackTrace();
+                stopRecording();
+            }
+        }
+        statistics.imuDataRecieved(time, roll, pitch, yaw);
+        final SessionFeatures features = liveFeatures;
+        synchronized(features){
+            features.addImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+        }
+        final AlertRules alerts = alertRules;
+        if(alerts != null){
+            alerts.onImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+        }
+        final TriggeredCapture capture = triggeredCapture;
+        if(capture != null){
+            capture.onImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+        }
+        final StreamUplink link = uplink;
+        if(link != null){
+            link.offerImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+        }
+        final SharedRingBuffer ring = sharedRing;
+        if(ring != null){
+            ring.publishImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw);
+        }
+        for(DaqBleManager.CypressInterface listener : dataListeners){
+            listener.imuDataRecieved(time, roll, pitch, yaw);
+        }
+        final FramePool.Listener[] pooled = frameListeners;
+        if(pooled.length > 0){
+            dispatchFrame(framePool.acquireImu(daqManager.getFrameArrivalTime() / 1000, roll, pitch, yaw), pooled);
+        }
+        if(!shouldBroadcastFrames()){
+            return;
+        }
+        final long dispatchStart = LatencyTracer.now();
+        LatencyTracer.beginSection(LatencyTracer.STAGE_DISPATCH);
         JSONObject jsonObj = new JSONObject();
         try{
             jsonObj.put("message", "imu data");
@@ -170,16 +1019,39 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
             jsonObj.put("pitch", pitch);
             Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
             intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
-            sendBroadcast(intent);
+            sendFrameBroadcast(intent, dispatchStart);
         }catch(Exception e){
             e.printStackTrace();
+        }finally{
+            LatencyTracer.endSection();
         }
     }
 
     @Override
     public void uartDataRecieved(String data) {
-        Intent intent = new Intent(BROADCAST_ACTION_DATA_AVAILABLE);
-        intent.putExtra(BROADCAST_EXTRA_DATA, data);
+        linkProbe.onUartData(data, daqManager.getFrameArrivalTime());
+        final StreamUplink link = uplink;
+        if(link != null){
+            link.offerUart(daqManager.getFrameArrivalTime() / 1000, data);
+        }
+        for(DaqBleManager.CypressInterface listener : dataListeners){
+            listener.uartDataRecieved(data);
+        }
+        final long dispatchStart = LatencyTracer.now();
+        LatencyTracer.beginSection(LatencyTracer.STAGE_DISPATCH);
+        try{
+            Intent intent = new Intent(BROADCAST_ACTION_DATA_AVAILABLE);
+            intent.putExtra(BROADCAST_EXTRA_DATA, data);
+            sendFrameBroadcast(intent, dispatchStart);
+        }finally{
+            LatencyTracer.endSection();
+        }
+    }
+
+    // stamps the frame so receivers can measure the broadcast and their own handling
+    private void sendFrameBroadcast(Intent intent, long dispatchStart){
+        intent.putExtra(BROADCAST_EXTRA_ARRIVAL_TIME, daqManager.getFrameArrivalTime());
+        intent.putExtra(BROADCAST_EXTRA_SENT_TIME, LatencyTracer.get().record(LatencyTracer.STAGE_DISPATCH, dispatchStart));
         sendBroadcast(intent);
     }
 
@@ -191,25 +1063,104 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
 
     @Override
     public IBinder onBind(Intent intent) {
-        return mBinder;
+        if(ACTION_BIND_LOCAL.equals(intent.getAction())){
+            return mBinder;
+        }
+        return sharedRingMessenger.getBinder();
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
+        // clients come and go without stopping the stream, it is torn down in onDestroy
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
         close();
-        return super.onUnbind(intent);
+        super.onDestroy();
     }
 
     private final IBinder mBinder = new LocalBinder();
+    // set once close has torn the service down, guarded by this
+    private boolean closed = false;
 
     @Override
     public void onCreate() {
-        if (daqManager.create(this, (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE), getApplicationContext())) {
+        createTime = SystemClock.elapsedRealtime();
+        mHandler = new Handler();
+        deviceStore = new RecentDeviceStore(this);
+        calibrationStore = new CalibrationStore(this);
+        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        if(bluetoothManager != null){
+            mBluetoothAdapter = bluetoothManager.getAdapter();
+        }
+        if (daqManager.create(this, bluetoothManager, getApplicationContext())) {
             Log.d(TAG, "Initialization complete");
         }else{
             Log.e(TAG, "Unable to initializeBluetooth Bluetooth");
         }
-        registerReceiver(clientIntentReceiver, clientIntentFilter());
+        // commands reach the device and the uplink, only our own apps may send them
+        registerReceiver(clientIntentReceiver, clientIntentFilter(), CONTROL_PERMISSION, null);
+        openSharedRing();
+        if(BuildConfig.DEBUG){
+            mHandler.postDelayed(frameLeakCheck, FRAME_LEAK_CHECK_PERIOD);
+        }
+        warmStart();
+    }
+
+    private void openSharedRing(){
+        try{
+            sharedRing = new SharedRingBuffer(new File(getFilesDir(), SHARED_RING_FILE), SharedRingBuffer.DEFAULT_SLOTS);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+        sharedRingMessenger = new Messenger(new Handler(new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if(msg.what != MSG_OPEN_SHARED_RING || msg.replyTo == null){
+                    return false;
+                }
+                replySharedRing(msg.replyTo);
+                return true;
+            }
+        }));
+    }
+
+    // the only binder traffic of a shared ring consumer, frames are read from the mapping
+    private void replySharedRing(Messenger client){
+        final SharedRingBuffer ring = sharedRing;
+        Message reply = Message.obtain(null, MSG_SHARED_RING);
+        ParcelFileDescriptor descriptor = null;
+        try{
+            if(ring != null){
+                descriptor = ParcelFileDescriptor.open(ring.getFile(), ParcelFileDescriptor.MODE_READ_ONLY);
+                Bundle data = new Bundle();
+                data.putParcelable(SHARED_RING_DESCRIPTOR, descriptor);
+                data.putInt(SHARED_RING_LAYOUT_VERSION, SharedRingBuffer.LAYOUT_VERSION);
+                data.putInt(SHARED_RING_SLOT_COUNT, ring.getSlotCount());
+                reply.setData(data);
+            }
+            client.send(reply);
+        }catch(Exception e){
+            e.printStackTrace();
+        }finally{
+            // a remote client got its own copy of the descriptor with the reply
+            if(descriptor != null && !(client.getBinder() instanceof Binder)){
+                try{
+                    descriptor.close();
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the ring other processes read the stream from, null if it could not be created
+     */
+    public SharedRingBuffer getSharedRing(){
+        return sharedRing;
     }
 
     @Override
@@ -217,7 +1168,238 @@ public class BluetoothLeService extends Service implements DaqBleManager.Cypress
         return Service.START_STICKY;
     }
 
-    public void close() {
+    /**
+     * @return min, max and mean summary of the fsr data of the recording in progress, keyed by
+     * host time in milliseconds, null while not recording. The summary of a finished recording is
+     * saved next to its session file.
+     */
+    public SummaryPyramid getSummaryPyramid(){
+        return fsrSummary;
+    }
+
+    /**
+     * Start recording fsr and imu frames to a new session file in the sessions directory,
+     * read it back with SessionReader
+     */
+    public synchronized void startRecording(){
+        if(sessionRecorder != null){
+            return;
+        }
+        File directory = new File(getFilesDir(), SESSION_DIRECTORY);
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            Log.e(TAG, "Unable to create " + directory);
+            return;
+        }
+        File file = new File(directory, "session-" + System.currentTimeMillis() + SESSION_EXTENSION);
+        try{
+            sessionRecorder = new SessionRecorder(file);
+            fsrSummary = new SummaryPyramid(FSR_CHANNELS, SummaryPyramid.DEFAULT_BLOCK_SHIFT);
+            liveFeatures = new SessionFeatures();
+            Log.i(TAG, "Recording to " + file);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void stopRecording(){
+        final SessionRecorder recorder = sessionRecorder;
+        if(recorder == null){
+            return;
+        }
+        sessionRecorder = null;
+        final SummaryPyramid summary = fsrSummary;
+        fsrSummary = null;
+        try{
+            recorder.close();
+            summary.save(SummaryPyramid.fileFor(recorder.getSessionFile()));
+            Log.i(TAG, "Recorded " + recorder.getFrameCount() + " frames to " + recorder.getSessionFile());
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return live mean, variance, min and max of every fsr channel and imu axis over windows of
+     * 20, 200 and 1200 samples, readable from any thread
+     */
+    public RollingStatistics getStatistics(){
+        return statistics;
+    }
+
+    /**
+     * @return copy of the step count, peak load and channel statistics of the stream since the
+     * service started or the last recording started, the same features SessionBatchAnalyzer
+     * computes for a recording
+     */
+    public SessionFeatures getSessionFeatures(){
+        final SessionFeatures features = liveFeatures;
+        SessionFeatures copy = new SessionFeatures();
+        synchronized(features){
+            copy.merge(features);
+        }
+        return copy;
+    }
+
+    /**
+     * Replace the alert rules, an empty or missing "rules" array turns alerts off. Each rule has
+     * an "id", a "signal" fsr, force (both with a "channel"), load (sum of the fsr counts), roll,
+     * pitch or yaw, a threshold under "above" or "below", and optionally "absolute" to compare
+     * the magnitude, "hysteresis" and "duration" in ms. Alerts are broadcast as json message
+     * "alert" with "id", "raised", "value" and "host time" in ms.
+     */
+    public void configureAlerts(JSONObject settings) throws JSONException {
+        JSONArray array = settings.optJSONArray("rules");
+        if(array == null || array.length() == 0){
+            alertRules = null;
+            return;
+        }
+        AlertRules.Rule[] rules = new AlertRules.Rule[array.length()];
+        for(int i = 0; i < rules.length; i++){
+            JSONObject rule = array.getJSONObject(i);
+            boolean above = rule.has("above");
+            rules[i] = new AlertRules.Rule(rule.getString("id"), alertSignal(rule.getString("signal")),
+                    rule.optInt("channel", 0), above, rule.optBoolean("absolute", false),
+                    (float) rule.getDouble(above ? "above" : "below"),
+                    (float) rule.optDouble("hysteresis", 0), rule.optLong("duration", 0));
+        }
+        alertRules = new AlertRules(rules, alertListener);
+    }
+
+    private static int alertSignal(String name) throws JSONException {
+        switch(name){
+            case "fsr": return AlertRules.SIGNAL_FSR;
+            case "force": return AlertRules.SIGNAL_FORCE;
+            case "load": return AlertRules.SIGNAL_LOAD;
+            case "roll": return AlertRules.SIGNAL_ROLL;
+            case "pitch": return AlertRules.SIGNAL_PITCH;
+            case "yaw": return AlertRules.SIGNAL_YAW;
+        }
+        throw new JSONException("unknown alert signal " + name);
+    }
+
+    /**
+     * @return rules evaluated on the stream, null if alerts are off
+     */
+    public AlertRules getAlertRules(){
+        return alertRules;
+    }
+
+    private final AlertRules.Listener alertListener = new AlertRules.Listener() {
+        @Override
+        public void onAlert(AlertRules.Rule rule, boolean raised, long host_micros, float value) {
+            JSONObject jsonObj = new JSONObject();
+            try{
+                jsonObj.put("message", "alert");
+                jsonObj.put("id", rule.getId());
+                jsonObj.put("raised", raised);
+                jsonObj.put("value", (double) value);
+                jsonObj.put("host time", host_micros / 1000);
+                Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
+                intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
+                sendBroadcast(intent);
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Save the frames around every trigger to the captures directory, replacing any capture
+     * running. Message keys: "trigger" load (sum of the fsr counts) or angle rate (roll or pitch
+     * in degrees per second), "threshold", "pre" and "post" window in ms (default 5000 and 2000)
+     */
+    public synchronized void startCapture(JSONObject settings) throws JSONException {
+        TriggeredCapture.Trigger trigger;
+        if("angle rate".equals(settings.getString("trigger"))){
+            trigger = new TriggeredCapture.AngleRate((float) settings.getDouble("threshold"));
+        }else{
+            trigger = new TriggeredCapture.LoadThreshold(settings.getInt("threshold"));
+        }
+        long pre = settings.optLong("pre", 5000);
+        long post = settings.optLong("post", 2000);
+        int capacity = (int) ((pre + post) * CAPTURE_MAX_RATE / 1000);
+        stopCapture();
+        TriggeredCapture capture = new TriggeredCapture(new File(getFilesDir(), CAPTURE_DIRECTORY), trigger, pre, post, capacity);
+        capture.setListener(new TriggeredCapture.Listener() {
+            @Override
+            public void onCaptureSaved(File file, int frames) {
+                JSONObject jsonObj = new JSONObject();
+                try{
+                    jsonObj.put("message", "capture saved");
+                    jsonObj.put("file", file.getPath());
+                    jsonObj.put("frames", frames);
+                    Intent intent = new Intent(BROADCAST_ACTION_JSON_DATA_AVAILABLE);
+                    intent.putExtra(BROADCAST_EXTRA_DATA, jsonObj.toString());
+                    sendBroadcast(intent);
+                }catch(Exception e){
+                    e.printStackTrace();
+                }
+            }
+        });
+        triggeredCapture = capture;
+    }
+
+    public synchronized void stopCapture(){
+        final TriggeredCapture capture = triggeredCapture;
+        if(capture == null){
+            return;
+        }
+        triggeredCapture = null;
+        // returns at once, a capture being written is finished on the writer thread
+        capture.close();
+    }
+
+    /**
+     * Stream every fsr, imu and uart frame to a collector, replacing any uplink already running.
+     * json message "uplink" with "enable", "host" and an optional "port"
+     */
+    public synchronized void startUplink(String host, int port){
+        stopUplink();
+        uplink = new StreamUplink(host, port);
+        uplink.start();
+        Log.i(TAG, "Streaming to " + host + ":" + port);
+    }
+
+    public synchronized void stopUplink(){
+        final StreamUplink link = uplink;
+        if(link == null){
+            return;
+        }
+        uplink = null;
+        link.stop();
+        Log.i(TAG, "Uplink stopped, " + link.report());
+    }
+
+    /**
+     * @return the running uplink, null if none
+     */
+    public StreamUplink getUplink(){
+        return uplink;
+    }
+
+    /**
+     * Stop the stream and release the device, the service is of no further use. Called from
+     * onDestroy, later calls do nothing.
+     */
+    public synchronized void close() {
+        if(closed){
+            return;
+        }
+        closed = true;
+        linkProbe.stop();
+        if(mHandler != null){
+            mHandler.removeCallbacks(frameLeakCheck);
+        }
+        stopUplink();
+        final SharedRingBuffer ring = sharedRing;
+        if(ring != null){
+            sharedRing = null;
+            ring.close();
+        }
+        stopCapture();
+        stopRecording();
+        setSensorWindows(null, null);
+        stopWarmStartScan();
         daqManager.destroy();
         unregisterReceiver(clientIntentReceiver);
     }
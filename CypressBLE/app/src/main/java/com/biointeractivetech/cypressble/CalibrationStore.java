@@ -0,0 +1,92 @@
+package com.biointeractivetech.cypressble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+
+import java.util.HashMap;
+
+/**
+ * Persists the fsr calibration polynomials of every device by address and keeps
+ * the compiled calibrations of the devices used since start
+ */
+public class CalibrationStore {
+    private static final String PREFS_NAME = "fsr_calibration";
+
+    private final String LOG_TAG = "Calibration Store";
+
+    private final SharedPreferences prefs;
+    private final HashMap<String, FsrCalibration> compiled = new HashMap<String, FsrCalibration>();
+
+    /**
+     * @param context context used to open the shared preferences backing the store
+     */
+    public CalibrationStore(Context context){
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param address mac address of the device
+     * @return calibration of the device, or null if it has none
+     */
+    public synchronized FsrCalibration get(String address){
+        if(address == null){
+            return null;
+        }
+        FsrCalibration calibration = compiled.get(address);
+        if(calibration == null && prefs.contains(address)){
+            try{
+                JSONArray channels = new JSONArray(prefs.getString(address, "[]"));
+                double[][] polynomials = new double[channels.length()][];
+                for(int c = 0; c < channels.length(); c++){
+                    JSONArray poly = channels.optJSONArray(c);
+                    polynomials[c] = new double[poly == null ? 0 : poly.length()];
+                    for(int i = 0; i < polynomials[c].length; i++){
+                        polynomials[c][i] = poly.getDouble(i);
+                    }
+                }
+                calibration = new FsrCalibration(polynomials);
+                compiled.put(address, calibration);
+            }catch(Exception e){
+                Log.e(LOG_TAG, "Discarding unreadable calibration of " + address, e);
+                prefs.edit().remove(address).apply();
+            }
+        }
+        return calibration;
+    }
+
+    /**
+     * Store the calibration of a device, replacing the previous one
+     * @param address mac address of the device
+     * @param polynomials coefficients per channel, lowest order first
+     * @return the compiled calibration
+     */
+    public synchronized FsrCalibration put(String address, double[][] polynomials){
+        FsrCalibration calibration = new FsrCalibration(polynomials);
+        try{
+            JSONArray channels = new JSONArray();
+            for(int c = 0; c < FsrCalibration.CHANNELS; c++){
+                JSONArray poly = new JSONArray();
+                for(double coefficient : calibration.getCoefficients(c)){
+                    poly.put(coefficient);
+                }
+                channels.put(poly);
+            }
+            prefs.edit().putString(address, channels.toString()).apply();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+        compiled.put(address, calibration);
+        return calibration;
+    }
+
+    /**
+     * Drop the calibration of a device so its raw counts are no longer converted
+     */
+    public synchronized void remove(String address){
+        compiled.remove(address);
+        prefs.edit().remove(address).apply();
+    }
+}
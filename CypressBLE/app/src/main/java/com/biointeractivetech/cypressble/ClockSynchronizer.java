@@ -0,0 +1,197 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Maps the free running millisecond counter of one DAQ onto the host clock.
+ *
+ * Every frame gives one observation: host arrival time minus device time is the clock offset
+ * plus a transmission delay that is never negative. Within each block of frames only the
+ * observation with the smallest delay is kept, and the block minima are fitted with an
+ * exponentially weighted line whose slope is the drift between the two clocks. Old blocks fade
+ * out, so the fit follows temperature driven drift changes. Work per frame is constant.
+ *
+ * The mapped times carry the minimum link delay as a constant bias, which is the same for
+ * devices on the same phone and cancels when their streams are compared.
+ *
+ * A device that restarted counts from 0 again. A backward jump of the device time by more than
+ * RESET_JUMP_MS, or a first frame after onReconnect whose offset is that far off the fit, starts
+ * the fit over instead of mapping the new counter with the old line.
+ *
+ * Device and host times passed in must come from a single thread, onReconnect may be called
+ * from any thread.
+ */
+public class ClockSynchronizer {
+    private static final int BLOCK_FRAMES = 32;
+    private static final double FORGETTING = 0.995;
+    private static final int MIN_BLOCKS_FOR_DRIFT = 4;
+    /** jump of the device clock against the fit, in milliseconds, taken as a device restart */
+    public static final int RESET_JUMP_MS = 1000;
+
+    // unwrapping of the 32 bit device counter
+    private boolean started = false;
+    private int lastRawTime;
+    private long deviceTime;
+
+    // minimum delay observation of the current block
+    private int blockFrames = 0;
+    private double blockMinOffset;
+    private long blockMinDevice;
+
+    // weighted regression of offset against device time, x relative to reference
+    private long reference;
+    private double sw = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+    private int blocks = 0;
+
+    // fitted offset at reference and drift in ms per ms
+    private double offset;
+    private double drift = 0;
+    private boolean fitted = false;
+
+    // the next frame is checked against the fit, set when the device connects again
+    private volatile boolean reconnected = false;
+    private long resets = 0;
+
+    /**
+     * Add the arrival of a frame
+     * @param device_time device time stamp of the frame in milliseconds
+     * @param host_nanos host time at which the frame arrived, in nanoseconds
+     * @return the frame time on the host clock in milliseconds
+     */
+    public double onFrame(int device_time, long host_nanos){
+        if(reconnected){
+            reconnected = false;
+            if(started && Math.abs(host_nanos / 1e6 - toHostTime(device_time)) > RESET_JUMP_MS){
+                restart();
+            }
+        }
+        if(started && device_time - lastRawTime < -RESET_JUMP_MS){
+            restart();
+        }
+        long device = unwrap(device_time);
+        double observed = host_nanos / 1e6 - device;
+
+        if(blockFrames == 0 || observed < blockMinOffset){
+            blockMinOffset = observed;
+            blockMinDevice = device;
+        }
+        if(!fitted){
+            // until the first block closes, the best estimate is the smallest offset seen so far
+            offset = blockMinOffset;
+            reference = blockMinDevice;
+        }
+        blockFrames++;
+        if(blockFrames == BLOCK_FRAMES){
+            addBlock(blockMinDevice, blockMinOffset);
+            blockFrames = 0;
+        }
+        return deviceToHost(device);
+    }
+
+    /**
+     * The device connected again, it may have restarted in between; the next frame shows
+     */
+    public void onReconnect(){
+        reconnected = true;
+    }
+
+    /**
+     * Convert a device time stamp to the host clock without adding an observation
+     * @param device_time device time in milliseconds
+     * @return host time in milliseconds
+     */
+    public double toHostTime(int device_time){
+        if(!started){
+            return Double.NaN;
+        }
+        return deviceToHost(deviceTime + (device_time - lastRawTime));
+    }
+
+    /**
+     * @return estimated drift of the device clock relative to the host, in parts per million
+     */
+    public double getDriftPpm(){
+        return -drift * 1e6;
+    }
+
+    /**
+     * @return times the fit was started over because the device clock jumped
+     */
+    public long getResetCount(){
+        return resets;
+    }
+
+    /**
+     * @return true once enough frames have been seen for the drift estimate to be used
+     */
+    public boolean isLocked(){
+        return blocks >= MIN_BLOCKS_FOR_DRIFT;
+    }
+
+    /**
+     * Forget all observations, for example after the device restarted
+     */
+    public void reset(){
+        started = false;
+        blockFrames = 0;
+        sw = sx = sy = sxx = sxy = 0;
+        blocks = 0;
+        drift = 0;
+        fitted = false;
+    }
+
+    private void restart(){
+        reset();
+        resets++;
+    }
+
+    private long unwrap(int raw){
+        if(!started){
+            started = true;
+            lastRawTime = raw;
+            deviceTime = raw;
+            return deviceTime;
+        }
+        long t = deviceTime + (raw - lastRawTime);
+        if(t > deviceTime){
+            deviceTime = t;
+            lastRawTime = raw;
+        }
+        return t;
+    }
+
+    private double deviceToHost(long device){
+        return device + offsetAt(device);
+    }
+
+    private double offsetAt(long device){
+        return offset + drift * (device - reference);
+    }
+
+    private void addBlock(long x_abs, double y){
+        if(blocks == 0){
+            reference = x_abs;
+        }
+        // move the reference to the newest block so the sums stay well conditioned
+        double d = x_abs - reference;
+        sxx = sxx - 2 * d * sx + d * d * sw;
+        sxy = sxy - d * sy;
+        sx = sx - d * sw;
+        reference = x_abs;
+
+        sw = FORGETTING * sw + 1;
+        sx = FORGETTING * sx;
+        sy = FORGETTING * sy + y;
+        sxx = FORGETTING * sxx;
+        sxy = FORGETTING * sxy;
+        blocks++;
+
+        double meanX = sx / sw;
+        double meanY = sy / sw;
+        double varX = sxx / sw - meanX * meanX;
+        if(blocks >= MIN_BLOCKS_FOR_DRIFT && varX > 0){
+            drift = (sxy / sw - meanX * meanY) / varX;
+        }
+        // line through the weighted means, evaluated at the reference
+        offset = meanY - drift * meanX;
+        fitted = true;
+    }
+}
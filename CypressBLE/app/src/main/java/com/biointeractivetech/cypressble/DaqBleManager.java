@@ -11,11 +11,19 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.util.Log;
 
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.UUID;
-
-import static android.os.SystemClock.sleep;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by Sohail on 2017-04-17.
@@ -24,17 +32,35 @@ import static android.os.SystemClock.sleep;
 /**
  * Class for initiating, and managing connection to BIT DAQ device
  * over bluetooth low energy APIs provided by Android
+ *
+ * The connection is owned by one event loop thread: connect, disconnect, commands and the gatt
+ * connection and discovery callbacks are all handed to it as tasks, so the state machine needs
+ * no locks. Methods return at once with a future of the result. Commands are written one at a
+ * time, the next once the stack reports the previous one written. Data notifications are decoded
+ * on the bluetooth thread that delivers them, without going through the loop.
  */
 public class DaqBleManager {
     private Context appContext;
 
-    private CypressInterface callback;
+    private volatile CypressInterface callback;
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
+    // owned by the loop, volatile where read from other threads
+    private volatile String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    // a connect request is waiting for its first connection state change, set on the loop
+    private volatile boolean connectPending = false;
+
+    private static final long WRITE_RETRY_DELAY = 500;
+    private static final long WRITE_TIMEOUT = 2000;
+
+    // shut down by destroy once its task has run, create starts a new one
+    private volatile ScheduledThreadPoolExecutor loop = newLoop();
+    // commands waiting for the one being written, only touched on the loop
+    private final ArrayDeque<PendingWrite> writes = new ArrayDeque<PendingWrite>();
+    private PendingWrite writeInFlight = null;
 
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTING = 1;
@@ -47,6 +73,20 @@ public class DaqBleManager {
 
     private BluetoothGattCharacteristic characteristic_custom_serial_profile_tx = null;
 
+    private volatile long frameArrivalTime = 0;
+    private boolean decodeRecorded = false;
+
+    public static final int HEADER_FSR = 'F' | 0x80;
+    public static final int HEADER_IMU = 'I' | 0x80;
+    private static final int DEFAULT_FSR_PERIOD = 50;
+
+    // decoders by header byte, headers below 0x80 are text for the uart emulation
+    private final PacketDecoder[] decoders = new PacketDecoder[256];
+    private final PacketDecoders.Fsr fsrDecoder = new PacketDecoders.Fsr(DEFAULT_FSR_PERIOD);
+    private final AtomicLongArray unknownPackets = new AtomicLongArray(256);
+    private final AtomicLong malformedPackets = new AtomicLong(0);
+
+
     private final String LOG_TAG = "Daq BLE Manager";
 
     /**
@@ -63,7 +103,7 @@ public class DaqBleManager {
         /**
          * called when a fsr data packet is received
          * @param time time in milliseconds received from DAQ
-         * @param data array of data containing fsr pressure value
+         * @param data array of data containing fsr pressure value, reused for the next sample
          */
         void fsrDataRecieved(int time, int data[]);
 
@@ -83,6 +123,42 @@ public class DaqBleManager {
         void uartDataRecieved(String data);
     }
 
+    /**
+     * Implement this interface next to CypressInterface to receive fsr samples converted to
+     * force while a calibration is set
+     */
+    public interface CalibratedFsrInterface{
+        /**
+         * called instead of fsrDataRecieved while a calibration is set
+         * @param time time in milliseconds received from DAQ
+         * @param data raw fsr counts, reused for the next sample
+         * @param force calibrated value of every channel, reused for the next sample
+         */
+        void fsrForceRecieved(int time, int data[], float force[]);
+    }
+
+    public DaqBleManager(){
+        PacketDecoder uart = new PacketDecoders.Uart();
+        for(int header = 0; header < 0x80; header++){
+            decoders[header] = uart;
+        }
+        decoders[HEADER_FSR] = fsrDecoder;
+        decoders[HEADER_IMU] = new PacketDecoders.Imu();
+    }
+
+    /**
+     * Implement this interface to decode packets starting with a given header byte
+     */
+    public interface PacketDecoder{
+        /**
+         * decode a notification, may report several samples
+         * @param packet notification payload including the header byte
+         * @param callback receives the decoded samples
+         * @return false if the packet is malformed for this header
+         */
+        boolean decode(byte[] packet, CypressInterface callback);
+    }
+
     /**
      * Call once at the start of application
      * @param callback_interface interface to listen to incoming data from DAQ
@@ -93,6 +169,9 @@ public class DaqBleManager {
     public boolean create(CypressInterface callback_interface, BluetoothManager manager, Context android_context){
         Log.d(LOG_TAG, "create entry");
         callback = callback_interface;
+        if(loop.isShutdown()){
+            loop = newLoop();
+        }
         mBluetoothManager = manager;
         appContext = android_context;
         Log.d(LOG_TAG, "create exit");
@@ -102,9 +181,18 @@ public class DaqBleManager {
     /**
      * connect to a bluetooth device
      * @param mac_address hexdecimal mac address of device, for example 0D:58:40:2E:00:6C
-     * @return true if connection request succeeds
+     * @return future of true if connection request succeeds
      */
-    public boolean connect(final String mac_address){
+    public Future<Boolean> connect(final String mac_address){
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return connectNow(mac_address);
+            }
+        });
+    }
+
+    private boolean connectNow(String mac_address){
         if(!initializeBluetooth()){
             Log.d(LOG_TAG, "bluetooth init failed, cannot connect");
             return false;
@@ -112,6 +200,7 @@ public class DaqBleManager {
 
         if (mBluetoothDeviceAddress != null && mac_address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
             if (mBluetoothGatt.connect()) {
+                connectPending = true;
                 Log.d(LOG_TAG, "Connection request complete for existing device");
                 return true;
             } else {
@@ -126,34 +215,102 @@ public class DaqBleManager {
             return false;
         }
 
+        // the connection to the previous device would otherwise stay open with nobody listening
+        if (mBluetoothGatt != null) {
+            failWrites();
+            characteristic_custom_serial_profile_tx = null;
+            mBluetoothGatt.close();
+        }
         mBluetoothGatt = device.connectGatt(appContext, false, mGattCallback);
         mBluetoothDeviceAddress = mac_address;
+        connectPending = true;
         Log.d(LOG_TAG, "Connection request compelete");
         return true;
     }
 
     /**
      * Disconnect from an existing connection without releasing all assets
-     * @return true if successful
+     * @return future of true if successful
      */
-    public boolean disconnect(){
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            return false;
-        }
-        mBluetoothGatt.disconnect();
-
-        return true;
+    public Future<Boolean> disconnect(){
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+                    return false;
+                }
+                // cancels a pending connect, which reports no state change
+                connectPending = false;
+                mBluetoothGatt.disconnect();
+                return true;
+            }
+        });
     }
 
     /**
      * Destroy all assets, will need to call create again before use
+     * @return future of true if a connection was closed
      */
-    public void destroy(){
-        if (mBluetoothGatt == null) {
-            return;
+    public Future<Boolean> destroy(){
+        Future<Boolean> destroyed = submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                failWrites();
+                characteristic_custom_serial_profile_tx = null;
+                connectPending = false;
+                if (mBluetoothGatt == null) {
+                    return false;
+                }
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+                return true;
+            }
+        });
+        // the destroy task and those before it still run, then the thread ends
+        loop.shutdown();
+        return destroyed;
+    }
+
+    private static ScheduledThreadPoolExecutor newLoop(){
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DaqBleManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // write timeouts and retries pending at destroy are dropped with the loop
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    // tasks arriving after destroy are dropped, their futures report false
+    private Future<Boolean> submit(Callable<Boolean> task){
+        try{
+            return loop.submit(task);
+        }catch(RejectedExecutionException e){
+            FutureTask<Boolean> dropped = new FutureTask<Boolean>(PendingWrite.NOTHING, false);
+            dropped.run();
+            return dropped;
+        }
+    }
+
+    private boolean execute(Runnable task){
+        try{
+            loop.execute(task);
+            return true;
+        }catch(RejectedExecutionException e){
+            return false;
+        }
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delay_ms){
+        try{
+            return loop.schedule(task, delay_ms, TimeUnit.MILLISECONDS);
+        }catch(RejectedExecutionException e){
+            return null;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -164,52 +321,124 @@ public class DaqBleManager {
         return mConnectionState;
     }
 
+    /**
+     * @return true from a connect request until the connection is made or the attempt fails,
+     * the status stays STATE_DISCONNECTED meanwhile
+     */
+    public boolean isConnectPending(){
+        return connectPending;
+    }
+
+    /**
+     * get the address of the device last requested through connect
+     * @return mac address, or null if connect has not been called
+     */
+    public String getDeviceAddress(){
+        return mBluetoothDeviceAddress;
+    }
+
+    /**
+     * get the host time at which the frame currently being delivered arrived,
+     * only meaningful inside a CypressInterface callback
+     * @return arrival time in nanoseconds on the LatencyTracer clock
+     */
+    public long getFrameArrivalTime(){
+        return frameArrivalTime;
+    }
+
+    /**
+     * Convert fsr counts with the calibration of the connected device while decoding,
+     * takes effect from the next packet without interrupting the stream
+     * @param calibration calibration to apply, null to deliver raw counts only
+     */
+    public void setFsrCalibration(FsrCalibration calibration){
+        fsrDecoder.setCalibration(calibration);
+    }
+
+    public FsrCalibration getFsrCalibration(){
+        return fsrDecoder.getCalibration();
+    }
+
+    /**
+     * Register the decoder for packets starting with a header byte, replacing the existing one;
+     * call before connecting
+     * @param header first byte of the packet, 0 to 255
+     * @param decoder decoder to use, null to count such packets as unknown
+     */
+    public void registerDecoder(int header, PacketDecoder decoder){
+        decoders[header & 0xff] = decoder;
+    }
+
+    /**
+     * @param header first byte of the packet, 0 to 255
+     * @return number of packets received with a header that has no decoder
+     */
+    public long getUnknownPacketCount(int header){
+        return unknownPackets.get(header & 0xff);
+    }
+
+    /**
+     * @return number of packets received with any header that has no decoder
+     */
+    public long getUnknownPacketCount(){
+        long total = 0;
+        for(int header = 0; header < 256; header++){
+            total += unknownPackets.get(header);
+        }
+        return total;
+    }
+
+    /**
+     * @return number of packets rejected by their decoder, for example for a wrong length
+     */
+    public long getMalformedPacketCount(){
+        return malformedPackets.get();
+    }
+
     /**
      * Set the fsr data stream to enabled or disabled
      * @param enabled true to enable stream
+     * @return future of true once the device has the command
      */
-    public void setFsrData(boolean enabled){
-        if(enabled){
-            sendData("$fsr,enable;");
-        }else{
-            sendData("$fsr,disable;");
-        }
+    public Future<Boolean> setFsrData(boolean enabled){
+        return sendData(enabled ? "$fsr,enable;" : "$fsr,disable;");
     }
 
     /**
      * Set the imu data stream to enabled or disabled
      * @param enabled true to enabled stream
+     * @return future of true once the device has the command
      */
-    public void setImuData(boolean enabled){
-        if(enabled){
-            sendData("$imu,enable;");
-        }else{
-            sendData("$imu,disable;");
-        }
+    public Future<Boolean> setImuData(boolean enabled){
+        return sendData(enabled ? "$imu,enable;" : "$imu,disable;");
     }
 
     /**
      * Set time delay between fsr data packets in stream
      * @param millis delay in milli seconds
+     * @return future of true once the device has the command
      */
-    public void setFsrDelay(int millis){
-        sendData("$fsr,delay," + millis + ";");
+    public Future<Boolean> setFsrDelay(int millis){
+        fsrDecoder.setSamplePeriod(millis);
+        return sendData("$fsr,delay," + millis + ";");
     }
 
     /**
      * Set time delay between imu data packets in stream
      * @param millis delay in milli seconds
+     * @return future of true once the device has the command
      */
-    public void setImuDelay(int millis){
-        sendData("$imu,delay," + millis + ";");
+    public Future<Boolean> setImuDelay(int millis){
+        return sendData("$imu,delay," + millis + ";");
     }
 
     /**
      * Send ascii information modelled as Bluetooth SPP
      * @param data string ascii data to send to device
+     * @return future of true once the device has the data
      */
-    public void sendUartData(String data){
-        sendData(data);
+    public Future<Boolean> sendUartData(String data){
+        return sendData(data);
     }
 
     private boolean initializeBluetooth() {
@@ -232,93 +461,174 @@ public class DaqBleManager {
         callback.bleConnectionStateUpdate(state);
     }
 
+    // on the loop, callbacks of a connection already closed are dropped
+    private void onConnectionStateChange(BluetoothGatt gatt, int newState){
+        if(gatt != mBluetoothGatt){
+            return;
+        }
+        if(newState == BluetoothProfile.STATE_CONNECTED || newState == BluetoothProfile.STATE_DISCONNECTED){
+            connectPending = false;
+        }
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mBluetoothGatt.discoverServices();
+            updateStatus(STATE_CONNECTED);
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            // the tx characteristic is found again on the next discovery
+            characteristic_custom_serial_profile_tx = null;
+            failWrites();
+            updateStatus(STATE_DISCONNECTED);
+        } else if(newState == BluetoothProfile.STATE_CONNECTING){
+            updateStatus(STATE_CONNECTING);
+        } else if(newState == BluetoothProfile.STATE_DISCONNECTING){
+            updateStatus(STATE_DISCONNECTING);
+        }
+    }
+
+    private void onServicesDiscovered(BluetoothGatt gatt, int status){
+        if(gatt != mBluetoothGatt){
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(LOG_TAG, "Services discovered");
+            List<BluetoothGattService> gattServices = mBluetoothGatt.getServices();
+            for (BluetoothGattService gattService : gattServices) {
+                List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
+                for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
+                    if(gattCharacteristic.getUuid().equals(UUID_CUSTOM_SERIAL_PORT_PROFILE_RX)){
+                        Log.d(LOG_TAG, "Cypress UART Rx profile found");
+                        setCharacteristicNotification(gattCharacteristic, true);
+                    }else if(gattCharacteristic.getUuid().equals(UUID_CUSTOM_SERIAL_PORT_PROFILE_TX)){
+                        Log.d(LOG_TAG, "Cypress UART Tx profile found");
+                        characteristic_custom_serial_profile_tx = gattCharacteristic;
+                    }
+                }
+            }
+            // report only once the tx characteristic is known so listeners can send immediately
+            updateStatus(STATE_SERVICES_DISCOVERED);
+        }
+    }
+
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                mBluetoothGatt.discoverServices();
-                updateStatus(STATE_CONNECTED);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                updateStatus(STATE_DISCONNECTED);
-            } else if(newState == BluetoothProfile.STATE_CONNECTING){
-                updateStatus(STATE_CONNECTING);
-            } else if(newState == BluetoothProfile.STATE_DISCONNECTING){
-                updateStatus(STATE_DISCONNECTING);
-            }
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, final int newState) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    DaqBleManager.this.onConnectionStateChange(gatt, newState);
+                }
+            });
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(LOG_TAG, "Services discovered");
-                updateStatus(STATE_SERVICES_DISCOVERED);
-                List<BluetoothGattService> gattServices = mBluetoothGatt.getServices();
-                for (BluetoothGattService gattService : gattServices) {
-                    List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-                    for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                        if(gattCharacteristic.getUuid().equals(UUID_CUSTOM_SERIAL_PORT_PROFILE_RX)){
-                            Log.d(LOG_TAG, "Cypress UART Rx profile found");
-                            setCharacteristicNotification(gattCharacteristic, true);
-                        }else if(gattCharacteristic.getUuid().equals(UUID_CUSTOM_SERIAL_PORT_PROFILE_TX)){
-                            Log.d(LOG_TAG, "Cypress UART Tx profile found");
-                            characteristic_custom_serial_profile_tx = gattCharacteristic;
-                        }
-                    }
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    DaqBleManager.this.onServicesDiscovered(gatt, status);
                 }
-            }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(characteristic);
+                broadcastUpdate(characteristic, LatencyTracer.now());
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(characteristic);
+            broadcastUpdate(characteristic, LatencyTracer.now());
         }
     };
 
-    private void broadcastUpdate(final BluetoothGattCharacteristic characteristic) {
+    private void broadcastUpdate(final BluetoothGattCharacteristic characteristic, long arrival) {
         if(UUID_CUSTOM_SERIAL_PORT_PROFILE_RX.equals(characteristic.getUuid())){
-            final byte[] data_raw = characteristic.getValue();
-            final int[] data = new int[data_raw.length];
-
-            for(int i = 0; i < data.length; i++){
-                if(data_raw[i] < 0){
-                    data[i] = (~data_raw[i])+1;
-                }else{
-                    data[i] = data_raw[i];
-                }
-                data[i] = 0;
-                data[i] |= data_raw[i] & 0x00ff;
-            }
+            decodePacket(characteristic.getValue(), arrival);
+        }
+    }
 
-            if(data[0] == ('F' | 0x80) && data.length == 15){
-                int time = 0;
-                time += (data[1] << 24) & 0xFF000000;
-                time += (data[2] << 16) & 0xFF0000;
-                time += (data[3] << 8) & 0xFF00;
-                time += (data[4]) & 0xFF;
-                callback.fsrDataRecieved(time, Arrays.copyOfRange(data, 5, 15));
+    /**
+     * Decode one notification of the rx characteristic and hand it to the callback,
+     * package visible so the data path can be driven without a bluetooth stack
+     * @param data_raw notification payload
+     * @param arrival host arrival time on the LatencyTracer clock
+     */
+    void decodePacket(final byte[] data_raw, long arrival){
+        if(data_raw == null || data_raw.length == 0){
+            return;
+        }
+        frameArrivalTime = arrival;
+        LatencyTracer.beginSection(LatencyTracer.STAGE_DECODE);
+        decodeRecorded = false;
+
+        final int header = data_raw[0] & 0xff;
+        final PacketDecoder decoder = decoders[header];
+        final boolean decoded = decoder != null && decoder.decode(data_raw, decodedSink);
+        if(!decodeRecorded){
+            LatencyTracer.endSection();
+        }
+        if(decoder == null){
+            unknownPackets.incrementAndGet(header);
+        }else if(!decoded){
+            malformedPackets.incrementAndGet();
+        }
+    }
 
-            }else if(data[0] == ('I' | 0x80) && data.length == 7){
-                float yaw =     ((data_raw[2] << 8) | (data[1] & 0x000000FF))/10;
-                float roll =    ((data_raw[4] << 8) | (data[3] & 0x000000FF))/10;
-                float pitch =   ((data_raw[6] << 8) | (data[5] & 0x000000FF))/10;
-                callback.imuDataRecieved(0, roll, pitch, yaw);
+    // ends the decode stage when the decoder hands over its first sample
+    private void frameDecoded(){
+        if(!decodeRecorded){
+            decodeRecorded = true;
+            LatencyTracer.get().record(LatencyTracer.STAGE_DECODE, frameArrivalTime);
+            LatencyTracer.endSection();
+        }
+    }
 
-            }else{
-                String parsed_data = "";
-                for(int i = 0; i < data.length; i++){
-                    parsed_data += ((char)data[i]);
-                }
-                callback.uartDataRecieved(parsed_data);
+    private final DecodedSink decodedSink = new DecodedSink();
+
+    private class DecodedSink implements CypressInterface, CalibratedFsrInterface {
+        @Override
+        public void bleConnectionStateUpdate(int state) {
+            callback.bleConnectionStateUpdate(state);
+        }
+
+        @Override
+        public void fsrDataRecieved(int time, int[] data) {
+            frameDecoded();
+            callback.fsrDataRecieved(time, data);
+        }
 
+        @Override
+        public void fsrForceRecieved(int time, int[] data, float[] force) {
+            frameDecoded();
+            if(callback instanceof CalibratedFsrInterface){
+                ((CalibratedFsrInterface) callback).fsrForceRecieved(time, data, force);
+            }else{
+                callback.fsrDataRecieved(time, data);
             }
         }
+
+        @Override
+        public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+            frameDecoded();
+            callback.imuDataRecieved(time, roll, pitch, yaw);
+        }
+
+        @Override
+        public void uartDataRecieved(String data) {
+            frameDecoded();
+            callback.uartDataRecieved(data);
+        }
     }
 
     private void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
@@ -329,18 +639,117 @@ public class DaqBleManager {
         mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
     }
 
-    private void sendData(String str){
-        Log.d(LOG_TAG, "Sending to remote: " + str);
+    private Future<Boolean> sendData(String str){
+        EventTrace.get().event(EventTrace.EVENT_COMMAND_SENT, str.length(),
+                EventTrace.packAscii(str, 0), EventTrace.packAscii(str, 8));
         byte[] data = new byte[str.length()];
         for(int i = 0; i < data.length; i++){
             data[i] = (byte)str.charAt(i);
         }
-        if(characteristic_custom_serial_profile_tx != null){
-            characteristic_custom_serial_profile_tx.setValue(data);
-            if(!mBluetoothGatt.writeCharacteristic(characteristic_custom_serial_profile_tx)){
-                sleep(500);
-                mBluetoothGatt.writeCharacteristic(characteristic_custom_serial_profile_tx);
-            };
+        final PendingWrite write = new PendingWrite(data);
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                writes.add(write);
+                pumpWrites();
+            }
+        });
+        if(!queued){
+            write.complete(false);
+        }
+        return write;
+    }
+
+    // a command and the future handed to its caller, completed on the loop
+    private static class PendingWrite extends FutureTask<Boolean> {
+        private static final Runnable NOTHING = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        final byte[] data;
+        boolean retried = false;
+        ScheduledFuture<?> timeout;
+
+        PendingWrite(byte[] data){
+            super(NOTHING, null);
+            this.data = data;
+        }
+
+        void complete(boolean written){
+            set(written);
+        }
+    }
+
+    // on the loop, starts the next command unless one is being written
+    private void pumpWrites(){
+        while(writeInFlight == null && !writes.isEmpty()){
+            final PendingWrite write = writes.poll();
+            if(write.isCancelled()){
+                continue;
+            }
+            if(mBluetoothGatt == null || characteristic_custom_serial_profile_tx == null){
+                write.complete(false);
+                continue;
+            }
+            characteristic_custom_serial_profile_tx.setValue(write.data);
+            writeInFlight = write;
+            if(mBluetoothGatt.writeCharacteristic(characteristic_custom_serial_profile_tx)){
+                write.timeout = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(writeInFlight == write){
+                            onWriteComplete(false);
+                        }
+                    }
+                }, WRITE_TIMEOUT);
+            }else if(!write.retried){
+                // the stack is busy, try once more later and keep later commands behind this one
+                EventTrace.get().event(EventTrace.EVENT_COMMAND_RETRY, write.data.length);
+                write.retried = true;
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(writeInFlight == write){
+                            writeInFlight = null;
+                            writes.addFirst(write);
+                            pumpWrites();
+                        }
+                    }
+                }, WRITE_RETRY_DELAY);
+            }else{
+                writeInFlight = null;
+                write.complete(false);
+            }
+        }
+    }
+
+    private void onWriteComplete(boolean written){
+        final PendingWrite write = writeInFlight;
+        if(write == null){
+            return;
+        }
+        writeInFlight = null;
+        if(write.timeout != null){
+            write.timeout.cancel(false);
+        }
+        write.complete(written);
+        pumpWrites();
+    }
+
+    // on the loop, the connection is gone
+    private void failWrites(){
+        final PendingWrite write = writeInFlight;
+        writeInFlight = null;
+        if(write != null){
+            if(write.timeout != null){
+                write.timeout.cancel(false);
+            }
+            write.complete(false);
+        }
+        while(!writes.isEmpty()){
+            writes.poll().complete(false);
         }
     }
 }
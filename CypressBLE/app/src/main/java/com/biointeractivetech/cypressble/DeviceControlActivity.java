@@ -17,8 +17,10 @@
 package com.biointeractivetech.cypressble;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Color;
@@ -31,8 +33,15 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 import static android.os.SystemClock.sleep;
 
 /**
@@ -47,10 +56,20 @@ public class DeviceControlActivity extends Activity {
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
+    private static final String TRACE_FILE = "event_trace.bin";
+    // name the charts hold the full rate stream under, see BluetoothLeService.setClientBroadcastFrames
+    private static final String FULL_STREAM_SUBSCRIBER = "device control";
+
+    private static final int FSR_CHANNELS = 10;
+    private static final int FSR_CHART_WINDOW = 1000;
+    private static final int IMU_CHART_WINDOW = 500;
+
     private TextView mConnectionState;
     private TextView mDataField;
-    private TextView fsrDataField;
-    private TextView imuDataField;
+    private StreamChartView fsrChart;
+    private StreamChartView imuChart;
+    private final float[] fsrSample = new float[FSR_CHANNELS];
+    private final float[] imuSample = new float[SensorWindowFeeder.IMU_CHANNELS];
     private String mDeviceName;
     private String mDeviceAddress;
     private boolean mConnected = false;
@@ -68,7 +87,7 @@ public class DeviceControlActivity extends Activity {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            Log.d(TAG, action);
+            EventTrace.get().event(EventTrace.EVENT_ACTIVITY_ACTION, action.hashCode());
 
             if(BluetoothLeService.BROADCAST_STATUS_GATT_CONNECTING.equals(action)){
                 displayStatus("Connecting ...", Color.YELLOW);
@@ -87,28 +106,55 @@ public class DeviceControlActivity extends Activity {
 
             } else if (BluetoothLeService.BROADCAST_STATUS_GATT_SERVICES_DISCOVERED.equals(action)) {
                 displayStatus("Confirming Link ...", Color.YELLOW);
-                _sendMessage("$send,info;");
+                // confirm the link with a probe so the round trip lands in the latency report
+                sendProbe();
                 //_sendMessage("$debug,enable;");
             } else if (BluetoothLeService.BROADCAST_ACTION_DATA_AVAILABLE.equals(action)) {
-                displayStatus("Connected", Color.BLUE);
-                displayRawData(intent.getStringExtra(BluetoothLeService.BROADCAST_EXTRA_DATA));
+                final long arrival = intent.getLongExtra(BluetoothLeService.BROADCAST_EXTRA_ARRIVAL_TIME, 0);
+                final long received = LatencyTracer.get().record(LatencyTracer.STAGE_BROADCAST,
+                        intent.getLongExtra(BluetoothLeService.BROADCAST_EXTRA_SENT_TIME, 0));
+                LatencyTracer.beginSection(LatencyTracer.STAGE_HANDLING);
+                displayRawData(intent.getStringExtra(BluetoothLeService.BROADCAST_EXTRA_DATA), arrival, received);
+                LatencyTracer.endSection();
             } else if (BluetoothLeService.BROADCAST_ACTION_JSON_DATA_AVAILABLE.equals(action)){
-                displayStatus("Connected", Color.BLUE);
+                final long arrival = intent.getLongExtra(BluetoothLeService.BROADCAST_EXTRA_ARRIVAL_TIME, 0);
+                final long received = LatencyTracer.get().record(LatencyTracer.STAGE_BROADCAST,
+                        intent.getLongExtra(BluetoothLeService.BROADCAST_EXTRA_SENT_TIME, 0));
+                LatencyTracer.beginSection(LatencyTracer.STAGE_HANDLING);
                 try{
                     JSONObject obj = new JSONObject(intent.getStringExtra(BluetoothLeService.BROADCAST_EXTRA_DATA));
                     switch(obj.getString("message")) {
                         case "fsr data": {
-                            displayFSRData(intent.getStringExtra(BluetoothLeService.BROADCAST_EXTRA_DATA));
+                            JSONArray fsr = obj.getJSONArray("fsr");
+                            for(int i = 0; i < FSR_CHANNELS && i < fsr.length(); i++){
+                                fsrSample[i] = (float) fsr.getDouble(i);
+                            }
+                            plotSample(fsrChart, fsrSample, arrival, received);
+                        }
+                        break;
+
+                        case "link ok": {
+                            displayStatus("Connected", Color.BLUE);
+                        }
+                        break;
+
+                        case "link stall": {
+                            displayStatus("Link stalled", Color.YELLOW);
                         }
                         break;
 
                         case "imu data": {
-                            displayIMUData(intent.getStringExtra(BluetoothLeService.BROADCAST_EXTRA_DATA));
+                            imuSample[SensorWindowFeeder.IMU_ROLL] = (float) obj.getDouble("roll");
+                            imuSample[SensorWindowFeeder.IMU_PITCH] = (float) obj.getDouble("pitch");
+                            imuSample[SensorWindowFeeder.IMU_YAW] = (float) obj.getDouble("yaw");
+                            plotSample(imuChart, imuSample, arrival, received);
                         }
                         break;
                     }
                 }catch(Exception e){
 
+                }finally{
+                    LatencyTracer.endSection();
                 }
             }
         }
@@ -116,7 +162,9 @@ public class DeviceControlActivity extends Activity {
 
 
     private void clearUI() {
-        displayRawData("");
+        displayRawData("", 0, 0);
+        fsrChart.clear();
+        imuChart.clear();
     }
 
     @Override
@@ -137,8 +185,10 @@ public class DeviceControlActivity extends Activity {
         messageToSend.setVisibility(View.INVISIBLE);
         messButton.setVisibility(View.INVISIBLE);
 
-        fsrDataField = (TextView) findViewById(R.id.fsr_data);
-        imuDataField = (TextView) findViewById(R.id.imu_data);
+        fsrChart = (StreamChartView) findViewById(R.id.fsr_chart);
+        fsrChart.setChannels(FSR_CHANNELS, FSR_CHART_WINDOW, 0, 255);
+        imuChart = (StreamChartView) findViewById(R.id.imu_chart);
+        imuChart.setChannels(SensorWindowFeeder.IMU_CHANNELS, IMU_CHART_WINDOW, -180, 180);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -150,11 +200,15 @@ public class DeviceControlActivity extends Activity {
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        // the service may already be connecting to this device from a warm start
+        sendBroadcast(new Intent(BluetoothLeService.BROADCAST_ACTION_GET_STATUS));
+        holdFullStream(true);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        holdFullStream(false);
         unregisterReceiver(mGattUpdateReceiver);
     }
 
@@ -188,6 +242,10 @@ public class DeviceControlActivity extends Activity {
                 disconnectFromDevice();
                 return true;
             }
+            case R.id.menu_latency:{
+                showLatencyReport();
+                return true;
+            }
             case android.R.id.home:{
                 onBackPressed();
                 return true;
@@ -199,23 +257,75 @@ public class DeviceControlActivity extends Activity {
     public void enableFSR(View view){
         _sendMessage("$real,enable;");
         sleep(2000);
-        _sendMessage("$fsr,enable;");
-        _sendMessage("$fsr,delay," + ((EditText) findViewById(R.id.fsr_frequency)).getText() + ";");
+        sendStreamSettings("enable fsr", true, "fsr delay");
     }
 
     public void disableFSR(View view){
-        _sendMessage("$fsr,disable;");
+        sendStreamSettings("enable fsr", false, null);
     }
 
     public void enableIMU(View view){
         _sendMessage("$real,enable;");
         sleep(2000);
-        _sendMessage("$imu,enable;");
-        _sendMessage("$imu,delay," + ((EditText) findViewById(R.id.fsr_frequency)).getText() + ";");
+        sendStreamSettings("enable imu", true, "imu delay");
     }
 
     public void disableIMU(View view){
-        _sendMessage("$imu,disable;");
+        sendStreamSettings("enable imu", false, null);
+    }
+
+    // stream settings go through the service so it can remember them for the next warm start
+    private void sendStreamSettings(String enableKey, boolean enabled, String delayKey){
+        try{
+            JSONObject jsonObj = new JSONObject();
+            jsonObj.put("message", "settings");
+            jsonObj.put(enableKey, enabled);
+            if(delayKey != null){
+                String delay = ((EditText) findViewById(R.id.fsr_frequency)).getText().toString();
+                try{
+                    jsonObj.put(delayKey, Integer.parseInt(delay.trim()));
+                }catch(NumberFormatException e){
+                    Log.d(TAG, "Ignoring invalid delay " + delay);
+                }
+            }
+            final Intent intent = new Intent(BluetoothLeService.BROADCAST_ACTION_JSON_DATA_SEND);
+            intent.putExtra(BluetoothLeService.BROADCAST_EXTRA_DATA, jsonObj.toString());
+            sendBroadcast(intent);
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    // the charts plot every frame, keep the full rate stream on while they are shown
+    private void holdFullStream(boolean hold){
+        try{
+            JSONObject jsonObj = new JSONObject();
+            if(hold){
+                jsonObj.put("message", "settings");
+                jsonObj.put("broadcast frames", true);
+            }else{
+                jsonObj.put("message", "subscribe");
+                jsonObj.put("enable", false);
+            }
+            jsonObj.put("subscriber", FULL_STREAM_SUBSCRIBER);
+            final Intent intent = new Intent(BluetoothLeService.BROADCAST_ACTION_JSON_DATA_SEND);
+            intent.putExtra(BluetoothLeService.BROADCAST_EXTRA_DATA, jsonObj.toString());
+            sendBroadcast(intent);
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private void sendProbe(){
+        try{
+            JSONObject jsonObj = new JSONObject();
+            jsonObj.put("message", "probe");
+            final Intent intent = new Intent(BluetoothLeService.BROADCAST_ACTION_JSON_DATA_SEND);
+            intent.putExtra(BluetoothLeService.BROADCAST_EXTRA_DATA, jsonObj.toString());
+            sendBroadcast(intent);
+        }catch(Exception e){
+            e.printStackTrace();
+        }
     }
 
     public void _sendMessage(String message){
@@ -250,25 +360,30 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayFSRData(final String data){
+    // arrival and received are 0 for updates that did not come from a traced frame
+    private void displayData(final TextView field, final String data, final long arrival, long received){
+        final long posted = LatencyTracer.get().record(LatencyTracer.STAGE_HANDLING, received);
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                fsrDataField.setText(data);
+                LatencyTracer.beginSection(LatencyTracer.STAGE_RENDER);
+                field.setText(data);
+                if(arrival != 0){
+                    LatencyTracer.get().record(LatencyTracer.STAGE_RENDER, posted);
+                    LatencyTracer.get().record(LatencyTracer.STAGE_END_TO_END, arrival);
+                }
+                LatencyTracer.endSection();
             }
         });
     }
 
-    private void displayIMUData(final String data){
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                imuDataField.setText(data);
-            }
-        });
+    // runs on the ui thread, the chart redraws on the next display frame
+    private void plotSample(StreamChartView chart, float[] values, long arrival, long received){
+        final long posted = LatencyTracer.get().record(LatencyTracer.STAGE_HANDLING, received);
+        chart.append(values, arrival, posted);
     }
 
-    private void displayRawData(final String data) {
+    private void displayRawData(final String data, long arrival, long received) {
         if (data != null) {
             String d = mDataField.getText().toString();
             String[] snips = data.split("\n");
@@ -277,13 +392,47 @@ public class DeviceControlActivity extends Activity {
             }else{
                 d += data;
             }
-            final String d2 = d;
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mDataField.setText(d2);
-                }
-            });
+            displayData(mDataField, d, arrival, received);
+        }
+    }
+
+    private void showLatencyReport(){
+        final String report = LatencyTracer.get().dump();
+        Log.i(TAG, "Latency report\n" + report);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_latency)
+                .setMessage(report)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        LatencyTracer.get().reset();
+                    }
+                })
+                .setNegativeButton(R.string.save_trace, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        saveEventTrace();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Write the event trace to the app files directory, decode it with EventTraceDecoder
+     */
+    private void saveEventTrace(){
+        File file = new File(getFilesDir(), TRACE_FILE);
+        try{
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try{
+                int count = EventTrace.get().dump(out);
+                Log.i(TAG, "Saved " + count + " trace events to " + file);
+            }finally{
+                out.close();
+            }
+        }catch(IOException e){
+            e.printStackTrace();
         }
     }
 
@@ -16,7 +16,6 @@ import android.os.Handler;
 import android.os.ParcelUuid;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -35,9 +34,15 @@ public class DeviceScanActivity extends ListActivity {
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
+    private boolean mWarmStart = false;
+
+    private ScanScheduler<BluetoothDevice> mScanScheduler;
 
     private static final int REQUEST_ENABLE_BT = 1;
     private static final long SCAN_PERIOD = 30000;
+    private static final long SCAN_WINDOW = 5000;
+    private static final long SCAN_IDLE_MIN = 2000;
+    private static final long SCAN_IDLE_MAX = 8000;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -69,8 +74,29 @@ public class DeviceScanActivity extends ListActivity {
             return;
         }
 
+        mScanScheduler = new ScanScheduler<BluetoothDevice>(mScanSource, new ScanScheduler.Timer() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                mHandler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                mHandler.removeCallbacks(task);
+            }
+        }, mScanListener, SCAN_WINDOW, SCAN_IDLE_MIN, SCAN_IDLE_MAX, SCAN_PERIOD);
+
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         startService(gattServiceIntent);
+
+        // The service connects to the last used device on start, go straight to it instead of scanning.
+        // Backing out of the control screen returns here and scans as usual.
+        final RecentDeviceStore deviceStore = new RecentDeviceStore(this);
+        final RecentDeviceStore.KnownDevice preferred = deviceStore.getPreferredDevice();
+        if (savedInstanceState == null && preferred != null && mBluetoothAdapter.isEnabled()) {
+            mWarmStart = true;
+            openDevice(preferred.name, preferred.address);
+        }
     }
 
     @Override
@@ -118,7 +144,11 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        if (mWarmStart) {
+            mWarmStart = false;
+        } else {
+            scanLeDevice(true);
+        }
     }
 
     @Override
@@ -142,36 +172,51 @@ public class DeviceScanActivity extends ListActivity {
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
+        scanLeDevice(false);
+        openDevice(device.getName(), device.getAddress());
+    }
+
+    private void openDevice(String name, String address) {
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
-        }
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
+        // the scheduler cancels the pending windows and timeout of any earlier session
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+            mScanScheduler.start();
+        } else {
+            mScanScheduler.stop();
+        }
+    }
 
-            mScanning = true;
+    private final ScanScheduler.AdvertisementSource mScanSource = new ScanScheduler.AdvertisementSource() {
+        @Override
+        public void startScan() {
             mBluetoothAdapter.startLeScan(mLeScanCallback);
-        } else {
-            mScanning = false;
+        }
+
+        @Override
+        public void stopScan() {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
         }
-        invalidateOptionsMenu();
-    }
+    };
+
+    private final ScanScheduler.Listener<BluetoothDevice> mScanListener = new ScanScheduler.Listener<BluetoothDevice>() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device, String address, int rssi) {
+            mLeDeviceListAdapter.addDevice(device);
+            mLeDeviceListAdapter.notifyDataSetChanged();
+        }
+
+        @Override
+        public void onScanStateChanged(boolean active) {
+            mScanning = active;
+            invalidateOptionsMenu();
+        }
+    };
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
@@ -239,69 +284,22 @@ public class DeviceScanActivity extends ListActivity {
         }
     }
 
-    private boolean checkScanResponse(byte[] scan_response){
-        final byte[] data_raw = scan_response;
-        final int[] data = new int[data_raw.length];
-
-        for(int i = 0; i < data.length; i++){
-            if(data_raw[i] < 0){
-                data[i] = (~data_raw[i])+1;
-            }else{
-                data[i] = data_raw[i];
-            }
-            data[i] = 0;
-            data[i] |= data_raw[i] & 0x00ff;
-        }
-
-        int i = 0;
-        while(i < data.length){
-            int len = data[i];
-            int id = data[i+1];
-
-            if(id == 7){
-                Log.d("DeviceScan", "found ID");
-                int[] service_id = {0x31, 0x1, 0x9b, 0x5f, 0x80, 0x0, 0x0, 0x80, 0x0, 0x10, 0x0, 0x0, 0xd0, 0xcd, 0x3, 0x0};
-                boolean id_correct = true;
-                for(int j = 0; j < service_id.length; j++){
-                    if(data[i+2+j] != service_id[j]){
-                        id_correct = false;
-                        break;
-                    }
-                }
-                if(id_correct){
-                    return true;
-                }
-            }
-            if(len <= 0){
-                break;
-            }
-            i += len+1;
-        }
-        return false;
-    }
-
     // Device scan callback.
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            String str = "";
-            for(int i = 0; i < scanRecord.length; i++){
-                str += String.format("0x%x ", scanRecord[i]);
-            }
-            Log.d("Devicescan", str);
-
-            //optionally scan only for devices which offer the desired Bluetooth service
-            if(checkScanResponse(scanRecord)){
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mLeDeviceListAdapter.addDevice(device);
-                        mLeDeviceListAdapter.notifyDataSetChanged();
-                    }
-                });
-            }
+        public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
+            EventTrace.get().event(EventTrace.EVENT_ADVERTISEMENT, EventTrace.packAddress(device.getAddress()),
+                    rssi, scanRecord == null ? 0 : scanRecord.length);
+
+            // filtering and de-duplication happen in the scheduler on the ui thread
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mScanScheduler.onAdvertisement(device, device.getAddress(), rssi, scanRecord);
+                }
+            });
         }
     };
 
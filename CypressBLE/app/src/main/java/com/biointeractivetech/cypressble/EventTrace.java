@@ -0,0 +1,223 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary event trace for the hot paths, used instead of Log.d.
+ *
+ * Each event is a fixed size record of an event id, a timestamp and three numeric arguments,
+ * written into a ring preallocated at startup. Writing an event is a few array stores, nothing
+ * is formatted and nothing is allocated. When the ring is full the oldest records are
+ * overwritten. Call dump to save the ring and EventTraceDecoder to turn it into text.
+ *
+ * Timestamps are System.nanoTime, the monotonic clock systrace uses. Events can be written
+ * from any thread; a record that is being overwritten while dump runs is left out. Each slot has
+ * a header stamp that is cleared before the record is written and set after it, and dump checks
+ * the stamp before and after copying. A volatile read only keeps later loads after it, so the
+ * copy and the second check are separated by a volatile write followed by a volatile read, and
+ * the writer reads the same field between clearing the stamp and writing the record.
+ */
+public class EventTrace {
+    public static final int LEVEL_DEBUG = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_WARN = 4;
+    public static final int LEVEL_ALL = LEVEL_DEBUG | LEVEL_INFO | LEVEL_WARN;
+
+    /** command written to the DAQ: length, first 16 characters packed in b and c */
+    public static final int EVENT_COMMAND_SENT = 1;
+    /** tx characteristic write refused, retried after a pause: command length */
+    public static final int EVENT_COMMAND_RETRY = 2;
+    /** broadcast received by the service: action hash */
+    public static final int EVENT_SERVICE_ACTION = 3;
+    /** uart text forwarded from a client: length, first 16 characters packed in b and c */
+    public static final int EVENT_UART_FORWARD = 4;
+    /** json command received from a client: length */
+    public static final int EVENT_JSON_COMMAND = 5;
+    /** connect request while already connected or connecting: current state */
+    public static final int EVENT_ALREADY_CONNECTED = 6;
+    /** advertisement seen by the scan: packed address, rssi, record length */
+    public static final int EVENT_ADVERTISEMENT = 7;
+    /** broadcast received by the control activity: action hash */
+    public static final int EVENT_ACTIVITY_ACTION = 8;
+
+    private static final int[] EVENT_LEVELS = {
+            0, LEVEL_DEBUG, LEVEL_WARN, LEVEL_DEBUG, LEVEL_DEBUG, LEVEL_DEBUG, LEVEL_INFO, LEVEL_DEBUG, LEVEL_DEBUG};
+
+    static final int MAGIC = 0x45565452;    // "EVTR"
+    static final int VERSION = 1;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    // time, a, b, c per record, the header with sequence and id is kept separately
+    private static final int RECORD_LONGS = 4;
+    private static final long EMPTY = -1;
+
+    private static final EventTrace instance = new EventTrace(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final long[] records;
+    private final AtomicLongArray headers;
+    private final AtomicLong next = new AtomicLong(0);
+    private volatile int levels = LEVEL_ALL;
+    // volatile accesses ordering the plain record accesses against the header stamps
+    private volatile int fence;
+
+    /**
+     * @return trace shared by the service and activities of this process
+     */
+    public static EventTrace get(){
+        return instance;
+    }
+
+    EventTrace(int capacity){
+        this.capacity = capacity;
+        records = new long[capacity * RECORD_LONGS];
+        headers = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++){
+            headers.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * @param level_mask LEVEL_<description> constants or'ed together, 0 turns tracing off
+     */
+    public void setLevels(int level_mask){
+        levels = level_mask;
+    }
+
+    public int getLevels(){
+        return levels;
+    }
+
+    /**
+     * @return true if events of the level are recorded, check before computing costly arguments
+     */
+    public boolean isEnabled(int level){
+        return (levels & level) != 0;
+    }
+
+    public void event(int id){
+        event(id, 0, 0, 0);
+    }
+
+    public void event(int id, long a){
+        event(id, a, 0, 0);
+    }
+
+    /**
+     * Record an event if its level is enabled
+     * @param id one of the EVENT_<description> constants
+     * @param a first argument
+     * @param b second argument
+     * @param c third argument
+     */
+    public void event(int id, long a, long b, long c){
+        if((levels & EVENT_LEVELS[id]) == 0){
+            return;
+        }
+        long time = System.nanoTime();
+        long sequence = next.getAndIncrement();
+        int slot = (int) (sequence % capacity);
+        int base = slot * RECORD_LONGS;
+
+        headers.set(slot, EMPTY);
+        // the record stores stay after the cleared stamp
+        int ignored = fence;
+        records[base] = time;
+        records[base + 1] = a;
+        records[base + 2] = b;
+        records[base + 3] = c;
+        headers.lazySet(slot, (sequence << 8) | id);
+    }
+
+    /**
+     * Discard all recorded events
+     */
+    public void clear(){
+        for(int i = 0; i < capacity; i++){
+            headers.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Write the events in the ring, oldest first, in the format read by EventTraceDecoder
+     * @param out stream to write to, not closed
+     * @return number of events written
+     */
+    public int dump(OutputStream out) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+
+        // copy first so the writers overwrite as little as possible while we read
+        int count = 0;
+        long[] copy = new long[(int) (end - start) * (RECORD_LONGS + 1)];
+        for(long sequence = start; sequence < end; sequence++){
+            int slot = (int) (sequence % capacity);
+            int base = slot * RECORD_LONGS;
+            long header = headers.get(slot);
+            long time = records[base];
+            long a = records[base + 1];
+            long b = records[base + 2];
+            long c = records[base + 3];
+            // the copy stays before the second stamp check
+            fence = 0;
+            int ignored = fence;
+            if(header == EMPTY || header != headers.get(slot) || (header >>> 8) != sequence){
+                continue;
+            }
+            int at = count * (RECORD_LONGS + 1);
+            copy[at] = header & 0xff;
+            copy[at + 1] = time;
+            copy[at + 2] = a;
+            copy[at + 3] = b;
+            copy[at + 4] = c;
+            count++;
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count);
+        for(int i = 0; i < count; i++){
+            int at = i * (RECORD_LONGS + 1);
+            data.writeByte((int) copy[at]);
+            for(int j = 1; j <= RECORD_LONGS; j++){
+                data.writeLong(copy[at + j]);
+            }
+        }
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Pack eight characters of a string into an event argument, unused positions are 0
+     * @param str ascii string
+     * @param offset first character packed
+     */
+    public static long packAscii(String str, int offset){
+        long packed = 0;
+        for(int i = 0; i < 8; i++){
+            int at = offset + i;
+            int ch = at < str.length() ? str.charAt(at) & 0xff : 0;
+            packed |= ((long) ch) << (56 - 8 * i);
+        }
+        return packed;
+    }
+
+    /**
+     * Pack a mac address such as 0D:58:40:2E:00:6C into an event argument
+     */
+    public static long packAddress(String mac_address){
+        long packed = 0;
+        for(int i = 0; i < mac_address.length(); i++){
+            int digit = Character.digit(mac_address.charAt(i), 16);
+            if(digit >= 0){
+                packed = (packed << 4) | digit;
+            }
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,152 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Turns a trace written by EventTrace.dump into text, one line per event.
+ *
+ * Plain Java so it also runs on a desktop, for example after pulling the trace off the phone:
+ * java -cp classes com.biointeractivetech.cypressble.EventTraceDecoder event_trace.bin
+ */
+public class EventTraceDecoder {
+    private static final String[] EVENT_NAMES = {
+            "unknown", "command sent", "command retry", "service action", "uart forward",
+            "json command", "already connected", "advertisement", "activity action"};
+
+    // action strings are traced by hash, these are the ones that can be named again
+    private static final String[] KNOWN_ACTIONS = {
+            BluetoothLeService.BROADCAST_STATUS_GATT_CONNECTED,
+            BluetoothLeService.BROADCAST_STATUS_GATT_CONNECTING,
+            BluetoothLeService.BROADCAST_STATUS_GATT_DISCONNECTED,
+            BluetoothLeService.BROADCAST_STATUS_GATT_DISCONNECTING,
+            BluetoothLeService.BROADCAST_STATUS_GATT_SERVICES_DISCOVERED,
+            BluetoothLeService.BROADCAST_ACTION_GATT_CONNECT,
+            BluetoothLeService.BROADCAST_ACTION_GATT_DISCONNECT,
+            BluetoothLeService.BROADCAST_ACTION_DATA_AVAILABLE,
+            BluetoothLeService.BROADCAST_ACTION_SEND_DATA,
+            BluetoothLeService.BROADCAST_ACTION_GET_STATUS,
+            BluetoothLeService.BROADCAST_ACTION_JSON_DATA_AVAILABLE,
+            BluetoothLeService.BROADCAST_ACTION_JSON_DATA_SEND};
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1){
+            System.err.println("usage: EventTraceDecoder <trace file>");
+            System.exit(1);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        Writer out = new OutputStreamWriter(System.out);
+        try{
+            decode(in, out);
+        }finally{
+            in.close();
+            out.flush();
+        }
+    }
+
+    /**
+     * Decode a trace, times are printed in milliseconds relative to the first event
+     * @param in trace as written by EventTrace.dump
+     * @param out receives one line per event
+     * @return number of events decoded
+     */
+    public static int decode(InputStream in, Writer out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != EventTrace.MAGIC){
+            throw new IOException("not an event trace");
+        }
+        int version = data.readInt();
+        if(version != EventTrace.VERSION){
+            throw new IOException("unsupported event trace version " + version);
+        }
+        int count = data.readInt();
+        PrintWriter writer = new PrintWriter(out);
+        long first = 0;
+        for(int i = 0; i < count; i++){
+            int id;
+            long time, a, b, c;
+            try{
+                id = data.readUnsignedByte();
+                time = data.readLong();
+                a = data.readLong();
+                b = data.readLong();
+                c = data.readLong();
+            }catch(EOFException e){
+                throw new IOException("trace truncated after " + i + " of " + count + " events");
+            }
+            if(i == 0){
+                first = time;
+            }
+            writer.println(String.format(Locale.US, "%12.3f  %-18s %s",
+                    (time - first) / 1e6, nameOf(id), formatArgs(id, a, b, c)));
+        }
+        writer.flush();
+        return count;
+    }
+
+    static String formatArgs(int id, long a, long b, long c){
+        switch(id){
+            case EventTrace.EVENT_COMMAND_SENT:
+            case EventTrace.EVENT_UART_FORWARD:{
+                String text = unpackAscii(b) + unpackAscii(c);
+                return "length " + a + " \"" + text + (a > 16 ? "...\"" : "\"");
+            }
+            case EventTrace.EVENT_COMMAND_RETRY:
+            case EventTrace.EVENT_JSON_COMMAND:
+                return "length " + a;
+            case EventTrace.EVENT_SERVICE_ACTION:
+            case EventTrace.EVENT_ACTIVITY_ACTION:
+                return actionOf((int) a);
+            case EventTrace.EVENT_ALREADY_CONNECTED:
+                return "state " + a;
+            case EventTrace.EVENT_ADVERTISEMENT:
+                return unpackAddress(a) + " rssi " + b + " length " + c;
+            default:
+                return a + " " + b + " " + c;
+        }
+    }
+
+    private static String nameOf(int id){
+        return id < EVENT_NAMES.length ? EVENT_NAMES[id] : "event " + id;
+    }
+
+    private static String actionOf(int hash){
+        for(String action : KNOWN_ACTIONS){
+            if(action.hashCode() == hash){
+                return action;
+            }
+        }
+        return String.format(Locale.US, "action #%08x", hash);
+    }
+
+    private static String unpackAscii(long packed){
+        StringBuilder sb = new StringBuilder(8);
+        for(int i = 0; i < 8; i++){
+            int ch = (int) (packed >>> (56 - 8 * i)) & 0xff;
+            if(ch == 0){
+                break;
+            }
+            sb.append(ch >= 0x20 && ch < 0x7f ? (char) ch : '.');
+        }
+        return sb.toString();
+    }
+
+    private static String unpackAddress(long packed){
+        StringBuilder sb = new StringBuilder(17);
+        for(int i = 5; i >= 0; i--){
+            sb.append(String.format(Locale.US, "%02X", (packed >>> (8 * i)) & 0xff));
+            if(i > 0){
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+}
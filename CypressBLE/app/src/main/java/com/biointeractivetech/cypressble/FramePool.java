@@ -0,0 +1,306 @@
+package com.biointeractivetech.cypressble;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of preallocated frames shared read only by every consumer of a sample.
+ *
+ * The producer takes a frame from the pool holding one reference, hands it to each consumer and
+ * releases its reference. A consumer that keeps the frame beyond its callback, for example to
+ * pass it to another thread, retains it first and releases it when done; the frame goes back to
+ * the pool with the last release. Fanning a sample out to any number of consumers allocates
+ * nothing. When every frame is in use acquire returns null and the exhaustion is counted, the
+ * producer then skips the pooled consumers for that sample.
+ *
+ * With leak tracking on, as in debug builds, every frame remembers where it was acquired and
+ * checkLeaks reports frames held for too long. Tracking allocates a stack trace per frame.
+ */
+public class FramePool {
+    private final static String TAG = FramePool.class.getSimpleName();
+
+    public static final int TYPE_FSR = SharedRingBuffer.TYPE_FSR;
+    public static final int TYPE_IMU = SharedRingBuffer.TYPE_IMU;
+    public static final int CHANNELS = PacketDecoders.FSR_CHANNELS;
+
+    /**
+     * Implement this interface to receive pooled frames, called on the bluetooth callback thread.
+     * The frame is only valid during the call unless retained.
+     */
+    public interface Listener {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * One sample, read only for consumers
+     */
+    public static final class Frame {
+        private final FramePool pool;
+        private final AtomicInteger references = new AtomicInteger(0);
+
+        private int type;
+        private int deviceTime;
+        private long hostMicros;
+        private final int[] counts = new int[CHANNELS];
+        private final float[] values = new float[CHANNELS];
+        private boolean hasForce;
+
+        // leak tracking
+        private long acquiredNanos;
+        private Throwable acquiredAt;
+
+        private Frame(FramePool pool){
+            this.pool = pool;
+        }
+
+        /**
+         * Keep the frame beyond the current callback, release it once done
+         * @return this frame
+         */
+        public Frame retain(){
+            if(references.getAndIncrement() <= 0){
+                references.getAndDecrement();
+                throw new IllegalStateException("frame retained after it was returned to the pool");
+            }
+            return this;
+        }
+
+        /**
+         * Drop a reference, the frame must not be used afterwards
+         */
+        public void release(){
+            int left = references.decrementAndGet();
+            if(left == 0){
+                pool.recycle(this);
+            }else if(left < 0){
+                references.incrementAndGet();
+                throw new IllegalStateException("frame released more often than retained");
+            }
+        }
+
+        public int getReferenceCount(){
+            return references.get();
+        }
+
+        /**
+         * @return TYPE_FSR or TYPE_IMU
+         */
+        public int getType(){
+            return type;
+        }
+
+        /**
+         * @return device time stamp in milliseconds, 0 for imu frames
+         */
+        public int getDeviceTime(){
+            return deviceTime;
+        }
+
+        /**
+         * @return frame time on the host clock in microseconds
+         */
+        public long getHostMicros(){
+            return hostMicros;
+        }
+
+        /**
+         * @return raw count of an fsr channel
+         */
+        public int getCount(int channel){
+            return counts[channel];
+        }
+
+        /**
+         * @param out receives the raw counts of the fsr channels
+         */
+        public void copyCounts(int[] out){
+            System.arraycopy(counts, 0, out, 0, CHANNELS);
+        }
+
+        /**
+         * @return true if the fsr frame carries calibrated force
+         */
+        public boolean hasForce(){
+            return hasForce;
+        }
+
+        /**
+         * @return calibrated force of an fsr channel, NaN without calibration
+         */
+        public float getForce(int channel){
+            return hasForce ? values[channel] : Float.NaN;
+        }
+
+        public float getRoll(){
+            return values[0];
+        }
+
+        public float getPitch(){
+            return values[1];
+        }
+
+        public float getYaw(){
+            return values[2];
+        }
+    }
+
+    private final Frame[] free;
+    private int available;
+    private final int capacity;
+    private volatile boolean trackLeaks;
+    // every frame, for leak checks
+    private final Frame[] frames;
+
+    private long acquired = 0;
+    private long exhausted = 0;
+    private int peakInUse = 0;
+
+    /**
+     * @param capacity frames allocated up front, at least the frames in flight at the stream rate
+     * @param track_leaks remember where every frame was acquired, for debug builds
+     */
+    public FramePool(int capacity, boolean track_leaks){
+        this.capacity = capacity;
+        trackLeaks = track_leaks;
+        free = new Frame[capacity];
+        frames = new Frame[capacity];
+        for(int i = 0; i < capacity; i++){
+            frames[i] = new Frame(this);
+            free[i] = frames[i];
+        }
+        available = capacity;
+    }
+
+    public void setLeakTracking(boolean track_leaks){
+        trackLeaks = track_leaks;
+    }
+
+    /**
+     * @param device_time device time stamp in milliseconds
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values, the first 10 are kept
+     * @param force calibrated force of every channel, null if not calibrated
+     * @return frame holding one reference, null if the pool is exhausted
+     */
+    public Frame acquireFsr(int device_time, long host_micros, int[] data, float[] force){
+        Frame frame = acquire();
+        if(frame == null){
+            return null;
+        }
+        frame.type = TYPE_FSR;
+        frame.deviceTime = device_time;
+        frame.hostMicros = host_micros;
+        System.arraycopy(data, 0, frame.counts, 0, CHANNELS);
+        frame.hasForce = force != null;
+        if(force != null){
+            System.arraycopy(force, 0, frame.values, 0, CHANNELS);
+        }
+        return frame;
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     * @return frame holding one reference, null if the pool is exhausted
+     */
+    public Frame acquireImu(long host_micros, float roll, float pitch, float yaw){
+        Frame frame = acquire();
+        if(frame == null){
+            return null;
+        }
+        frame.type = TYPE_IMU;
+        frame.deviceTime = 0;
+        frame.hostMicros = host_micros;
+        frame.hasForce = false;
+        frame.values[0] = roll;
+        frame.values[1] = pitch;
+        frame.values[2] = yaw;
+        return frame;
+    }
+
+    private Frame acquire(){
+        Frame frame;
+        synchronized(this){
+            if(available == 0){
+                exhausted++;
+                return null;
+            }
+            frame = free[--available];
+            free[available] = null;
+            acquired++;
+            peakInUse = Math.max(peakInUse, capacity - available);
+        }
+        if(trackLeaks){
+            frame.acquiredNanos = System.nanoTime();
+            frame.acquiredAt = new Throwable("frame acquired here");
+        }
+        frame.references.set(1);
+        return frame;
+    }
+
+    private void recycle(Frame frame){
+        frame.acquiredAt = null;
+        synchronized(this){
+            free[available++] = frame;
+        }
+    }
+
+    /**
+     * Report frames held longer than expected, with where they were acquired when tracking
+     * @param max_age_ms longest a consumer is expected to hold a frame
+     * @return number of frames held longer
+     */
+    public int checkLeaks(long max_age_ms){
+        if(!trackLeaks){
+            return 0;
+        }
+        long now = System.nanoTime();
+        int leaks = 0;
+        for(Frame frame : frames){
+            Throwable at = frame.acquiredAt;
+            if(frame.references.get() > 0 && at != null && now - frame.acquiredNanos > max_age_ms * 1000000L){
+                leaks++;
+                Log.w(TAG, "Frame held for " + (now - frame.acquiredNanos) / 1000000
+                        + " ms with " + frame.references.get() + " references", at);
+            }
+        }
+        return leaks;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public synchronized int getAvailable(){
+        return available;
+    }
+
+    /**
+     * @return frames handed out since the pool was created
+     */
+    public synchronized long getAcquiredCount(){
+        return acquired;
+    }
+
+    /**
+     * @return acquisitions refused because every frame was in use
+     */
+    public synchronized long getExhaustedCount(){
+        return exhausted;
+    }
+
+    /**
+     * @return most frames in use at once
+     */
+    public synchronized int getPeakInUse(){
+        return peakInUse;
+    }
+
+    /**
+     * @return one line summary of the pool metrics
+     */
+    public synchronized String report(){
+        return capacity + " frames, " + (capacity - available) + " in use, peak " + peakInUse
+                + ", " + acquired + " acquired, " + exhausted + " refused";
+    }
+}
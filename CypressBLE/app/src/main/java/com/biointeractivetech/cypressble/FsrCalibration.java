@@ -0,0 +1,74 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Conversion of raw fsr counts to force for the channels of one device.
+ *
+ * Each channel is calibrated with a polynomial in the raw count, c0 + c1 x + c2 x^2 + ...
+ * The counts are 8 bit, so the polynomials are evaluated once for all 256 counts when the
+ * calibration is built and converting a sample is a table lookup per channel. A calibration
+ * never changes once built; swap in a new one to recalibrate.
+ */
+public class FsrCalibration {
+    public static final int CHANNELS = PacketDecoders.FSR_CHANNELS;
+    /** number of raw counts */
+    public static final int LEVELS = 256;
+
+    // force by channel * LEVELS + count
+    private final float[] table = new float[CHANNELS * LEVELS];
+    private final double[][] coefficients = new double[CHANNELS][];
+
+    /**
+     * @param polynomials coefficients per channel, lowest order first; a channel without
+     *                    coefficients passes the raw count through
+     */
+    public FsrCalibration(double[][] polynomials){
+        for(int c = 0; c < CHANNELS; c++){
+            double[] poly = c < polynomials.length && polynomials[c] != null && polynomials[c].length > 0
+                    ? polynomials[c].clone() : new double[]{0, 1};
+            coefficients[c] = poly;
+            for(int count = 0; count < LEVELS; count++){
+                table[c * LEVELS + count] = (float) evaluate(poly, count);
+            }
+        }
+    }
+
+    /**
+     * Evaluate a calibration polynomial
+     * @param poly coefficients, lowest order first
+     * @param raw raw count
+     */
+    public static double evaluate(double[] poly, double raw){
+        double value = 0;
+        for(int i = poly.length - 1; i >= 0; i--){
+            value = value * raw + poly[i];
+        }
+        return value;
+    }
+
+    /**
+     * @param channel fsr channel
+     * @param raw raw count, 0 to 255
+     * @return calibrated value
+     */
+    public final float apply(int channel, int raw){
+        return table[channel * LEVELS + raw];
+    }
+
+    /**
+     * Convert a sample of every channel
+     * @param raw raw counts, 0 to 255
+     * @param force receives the calibrated values
+     */
+    public void apply(int[] raw, float[] force){
+        for(int c = 0; c < CHANNELS; c++){
+            force[c] = table[c * LEVELS + raw[c]];
+        }
+    }
+
+    /**
+     * @return copy of the polynomial of a channel, lowest order first
+     */
+    public double[] getCoefficients(int channel){
+        return coefficients[channel].clone();
+    }
+}
@@ -0,0 +1,143 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Fixed size histogram of durations in nanoseconds.
+ *
+ * Buckets are log-linear: every power of two is split into 16 equal sub buckets, which keeps
+ * the reported percentiles within about 6% of the true value from 1 ns up to several minutes
+ * while recording stays a couple of shifts and an array increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Add a duration, negative values are clamped to zero
+     * @param nanos duration in nanoseconds
+     */
+    public synchronized void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts[bucketOf(nanos)]++;
+        count++;
+        sum += nanos;
+        if(nanos < min){ min = nanos;}
+        if(nanos > max){ max = nanos;}
+    }
+
+    /**
+     * Discard all recorded values
+     */
+    public synchronized void reset(){
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    public synchronized long getMin(){
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax(){
+        return max;
+    }
+
+    public synchronized long getMean(){
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile value between 0 and 100
+     * @return upper bound of the bucket holding the requested percentile, 0 when empty
+     */
+    public synchronized long getPercentile(double percentile){
+        if(count == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if(rank < 1){
+            rank = 1;
+        }
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Add all values recorded in another histogram to this one
+     */
+    public void add(LatencyHistogram other){
+        long[] otherCounts = new long[BUCKETS];
+        long otherCount, otherSum, otherMin, otherMax;
+        synchronized(other){
+            System.arraycopy(other.counts, 0, otherCounts, 0, BUCKETS);
+            otherCount = other.count;
+            otherSum = other.sum;
+            otherMin = other.min;
+            otherMax = other.max;
+        }
+        synchronized(this){
+            for(int i = 0; i < BUCKETS; i++){
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            sum += otherSum;
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    /**
+     * @return one line summary in microseconds
+     */
+    @Override
+    public synchronized String toString(){
+        return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f us",
+                count, getMean() / 1000.0, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+                getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+
+    static int bucketOf(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT){
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,111 @@
+package com.biointeractivetech.cypressble;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+/**
+ * Per stage latency of a frame on its way from the GATT notification to the screen.
+ *
+ * Every frame is stamped with its host arrival time when onCharacteristicChanged fires and the
+ * stamp travels with it through decode, service dispatch, the broadcast and the activity. Each
+ * stage records its own duration into a histogram, and the work done in each stage is wrapped in
+ * a systrace section of the same name so the numbers can be lined up with a captured trace.
+ *
+ * All timestamps come from SystemClock.elapsedRealtimeNanos so they stay comparable between
+ * processes receiving the broadcasts.
+ */
+public class LatencyTracer {
+    /** notification arrival to hand off to the CypressInterface listener */
+    public static final int STAGE_DECODE = 0;
+    /** listener entry to sendBroadcast, includes serialising the frame */
+    public static final int STAGE_DISPATCH = 1;
+    /** sendBroadcast to onReceive in the activity */
+    public static final int STAGE_BROADCAST = 2;
+    /** onReceive to posting the view update */
+    public static final int STAGE_HANDLING = 3;
+    /** view update posted to text set on the ui thread */
+    public static final int STAGE_RENDER = 4;
+    /** notification arrival to text set on the ui thread */
+    public static final int STAGE_END_TO_END = 5;
+    /** probe command written to its reply arriving, see LinkProbe */
+    public static final int STAGE_LINK_ROUND_TRIP = 6;
+
+    private static final String[] STAGE_NAMES = {"decode", "dispatch", "broadcast", "handling", "render", "end to end", "link round trip"};
+
+    private static final LatencyTracer instance = new LatencyTracer();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_NAMES.length];
+
+    /**
+     * @return tracer shared by the service and activities of this process
+     */
+    public static LatencyTracer get(){
+        return instance;
+    }
+
+    LatencyTracer(){
+        for(int i = 0; i < histograms.length; i++){
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return current time on the clock used for all frame timestamps
+     */
+    public static long now(){
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record a stage that started at the given time and ends now
+     * @param stage one of the STAGE_<description> constants
+     * @param startNanos start of the stage from now(), ignored if 0
+     * @return the current time, usable as the start of the next stage
+     */
+    public long record(int stage, long startNanos){
+        long end = now();
+        if(startNanos != 0){
+            histograms[stage].record(end - startNanos);
+        }
+        return end;
+    }
+
+    /**
+     * Open a systrace section for a stage, must be closed with endSection on the same thread
+     */
+    public static void beginSection(int stage){
+        Trace.beginSection(STAGE_NAMES[stage]);
+    }
+
+    public static void endSection(){
+        Trace.endSection();
+    }
+
+    /**
+     * @param stage one of the STAGE_<description> constants
+     * @return histogram holding the durations recorded for the stage
+     */
+    public LatencyHistogram getHistogram(int stage){
+        return histograms[stage];
+    }
+
+    /**
+     * Discard all recorded durations
+     */
+    public void reset(){
+        for(LatencyHistogram histogram : histograms){
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return human readable summary of every stage, one per line
+     */
+    public String dump(){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < histograms.length; i++){
+            sb.append(STAGE_NAMES[i]).append(": ").append(histograms[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,243 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.Locale;
+
+/**
+ * Measures the command round trip time of the link to the DAQ.
+ *
+ * A probe writes a query command and waits for the reply to show up in the uart stream. The
+ * time from the write to the arrival of the notification completing the reply goes into a
+ * histogram. A probe that gets no reply within the stall timeout is counted as a stall and the
+ * link is reported stalled until a reply arrives again. Probes can be sent on demand or at a
+ * fixed period; only one is in flight at a time because replies carry no sequence number.
+ *
+ * Methods may be called from any thread, the listener is called on the thread delivering the
+ * reply or, for stalls, on the timer thread.
+ */
+public class LinkProbe {
+    public static final String DEFAULT_COMMAND = "$send,info;";
+    public static final String DEFAULT_REPLY = "$info";
+    public static final long DEFAULT_STALL_TIMEOUT = 2000;
+
+    // replies are split over notifications, keep enough text to find one
+    private static final int MAX_PENDING_TEXT = 256;
+
+    /**
+     * Implement this interface to write the probe command to the device
+     */
+    public interface Sender {
+        void send(String command);
+    }
+
+    /**
+     * Implement this interface to follow the probe results
+     */
+    public interface Listener {
+        /**
+         * called for every reply matched to a probe
+         * @param round_trip_nanos time from the write to the reply
+         */
+        void onRoundTrip(long round_trip_nanos);
+
+        /**
+         * called when a probe got no reply within the stall timeout
+         * @param waited_nanos time since the probe was written
+         */
+        void onStall(long waited_nanos);
+    }
+
+    private final Sender sender;
+    private final ScanScheduler.Timer timer;
+    private final String command;
+    private final String reply;
+    private final long stallTimeout;
+    private final LatencyHistogram histogram;
+    private Listener listener = null;
+
+    private final StringBuilder pendingText = new StringBuilder();
+    private long sentAt = 0;
+    private boolean inFlight = false;
+    // stall check of the probe in flight, each probe posts its own
+    private Runnable stallCheck = null;
+    private boolean stalled = false;
+    private long period = 0;
+    private long probes = 0;
+    private long replies = 0;
+    private long stalls = 0;
+
+    private final Runnable periodicProbe = new Runnable() {
+        @Override
+        public void run() {
+            long next;
+            synchronized(LinkProbe.this){
+                next = period;
+            }
+            if(next > 0){
+                probe();
+                timer.postDelayed(this, next);
+            }
+        }
+    };
+
+    /**
+     * @param sender writes the command to the device
+     * @param timer posts the stall checks and periodic probes
+     * @param histogram receives the round trip times in nanoseconds
+     * @param probe_command query command the device answers quickly
+     * @param reply_prefix text the reply starts with
+     * @param stall_timeout_ms time without a reply after which the link counts as stalled
+     */
+    public LinkProbe(Sender sender, ScanScheduler.Timer timer, LatencyHistogram histogram,
+                     String probe_command, String reply_prefix, long stall_timeout_ms){
+        this.sender = sender;
+        this.timer = timer;
+        this.histogram = histogram;
+        this.command = probe_command;
+        this.reply = reply_prefix;
+        this.stallTimeout = stall_timeout_ms;
+    }
+
+    public synchronized void setListener(Listener probe_listener){
+        listener = probe_listener;
+    }
+
+    /**
+     * Send one probe now, does nothing while another probe waits for its reply
+     * @return true if a probe was sent
+     */
+    public boolean probe(){
+        Runnable check;
+        synchronized(this){
+            if(inFlight){
+                return false;
+            }
+            inFlight = true;
+            final long probe = ++probes;
+            pendingText.setLength(0);
+            sentAt = LatencyTracer.now();
+            check = new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(probe);
+                }
+            };
+            stallCheck = check;
+        }
+        timer.postDelayed(check, stallTimeout);
+        sender.send(command);
+        return true;
+    }
+
+    /**
+     * Probe at a fixed period until stop is called
+     * @param period_ms time between probes in milliseconds
+     */
+    public void start(long period_ms){
+        synchronized(this){
+            period = period_ms;
+        }
+        timer.removeCallbacks(periodicProbe);
+        timer.postDelayed(periodicProbe, 0);
+    }
+
+    /**
+     * Stop periodic probing, a probe in flight still records its reply
+     */
+    public void stop(){
+        synchronized(this){
+            period = 0;
+        }
+        timer.removeCallbacks(periodicProbe);
+    }
+
+    /**
+     * Feed the uart stream of the device
+     * @param data text of one notification
+     * @param arrival_nanos arrival time of the notification on the LatencyTracer clock
+     */
+    public void onUartData(String data, long arrival_nanos){
+        Listener notify;
+        long roundTrip;
+        Runnable check;
+        synchronized(this){
+            if(!inFlight){
+                return;
+            }
+            pendingText.append(data);
+            if(pendingText.indexOf(reply) < 0){
+                if(pendingText.length() > MAX_PENDING_TEXT){
+                    pendingText.delete(0, pendingText.length() - reply.length());
+                }
+                return;
+            }
+            inFlight = false;
+            stalled = false;
+            replies++;
+            roundTrip = (arrival_nanos != 0 ? arrival_nanos : LatencyTracer.now()) - sentAt;
+            histogram.record(roundTrip);
+            notify = listener;
+            check = stallCheck;
+            stallCheck = null;
+        }
+        // a probe sent since the lock was released has its own check, only this probe's is removed
+        timer.removeCallbacks(check);
+        if(notify != null){
+            notify.onRoundTrip(roundTrip);
+        }
+    }
+
+    private void onTimeout(long probe){
+        Listener notify;
+        long waited;
+        synchronized(this){
+            // a reply won the race, or the check belongs to an earlier probe
+            if(!inFlight || probe != probes){
+                return;
+            }
+            inFlight = false;
+            stallCheck = null;
+            stalled = true;
+            stalls++;
+            waited = LatencyTracer.now() - sentAt;
+            notify = listener;
+        }
+        if(notify != null){
+            notify.onStall(waited);
+        }
+    }
+
+    /**
+     * @return true if the last probe got no reply within the stall timeout
+     */
+    public synchronized boolean isStalled(){
+        return stalled;
+    }
+
+    public synchronized long getProbeCount(){
+        return probes;
+    }
+
+    public synchronized long getReplyCount(){
+        return replies;
+    }
+
+    public synchronized long getStallCount(){
+        return stalls;
+    }
+
+    /**
+     * @return histogram of the round trip times in nanoseconds
+     */
+    public LatencyHistogram getHistogram(){
+        return histogram;
+    }
+
+    /**
+     * @return one line summary with the median and 99th percentile round trip in milliseconds
+     */
+    public synchronized String report(){
+        return String.format(Locale.US, "probes %d, replies %d, stalls %d, p50 %.1f ms, p99 %.1f ms%s",
+                probes, replies, stalls, histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                stalled ? ", stalled" : "");
+    }
+}
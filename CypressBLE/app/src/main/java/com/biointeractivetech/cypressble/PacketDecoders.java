@@ -0,0 +1,127 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Decoders for the packet formats sent by the DAQ, registered by DaqBleManager by default.
+ *
+ * The fsr and imu decoders accept notifications carrying several consecutive samples after a
+ * single header, so a firmware that packs samples to save connection events needs no other
+ * change in the app. Samples after the first are stamped with the device time plus the sample
+ * period.
+ */
+public class PacketDecoders {
+    /** fsr channels per sample */
+    public static final int FSR_CHANNELS = 10;
+    private static final int FSR_TIME_SIZE = 4;
+    private static final int IMU_SAMPLE_SIZE = 6;
+
+    /**
+     * Header, 4 byte big endian device time in milliseconds, then one or more samples of 10
+     * unsigned bytes taken the sample period apart.
+     *
+     * While a calibration is set, callbacks implementing CalibratedFsrInterface get every sample
+     * converted to force as it is parsed. The calibration can be swapped while streaming; all
+     * samples of a packet use the same one.
+     *
+     * The sample arrays are reused for every sample, callbacks copy what they keep.
+     */
+    public static class Fsr implements DaqBleManager.PacketDecoder {
+        private volatile int samplePeriod;
+        private volatile FsrCalibration calibration = null;
+        // only touched by the thread decoding
+        private final int[] data = new int[FSR_CHANNELS];
+        private final float[] force = new float[FSR_CHANNELS];
+
+        /**
+         * @param sample_period time between samples of a packet in milliseconds
+         */
+        public Fsr(int sample_period){
+            samplePeriod = sample_period;
+        }
+
+        /**
+         * @param millis time between samples of a packet, normally the delay set on the DAQ
+         */
+        public void setSamplePeriod(int millis){
+            samplePeriod = millis;
+        }
+
+        /**
+         * @param fsr_calibration calibration of the connected device, null to deliver raw counts only
+         */
+        public void setCalibration(FsrCalibration fsr_calibration){
+            calibration = fsr_calibration;
+        }
+
+        public FsrCalibration getCalibration(){
+            return calibration;
+        }
+
+        @Override
+        public boolean decode(byte[] packet, DaqBleManager.CypressInterface callback) {
+            int payload = packet.length - 1 - FSR_TIME_SIZE;
+            if(payload < FSR_CHANNELS || payload % FSR_CHANNELS != 0){
+                return false;
+            }
+            int time = ((packet[1] & 0xff) << 24) | ((packet[2] & 0xff) << 16)
+                    | ((packet[3] & 0xff) << 8) | (packet[4] & 0xff);
+            int period = samplePeriod;
+            int samples = payload / FSR_CHANNELS;
+            int at = 1 + FSR_TIME_SIZE;
+            FsrCalibration table = calibration;
+            if(table != null && callback instanceof DaqBleManager.CalibratedFsrInterface){
+                DaqBleManager.CalibratedFsrInterface calibrated = (DaqBleManager.CalibratedFsrInterface) callback;
+                for(int s = 0; s < samples; s++){
+                    for(int c = 0; c < FSR_CHANNELS; c++){
+                        int raw = packet[at++] & 0xff;
+                        data[c] = raw;
+                        force[c] = table.apply(c, raw);
+                    }
+                    calibrated.fsrForceRecieved(time + s * period, data, force);
+                }
+                return true;
+            }
+            for(int s = 0; s < samples; s++){
+                for(int c = 0; c < FSR_CHANNELS; c++){
+                    data[c] = packet[at++] & 0xff;
+                }
+                callback.fsrDataRecieved(time + s * period, data);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Header, then one or more samples of yaw, roll and pitch as little endian signed tenths of a degree
+     */
+    public static class Imu implements DaqBleManager.PacketDecoder {
+        @Override
+        public boolean decode(byte[] packet, DaqBleManager.CypressInterface callback) {
+            int payload = packet.length - 1;
+            if(payload < IMU_SAMPLE_SIZE || payload % IMU_SAMPLE_SIZE != 0){
+                return false;
+            }
+            for(int at = 1; at < packet.length; at += IMU_SAMPLE_SIZE){
+                float yaw =     ((packet[at + 1] << 8) | (packet[at] & 0xff))/10;
+                float roll =    ((packet[at + 3] << 8) | (packet[at + 2] & 0xff))/10;
+                float pitch =   ((packet[at + 5] << 8) | (packet[at + 4] & 0xff))/10;
+                callback.imuDataRecieved(0, roll, pitch, yaw);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Ascii text emulating a serial port, registered for every header below 0x80
+     */
+    public static class Uart implements DaqBleManager.PacketDecoder {
+        @Override
+        public boolean decode(byte[] packet, DaqBleManager.CypressInterface callback) {
+            char[] text = new char[packet.length];
+            for(int i = 0; i < packet.length; i++){
+                text[i] = (char) (packet[i] & 0xff);
+            }
+            callback.uartDataRecieved(new String(text));
+            return true;
+        }
+    }
+}
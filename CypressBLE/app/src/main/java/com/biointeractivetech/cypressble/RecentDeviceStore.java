@@ -0,0 +1,186 @@
+package com.biointeractivetech.cypressble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the most recently used DAQ devices along with the stream settings
+ * that were last applied to them, so the service can reconnect on launch
+ * without waiting for a scan
+ */
+public class RecentDeviceStore {
+    private static final String PREFS_NAME = "recent_devices";
+    private static final String KEY_DEVICES = "devices";
+    private static final int MAX_DEVICES = 5;
+
+    private final String LOG_TAG = "Recent Device Store";
+
+    private final SharedPreferences prefs;
+    private final List<KnownDevice> devices = new ArrayList<KnownDevice>();
+
+    /**
+     * A device address together with the stream settings last used with it
+     */
+    public static class KnownDevice {
+        public final String address;
+        public String name;
+        public long lastConnected;
+        public boolean fsrEnabled;
+        public int fsrDelay = -1;
+        public boolean imuEnabled;
+        public int imuDelay = -1;
+
+        KnownDevice(String address){
+            this.address = address;
+        }
+    }
+
+    /**
+     * @param context context used to open the shared preferences backing the store
+     */
+    public RecentDeviceStore(Context context){
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    /**
+     * @return the most recently connected device, or null if none is known
+     */
+    public synchronized KnownDevice getPreferredDevice(){
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    /**
+     * @return known devices, most recently connected first
+     */
+    public synchronized List<KnownDevice> getRecentDevices(){
+        return new ArrayList<KnownDevice>(devices);
+    }
+
+    /**
+     * Record a successful connection, making the device the preferred one
+     * @param address mac address of the device
+     * @param name advertised name of the device, may be null
+     */
+    public synchronized void markConnected(String address, String name){
+        KnownDevice device = remove(address);
+        if(device == null){
+            device = new KnownDevice(address);
+        }
+        if(name != null){
+            device.name = name;
+        }
+        device.lastConnected = System.currentTimeMillis();
+        devices.add(0, device);
+        while(devices.size() > MAX_DEVICES){
+            devices.remove(devices.size() - 1);
+        }
+        save();
+    }
+
+    /**
+     * Remember the fsr stream settings for a device, pass a negative delay to leave it unchanged
+     */
+    public synchronized void updateFsrSettings(String address, boolean enabled, int delay){
+        KnownDevice device = find(address);
+        if(device == null){
+            return;
+        }
+        device.fsrEnabled = enabled;
+        if(delay >= 0){
+            device.fsrDelay = delay;
+        }
+        save();
+    }
+
+    /**
+     * Remember the imu stream settings for a device, pass a negative delay to leave it unchanged
+     */
+    public synchronized void updateImuSettings(String address, boolean enabled, int delay){
+        KnownDevice device = find(address);
+        if(device == null){
+            return;
+        }
+        device.imuEnabled = enabled;
+        if(delay >= 0){
+            device.imuDelay = delay;
+        }
+        save();
+    }
+
+    /**
+     * Drop a device so it is no longer used for warm start
+     */
+    public synchronized void forget(String address){
+        if(remove(address) != null){
+            save();
+        }
+    }
+
+    private KnownDevice find(String address){
+        for(KnownDevice device : devices){
+            if(device.address.equals(address)){
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private KnownDevice remove(String address){
+        KnownDevice device = find(address);
+        if(device != null){
+            devices.remove(device);
+        }
+        return device;
+    }
+
+    private void load(){
+        devices.clear();
+        try{
+            JSONArray array = new JSONArray(prefs.getString(KEY_DEVICES, "[]"));
+            for(int i = 0; i < array.length(); i++){
+                JSONObject obj = array.getJSONObject(i);
+                KnownDevice device = new KnownDevice(obj.getString("address"));
+                device.name = obj.optString("name", null);
+                device.lastConnected = obj.optLong("last connected");
+                device.fsrEnabled = obj.optBoolean("enable fsr");
+                device.fsrDelay = obj.optInt("fsr delay", -1);
+                device.imuEnabled = obj.optBoolean("enable imu");
+                device.imuDelay = obj.optInt("imu delay", -1);
+                devices.add(device);
+            }
+        }catch(Exception e){
+            Log.e(LOG_TAG, "Discarding unreadable device list", e);
+            devices.clear();
+        }
+    }
+
+    private void save(){
+        try{
+            JSONArray array = new JSONArray();
+            for(KnownDevice device : devices){
+                JSONObject obj = new JSONObject();
+                obj.put("address", device.address);
+                if(device.name != null){
+                    obj.put("name", device.name);
+                }
+                obj.put("last connected", device.lastConnected);
+                obj.put("enable fsr", device.fsrEnabled);
+                obj.put("fsr delay", device.fsrDelay);
+                obj.put("enable imu", device.imuEnabled);
+                obj.put("imu delay", device.imuDelay);
+                array.put(obj);
+            }
+            prefs.edit().putString(KEY_DEVICES, array.toString()).apply();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Mean, variance, minimum and maximum of every fsr channel and imu axis over the latest samples,
+ * for several window lengths at once.
+ *
+ * Each sample updates every window in constant amortised time: mean and variance with a Welford
+ * accumulator that adds the new sample and removes the one leaving the window, minimum and
+ * maximum with monotonic deques of sample indices. The accumulators are recomputed from the
+ * history once per window length to stop rounding errors from building up. Everything lives in
+ * primitive arrays allocated up front.
+ *
+ * Register it with BluetoothLeService.addDataListener. The latest results are published after
+ * every sample under a sequence counter; readers on any thread copy them without locking and
+ * retry if a sample was published meanwhile, so the bluetooth thread never waits for a reader.
+ */
+public class RollingStatistics implements DaqBleManager.CypressInterface {
+    public static final int STREAM_FSR = 0;
+    public static final int STREAM_IMU = 1;
+
+    public static final int STAT_MEAN = 0;
+    /** population variance of the samples in the window */
+    public static final int STAT_VARIANCE = 1;
+    public static final int STAT_MIN = 2;
+    public static final int STAT_MAX = 3;
+    public static final int STATS = 4;
+
+    public static final int FSR_CHANNELS = SensorWindowFeeder.FSR_CHANNELS;
+    public static final int IMU_CHANNELS = SensorWindowFeeder.IMU_CHANNELS;
+
+    private final int[] windows;
+    private final Channels fsr;
+    private final Channels imu;
+    private final double[] imuSample = new double[IMU_CHANNELS];
+    private final double[] fsrSample = new double[FSR_CHANNELS];
+
+    /**
+     * @param window_samples window lengths in samples, each stream keeps this many samples of the longest
+     */
+    public RollingStatistics(int[] window_samples){
+        windows = window_samples.clone();
+        fsr = new Channels(FSR_CHANNELS, windows);
+        imu = new Channels(IMU_CHANNELS, windows);
+    }
+
+    public int getWindowCount(){
+        return windows.length;
+    }
+
+    /**
+     * @return length in samples of a window
+     */
+    public int getWindow(int window){
+        return windows[window];
+    }
+
+    /**
+     * Copy the latest results of a window
+     * @param stream STREAM_FSR or STREAM_IMU
+     * @param window index of the window
+     * @param out receives channel * STATS + STAT_<name> for every channel
+     * @return number of samples the results cover, less than the window length until it has filled
+     */
+    public int read(int stream, int window, double[] out){
+        return (stream == STREAM_IMU ? imu : fsr).read(window, out);
+    }
+
+    /**
+     * @return one statistic of one channel, read as read does
+     */
+    public double get(int stream, int window, int channel, int stat){
+        return (stream == STREAM_IMU ? imu : fsr).get(window, channel * STATS + stat);
+    }
+
+    /**
+     * Forget all samples
+     */
+    public void reset(){
+        fsr.reset();
+        imu.reset();
+    }
+
+    @Override
+    public void bleConnectionStateUpdate(int state) {
+    }
+
+    @Override
+    public void fsrDataRecieved(int time, int[] data) {
+        for(int c = 0; c < FSR_CHANNELS; c++){
+            fsrSample[c] = data[c];
+        }
+        fsr.push(fsrSample);
+    }
+
+    @Override
+    public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+        imuSample[SensorWindowFeeder.IMU_ROLL] = roll;
+        imuSample[SensorWindowFeeder.IMU_PITCH] = pitch;
+        imuSample[SensorWindowFeeder.IMU_YAW] = yaw;
+        imu.push(imuSample);
+    }
+
+    @Override
+    public void uartDataRecieved(String data) {
+    }
+
+    // statistics of one stream, pushed from a single thread
+    private static class Channels {
+        private final int channels;
+        private final int[] windows;
+        private final int history;
+
+        // latest samples by channel * history + index % history
+        private final double[] samples;
+        private long count = 0;
+
+        // welford accumulators by window * channels + channel
+        private final double[] means;
+        private final double[] squares;
+
+        // min and max deques of sample indices, window w of channel c starts at
+        // (dequeStart[w] * channels) + c * windows[w]
+        private final int[] dequeStart;
+        private final long[] minDeque;
+        private final long[] maxDeque;
+        private final int[] minHead;
+        private final int[] minSize;
+        private final int[] maxHead;
+        private final int[] maxSize;
+
+        // results published by window * channels * STATS, as double bits
+        private final AtomicLong version = new AtomicLong(0);
+        private final AtomicLongArray published;
+        private final AtomicLong publishedCount = new AtomicLong(0);
+
+        Channels(int channels, int[] windows){
+            this.channels = channels;
+            this.windows = windows;
+            int longest = 1;
+            int total = 0;
+            dequeStart = new int[windows.length];
+            for(int w = 0; w < windows.length; w++){
+                longest = Math.max(longest, windows[w]);
+                dequeStart[w] = total;
+                total += windows[w];
+            }
+            history = longest;
+            samples = new double[channels * history];
+            means = new double[windows.length * channels];
+            squares = new double[windows.length * channels];
+            minDeque = new long[total * channels];
+            maxDeque = new long[total * channels];
+            minHead = new int[windows.length * channels];
+            minSize = new int[windows.length * channels];
+            maxHead = new int[windows.length * channels];
+            maxSize = new int[windows.length * channels];
+            published = new AtomicLongArray(windows.length * channels * STATS);
+            // NaN until the first sample, as after reset
+            publish();
+        }
+
+        synchronized void reset(){
+            count = 0;
+            for(int i = 0; i < means.length; i++){
+                means[i] = 0;
+                squares[i] = 0;
+                minSize[i] = 0;
+                maxSize[i] = 0;
+            }
+            publish();
+        }
+
+        synchronized void push(double[] sample){
+            final long index = count;
+            final int slot = (int) (index % history);
+            for(int w = 0; w < windows.length; w++){
+                final int window = windows[w];
+                final long expired = index - window;
+                for(int c = 0; c < channels; c++){
+                    final int at = w * channels + c;
+                    final double x = sample[c];
+                    // welford, the sample leaving the window is still in the history
+                    long n = Math.min(index, window);
+                    if(expired >= 0){
+                        double old = samples[c * history + (int) (expired % history)];
+                        n--;
+                        if(n == 0){
+                            means[at] = 0;
+                            squares[at] = 0;
+                        }else{
+                            double delta = old - means[at];
+                            means[at] -= delta / n;
+                            squares[at] -= delta * (old - means[at]);
+                        }
+                    }
+                    double delta = x - means[at];
+                    means[at] += delta / (n + 1);
+                    squares[at] += delta * (x - means[at]);
+
+                    // drop indices that left the window from the front of the deques
+                    final int base = (dequeStart[w] * channels) + c * window;
+                    if(minSize[at] > 0 && minDeque[base + minHead[at]] <= expired){
+                        minHead[at] = (minHead[at] + 1) % window;
+                        minSize[at]--;
+                    }
+                    if(maxSize[at] > 0 && maxDeque[base + maxHead[at]] <= expired){
+                        maxHead[at] = (maxHead[at] + 1) % window;
+                        maxSize[at]--;
+                    }
+                }
+            }
+            // every index left in a deque is newer than the slot being overwritten
+            for(int c = 0; c < channels; c++){
+                samples[c * history + slot] = sample[c];
+            }
+            for(int w = 0; w < windows.length; w++){
+                final int window = windows[w];
+                for(int c = 0; c < channels; c++){
+                    final int at = w * channels + c;
+                    final int base = (dequeStart[w] * channels) + c * window;
+                    final double x = sample[c];
+                    // keep the deques monotonic, values dominated by the new sample can never be extremes again
+                    while(minSize[at] > 0 && value(c, minDeque[base + (minHead[at] + minSize[at] - 1) % window]) >= x){
+                        minSize[at]--;
+                    }
+                    minDeque[base + (minHead[at] + minSize[at]) % window] = index;
+                    minSize[at]++;
+                    while(maxSize[at] > 0 && value(c, maxDeque[base + (maxHead[at] + maxSize[at] - 1) % window]) <= x){
+                        maxSize[at]--;
+                    }
+                    maxDeque[base + (maxHead[at] + maxSize[at]) % window] = index;
+                    maxSize[at]++;
+                }
+                if((index + 1) % window == 0){
+                    recompute(w);
+                }
+            }
+            count = index + 1;
+            publish();
+        }
+
+        private double value(int channel, long index){
+            return samples[channel * history + (int) (index % history)];
+        }
+
+        // exact mean and sum of squares of a full window, from the history
+        private void recompute(int w){
+            final int window = windows[w];
+            for(int c = 0; c < channels; c++){
+                double sum = 0;
+                for(int i = 0; i < window; i++){
+                    sum += samples[c * history + (int) ((count - i + history) % history)];
+                }
+                double mean = sum / window;
+                double squaresSum = 0;
+                for(int i = 0; i < window; i++){
+                    double d = samples[c * history + (int) ((count - i + history) % history)] - mean;
+                    squaresSum += d * d;
+                }
+                means[w * channels + c] = mean;
+                squares[w * channels + c] = squaresSum;
+            }
+        }
+
+        private void publish(){
+            // odd while writing, readers retry
+            long v = version.get();
+            version.set(v + 1);
+            for(int w = 0; w < windows.length; w++){
+                long n = Math.min(count, windows[w]);
+                for(int c = 0; c < channels; c++){
+                    final int at = w * channels + c;
+                    final int base = (dequeStart[w] * channels) + c * windows[w];
+                    final int out = at * STATS;
+                    boolean empty = n == 0;
+                    published.lazySet(out + STAT_MEAN, bits(empty ? Double.NaN : means[at]));
+                    published.lazySet(out + STAT_VARIANCE, bits(empty ? Double.NaN : Math.max(0, squares[at] / n)));
+                    published.lazySet(out + STAT_MIN, bits(empty ? Double.NaN : value(c, minDeque[base + minHead[at]])));
+                    published.lazySet(out + STAT_MAX, bits(empty ? Double.NaN : value(c, maxDeque[base + maxHead[at]])));
+                }
+            }
+            publishedCount.lazySet(count);
+            version.set(v + 2);
+        }
+
+        int read(int window, double[] out){
+            final int first = window * channels * STATS;
+            final int length = channels * STATS;
+            while(true){
+                long v = version.get();
+                if((v & 1) == 0){
+                    for(int i = 0; i < length; i++){
+                        out[i] = Double.longBitsToDouble(published.get(first + i));
+                    }
+                    long n = publishedCount.get();
+                    if(version.get() == v){
+                        return (int) Math.min(n, windows[window]);
+                    }
+                }
+                Thread.yield();
+            }
+        }
+
+        double get(int window, int stat){
+            // a single value is always written whole
+            return Double.longBitsToDouble(published.get(window * channels * STATS + stat));
+        }
+
+        private static long bits(double value){
+            return Double.doubleToRawLongBits(value);
+        }
+    }
+}
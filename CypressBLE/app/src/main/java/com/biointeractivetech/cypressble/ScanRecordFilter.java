@@ -0,0 +1,49 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Recognises HaBIT DAQ devices from the advertisement data they broadcast
+ */
+public class ScanRecordFilter {
+    private static final int AD_TYPE_COMPLETE_128_BIT_UUIDS = 7;
+
+    // custom serial port profile service, little endian as it appears over the air
+    private static final int[] SERVICE_ID = {0x31, 0x1, 0x9b, 0x5f, 0x80, 0x0, 0x0, 0x80, 0x0, 0x10, 0x0, 0x0, 0xd0, 0xcd, 0x3, 0x0};
+
+    private ScanRecordFilter(){
+    }
+
+    /**
+     * Walk the advertisement structures looking for the custom serial port service uuid
+     * @param scan_response raw scan record received with the advertisement
+     * @return true if the device offers the HaBIT serial service
+     */
+    public static boolean isHabitDevice(byte[] scan_response){
+        if(scan_response == null){
+            return false;
+        }
+
+        int i = 0;
+        while(i + 1 < scan_response.length){
+            int len = scan_response[i] & 0xff;
+            int id = scan_response[i+1] & 0xff;
+
+            if(len <= 0){
+                break;
+            }
+            if(id == AD_TYPE_COMPLETE_128_BIT_UUIDS && i + 2 + SERVICE_ID.length <= scan_response.length){
+                boolean id_correct = true;
+                for(int j = 0; j < SERVICE_ID.length; j++){
+                    if((scan_response[i+2+j] & 0xff) != SERVICE_ID[j]){
+                        id_correct = false;
+                        break;
+                    }
+                }
+                if(id_correct){
+                    return true;
+                }
+            }
+            i += len+1;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,246 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Duty cycled scanning for HaBIT devices.
+ *
+ * A scan session alternates scan and idle windows until it times out, the expected number of
+ * devices or every expected address has been found, or the target device is seen. Idle windows start short and double
+ * after every scan window that finds nothing new, up to a maximum, so a crowded or quiet
+ * environment does not keep the radio at full duty. Each device is reported once per session.
+ *
+ * All methods, including onAdvertisement, must be called on the thread that runs the Timer.
+ * @param <T> platform device handle passed through to the listener
+ */
+public class ScanScheduler<T> {
+
+    /**
+     * Starts and stops the radio, advertisements are handed back through onAdvertisement
+     */
+    public interface AdvertisementSource {
+        void startScan();
+        void stopScan();
+    }
+
+    /**
+     * Delayed execution, normally backed by an android Handler
+     */
+    public interface Timer {
+        void postDelayed(Runnable task, long delayMillis);
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * Implement this interface to receive the devices found by a scan session
+     * @param <T> platform device handle
+     */
+    public interface Listener<T> {
+        /**
+         * called once per session for each matching device
+         */
+        void onDeviceFound(T device, String address, int rssi);
+
+        /**
+         * called when a scan session starts or ends, idle windows do not end a session
+         */
+        void onScanStateChanged(boolean active);
+    }
+
+    private final AdvertisementSource source;
+    private final Timer timer;
+    private final Listener<T> listener;
+
+    private final long scanWindow;
+    private final long minIdleWindow;
+    private final long maxIdleWindow;
+    private final long sessionTimeout;
+
+    private final Set<String> matched = new HashSet<String>();
+    private final Set<String> rejected = new HashSet<String>();
+
+    private int expectedDevices = 0;
+    private final Set<String> expectedAddresses = new HashSet<String>();
+    private String targetAddress = null;
+
+    private boolean active = false;
+    private boolean radioOn = false;
+    private boolean foundInWindow = false;
+    private long idleWindow;
+
+    /**
+     * @param source radio control
+     * @param timer schedules the window and timeout callbacks
+     * @param listener receives found devices and session state
+     * @param scan_window length of each scan window in milliseconds
+     * @param min_idle_window idle time after a window that found a new device, 0 scans continuously
+     * @param max_idle_window upper bound for the idle time as quiet windows back off
+     * @param session_timeout total length of a scan session in milliseconds
+     */
+    public ScanScheduler(AdvertisementSource source, Timer timer, Listener<T> listener,
+                         long scan_window, long min_idle_window, long max_idle_window, long session_timeout){
+        this.source = source;
+        this.timer = timer;
+        this.listener = listener;
+        this.scanWindow = scan_window;
+        this.minIdleWindow = min_idle_window;
+        this.maxIdleWindow = Math.max(min_idle_window, max_idle_window);
+        this.sessionTimeout = session_timeout;
+    }
+
+    /**
+     * End the session early once this many devices have been found
+     * @param count number of devices, 0 to scan until the timeout
+     */
+    public void setExpectedDevices(int count){
+        expectedDevices = count;
+    }
+
+    /**
+     * End the session early once every one of these devices has been found. Like the target they
+     * are reported whether or not their record matches the filter.
+     * @param addresses mac addresses, empty to scan until the timeout
+     */
+    public void setExpectedAddresses(Collection<String> addresses){
+        expectedAddresses.clear();
+        expectedAddresses.addAll(addresses);
+    }
+
+    /**
+     * End the session as soon as this device advertises, whether or not its record matches the filter
+     * @param address mac address, null to disable
+     */
+    public void setTargetAddress(String address){
+        targetAddress = address;
+    }
+
+    /**
+     * Start a new scan session, cancelling any session already running
+     */
+    public void start(){
+        cancelPending();
+        matched.clear();
+        rejected.clear();
+        idleWindow = minIdleWindow;
+        if(!active){
+            active = true;
+            listener.onScanStateChanged(true);
+        }
+        timer.postDelayed(sessionTimeoutTask, sessionTimeout);
+        beginScanWindow();
+    }
+
+    /**
+     * End the session, no callbacks from it remain pending afterwards
+     */
+    public void stop(){
+        cancelPending();
+        setRadio(false);
+        if(active){
+            active = false;
+            listener.onScanStateChanged(false);
+        }
+    }
+
+    /**
+     * @return true while a session is running, including its idle windows
+     */
+    public boolean isActive(){
+        return active;
+    }
+
+    /**
+     * @return number of distinct matching devices found in the current session
+     */
+    public int getFoundCount(){
+        return matched.size();
+    }
+
+    /**
+     * Feed an advertisement from the radio
+     * @param device platform handle passed to the listener
+     * @param address mac address of the advertiser
+     * @param rssi received signal strength
+     * @param scanRecord raw advertisement data
+     */
+    public void onAdvertisement(T device, String address, int rssi, byte[] scanRecord){
+        if(!radioOn || matched.contains(address) || rejected.contains(address)){
+            return;
+        }
+
+        boolean isTarget = address.equals(targetAddress);
+        boolean isExpected = expectedAddresses.contains(address);
+        if(!isTarget && !isExpected && !ScanRecordFilter.isHabitDevice(scanRecord)){
+            rejected.add(address);
+            return;
+        }
+
+        matched.add(address);
+        foundInWindow = true;
+        listener.onDeviceFound(device, address, rssi);
+
+        if(isTarget || (expectedDevices > 0 && matched.size() >= expectedDevices)
+                || (isExpected && matched.containsAll(expectedAddresses))){
+            stop();
+        }
+    }
+
+    private void beginScanWindow(){
+        foundInWindow = false;
+        setRadio(true);
+        if(minIdleWindow > 0){
+            timer.postDelayed(endScanWindowTask, scanWindow);
+        }
+    }
+
+    private void endScanWindow(){
+        setRadio(false);
+        if(foundInWindow){
+            idleWindow = minIdleWindow;
+        }else{
+            idleWindow = Math.min(idleWindow * 2, maxIdleWindow);
+        }
+        timer.postDelayed(beginScanWindowTask, idleWindow);
+    }
+
+    private void setRadio(boolean on){
+        if(on == radioOn){
+            return;
+        }
+        radioOn = on;
+        if(on){
+            source.startScan();
+        }else{
+            source.stopScan();
+        }
+    }
+
+    private void cancelPending(){
+        timer.removeCallbacks(sessionTimeoutTask);
+        timer.removeCallbacks(endScanWindowTask);
+        timer.removeCallbacks(beginScanWindowTask);
+    }
+
+    private final Runnable sessionTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    private final Runnable endScanWindowTask = new Runnable() {
+        @Override
+        public void run() {
+            endScanWindow();
+        }
+    };
+
+    private final Runnable beginScanWindowTask = new Runnable() {
+        @Override
+        public void run() {
+            beginScanWindow();
+        }
+    };
+}
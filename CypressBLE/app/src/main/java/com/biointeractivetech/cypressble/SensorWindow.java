@@ -0,0 +1,128 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read only view of one window of a SensorWindowEngine.
+ *
+ * The view reads the engine's ring buffers directly. If a listener falls so far behind that
+ * the producer wraps around into the window, the values read are no longer the window's;
+ * check isValid after reading and discard the result if it returns false.
+ */
+public class SensorWindow implements Runnable {
+    private final SensorWindowEngine engine;
+    private final int length;
+    private final SensorWindowEngine.WindowListener listener;
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+
+    // absolute index of the first sample, set by the engine before the view is dispatched
+    long start;
+
+    SensorWindow(SensorWindowEngine engine, int length, SensorWindowEngine.WindowListener listener){
+        this.engine = engine;
+        this.length = length;
+        this.listener = listener;
+    }
+
+    /**
+     * @return number of samples in the window
+     */
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * @return number of channels per sample
+     */
+    public int getChannels(){
+        return engine.channels;
+    }
+
+    /**
+     * @return index of the first sample of the window in the stream, counted from 0
+     */
+    public long getStartIndex(){
+        return start;
+    }
+
+    /**
+     * @param channel channel number
+     * @param i sample position within the window, 0 is the oldest
+     * @return sample value
+     */
+    public float get(int channel, int i){
+        return engine.samples[channel][slot(start + i)];
+    }
+
+    /**
+     * @param i sample position within the window, 0 is the oldest
+     * @return time of the sample in milliseconds
+     */
+    public long getTime(int i){
+        return engine.times[slot(start + i)];
+    }
+
+    /**
+     * Mean of a channel over the window, constant time whatever the window length
+     */
+    public double getMean(int channel){
+        return sum(engine.sums, channel) / length;
+    }
+
+    /**
+     * Population variance of a channel over the window, constant time whatever the window length
+     */
+    public double getVariance(int channel){
+        double mean = getMean(channel);
+        double variance = sum(engine.squareSums, channel) / length - mean * mean;
+        return variance < 0 ? 0 : variance;
+    }
+
+    /**
+     * Copy a channel out of the window for models that need a contiguous array
+     * @param channel channel number
+     * @param dst destination array with room for getLength values from offset
+     * @param offset first position written in dst
+     */
+    public void copyChannel(int channel, float[] dst, int offset){
+        float[] src = engine.samples[channel];
+        int first = slot(start);
+        int firstPart = Math.min(length, engine.capacity - first);
+        System.arraycopy(src, first, dst, offset, firstPart);
+        System.arraycopy(src, 0, dst, offset + firstPart, length - firstPart);
+    }
+
+    /**
+     * @return true if no sample of the window, or the running sum before it, has been overwritten yet
+     */
+    public boolean isValid(){
+        return engine.written + 1 < start + engine.capacity;
+    }
+
+    @Override
+    public void run(){
+        try{
+            listener.onWindow(this);
+        }finally{
+            release();
+        }
+    }
+
+    boolean tryAcquire(){
+        return busy.compareAndSet(false, true);
+    }
+
+    void release(){
+        busy.set(false);
+    }
+
+    private double sum(double[][] running, int channel){
+        double end = running[channel][slot(start + length - 1)];
+        double before = start == 0 ? 0 : running[channel][slot(start - 1)];
+        return end - before;
+    }
+
+    private int slot(long index){
+        return (int) (index % engine.capacity);
+    }
+}
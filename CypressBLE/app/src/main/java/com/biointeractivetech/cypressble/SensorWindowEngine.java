@@ -0,0 +1,219 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sliding windows over a multi channel sample stream.
+ *
+ * Samples are written once into per channel ring buffers together with running sums, and every
+ * window registered with addWindow is handed to its listener as a SensorWindow view over that
+ * storage whenever hop samples have passed. Nothing is copied, the listener reads the ring
+ * directly on the executor thread.
+ *
+ * Windows are kept in a heap ordered by the sample count at which they are due next, so a
+ * sample that completes no window costs one comparison however many windows are registered.
+ * Each window has a fixed number of views; if its listener is still busy with all of them when
+ * the next one is due, that window is dropped and counted rather than queued.
+ *
+ * push must be called from one thread. addWindow may only be called before the first push.
+ */
+public class SensorWindowEngine {
+    private static final int VIEWS_PER_WINDOW = 4;
+
+    /**
+     * Implement this interface to receive windows, called on the engine's executor
+     */
+    public interface WindowListener {
+        /**
+         * @param window view over the samples of the window, only valid until this call returns
+         */
+        void onWindow(SensorWindow window);
+    }
+
+    final int channels;
+    final int capacity;
+    final float[][] samples;
+    final double[][] sums;
+    final double[][] squareSums;
+    final long[] times;
+
+    // number of samples written so far, published after each sample
+    volatile long written = 0;
+
+    private final Executor executor;
+
+    private WindowSpec[] heap = new WindowSpec[4];
+    private int heapSize = 0;
+    private int maxLength = 0;
+    private long droppedWindows = 0;
+
+    /**
+     * @param channels values per sample
+     * @param capacity samples kept in the ring, must exceed the longest window by enough to
+     *                 cover the time a listener takes to process a window
+     * @param executor runs the window listeners
+     */
+    public SensorWindowEngine(int channels, int capacity, Executor executor){
+        this.channels = channels;
+        this.capacity = capacity;
+        this.executor = executor;
+        samples = new float[channels][capacity];
+        sums = new double[channels][capacity];
+        squareSums = new double[channels][capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * Register a window
+     * @param length samples per window
+     * @param hop samples between the starts of consecutive windows
+     * @param listener receives each window
+     */
+    public void addWindow(int length, int hop, WindowListener listener){
+        if(length <= 0 || hop <= 0 || length >= capacity){
+            throw new IllegalArgumentException("window length must be between 1 and capacity - 1, hop at least 1");
+        }
+        if(written != 0){
+            throw new IllegalStateException("windows must be added before the first sample");
+        }
+        WindowSpec spec = new WindowSpec(length, hop, listener);
+        if(heapSize == heap.length){
+            WindowSpec[] grown = new WindowSpec[heap.length * 2];
+            System.arraycopy(heap, 0, grown, 0, heapSize);
+            heap = grown;
+        }
+        heap[heapSize] = spec;
+        siftUp(heapSize);
+        heapSize++;
+        maxLength = Math.max(maxLength, length);
+    }
+
+    /**
+     * Add a sample
+     * @param time sample time in milliseconds
+     * @param data one value per channel
+     */
+    public void push(long time, int[] data){
+        int slot = (int) (written % capacity);
+        int prev = (int) ((written + capacity - 1) % capacity);
+        for(int c = 0; c < channels; c++){
+            store(c, slot, prev, data[c]);
+        }
+        commit(slot, time);
+    }
+
+    /**
+     * Add a sample
+     * @param time sample time in milliseconds
+     * @param data one value per channel
+     */
+    public void push(long time, float[] data){
+        int slot = (int) (written % capacity);
+        int prev = (int) ((written + capacity - 1) % capacity);
+        for(int c = 0; c < channels; c++){
+            store(c, slot, prev, data[c]);
+        }
+        commit(slot, time);
+    }
+
+    /**
+     * @return windows skipped because their listener had not finished with earlier ones
+     */
+    public long getDroppedWindows(){
+        return droppedWindows;
+    }
+
+    private void store(int channel, int slot, int prev, float value){
+        samples[channel][slot] = value;
+        double sum = written == 0 ? 0 : sums[channel][prev];
+        double squares = written == 0 ? 0 : squareSums[channel][prev];
+        sums[channel][slot] = sum + value;
+        squareSums[channel][slot] = squares + (double) value * value;
+    }
+
+    private void commit(int slot, long time){
+        times[slot] = time;
+        long count = written + 1;
+        written = count;
+
+        while(heapSize > 0 && heap[0].nextEnd <= count){
+            WindowSpec spec = heap[0];
+            dispatch(spec, spec.nextEnd);
+            spec.nextEnd += spec.hop;
+            siftDown(0);
+        }
+    }
+
+    private void dispatch(WindowSpec spec, long end){
+        SensorWindow view = spec.acquire();
+        if(view == null){
+            droppedWindows++;
+            return;
+        }
+        view.start = end - spec.length;
+        try{
+            executor.execute(view);
+        }catch(RejectedExecutionException e){
+            view.release();
+            droppedWindows++;
+        }
+    }
+
+    private void siftUp(int i){
+        WindowSpec spec = heap[i];
+        while(i > 0){
+            int parent = (i - 1) / 2;
+            if(heap[parent].nextEnd <= spec.nextEnd){
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = spec;
+    }
+
+    private void siftDown(int i){
+        WindowSpec spec = heap[i];
+        while(true){
+            int child = 2 * i + 1;
+            if(child >= heapSize){
+                break;
+            }
+            if(child + 1 < heapSize && heap[child + 1].nextEnd < heap[child].nextEnd){
+                child++;
+            }
+            if(heap[child].nextEnd >= spec.nextEnd){
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = spec;
+    }
+
+    private class WindowSpec {
+        final int length;
+        final int hop;
+        final SensorWindow[] views = new SensorWindow[VIEWS_PER_WINDOW];
+        long nextEnd;
+
+        WindowSpec(int length, int hop, WindowListener listener){
+            this.length = length;
+            this.hop = hop;
+            this.nextEnd = length;
+            for(int i = 0; i < views.length; i++){
+                views[i] = new SensorWindow(SensorWindowEngine.this, length, listener);
+            }
+        }
+
+        SensorWindow acquire(){
+            for(SensorWindow view : views){
+                if(view.tryAcquire()){
+                    return view;
+                }
+            }
+            return null;
+        }
+    }
+}
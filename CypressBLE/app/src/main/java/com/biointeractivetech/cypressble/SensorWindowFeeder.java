@@ -0,0 +1,62 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Feeds the fsr and imu streams of a DAQ into window engines.
+ *
+ * Set it up with BluetoothLeService.setSensorWindows, or register it with addDataListener, or
+ * pass it to DaqBleManager.create directly when not using the service. Both streams are stamped
+ * with the arrival time of their frame in milliseconds on the LatencyTracer clock, the timebase
+ * of the rest of the data path, so fsr and imu windows of the same moment line up. The imu
+ * packets carry no device time, and the fsr device time has an unknown offset to it.
+ */
+public class SensorWindowFeeder implements DaqBleManager.CypressInterface {
+    public static final int FSR_CHANNELS = 10;
+
+    public static final int IMU_CHANNELS = 3;
+    public static final int IMU_ROLL = 0;
+    public static final int IMU_PITCH = 1;
+    public static final int IMU_YAW = 2;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final DaqBleManager daq;
+    private final SensorWindowEngine fsrEngine;
+    private final SensorWindowEngine imuEngine;
+    private final float[] imuSample = new float[IMU_CHANNELS];
+
+    /**
+     * @param daq manager decoding the frames, asked for their arrival time
+     * @param fsr_engine engine with FSR_CHANNELS channels, or null to ignore fsr data
+     * @param imu_engine engine with IMU_CHANNELS channels, or null to ignore imu data
+     */
+    public SensorWindowFeeder(DaqBleManager daq, SensorWindowEngine fsr_engine, SensorWindowEngine imu_engine){
+        this.daq = daq;
+        fsrEngine = fsr_engine;
+        imuEngine = imu_engine;
+    }
+
+    @Override
+    public void bleConnectionStateUpdate(int state) {
+    }
+
+    @Override
+    public void fsrDataRecieved(int time, int[] data) {
+        if(fsrEngine != null){
+            fsrEngine.push(daq.getFrameArrivalTime() / NANOS_PER_MILLI, data);
+        }
+    }
+
+    @Override
+    public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+        if(imuEngine != null){
+            imuSample[IMU_ROLL] = roll;
+            imuSample[IMU_PITCH] = pitch;
+            imuSample[IMU_YAW] = yaw;
+            imuEngine.push(daq.getFrameArrivalTime() / NANOS_PER_MILLI, imuSample);
+        }
+    }
+
+    @Override
+    public void uartDataRecieved(String data) {
+    }
+}
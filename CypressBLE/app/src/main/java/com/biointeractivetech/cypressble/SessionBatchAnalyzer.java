@@ -0,0 +1,187 @@
+package com.biointeractivetech.cypressble;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summarises recorded sessions in parallel.
+ *
+ * Each session is cut into segments of a fixed number of index entries, segments are read and
+ * summarised with SessionFeatures on a work stealing pool, and the partial features are merged
+ * back in recording order. Sessions are split recursively, so idle workers steal the larger
+ * halves first and a pool keeps every core busy even with sessions of very different lengths.
+ *
+ * Meant for a workstation after a study day; ForkJoinPool needs API 21 on Android.
+ * Plain Java apart from the annotation, run it on the compiled classes:
+ * java -cp classes com.biointeractivetech.cypressble.SessionBatchAnalyzer sessions/*.hbs
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SessionBatchAnalyzer {
+    /** index entries per segment, 16384 frames */
+    public static final int DEFAULT_SEGMENT_ENTRIES = 64;
+
+    private final ForkJoinPool pool;
+    private final int segmentEntries;
+
+    /**
+     * @param fork_join_pool pool running the segments
+     * @param segment_entries index entries per segment, each entry covers SessionIndex.INTERVAL frames
+     */
+    public SessionBatchAnalyzer(ForkJoinPool fork_join_pool, int segment_entries){
+        pool = fork_join_pool;
+        segmentEntries = Math.max(1, segment_entries);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0){
+            System.err.println("usage: SessionBatchAnalyzer <session file>...");
+            System.exit(1);
+        }
+        List<File> sessions = new ArrayList<File>();
+        for(String arg : args){
+            sessions.add(new File(arg));
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        long start = System.nanoTime();
+        List<SessionFeatures> results = new SessionBatchAnalyzer(pool, DEFAULT_SEGMENT_ENTRIES).analyze(sessions);
+        long elapsed = System.nanoTime() - start;
+        for(int i = 0; i < sessions.size(); i++){
+            System.out.println(sessions.get(i).getName() + ": " + results.get(i).report());
+        }
+        System.out.println(String.format("%d sessions in %.2f s on %d workers",
+                sessions.size(), elapsed / 1e9, pool.getParallelism()));
+        pool.shutdown();
+    }
+
+    /**
+     * @return features of one session
+     */
+    public SessionFeatures analyze(File session) throws IOException {
+        return analyze(Arrays.asList(session)).get(0);
+    }
+
+    /**
+     * @return features of every session, in the order given
+     */
+    public List<SessionFeatures> analyze(final List<File> sessions) throws IOException {
+        try{
+            return pool.invoke(new RecursiveTask<List<SessionFeatures>>() {
+                @Override
+                protected List<SessionFeatures> compute() {
+                    List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+                    for(File session : sessions){
+                        tasks.add(sessionTask(session));
+                    }
+                    invokeAll(tasks);
+                    List<SessionFeatures> results = new ArrayList<SessionFeatures>();
+                    for(SegmentTask task : tasks){
+                        results.add(task.join());
+                    }
+                    return results;
+                }
+            });
+        }catch(SegmentFailure e){
+            throw e.failure;
+        }
+    }
+
+    private SegmentTask sessionTask(File session){
+        SessionIndex index;
+        try{
+            index = SessionIndex.open(session);
+        }catch(IOException e){
+            throw new SegmentFailure(e);
+        }
+        int segments = Math.max(1, (index.size() + segmentEntries - 1) / segmentEntries);
+        return new SegmentTask(session, index, 0, segments);
+    }
+
+    // carries an IOException out of the pool
+    private static class SegmentFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final IOException failure;
+
+        SegmentFailure(IOException e){
+            super(e);
+            failure = e;
+        }
+    }
+
+    // never serialized, the pool only runs it
+    @SuppressWarnings("serial")
+    private class SegmentTask extends RecursiveTask<SessionFeatures> {
+        private final File session;
+        private final SessionIndex index;
+        private final int first;
+        private final int end;
+
+        SegmentTask(File session, SessionIndex index, int first_segment, int end_segment){
+            this.session = session;
+            this.index = index;
+            first = first_segment;
+            end = end_segment;
+        }
+
+        @Override
+        protected SessionFeatures compute() {
+            if(end - first > 1){
+                int middle = (first + end) >>> 1;
+                SegmentTask earlier = new SegmentTask(session, index, first, middle);
+                SegmentTask later = new SegmentTask(session, index, middle, end);
+                earlier.fork();
+                SessionFeatures laterFeatures = later.compute();
+                SessionFeatures features = earlier.join();
+                features.merge(laterFeatures);
+                return features;
+            }
+            try{
+                return summarise();
+            }catch(IOException e){
+                throw new SegmentFailure(e);
+            }
+        }
+
+        private SessionFeatures summarise() throws IOException {
+            SessionFeatures features = new SessionFeatures();
+            // a session too short for an index entry is read whole
+            long start = SessionIndex.SESSION_HEADER_SIZE;
+            long stop = Long.MAX_VALUE;
+            if(index.size() > 0){
+                int entry = first * segmentEntries;
+                int next = entry + segmentEntries;
+                start = index.getOffset(entry);
+                stop = next < index.size() ? index.getOffset(next) : Long.MAX_VALUE;
+            }
+            SessionReader reader = new SessionReader(session, index);
+            try{
+                reader.readRange(start, stop, visitor(features));
+            }finally{
+                reader.close();
+            }
+            return features;
+        }
+    }
+
+    private static SessionReader.FrameVisitor visitor(final SessionFeatures features){
+        return new SessionReader.FrameVisitor() {
+            @Override
+            public void onFsr(long device_time, long host_micros, int[] data) {
+                features.addFsr(host_micros, data);
+            }
+
+            @Override
+            public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                features.addImu(host_micros, roll, pitch, yaw);
+            }
+        };
+    }
+}
@@ -0,0 +1,254 @@
+package com.biointeractivetech.cypressble;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Summary features of a stretch of fsr and imu frames: frame counts, time span, mean, variance,
+ * minimum and maximum of every fsr channel, of the total load and of every imu axis, the peak
+ * total load and the number of steps.
+ *
+ * Features of consecutive stretches merge into the features of the whole, so a recording can be
+ * summarised in segments on several threads. The moments merge with the parallel form of
+ * Welford's update. A step is counted when the total load rises to the step threshold after
+ * having fallen to the release threshold, which depends on the state carried over from the
+ * previous segment; the step count is therefore kept for both possible starting states and
+ * resolved when segments are merged. A summary not merged after another one starts unloaded.
+ *
+ * The service keeps one for the live stream, SessionBatchAnalyzer uses the same code offline.
+ * Not thread safe.
+ */
+public class SessionFeatures {
+    public static final int FSR_CHANNELS = SessionIndex.FSR_CHANNELS;
+    public static final int IMU_CHANNELS = 3;
+    /** default total load, in raw counts, a step must reach */
+    public static final int DEFAULT_STEP_THRESHOLD = 600;
+    /** default total load, in raw counts, the foot must come down to between steps */
+    public static final int DEFAULT_RELEASE_THRESHOLD = 200;
+
+    private static final int UNLOADED = 0;
+    private static final int LOADED = 1;
+
+    private final int stepThreshold;
+    private final int releaseThreshold;
+
+    private long fsrFrames = 0;
+    private long imuFrames = 0;
+    private long firstHostTime = Long.MAX_VALUE;
+    private long lastHostTime = Long.MIN_VALUE;
+
+    // fsr channels, then the total load
+    private final double[] fsrMean = new double[FSR_CHANNELS + 1];
+    private final double[] fsrSquares = new double[FSR_CHANNELS + 1];
+    private final double[] fsrMin = new double[FSR_CHANNELS + 1];
+    private final double[] fsrMax = new double[FSR_CHANNELS + 1];
+    private long peakLoadTime = 0;
+
+    private final double[] imuMean = new double[IMU_CHANNELS];
+    private final double[] imuSquares = new double[IMU_CHANNELS];
+    private final double[] imuMin = new double[IMU_CHANNELS];
+    private final double[] imuMax = new double[IMU_CHANNELS];
+
+    // step detector run from both starting states: steps counted and the state reached
+    private final long[] steps = new long[2];
+    private final int[] stepState = {UNLOADED, LOADED};
+
+    private final double[] imuSample = new double[IMU_CHANNELS];
+
+    public SessionFeatures(){
+        this(DEFAULT_STEP_THRESHOLD, DEFAULT_RELEASE_THRESHOLD);
+    }
+
+    /**
+     * @param step_threshold total load in raw counts a step must reach
+     * @param release_threshold total load in raw counts the foot must come down to between steps
+     */
+    public SessionFeatures(int step_threshold, int release_threshold){
+        stepThreshold = step_threshold;
+        releaseThreshold = release_threshold;
+        Arrays.fill(fsrMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(fsrMax, Double.NEGATIVE_INFINITY);
+        Arrays.fill(imuMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(imuMax, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values, the first 10 are used
+     */
+    public void addFsr(long host_micros, int[] data){
+        long n = ++fsrFrames;
+        span(host_micros);
+        int total = 0;
+        for(int c = 0; c < FSR_CHANNELS; c++){
+            total += data[c];
+            add(fsrMean, fsrSquares, fsrMin, fsrMax, c, data[c], n);
+        }
+        if(total > fsrMax[FSR_CHANNELS]){
+            peakLoadTime = host_micros;
+        }
+        add(fsrMean, fsrSquares, fsrMin, fsrMax, FSR_CHANNELS, total, n);
+        for(int start = 0; start < 2; start++){
+            if(stepState[start] == UNLOADED && total >= stepThreshold){
+                stepState[start] = LOADED;
+                steps[start]++;
+            }else if(stepState[start] == LOADED && total <= releaseThreshold){
+                stepState[start] = UNLOADED;
+            }
+        }
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     */
+    public void addImu(long host_micros, float roll, float pitch, float yaw){
+        long n = ++imuFrames;
+        span(host_micros);
+        imuSample[0] = roll;
+        imuSample[1] = pitch;
+        imuSample[2] = yaw;
+        for(int c = 0; c < IMU_CHANNELS; c++){
+            add(imuMean, imuSquares, imuMin, imuMax, c, imuSample[c], n);
+        }
+    }
+
+    /**
+     * Add the features of the stretch following this one
+     * @param later features of the frames right after the ones added here
+     */
+    public void merge(SessionFeatures later){
+        long fsrTotal = fsrFrames + later.fsrFrames;
+        if(later.fsrMax[FSR_CHANNELS] > fsrMax[FSR_CHANNELS]){
+            peakLoadTime = later.peakLoadTime;
+        }
+        for(int c = 0; c <= FSR_CHANNELS; c++){
+            merge(fsrMean, fsrSquares, fsrMin, fsrMax, later.fsrMean, later.fsrSquares, later.fsrMin, later.fsrMax,
+                    c, fsrFrames, later.fsrFrames);
+        }
+        for(int c = 0; c < IMU_CHANNELS; c++){
+            merge(imuMean, imuSquares, imuMin, imuMax, later.imuMean, later.imuSquares, later.imuMin, later.imuMax,
+                    c, imuFrames, later.imuFrames);
+        }
+        fsrFrames = fsrTotal;
+        imuFrames += later.imuFrames;
+        firstHostTime = Math.min(firstHostTime, later.firstHostTime);
+        lastHostTime = Math.max(lastHostTime, later.lastHostTime);
+        // continue each of our end states through the later stretch
+        for(int start = 0; start < 2; start++){
+            int middle = stepState[start];
+            steps[start] += later.steps[middle];
+            stepState[start] = later.stepState[middle];
+        }
+    }
+
+    public long getFsrFrameCount(){
+        return fsrFrames;
+    }
+
+    public long getImuFrameCount(){
+        return imuFrames;
+    }
+
+    /**
+     * @return time between the first and the last frame in microseconds
+     */
+    public long getDuration(){
+        return lastHostTime >= firstHostTime ? lastHostTime - firstHostTime : 0;
+    }
+
+    public long getStepCount(){
+        return steps[UNLOADED];
+    }
+
+    /**
+     * @return highest total load in raw counts, NaN without fsr frames
+     */
+    public double getPeakLoad(){
+        return fsrFrames == 0 ? Double.NaN : fsrMax[FSR_CHANNELS];
+    }
+
+    /**
+     * @return host time in microseconds of the first frame with the peak total load
+     */
+    public long getPeakLoadTime(){
+        return peakLoadTime;
+    }
+
+    /**
+     * @param channel fsr channel, or FSR_CHANNELS for the total load
+     */
+    public double getFsrMean(int channel){
+        return fsrFrames == 0 ? Double.NaN : fsrMean[channel];
+    }
+
+    /**
+     * @param channel fsr channel, or FSR_CHANNELS for the total load
+     * @return population variance
+     */
+    public double getFsrVariance(int channel){
+        return fsrFrames == 0 ? Double.NaN : fsrSquares[channel] / fsrFrames;
+    }
+
+    public double getFsrMin(int channel){
+        return fsrFrames == 0 ? Double.NaN : fsrMin[channel];
+    }
+
+    public double getFsrMax(int channel){
+        return fsrFrames == 0 ? Double.NaN : fsrMax[channel];
+    }
+
+    /**
+     * @param axis 0 roll, 1 pitch, 2 yaw
+     */
+    public double getImuMean(int axis){
+        return imuFrames == 0 ? Double.NaN : imuMean[axis];
+    }
+
+    public double getImuVariance(int axis){
+        return imuFrames == 0 ? Double.NaN : imuSquares[axis] / imuFrames;
+    }
+
+    public double getImuMin(int axis){
+        return imuFrames == 0 ? Double.NaN : imuMin[axis];
+    }
+
+    public double getImuMax(int axis){
+        return imuFrames == 0 ? Double.NaN : imuMax[axis];
+    }
+
+    /**
+     * @return one line summary
+     */
+    public String report(){
+        return String.format(Locale.US, "%d fsr, %d imu frames over %.1f s, %d steps, peak load %.0f, mean load %.1f (sd %.1f)",
+                fsrFrames, imuFrames, getDuration() / 1e6, getStepCount(), getPeakLoad(),
+                getFsrMean(FSR_CHANNELS), Math.sqrt(getFsrVariance(FSR_CHANNELS)));
+    }
+
+    private void span(long host_micros){
+        if(host_micros < firstHostTime){ firstHostTime = host_micros;}
+        if(host_micros > lastHostTime){ lastHostTime = host_micros;}
+    }
+
+    private static void add(double[] mean, double[] squares, double[] min, double[] max, int c, double x, long n){
+        double delta = x - mean[c];
+        mean[c] += delta / n;
+        squares[c] += delta * (x - mean[c]);
+        if(x < min[c]){ min[c] = x;}
+        if(x > max[c]){ max[c] = x;}
+    }
+
+    private static void merge(double[] mean, double[] squares, double[] min, double[] max,
+                              double[] laterMean, double[] laterSquares, double[] laterMin, double[] laterMax,
+                              int c, long n, long laterN){
+        if(laterN == 0){
+            return;
+        }
+        long total = n + laterN;
+        double delta = laterMean[c] - mean[c];
+        mean[c] += delta * laterN / total;
+        squares[c] += laterSquares[c] + delta * delta * ((double) n * laterN / total);
+        min[c] = Math.min(min[c], laterMin[c]);
+        max[c] = Math.max(max[c], laterMax[c]);
+    }
+}
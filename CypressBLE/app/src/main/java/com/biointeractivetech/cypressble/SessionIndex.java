@@ -0,0 +1,285 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sparse time index of a session recording, kept in a file next to it.
+ *
+ * Every INTERVAL frames the recorder adds an entry with the device time, the host time and the
+ * byte offset of the frame starting the block. Keys never decrease, so a range query is two
+ * binary searches followed by a read of only the blocks in between. The index holds one entry
+ * per INTERVAL frames and is small enough to keep in memory for multi hour recordings.
+ * Entry keys lower than an earlier entry's are raised to keep the entries sorted, so after a
+ * clock stepped back by more than a block a read of the span it recorded twice can miss frames.
+ *
+ * Session file layout, all values big endian:
+ * header: magic "HBTS", version
+ * fsr frame: FRAME_FSR, device time ms (long), host time us (long), 10 values (short)
+ * imu frame: FRAME_IMU, device time ms (long), host time us (long), roll, pitch, yaw (float)
+ *
+ * Index file layout: magic "HBTI", version, interval, then device time, host time and offset
+ * (long each) per entry. The index can always be rebuilt from the session file.
+ */
+public class SessionIndex {
+    public static final String INDEX_SUFFIX = ".idx";
+
+    static final int SESSION_MAGIC = 0x48425453;    // "HBTS"
+    static final int INDEX_MAGIC = 0x48425449;      // "HBTI"
+    static final int VERSION = 1;
+    static final int SESSION_HEADER_SIZE = 8;
+    static final int INDEX_HEADER_SIZE = 12;
+    static final int ENTRY_SIZE = 24;
+
+    static final byte FRAME_FSR = 'F';
+    static final byte FRAME_IMU = 'I';
+    static final int FSR_CHANNELS = 10;
+    static final int FRAME_HEADER_SIZE = 17;
+    static final int FSR_FRAME_SIZE = FRAME_HEADER_SIZE + 2 * FSR_CHANNELS;
+    static final int IMU_FRAME_SIZE = FRAME_HEADER_SIZE + 4 * 3;
+
+    /** frames per index entry */
+    public static final int INTERVAL = 256;
+
+    private long[] deviceTimes;
+    private long[] hostTimes;
+    private long[] offsets;
+    private int size = 0;
+
+    SessionIndex(){
+        this(64);
+    }
+
+    private SessionIndex(int capacity){
+        deviceTimes = new long[capacity];
+        hostTimes = new long[capacity];
+        offsets = new long[capacity];
+    }
+
+    /**
+     * @return the index file belonging to a session file
+     */
+    public static File indexFileFor(File session_file){
+        return new File(session_file.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Size of the frame starting with a type byte, or 0 if the type is not known
+     */
+    static int frameSize(byte type){
+        if(type == FRAME_FSR){
+            return FSR_FRAME_SIZE;
+        }else if(type == FRAME_IMU){
+            return IMU_FRAME_SIZE;
+        }
+        return 0;
+    }
+
+    /**
+     * Load the index of a session file, rebuilding it if it is missing or does not match the session
+     * @param session_file recorded session
+     * @return index covering the session
+     */
+    public static SessionIndex open(File session_file) throws IOException {
+        File indexFile = indexFileFor(session_file);
+        if(indexFile.exists()){
+            SessionIndex index = load(indexFile);
+            if(index != null && index.fits(session_file.length())){
+                return index;
+            }
+        }
+        return rebuild(session_file);
+    }
+
+    /**
+     * Scan a session file from the start and write a fresh index next to it
+     * @param session_file recorded session
+     * @return the new index
+     */
+    public static SessionIndex rebuild(File session_file) throws IOException {
+        SessionIndex index = new SessionIndex();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(session_file), 65536));
+        try{
+            if(in.readInt() != SESSION_MAGIC || in.readInt() != VERSION){
+                throw new IOException("not a session recording: " + session_file);
+            }
+            long offset = SESSION_HEADER_SIZE;
+            long length = session_file.length();
+            long frames = 0;
+            while(offset + FRAME_HEADER_SIZE <= length){
+                byte type = in.readByte();
+                int size = frameSize(type);
+                if(size == 0){
+                    throw new IOException("corrupt frame at offset " + offset + " of " + session_file);
+                }
+                if(offset + size > length){
+                    // frame cut short when the recording stopped
+                    break;
+                }
+                long deviceTime = in.readLong();
+                long hostTime = in.readLong();
+                skipFully(in, size - FRAME_HEADER_SIZE);
+                if(frames % INTERVAL == 0){
+                    index.add(deviceTime, hostTime, offset);
+                }
+                frames++;
+                offset += size;
+            }
+        }finally{
+            in.close();
+        }
+        index.save(indexFileFor(session_file));
+        return index;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return byte offset of the frame an entry points at
+     */
+    long getOffset(int entry){
+        return offsets[entry];
+    }
+
+    /**
+     * Add an entry, keys lower than the previous entry's are raised to keep the index sorted
+     */
+    void add(long device_time, long host_time, long offset){
+        if(size == offsets.length){
+            deviceTimes = grow(deviceTimes);
+            hostTimes = grow(hostTimes);
+            offsets = grow(offsets);
+        }
+        if(size > 0){
+            device_time = Math.max(device_time, deviceTimes[size - 1]);
+            host_time = Math.max(host_time, hostTimes[size - 1]);
+        }
+        deviceTimes[size] = device_time;
+        hostTimes[size] = host_time;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Byte range of the session holding every frame with a device time in [from, to]
+     * @return start and end offset, end is Long.MAX_VALUE for the end of the file
+     */
+    long[] rangeByDeviceTime(long from_ms, long to_ms){
+        return range(deviceTimes, from_ms, to_ms);
+    }
+
+    /**
+     * Byte range of the session holding every frame with a host time in [from, to]
+     * @return start and end offset, end is Long.MAX_VALUE for the end of the file
+     */
+    long[] rangeByHostTime(long from_us, long to_us){
+        return range(hostTimes, from_us, to_us);
+    }
+
+    private long[] range(long[] keys, long from, long to){
+        if(size == 0){
+            return new long[]{SESSION_HEADER_SIZE, Long.MAX_VALUE};
+        }
+        // one block of margin on both sides for frames that arrived slightly out of order
+        int first = Math.max(0, lastAtOrBefore(keys, from) - 1);
+        int last = lastAtOrBefore(keys, to) + 2;
+        long end = last < size ? offsets[last] : Long.MAX_VALUE;
+        return new long[]{offsets[first], end};
+    }
+
+    // index of the last entry with key <= value, or 0 if there is none
+    private int lastAtOrBefore(long[] keys, long value){
+        int lo = 0, hi = size - 1, found = 0;
+        while(lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] <= value){
+                found = mid;
+                lo = mid + 1;
+            }else{
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private boolean fits(long session_length){
+        return size == 0 || offsets[size - 1] < session_length;
+    }
+
+    void save(File index_file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index_file)));
+        try{
+            writeHeader(out);
+            for(int i = 0; i < size; i++){
+                writeEntry(out, deviceTimes[i], hostTimes[i], offsets[i]);
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(INTERVAL);
+    }
+
+    static void writeEntry(DataOutputStream out, long device_time, long host_time, long offset) throws IOException {
+        out.writeLong(device_time);
+        out.writeLong(host_time);
+        out.writeLong(offset);
+    }
+
+    // returns null if the file is not a usable index
+    private static SessionIndex load(File index_file) throws IOException {
+        long length = index_file.length();
+        if(length < INDEX_HEADER_SIZE){
+            return null;
+        }
+        // a partly written last entry is dropped
+        int entries = (int) ((length - INDEX_HEADER_SIZE) / ENTRY_SIZE);
+        InputStream file = new FileInputStream(index_file);
+        try{
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 65536));
+            if(in.readInt() != INDEX_MAGIC || in.readInt() != VERSION || in.readInt() != INTERVAL){
+                return null;
+            }
+            SessionIndex index = new SessionIndex(Math.max(1, entries));
+            for(int i = 0; i < entries; i++){
+                index.add(in.readLong(), in.readLong(), in.readLong());
+            }
+            return index;
+        }finally{
+            file.close();
+        }
+    }
+
+    private static long[] grow(long[] array){
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while(count > 0){
+            int skipped = in.skipBytes(count);
+            if(skipped <= 0){
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Range reads over a recorded session.
+ *
+ * A query looks up the byte range of the requested time span in the SessionIndex, maps only
+ * that range of the file and walks the frames in it, so its cost depends on the length of the
+ * span and not on the length of the recording.
+ */
+public class SessionReader {
+    /**
+     * Implement this interface to receive the frames of a range read
+     */
+    public interface FrameVisitor {
+        /**
+         * @param device_time device time in milliseconds
+         * @param host_micros host time in microseconds
+         * @param data fsr values, the array is reused for the next frame
+         */
+        void onFsr(long device_time, long host_micros, int[] data);
+
+        /**
+         * @param device_time device time of the last fsr frame, in milliseconds
+         * @param host_micros host time in microseconds
+         */
+        void onImu(long device_time, long host_micros, float roll, float pitch, float yaw);
+    }
+
+    private final File sessionFile;
+    private final RandomAccessFile file;
+    private final SessionIndex index;
+    private final int[] fsrValues = new int[SessionIndex.FSR_CHANNELS];
+
+    /**
+     * Open a session, the index is rebuilt first if it is missing or stale
+     * @param session_file file written by SessionRecorder
+     */
+    public SessionReader(File session_file) throws IOException {
+        this(session_file, SessionIndex.open(session_file));
+    }
+
+    /**
+     * Open a session with its index already loaded, for several readers of one session
+     */
+    SessionReader(File session_file, SessionIndex session_index) throws IOException {
+        sessionFile = session_file;
+        index = session_index;
+        file = new RandomAccessFile(session_file, "r");
+    }
+
+    public SessionIndex getIndex(){
+        return index;
+    }
+
+    /**
+     * Visit every frame with a device time in [from, to]
+     * @return number of frames visited
+     */
+    public int readByDeviceTime(long from_ms, long to_ms, FrameVisitor visitor) throws IOException {
+        return read(index.rangeByDeviceTime(from_ms, to_ms), true, from_ms, to_ms, visitor);
+    }
+
+    /**
+     * Visit every frame with a host time in [from, to]
+     * @return number of frames visited
+     */
+    public int readByHostTime(long from_us, long to_us, FrameVisitor visitor) throws IOException {
+        return read(index.rangeByHostTime(from_us, to_us), false, from_us, to_us, visitor);
+    }
+
+    /**
+     * Visit every frame starting in a byte range, bounds are offsets from the index
+     * @return number of frames visited
+     */
+    int readRange(long start, long end, FrameVisitor visitor) throws IOException {
+        return read(new long[]{start, end}, false, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private int read(long[] range, boolean by_device_time, long from, long to, FrameVisitor visitor) throws IOException {
+        long length = file.length();
+        long start = range[0];
+        long end = Math.min(range[1], length);
+        if(start >= end){
+            return 0;
+        }
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+        int visited = 0;
+        while(buffer.remaining() >= SessionIndex.FRAME_HEADER_SIZE){
+            int position = buffer.position();
+            byte type = buffer.get();
+            int size = SessionIndex.frameSize(type);
+            if(size == 0){
+                throw new IOException("corrupt frame at offset " + (start + position) + " of " + sessionFile);
+            }
+            if(buffer.remaining() < size - 1){
+                // frame cut short when the recording stopped
+                break;
+            }
+            long deviceTime = buffer.getLong();
+            long hostTime = buffer.getLong();
+            long key = by_device_time ? deviceTime : hostTime;
+            if(key < from || key > to){
+                buffer.position(position + size);
+                continue;
+            }
+            if(type == SessionIndex.FRAME_FSR){
+                for(int i = 0; i < fsrValues.length; i++){
+                    fsrValues[i] = buffer.getShort();
+                }
+                visitor.onFsr(deviceTime, hostTime, fsrValues);
+            }else{
+                visitor.onImu(deviceTime, hostTime, buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            }
+            visited++;
+        }
+        return visited;
+    }
+}
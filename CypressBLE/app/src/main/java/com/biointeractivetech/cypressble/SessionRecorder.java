@@ -0,0 +1,128 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the fsr and imu frames of a session to a file, with its time index next to it.
+ *
+ * The file format is described in SessionIndex. Index entries are appended while recording, so
+ * a recording cut short by a crash keeps a usable index; SessionIndex.open rebuilds it if not.
+ *
+ * The imu packets carry no device time, imu frames are recorded with the device time of the
+ * last fsr frame. Methods may be called from any thread.
+ */
+public class SessionRecorder {
+    private final File sessionFile;
+    private final DataOutputStream data;
+    private final DataOutputStream index;
+    private long offset = SessionIndex.SESSION_HEADER_SIZE;
+    private long frames = 0;
+    private long lastDeviceTime = 0;
+    private boolean deviceTimeStarted = false;
+    private int lastRawDeviceTime;
+    private long indexDeviceTime = Long.MIN_VALUE;
+    private long indexHostTime = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    /**
+     * Start a recording, an existing file is overwritten
+     * @param session_file file to record to, the index goes to SessionIndex.indexFileFor
+     */
+    public SessionRecorder(File session_file) throws IOException {
+        sessionFile = session_file;
+        data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(session_file), 65536));
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(SessionIndex.indexFileFor(session_file)), 4096));
+        data.writeInt(SessionIndex.SESSION_MAGIC);
+        data.writeInt(SessionIndex.VERSION);
+        SessionIndex.writeHeader(index);
+    }
+
+    public File getSessionFile(){
+        return sessionFile;
+    }
+
+    /**
+     * @return number of frames written so far
+     */
+    public synchronized long getFrameCount(){
+        return frames;
+    }
+
+    /**
+     * @param device_time device time stamp in milliseconds, as received from the DAQ
+     * @param host_micros frame time on the host clock in microseconds
+     * @param values fsr values, the first 10 are recorded
+     */
+    public synchronized void writeFsr(int device_time, long host_micros, int[] values) throws IOException {
+        if(closed){
+            return;
+        }
+        long deviceTime = unwrap(device_time);
+        startFrame(SessionIndex.FRAME_FSR, deviceTime, host_micros);
+        for(int i = 0; i < SessionIndex.FSR_CHANNELS; i++){
+            data.writeShort(i < values.length ? values[i] : 0);
+        }
+        offset += SessionIndex.FSR_FRAME_SIZE;
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     * @param roll roll in degrees
+     * @param pitch pitch in degrees
+     * @param yaw yaw in degrees
+     */
+    public synchronized void writeImu(long host_micros, float roll, float pitch, float yaw) throws IOException {
+        if(closed){
+            return;
+        }
+        startFrame(SessionIndex.FRAME_IMU, lastDeviceTime, host_micros);
+        data.writeFloat(roll);
+        data.writeFloat(pitch);
+        data.writeFloat(yaw);
+        offset += SessionIndex.IMU_FRAME_SIZE;
+    }
+
+    /**
+     * Finish the recording, further frames are ignored
+     */
+    public synchronized void close() throws IOException {
+        if(closed){
+            return;
+        }
+        closed = true;
+        try{
+            data.close();
+        }finally{
+            index.close();
+        }
+    }
+
+    private void startFrame(byte type, long device_time, long host_micros) throws IOException {
+        if(frames % SessionIndex.INTERVAL == 0){
+            // keep the keys sorted the same way SessionIndex.add does
+            indexDeviceTime = Math.max(indexDeviceTime, device_time);
+            indexHostTime = Math.max(indexHostTime, host_micros);
+            SessionIndex.writeEntry(index, indexDeviceTime, indexHostTime, offset);
+        }
+        frames++;
+        data.writeByte(type);
+        data.writeLong(device_time);
+        data.writeLong(host_micros);
+    }
+
+    // the device counter is 32 bits of milliseconds, recordings keep it as a long
+    private long unwrap(int raw){
+        if(!deviceTimeStarted){
+            deviceTimeStarted = true;
+            lastDeviceTime = raw & 0xffffffffL;
+        }else{
+            lastDeviceTime += raw - lastRawDeviceTime;
+        }
+        lastRawDeviceTime = raw;
+        return lastDeviceTime;
+    }
+}
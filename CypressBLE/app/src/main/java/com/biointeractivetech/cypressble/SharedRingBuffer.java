@@ -0,0 +1,328 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Publishes fsr and imu frames to other processes through a memory mapped file.
+ *
+ * The file holds a header and a ring of fixed size slots. The service writes every frame to the
+ * next slot and then advances the write sequence in the header; readers map the same file, keep
+ * their own cursor and copy frames out without any call into the service. Only the handshake,
+ * handing over the file descriptor and the layout version, goes over binder.
+ *
+ * Layout, in the byte order of the device:
+ * header  0 magic, 4 layout version, 8 slot size, 12 slot count, 16 header size, 20 closed flag,
+ *         64 write sequence (frames published so far), on its own cache line
+ * slot    0 stamp (sequence + 1 once complete, 0 while being written), 8 frame type,
+ *         12 device time, 16 host time in microseconds, 24 ten float values
+ *
+ * A reader checks the stamp before and after copying a slot, so a slot overwritten while being
+ * read is detected and skipped. A reader more than a ring behind loses the oldest frames and
+ * counts them. The Java memory model says nothing about memory shared with another process; the
+ * stores and loads are ordered with volatile accesses, which ART and HotSpot compile to barriers
+ * on ARM and which x86 needs none for. A volatile read alone only keeps later loads after it, so
+ * between the copy and the second stamp check the reader does a volatile write, which keeps the
+ * copy before it, followed by a volatile read, which the write cannot pass and which keeps the
+ * stamp check after it. This relies on how those runtimes compile volatile accesses, not on a
+ * guarantee of the language.
+ *
+ * Plain Java, the reader runs in any process that gets the descriptor. One thread publishes.
+ */
+public class SharedRingBuffer {
+    public static final int MAGIC = 0x48425352;
+    public static final int LAYOUT_VERSION = 1;
+
+    public static final int TYPE_FSR = 1;
+    public static final int TYPE_IMU = 2;
+
+    /** float values in a slot, fsr channels or roll, pitch and yaw */
+    public static final int VALUES = SessionIndex.FSR_CHANNELS;
+    public static final int SLOT_SIZE = 64;
+    public static final int HEADER_SIZE = 128;
+    /** about 40 s of fsr and imu frames at their highest rates */
+    public static final int DEFAULT_SLOTS = 8192;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_SLOT_SIZE = 8;
+    static final int OFFSET_SLOT_COUNT = 12;
+    static final int OFFSET_HEADER_SIZE = 16;
+    static final int OFFSET_CLOSED = 20;
+    static final int OFFSET_WRITE_SEQUENCE = 64;
+
+    private static final int SLOT_STAMP = 0;
+    private static final int SLOT_TYPE = 8;
+    private static final int SLOT_DEVICE_TIME = 12;
+    private static final int SLOT_HOST_TIME = 16;
+    private static final int SLOT_VALUES = 24;
+
+    // volatile accesses used as barriers around the mapped memory
+    private static volatile int fence;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private long sequence = 0;
+
+    /**
+     * Create the file, replacing any file already there, and map it
+     * @param file backing file, readable by the processes given its descriptor
+     * @param slot_count frames held, rounded up to a power of two
+     */
+    public SharedRingBuffer(File file, int slot_count) throws IOException {
+        this.file = file;
+        int count = Integer.highestOneBit(Math.max(2, slot_count) - 1) << 1;
+        slots = count;
+        long size = HEADER_SIZE + (long) count * SLOT_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.setLength(0);
+            raf.setLength(size);
+            // the mapping stays valid once the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }finally{
+            raf.close();
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(OFFSET_VERSION, LAYOUT_VERSION);
+        buffer.putInt(OFFSET_SLOT_SIZE, SLOT_SIZE);
+        buffer.putInt(OFFSET_SLOT_COUNT, count);
+        buffer.putInt(OFFSET_HEADER_SIZE, HEADER_SIZE);
+        buffer.putInt(OFFSET_CLOSED, 0);
+        buffer.putLong(OFFSET_WRITE_SEQUENCE, 0);
+        storeFence();
+        // a reader accepts the layout once the magic is there
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    public int getSlotCount(){
+        return slots;
+    }
+
+    /**
+     * @return frames published so far
+     */
+    public long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * @param device_time device time stamp in milliseconds
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values, the first 10 are published
+     */
+    public void publishFsr(int device_time, long host_micros, int[] data){
+        int at = begin(TYPE_FSR, device_time, host_micros);
+        for(int c = 0; c < VALUES; c++){
+            buffer.putFloat(at + SLOT_VALUES + c * 4, data[c]);
+        }
+        end(at);
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     */
+    public void publishImu(long host_micros, float roll, float pitch, float yaw){
+        int at = begin(TYPE_IMU, 0, host_micros);
+        buffer.putFloat(at + SLOT_VALUES, roll);
+        buffer.putFloat(at + SLOT_VALUES + 4, pitch);
+        buffer.putFloat(at + SLOT_VALUES + 8, yaw);
+        end(at);
+    }
+
+    private int begin(int type, int device_time, long host_micros){
+        int at = HEADER_SIZE + (int) (sequence & (slots - 1)) * SLOT_SIZE;
+        buffer.putLong(at + SLOT_STAMP, 0);
+        storeFence();
+        buffer.putInt(at + SLOT_TYPE, type);
+        buffer.putInt(at + SLOT_DEVICE_TIME, device_time);
+        buffer.putLong(at + SLOT_HOST_TIME, host_micros);
+        return at;
+    }
+
+    private void end(int at){
+        storeFence();
+        buffer.putLong(at + SLOT_STAMP, sequence + 1);
+        storeFence();
+        sequence++;
+        buffer.putLong(OFFSET_WRITE_SEQUENCE, sequence);
+    }
+
+    /**
+     * Tell readers no more frames will come, they should ask the service for a new buffer
+     */
+    public void close(){
+        storeFence();
+        buffer.putInt(OFFSET_CLOSED, 1);
+        storeFence();
+    }
+
+    private static void storeFence(){
+        fence = 0;
+    }
+
+    private static void loadFence(){
+        int ignored = fence;
+    }
+
+    /**
+     * One frame copied out of the ring, reused from call to call
+     */
+    public static class Frame {
+        /** position of the frame in the stream, counted from 0 */
+        public long sequence;
+        /** TYPE_FSR or TYPE_IMU */
+        public int type;
+        /** device time stamp in milliseconds, 0 for imu frames */
+        public int deviceTime;
+        public long hostMicros;
+        /** fsr counts, or roll, pitch and yaw in the first three */
+        public final float[] values = new float[VALUES];
+    }
+
+    /**
+     * Reads the ring from a mapping of the file, in the consumer process. Not thread safe.
+     */
+    public static class Reader {
+        private final ByteBuffer buffer;
+        private final int slots;
+        private long next;
+        private long lost = 0;
+        // written then read between copying a slot and checking its stamp again
+        private volatile int copyFence;
+
+        /**
+         * Start with the next frame published
+         * @param mapped the whole file mapped read only, for example from the descriptor the
+         *               service hands over: new FileInputStream(fd).getChannel().map(...)
+         * @throws IOException if the layout is not one this reader understands
+         */
+        public Reader(ByteBuffer mapped) throws IOException {
+            buffer = mapped.duplicate().order(ByteOrder.nativeOrder());
+            if(buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC){
+                throw new IOException("not a shared ring buffer");
+            }
+            loadFence();
+            if(buffer.getInt(OFFSET_VERSION) != LAYOUT_VERSION || buffer.getInt(OFFSET_SLOT_SIZE) != SLOT_SIZE
+                    || buffer.getInt(OFFSET_HEADER_SIZE) != HEADER_SIZE){
+                throw new IOException("unsupported ring layout version " + buffer.getInt(OFFSET_VERSION));
+            }
+            slots = buffer.getInt(OFFSET_SLOT_COUNT);
+            if(Integer.bitCount(slots) != 1 || buffer.capacity() < HEADER_SIZE + (long) slots * SLOT_SIZE){
+                throw new IOException("ring of " + slots + " slots does not fit " + buffer.capacity() + " bytes");
+            }
+            next = buffer.getLong(OFFSET_WRITE_SEQUENCE);
+        }
+
+        /**
+         * Map a ring file read only
+         */
+        public static Reader open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try{
+                return new Reader(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            }finally{
+                raf.close();
+            }
+        }
+
+        /**
+         * Copy the next frame if one has been published
+         * @return false if the reader is up to date
+         */
+        public boolean poll(Frame frame){
+            while(true){
+                long published = buffer.getLong(OFFSET_WRITE_SEQUENCE);
+                loadFence();
+                if(next >= published){
+                    return false;
+                }
+                if(published - next > slots){
+                    lost += published - slots - next;
+                    next = published - slots;
+                }
+                int at = HEADER_SIZE + (int) (next & (slots - 1)) * SLOT_SIZE;
+                if(buffer.getLong(at + SLOT_STAMP) == next + 1){
+                    loadFence();
+                    frame.type = buffer.getInt(at + SLOT_TYPE);
+                    frame.deviceTime = buffer.getInt(at + SLOT_DEVICE_TIME);
+                    frame.hostMicros = buffer.getLong(at + SLOT_HOST_TIME);
+                    for(int v = 0; v < VALUES; v++){
+                        frame.values[v] = buffer.getFloat(at + SLOT_VALUES + v * 4);
+                    }
+                    copyFence();
+                    if(buffer.getLong(at + SLOT_STAMP) == next + 1){
+                        frame.sequence = next++;
+                        return true;
+                    }
+                }
+                // overwritten before or while it was copied
+                lost++;
+                next++;
+            }
+        }
+
+        // orders the plain loads of the copy before the plain load of the stamp after it
+        private void copyFence(){
+            copyFence = 0;
+            int ignored = copyFence;
+        }
+
+        /**
+         * Wait for the next frame, polling the ring with short sleeps
+         * @param timeout_ms longest wait
+         * @return false if nothing was published in time or the buffer was closed
+         */
+        public boolean await(Frame frame, long timeout_ms) throws InterruptedException {
+            long deadline = System.nanoTime() + timeout_ms * 1000000L;
+            int idle = 0;
+            while(!poll(frame)){
+                if(isClosed() || System.nanoTime() - deadline >= 0){
+                    return false;
+                }
+                // frames come every few ms, spin a little before sleeping
+                if(++idle < 64){
+                    Thread.yield();
+                }else{
+                    Thread.sleep(1);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true once the service has stopped writing to this buffer
+         */
+        public boolean isClosed(){
+            return buffer.getInt(OFFSET_CLOSED) != 0;
+        }
+
+        /**
+         * @return frames overwritten before this reader got to them
+         */
+        public long getLostCount(){
+            return lost;
+        }
+
+        /**
+         * @return frames published and not read yet, at most the ring size
+         */
+        public long getBacklog(){
+            return Math.min(slots, Math.max(0, buffer.getLong(OFFSET_WRITE_SEQUENCE) - next));
+        }
+
+        public int getSlotCount(){
+            return slots;
+        }
+    }
+}
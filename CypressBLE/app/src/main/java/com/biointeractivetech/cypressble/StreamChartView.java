@@ -0,0 +1,208 @@
+package com.biointeractivetech.cypressble;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Scrolling chart of the latest samples of a multi channel stream, one trace per channel.
+ *
+ * Samples go into preallocated circular buffers and the view redraws at most once per display
+ * frame however fast they arrive. When the window holds more samples than there are pixels,
+ * each pixel column is drawn as a vertical line from the minimum to the maximum of its samples,
+ * so peaks are never lost and the work per draw depends on the view width, not on the sample
+ * rate. Traces are drawn with drawLines from a preallocated point buffer, which the hardware
+ * renderer draws directly, and nothing is allocated while drawing.
+ *
+ * Call setChannels before appending samples. All methods must be called on the ui thread.
+ */
+public class StreamChartView extends View {
+    private static final int DEFAULT_WINDOW = 500;
+    private static final int[] TRACE_COLORS = {
+            0xff1f77b4, 0xffff7f0e, 0xff2ca02c, 0xffd62728, 0xff9467bd,
+            0xff8c564b, 0xffe377c2, 0xff7f7f7f, 0xffbcbd22, 0xff17becf};
+
+    private int channels = 0;
+    private int window = DEFAULT_WINDOW;
+    private float minValue = 0;
+    private float maxValue = 1;
+
+    private float[][] samples = new float[0][];
+    private long written = 0;
+
+    private Paint[] tracePaints = new Paint[0];
+    private final Paint axisPaint = new Paint();
+    private float[] points = new float[0];
+
+    private boolean drawPending = false;
+    // latency stamps of the oldest frame not drawn yet
+    private long pendingArrival = 0;
+    private long pendingPosted = 0;
+
+    public StreamChartView(Context context){
+        this(context, null);
+    }
+
+    public StreamChartView(Context context, AttributeSet attrs){
+        super(context, attrs);
+        axisPaint.setColor(Color.LTGRAY);
+        axisPaint.setStrokeWidth(1);
+    }
+
+    /**
+     * Set up the traces, clears the chart
+     * @param channel_count number of traces
+     * @param window_samples number of samples shown across the width of the view
+     * @param min_value value drawn at the bottom edge
+     * @param max_value value drawn at the top edge
+     */
+    public void setChannels(int channel_count, int window_samples, float min_value, float max_value){
+        channels = channel_count;
+        window = window_samples;
+        minValue = min_value;
+        maxValue = max_value;
+        samples = new float[channel_count][window_samples];
+        points = new float[4 * Math.max(getWidth(), window_samples)];
+        tracePaints = new Paint[channel_count];
+        for(int c = 0; c < channel_count; c++){
+            Paint paint = new Paint();
+            paint.setColor(TRACE_COLORS[c % TRACE_COLORS.length]);
+            paint.setStrokeWidth(2);
+            tracePaints[c] = paint;
+        }
+        clear();
+    }
+
+    /**
+     * Remove all samples
+     */
+    public void clear(){
+        written = 0;
+        pendingArrival = 0;
+        requestDraw();
+    }
+
+    /**
+     * Add one sample of every channel
+     * @param values one value per channel
+     * @param arrival host arrival time of the frame for latency tracing, 0 if untraced
+     * @param posted time the frame was handed to the ui, 0 if untraced
+     */
+    public void append(float[] values, long arrival, long posted){
+        int slot = (int) (written % window);
+        for(int c = 0; c < channels; c++){
+            samples[c][slot] = values[c];
+        }
+        written++;
+        if(pendingArrival == 0 && arrival != 0){
+            pendingArrival = arrival;
+            pendingPosted = posted;
+        }
+        requestDraw();
+    }
+
+    private void requestDraw(){
+        if(!drawPending){
+            drawPending = true;
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int old_w, int old_h){
+        super.onSizeChanged(w, h, old_w, old_h);
+        // one line per pixel column, or one per sample when zoomed in further than that
+        points = new float[4 * Math.max(w, window)];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas){
+        drawPending = false;
+        LatencyTracer.beginSection(LatencyTracer.STAGE_RENDER);
+        final int width = getWidth();
+        final int height = getHeight();
+        if(minValue < 0 && maxValue > 0){
+            float zero = toY(0, height);
+            canvas.drawLine(0, zero, width, zero, axisPaint);
+        }
+
+        final int count = (int) Math.min(written, window);
+        if(count > 1 && width > 1){
+            final long oldest = written - count;
+            for(int c = 0; c < channels; c++){
+                int lines = window > width
+                        ? decimate(samples[c], oldest, width, height)
+                        : connect(samples[c], oldest, count, width, height);
+                canvas.drawLines(points, 0, lines * 4, tracePaints[c]);
+            }
+        }
+
+        if(pendingArrival != 0){
+            LatencyTracer.get().record(LatencyTracer.STAGE_RENDER, pendingPosted);
+            LatencyTracer.get().record(LatencyTracer.STAGE_END_TO_END, pendingArrival);
+            pendingArrival = 0;
+        }
+        LatencyTracer.endSection();
+    }
+
+    // one vertical line per column from min to max, the previous column's last sample
+    // is included so the trace stays connected
+    private int decimate(float[] ring, long oldest, int width, int height){
+        // the newest sample is at the right edge and a full window spans the width
+        final long base = written - window;
+        int lines = 0;
+        long index = oldest;
+        float last = ring[(int) (index % window)];
+        for(int x = 0; x < width; x++){
+            long end = base + (long) window * (x + 1) / width;
+            if(end <= oldest){
+                continue;
+            }
+            float lo = last, hi = last;
+            for(; index < end; index++){
+                float v = ring[(int) (index % window)];
+                if(v < lo){ lo = v;}
+                if(v > hi){ hi = v;}
+                last = v;
+            }
+            float bottom = toY(lo, height);
+            int at = lines * 4;
+            points[at] = x;
+            points[at + 1] = bottom;
+            points[at + 2] = x;
+            // at least one pixel long so flat stretches are still drawn
+            points[at + 3] = Math.min(toY(hi, height), bottom - 1);
+            lines++;
+        }
+        return lines;
+    }
+
+    // straight lines between consecutive samples
+    private int connect(float[] ring, long oldest, int count, int width, int height){
+        float step = (float) (width - 1) / (window - 1);
+        float x0 = (window - count) * step;
+        float y0 = toY(ring[(int) (oldest % window)], height);
+        for(int i = 1; i < count; i++){
+            float x1 = x0 + step;
+            float y1 = toY(ring[(int) ((oldest + i) % window)], height);
+            int at = (i - 1) * 4;
+            points[at] = x0;
+            points[at + 1] = y0;
+            points[at + 2] = x1;
+            points[at + 3] = y1;
+            x0 = x1;
+            y0 = y1;
+        }
+        return count - 1;
+    }
+
+    private float toY(float value, int height){
+        float scaled = (value - minValue) / (maxValue - minValue);
+        if(scaled < 0){ scaled = 0;}
+        if(scaled > 1){ scaled = 1;}
+        return (1 - scaled) * (height - 1);
+    }
+}
@@ -0,0 +1,162 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Reduces the fsr stream to what one subscriber uses: a subset of the channels at no more than
+ * a maximum rate.
+ *
+ * Frames are collected into windows of one output period on the host clock. A window is emitted
+ * with the frame that reaches its end, as the latest frame, the average of the window or the min
+ * and max of the window. The first frame is emitted at once. Below the stream rate every frame is
+ * emitted, projected to the channels.
+ *
+ * All storage is allocated up front, pushing a frame does not allocate. Not thread safe, feed
+ * it from one thread.
+ */
+public class StreamDecimator {
+    public static final int MODE_LATEST = 0;
+    public static final int MODE_AVERAGE = 1;
+    public static final int MODE_MIN_MAX = 2;
+
+    /**
+     * Implement this interface to receive the decimated frames
+     */
+    public interface Listener {
+        /**
+         * @param decimator decimator emitting the frame
+         * @param host_micros time of the frame closing the window, host clock in microseconds
+         * @param frames number of frames in the window
+         * @param values one value per selected channel, in the order of the selection; for
+         *               MODE_MIN_MAX the minimum of every channel followed by the maximum of every
+         *               channel. Only valid for the duration of the call.
+         */
+        void onDecimatedFrame(StreamDecimator decimator, long host_micros, int frames, float[] values);
+    }
+
+    private final String id;
+    private final int[] channels;
+    private final long periodMicros;
+    private final int mode;
+    private final Listener listener;
+
+    private final double[] sums;
+    private final float[] output;
+    private int frames = 0;
+    private boolean started = false;
+    private long nextEmit;
+    private long inputFrames = 0;
+    private long outputFrames = 0;
+
+    /**
+     * @param id name of the subscriber
+     * @param channels fsr channels to keep, in the order they are emitted
+     * @param rate most frames per second emitted, 0 for every frame
+     * @param mode MODE_LATEST, MODE_AVERAGE or MODE_MIN_MAX
+     * @param listener receives the decimated frames
+     */
+    public StreamDecimator(String id, int[] channels, double rate, int mode, Listener listener){
+        if(mode < MODE_LATEST || mode > MODE_MIN_MAX){
+            throw new IllegalArgumentException("unknown mode " + mode);
+        }
+        for(int channel : channels){
+            if(channel < 0 || channel >= PacketDecoders.FSR_CHANNELS){
+                throw new IllegalArgumentException("fsr channel " + channel + " out of range");
+            }
+        }
+        this.id = id;
+        this.channels = channels.clone();
+        periodMicros = rate > 0 ? Math.round(1e6 / rate) : 0;
+        this.mode = mode;
+        this.listener = listener;
+        sums = new double[channels.length];
+        output = new float[mode == MODE_MIN_MAX ? 2 * channels.length : channels.length];
+    }
+
+    /**
+     * Add a frame
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values
+     */
+    public void push(long host_micros, int[] data){
+        inputFrames++;
+        int n = channels.length;
+        switch(mode){
+            case MODE_LATEST:{
+                for(int i = 0; i < n; i++){
+                    output[i] = data[channels[i]];
+                }
+            }break;
+            case MODE_AVERAGE:{
+                for(int i = 0; i < n; i++){
+                    sums[i] += data[channels[i]];
+                }
+            }break;
+            default:{
+                for(int i = 0; i < n; i++){
+                    float value = data[channels[i]];
+                    if(frames == 0 || value < output[i]){
+                        output[i] = value;
+                    }
+                    if(frames == 0 || value > output[n + i]){
+                        output[n + i] = value;
+                    }
+                }
+            }break;
+        }
+        frames++;
+
+        if(!started){
+            started = true;
+            nextEmit = host_micros;
+        }
+        if(periodMicros > 0 && host_micros < nextEmit){
+            return;
+        }
+        if(mode == MODE_AVERAGE){
+            for(int i = 0; i < n; i++){
+                output[i] = (float) (sums[i] / frames);
+                sums[i] = 0;
+            }
+        }
+        outputFrames++;
+        listener.onDecimatedFrame(this, host_micros, frames, output);
+        frames = 0;
+        // keep the average rate, but start over after a gap in the stream
+        nextEmit += periodMicros;
+        if(nextEmit <= host_micros){
+            nextEmit = host_micros + periodMicros;
+        }
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * @return copy of the selected channels, in the order they are emitted
+     */
+    public int[] getChannels(){
+        return channels.clone();
+    }
+
+    public int getChannelCount(){
+        return channels.length;
+    }
+
+    public int getMode(){
+        return mode;
+    }
+
+    /**
+     * @return frames pushed
+     */
+    public long getInputCount(){
+        return inputFrames;
+    }
+
+    /**
+     * @return frames emitted
+     */
+    public long getOutputCount(){
+        return outputFrames;
+    }
+}
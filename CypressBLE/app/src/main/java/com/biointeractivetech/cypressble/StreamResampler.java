@@ -0,0 +1,274 @@
+package com.biointeractivetech.cypressble;
+
+/**
+ * Streaming resampler putting device stamped frames onto a uniform time grid.
+ *
+ * Frames are kept in a small sorted look-behind window so a frame arriving slightly out of
+ * order is still used, and grid points are emitted once the newest frame is a configurable
+ * delay past them. Between two frames closer than the maximum gap the output is interpolated,
+ * linearly or by holding the earlier frame. A grid point inside a longer gap repeats the
+ * earlier frame and is flagged with FLAG_GAP so consumers can tell it apart from real data.
+ * A dropout longer than a few maximum gaps is not filled: one grid point after the last frame
+ * is emitted flagged as a gap and the grid starts over with the next frame, so a long dropout
+ * costs one output frame instead of one per grid point.
+ *
+ * All storage is allocated up front, pushing a frame does not allocate. Not thread safe, feed
+ * it from one thread.
+ */
+public class StreamResampler {
+    public static final int MODE_LINEAR = 0;
+    public static final int MODE_HOLD = 1;
+
+    /** output frame lies inside a gap longer than the maximum gap */
+    public static final int FLAG_GAP = 1;
+
+    // a frame this much older than the newest one means the device clock restarted
+    private static final long CLOCK_RESET_MS = 1000;
+    // a jump forward this many maximum gaps, or grid periods if more, starts a new grid
+    // instead of being filled with gap frames
+    private static final int MAX_FILL_GAPS = 4;
+
+    /**
+     * Implement this interface to receive the resampled frames
+     */
+    public interface Listener {
+        /**
+         * @param index position on the output grid, starting at 0 for the first frame after a reset
+         * @param time grid time in device milliseconds
+         * @param values one value per channel, only valid for the duration of the call
+         * @param flags FLAG_GAP or 0
+         */
+        void onResampledFrame(long index, double time, float[] values, int flags);
+    }
+
+    private final int channels;
+    private final int capacity;
+    private final double period;
+    private final int mode;
+    private final long maxGap;
+    private final long delay;
+    private final long maxFill;
+    private final Listener listener;
+
+    // look-behind window, sorted by time, oldest at head
+    private final long[] times;
+    private final float[] values;
+    private final float[] output;
+    private int head = 0;
+    private int size = 0;
+
+    private boolean started = false;
+    private int lastRawTime;
+    private long newestTime;
+    private long startTime;
+    private long nextIndex;
+    private long droppedFrames = 0;
+    private long gapFrames = 0;
+
+    /**
+     * @param channels values per frame
+     * @param rate output rate in Hz
+     * @param mode MODE_LINEAR or MODE_HOLD
+     * @param max_gap longest stretch in milliseconds bridged without flagging a gap
+     * @param delay how far in milliseconds output trails the newest frame, lets late frames be used
+     * @param look_behind number of frames kept for reordering, at least 2
+     * @param listener receives the output frames
+     */
+    public StreamResampler(int channels, double rate, int mode, long max_gap, long delay, int look_behind, Listener listener){
+        if(rate <= 0){
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.channels = channels;
+        this.capacity = Math.max(2, look_behind);
+        this.period = 1000.0 / rate;
+        this.mode = mode;
+        this.maxGap = max_gap;
+        this.delay = Math.max(0, delay);
+        maxFill = Math.max(MAX_FILL_GAPS * max_gap, (long) Math.ceil(MAX_FILL_GAPS * period));
+        this.listener = listener;
+        times = new long[capacity];
+        values = new float[capacity * channels];
+        output = new float[channels];
+    }
+
+    /**
+     * Add a frame
+     * @param time device time in milliseconds, wraps around as a 32 bit counter
+     * @param data one value per channel
+     */
+    public void push(int time, int[] data){
+        long t;
+        if(!started){
+            started = true;
+            lastRawTime = time;
+            newestTime = time;
+            startTime = time;
+            nextIndex = 0;
+            t = time;
+        }else{
+            t = newestTime + (time - lastRawTime);
+            if(t < newestTime - CLOCK_RESET_MS || t > newestTime + maxFill){
+                flush();
+                if(t > newestTime){
+                    markGap();
+                }
+                reset();
+                push(time, data);
+                return;
+            }
+            if(t > newestTime){
+                newestTime = t;
+                lastRawTime = time;
+            }
+        }
+
+        // anything at or before the last emitted grid point can no longer be used
+        if(nextIndex > 0 && t <= gridTime(nextIndex - 1)){
+            droppedFrames++;
+            return;
+        }
+        insert(t, data);
+        emit(newestTime - delay);
+    }
+
+    /**
+     * Emit every grid point up to the newest frame, the delay is skipped
+     */
+    public void flush(){
+        if(started){
+            emit(newestTime);
+        }
+    }
+
+    /**
+     * Forget all frames, the next frame starts a new grid
+     */
+    public void reset(){
+        started = false;
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return frames discarded because they arrived after their grid points had been emitted
+     */
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    /**
+     * @return output frames emitted with FLAG_GAP
+     */
+    public long getGapFrames(){
+        return gapFrames;
+    }
+
+    // one grid point past the newest frame, holding it, marks the end of the grid before a dropout
+    private void markGap(){
+        int newest = slot(size - 1);
+        fill(newest, newest, 0);
+        gapFrames++;
+        listener.onResampledFrame(nextIndex, gridTime(nextIndex), output, FLAG_GAP);
+        nextIndex++;
+    }
+
+    private double gridTime(long index){
+        return startTime + index * period;
+    }
+
+    private void insert(long t, int[] data){
+        int pos = size;
+        while(pos > 0 && times[slot(pos - 1)] > t){
+            pos--;
+        }
+        if(pos > 0 && times[slot(pos - 1)] == t){
+            // duplicate time stamp, keep the newer values
+            store(slot(pos - 1), t, data);
+            return;
+        }
+        if(size == capacity){
+            if(pos == 0){
+                droppedFrames++;
+                return;
+            }
+            // the window is full, the oldest frame goes even if output has not passed it yet
+            head = (head + 1) % capacity;
+            size--;
+            pos--;
+        }
+        for(int i = size; i > pos; i--){
+            copySlot(slot(i - 1), slot(i));
+        }
+        store(slot(pos), t, data);
+        size++;
+    }
+
+    private void store(int s, long t, int[] data){
+        times[s] = t;
+        int base = s * channels;
+        for(int c = 0; c < channels; c++){
+            values[base + c] = data[c];
+        }
+    }
+
+    private void emit(long horizon){
+        while(size > 0){
+            double g = gridTime(nextIndex);
+            if(g > horizon){
+                break;
+            }
+
+            // drop frames no longer needed as the lower bracket
+            while(size > 1 && times[slot(1)] <= g){
+                head = (head + 1) % capacity;
+                size--;
+            }
+
+            int a = slot(0);
+            long ta = times[a];
+            int flags = 0;
+            if(ta > g){
+                // the window evicted the frames around this grid point
+                flags = FLAG_GAP;
+                fill(a, a, 0);
+            }else if(ta == g || size == 1){
+                fill(a, a, 0);
+            }else{
+                int b = slot(1);
+                long tb = times[b];
+                if(tb - ta > maxGap){
+                    flags = FLAG_GAP;
+                    fill(a, b, 0);
+                }else if(mode == MODE_LINEAR){
+                    fill(a, b, (float) ((g - ta) / (tb - ta)));
+                }else{
+                    fill(a, b, 0);
+                }
+            }
+
+            if(flags != 0){
+                gapFrames++;
+            }
+            listener.onResampledFrame(nextIndex, g, output, flags);
+            nextIndex++;
+        }
+    }
+
+    private void fill(int a, int b, float fraction){
+        int baseA = a * channels;
+        int baseB = b * channels;
+        for(int c = 0; c < channels; c++){
+            float va = values[baseA + c];
+            output[c] = va + (values[baseB + c] - va) * fraction;
+        }
+    }
+
+    private int slot(int i){
+        return (head + i) % capacity;
+    }
+
+    private void copySlot(int from, int to){
+        times[to] = times[from];
+        System.arraycopy(values, from * channels, values, to * channels, channels);
+    }
+}
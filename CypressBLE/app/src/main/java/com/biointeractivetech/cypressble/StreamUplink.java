@@ -0,0 +1,514 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * Streams sensor frames to a collector over one persistent TCP connection.
+ *
+ * Frames are encoded straight into a bounded ring of bytes and a sender thread writes them out
+ * in batches, either once a full batch is waiting or once the oldest waiting frame is older than
+ * the flush deadline. Batching happens here, so Nagle's algorithm is switched off and every batch
+ * goes out in one write without waiting for the ack of the previous one. When the ring is full
+ * the oldest frames are dropped, the bluetooth thread never waits for the network. A lost
+ * connection is retried with exponential backoff while frames keep queueing.
+ *
+ * Wire format, all values big endian:
+ * batch: byte count of the rest (int), batch sequence number (int), record count (int), records
+ * record: type (byte), payload length (unsigned short), payload
+ * fsr payload: device time ms (int), host time us (long), 10 values (short)
+ * imu payload: host time us (long), roll, pitch, yaw (float)
+ * uart payload: host time us (long), text as latin-1 bytes
+ *
+ * Batch sequence numbers start at 0 on every connection, a batch lost with a broken connection
+ * is counted as dropped. The offer methods may be called from any thread. An uplink is used
+ * once, it cannot be started again after stop.
+ */
+public class StreamUplink {
+    public static final byte RECORD_FSR = 'F';
+    public static final byte RECORD_IMU = 'I';
+    public static final byte RECORD_UART = 'U';
+
+    public static final int DEFAULT_PORT = 5760;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_BATCH_SIZE = 1400;
+    public static final long DEFAULT_FLUSH_DEADLINE = 20;
+
+    static final int BATCH_HEADER_SIZE = 12;
+    static final int RECORD_HEADER_SIZE = 3;
+
+    private static final int FSR_CHANNELS = 10;
+    private static final int FSR_PAYLOAD_SIZE = 4 + 8 + 2 * FSR_CHANNELS;
+    private static final int IMU_PAYLOAD_SIZE = 8 + 3 * 4;
+    private static final int MAX_UART_TEXT = 512;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final long MIN_BACKOFF = 250;
+    private static final long MAX_BACKOFF = 30000;
+    private static final long RATE_WINDOW = 1000000000L;
+
+    private final String host;
+    private final int port;
+    private final int batchSize;
+    private final long flushDeadline;
+
+    // ring of encoded records, guarded by lock
+    private final Object lock = new Object();
+    private final byte[] ring;
+    private final int mask;
+    private int head = 0;
+    private int used = 0;
+    private int queuedRecords = 0;
+    private long oldestQueued = 0;
+    private long droppedRecords = 0;
+    private boolean running = false;
+    private boolean stopped = false;
+    private Thread sender = null;
+
+    // only touched by the sender thread
+    private final byte[] batch;
+    private Socket socket = null;
+    private int sequence = 0;
+    private int batchRecords = 0;
+    private boolean everConnected = false;
+
+    private volatile boolean connected = false;
+    private volatile long bytesSent = 0;
+    private volatile long batchesSent = 0;
+    private volatile long reconnects = 0;
+    private volatile long rateWindowStart = 0;
+    private volatile long rateWindowBytes = 0;
+    private volatile long bytesPerSecond = 0;
+
+    /**
+     * @param host collector address
+     * @param port collector port
+     */
+    public StreamUplink(String host, int port){
+        this(host, port, DEFAULT_BUFFER_SIZE, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_DEADLINE);
+    }
+
+    /**
+     * @param host collector address
+     * @param port collector port
+     * @param buffer_size bytes queued at most while the collector is slow or away, rounded up to a power of two
+     * @param batch_size bytes of records sent per batch once that many are waiting
+     * @param flush_deadline_ms time after which waiting records are sent even if the batch is not full
+     */
+    public StreamUplink(String host, int port, int buffer_size, int batch_size, long flush_deadline_ms){
+        this.host = host;
+        this.port = port;
+        int capacity = Integer.highestOneBit(Math.max(buffer_size, 1024) - 1) << 1;
+        ring = new byte[capacity];
+        mask = capacity - 1;
+        batchSize = Math.min(Math.max(batch_size, RECORD_HEADER_SIZE + MAX_UART_TEXT + 8), capacity);
+        flushDeadline = flush_deadline_ms;
+        batch = new byte[BATCH_HEADER_SIZE + batchSize];
+    }
+
+    /**
+     * Start the sender thread, it connects and keeps reconnecting until stop is called
+     */
+    public void start(){
+        synchronized(lock){
+            if(running || stopped){
+                return;
+            }
+            running = true;
+            sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, "StreamUplink " + host + ":" + port);
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    /**
+     * Stop the sender thread and close the connection, records still queued are discarded.
+     * Returns at once, a connect in progress can not be interrupted and ends on the sender thread.
+     */
+    public void stop(){
+        Thread thread;
+        synchronized(lock){
+            stopped = true;
+            if(!running){
+                return;
+            }
+            running = false;
+            head = 0;
+            used = 0;
+            queuedRecords = 0;
+            lock.notifyAll();
+            thread = sender;
+        }
+        closeSocket();
+        thread.interrupt();
+    }
+
+    /**
+     * Wait for the sender thread to end after stop, not on the main thread
+     * @param timeout_ms longest wait, 0 to wait forever
+     * @return true if the sender has ended or was never started
+     */
+    public boolean awaitStop(long timeout_ms) throws InterruptedException {
+        Thread thread;
+        synchronized(lock){
+            thread = sender;
+        }
+        if(thread == null){
+            return true;
+        }
+        thread.join(timeout_ms);
+        return !thread.isAlive();
+    }
+
+    public void offerFsr(int device_time, long host_micros, int[] data){
+        synchronized(lock){
+            if(!reserve(FSR_PAYLOAD_SIZE)){
+                return;
+            }
+            int at = putHeader(RECORD_FSR, FSR_PAYLOAD_SIZE);
+            at = putInt(at, device_time);
+            at = putLong(at, host_micros);
+            for(int c = 0; c < FSR_CHANNELS; c++){
+                at = putShort(at, data[c]);
+            }
+            commit(at);
+        }
+    }
+
+    public void offerImu(long host_micros, float roll, float pitch, float yaw){
+        synchronized(lock){
+            if(!reserve(IMU_PAYLOAD_SIZE)){
+                return;
+            }
+            int at = putHeader(RECORD_IMU, IMU_PAYLOAD_SIZE);
+            at = putLong(at, host_micros);
+            at = putInt(at, Float.floatToIntBits(roll));
+            at = putInt(at, Float.floatToIntBits(pitch));
+            at = putInt(at, Float.floatToIntBits(yaw));
+            commit(at);
+        }
+    }
+
+    /**
+     * @param text uart text, cut to the first 512 characters
+     */
+    public void offerUart(long host_micros, String text){
+        int length = Math.min(text.length(), MAX_UART_TEXT);
+        synchronized(lock){
+            if(!reserve(8 + length)){
+                return;
+            }
+            int at = putHeader(RECORD_UART, 8 + length);
+            at = putLong(at, host_micros);
+            for(int i = 0; i < length; i++){
+                ring[at] = (byte) text.charAt(i);
+                at = (at + 1) & mask;
+            }
+            commit(at);
+        }
+    }
+
+    public boolean isConnected(){
+        return connected;
+    }
+
+    /**
+     * @return bytes waiting to be sent
+     */
+    public int getQueuedBytes(){
+        synchronized(lock){
+            return used;
+        }
+    }
+
+    /**
+     * @return records waiting to be sent
+     */
+    public int getQueueDepth(){
+        synchronized(lock){
+            return queuedRecords;
+        }
+    }
+
+    /**
+     * @return records dropped because the buffer was full or their batch was lost with the connection
+     */
+    public long getDroppedCount(){
+        synchronized(lock){
+            return droppedRecords;
+        }
+    }
+
+    public long getBytesSent(){
+        return bytesSent;
+    }
+
+    public long getBatchesSent(){
+        return batchesSent;
+    }
+
+    public long getReconnectCount(){
+        return reconnects;
+    }
+
+    /**
+     * @return bytes written to the collector per second over the last full second
+     */
+    public long getBytesPerSecond(){
+        long elapsed = System.nanoTime() - rateWindowStart;
+        if(rateWindowStart != 0 && elapsed > 2 * RATE_WINDOW){
+            // nothing sent for a while, the last window is stale
+            return rateWindowBytes * RATE_WINDOW / elapsed;
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return one line summary of the throughput and queue
+     */
+    public String report(){
+        return String.format(Locale.US, "%s:%d %s, %d B/s, queued %d records (%d B), dropped %d, reconnects %d",
+                host, port, connected ? "connected" : "disconnected", getBytesPerSecond(),
+                getQueueDepth(), getQueuedBytes(), getDroppedCount(), reconnects);
+    }
+
+    // makes room for a record, dropping the oldest ones, false if it can never fit
+    private boolean reserve(int payload){
+        int size = RECORD_HEADER_SIZE + payload;
+        if(!running || size > batchSize){
+            return false;
+        }
+        while(ring.length - used < size){
+            int length = ((ring[(head + 1) & mask] & 0xff) << 8) | (ring[(head + 2) & mask] & 0xff);
+            head = (head + RECORD_HEADER_SIZE + length) & mask;
+            used -= RECORD_HEADER_SIZE + length;
+            queuedRecords--;
+            droppedRecords++;
+        }
+        return true;
+    }
+
+    private int putHeader(byte type, int payload){
+        int at = (head + used) & mask;
+        ring[at] = type;
+        return putShort((at + 1) & mask, payload);
+    }
+
+    private void commit(int end){
+        boolean first = used == 0;
+        if(first){
+            oldestQueued = System.nanoTime();
+        }
+        used = (end - head) & mask;
+        if(used == 0){
+            // the ring is exactly full
+            used = ring.length;
+        }
+        queuedRecords++;
+        // the sender waits for the first record to start the deadline, then for a full batch
+        if(first || used >= batchSize){
+            lock.notifyAll();
+        }
+    }
+
+    private int putShort(int at, int value){
+        ring[at] = (byte) (value >> 8);
+        ring[(at + 1) & mask] = (byte) value;
+        return (at + 2) & mask;
+    }
+
+    private int putInt(int at, int value){
+        at = putShort(at, value >> 16);
+        return putShort(at, value);
+    }
+
+    private int putLong(int at, long value){
+        at = putInt(at, (int) (value >> 32));
+        return putInt(at, (int) value);
+    }
+
+    private void sendLoop(){
+        long backoff = MIN_BACKOFF;
+        while(isRunning()){
+            OutputStream out;
+            try{
+                out = connect();
+                backoff = MIN_BACKOFF;
+            }catch(IOException e){
+                if(!sleep(backoff)){
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                continue;
+            }
+            try{
+                while(true){
+                    int records = takeBatch();
+                    if(records < 0){
+                        break;
+                    }
+                    writeBatch(out);
+                }
+            }catch(IOException e){
+                synchronized(lock){
+                    droppedRecords += batchRecords;
+                }
+            }catch(InterruptedException e){
+                break;
+            }finally{
+                closeSocket();
+            }
+        }
+        closeSocket();
+    }
+
+    private boolean isRunning(){
+        synchronized(lock){
+            return running;
+        }
+    }
+
+    private OutputStream connect() throws IOException {
+        Socket s = new Socket();
+        try{
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        }catch(IOException e){
+            s.close();
+            throw e;
+        }
+        synchronized(lock){
+            if(!running){
+                s.close();
+                throw new IOException("stopped");
+            }
+            socket = s;
+        }
+        if(everConnected){
+            reconnects++;
+        }
+        everConnected = true;
+        sequence = 0;
+        connected = true;
+        return s.getOutputStream();
+    }
+
+    private void closeSocket(){
+        Socket s;
+        synchronized(lock){
+            s = socket;
+            socket = null;
+        }
+        connected = false;
+        if(s != null){
+            try{
+                s.close();
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // waits for a full batch or the flush deadline and moves whole records into the batch buffer,
+    // returns the number of records or -1 once stopped
+    private int takeBatch() throws InterruptedException {
+        synchronized(lock){
+            while(running){
+                if(used >= batchSize){
+                    break;
+                }
+                if(used > 0){
+                    long wait = flushDeadline * 1000000L - (System.nanoTime() - oldestQueued);
+                    if(wait <= 0){
+                        break;
+                    }
+                    lock.wait(wait / 1000000L, (int) (wait % 1000000L));
+                }else{
+                    lock.wait();
+                }
+            }
+            if(!running){
+                return -1;
+            }
+            int size = 0;
+            int records = 0;
+            while(used > 0){
+                int length = RECORD_HEADER_SIZE + (((ring[(head + 1) & mask] & 0xff) << 8) | (ring[(head + 2) & mask] & 0xff));
+                if(size + length > batchSize){
+                    break;
+                }
+                int first = Math.min(length, ring.length - head);
+                System.arraycopy(ring, head, batch, BATCH_HEADER_SIZE + size, first);
+                System.arraycopy(ring, 0, batch, BATCH_HEADER_SIZE + size + first, length - first);
+                head = (head + length) & mask;
+                used -= length;
+                size += length;
+                records++;
+            }
+            queuedRecords -= records;
+            if(used > 0){
+                // the rest has waited as long, send it without a new deadline
+                oldestQueued = System.nanoTime() - flushDeadline * 1000000L;
+            }
+            batchRecords = records;
+            writeBatchHeader(size, records);
+            return records;
+        }
+    }
+
+    private void writeBatchHeader(int size, int records){
+        int rest = size + BATCH_HEADER_SIZE - 4;
+        int[] fields = {rest, sequence, records};
+        for(int f = 0; f < fields.length; f++){
+            batch[f * 4] = (byte) (fields[f] >> 24);
+            batch[f * 4 + 1] = (byte) (fields[f] >> 16);
+            batch[f * 4 + 2] = (byte) (fields[f] >> 8);
+            batch[f * 4 + 3] = (byte) fields[f];
+        }
+    }
+
+    private void writeBatch(OutputStream out) throws IOException {
+        int length = 4 + (((batch[0] & 0xff) << 24) | ((batch[1] & 0xff) << 16) | ((batch[2] & 0xff) << 8) | (batch[3] & 0xff));
+        out.write(batch, 0, length);
+        out.flush();
+        sequence++;
+        batchRecords = 0;
+        bytesSent += length;
+        batchesSent++;
+
+        long now = System.nanoTime();
+        if(rateWindowStart == 0){
+            rateWindowStart = now;
+        }
+        rateWindowBytes += length;
+        long elapsed = now - rateWindowStart;
+        if(elapsed >= RATE_WINDOW){
+            bytesPerSecond = rateWindowBytes * RATE_WINDOW / elapsed;
+            rateWindowStart = now;
+            rateWindowBytes = 0;
+        }
+    }
+
+    private boolean sleep(long millis){
+        synchronized(lock){
+            if(!running){
+                return false;
+            }
+            try{
+                lock.wait(millis);
+            }catch(InterruptedException e){
+                return false;
+            }
+            return running;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Min, max and mean of every channel over blocks of samples, at every power of two block size.
+ *
+ * Level 0 summarises blocks of 2^block_shift samples, and each level above merges two blocks of
+ * the level below, so a level k block covers 2^(block_shift + k) samples. Samples are added as
+ * they stream in and a block is written once it is complete; the newest, incomplete block of
+ * each level is not visible to queries yet.
+ *
+ * A query for N columns over a time range picks the level with 4 to 8 blocks per column and so
+ * reads O(N) blocks whatever the number of samples in the range. Column edges are snapped to
+ * blocks of that level.
+ *
+ * Every level is kept in chunks of flat float arrays of (block * channels + channel) * 3 + min,
+ * max or mean. Chunks are added as the stream grows and never copied, so a live pyramid only
+ * allocates the memory it keeps. The pyramid can be saved next to a session recording and
+ * loaded again, or built from the recording.
+ */
+public class SummaryPyramid {
+    public static final String PYRAMID_SUFFIX = ".pyr";
+    public static final int DEFAULT_BLOCK_SHIFT = 6;
+
+    private static final int MAGIC = 0x48425450;    // "HBTP"
+    private static final int VERSION = 1;
+    private static final int MAX_LEVELS = 32;
+    // keep the size of a chunk and of a level 0 block within an int
+    private static final int MAX_CHANNELS = 1 << 16;
+    private static final int MAX_BLOCK_SHIFT = 30;
+    private static final int MIN_BLOCKS_PER_COLUMN = 4;
+
+    private static final int STAT_MIN = 0;
+    private static final int STAT_MAX = 1;
+    private static final int STAT_MEAN = 2;
+    private static final int STATS = 3;
+    // blocks per chunk
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final int channels;
+    private final int blockShift;
+
+    // completed blocks per level, by chunk
+    private final float[][][] chunks = new float[MAX_LEVELS][][];
+    private final int[] counts = new int[MAX_LEVELS];
+    private int levels = 0;
+
+    // time of the first sample of each level 0 block, never decreasing
+    private long[] blockTimes = new long[64];
+
+    // level 0 block being filled
+    private final float[] partialMin;
+    private final float[] partialMax;
+    private final double[] partialSum;
+    private int partialSamples = 0;
+    private long partialTime;
+
+    /**
+     * @param channels number of channels per sample
+     * @param block_shift level 0 blocks hold 2^block_shift samples
+     */
+    public SummaryPyramid(int channels, int block_shift){
+        this.channels = channels;
+        this.blockShift = block_shift;
+        partialMin = new float[channels];
+        partialMax = new float[channels];
+        partialSum = new double[channels];
+    }
+
+    /**
+     * @return the pyramid file belonging to a session file
+     */
+    public static File fileFor(File session_file){
+        return new File(session_file.getPath() + PYRAMID_SUFFIX);
+    }
+
+    public int getChannels(){
+        return channels;
+    }
+
+    /**
+     * @return number of samples summarised by a level 0 block
+     */
+    public int getBlockSize(){
+        return 1 << blockShift;
+    }
+
+    public synchronized int getLevels(){
+        return levels;
+    }
+
+    /**
+     * @return number of completed blocks at a level
+     */
+    public synchronized int getBlockCount(int level){
+        return level < levels ? counts[level] : 0;
+    }
+
+    /**
+     * Add a sample
+     * @param time sample time in milliseconds, expected not to decrease
+     * @param data one value per channel
+     */
+    public synchronized void push(long time, int[] data){
+        if(partialSamples == 0){
+            partialTime = time;
+            for(int c = 0; c < channels; c++){
+                partialMin[c] = data[c];
+                partialMax[c] = data[c];
+                partialSum[c] = data[c];
+            }
+        }else{
+            for(int c = 0; c < channels; c++){
+                float v = data[c];
+                if(v < partialMin[c]){ partialMin[c] = v;}
+                if(v > partialMax[c]){ partialMax[c] = v;}
+                partialSum[c] += v;
+            }
+        }
+        partialSamples++;
+        if(partialSamples == (1 << blockShift)){
+            completeBlock();
+            partialSamples = 0;
+        }
+    }
+
+    /**
+     * Summarise a time range into columns
+     * @param from_ms start of the range
+     * @param to_ms end of the range, exclusive
+     * @param columns number of columns wanted, for example the width of a view in pixels
+     * @param channel channel to summarise
+     * @param min receives the minimum of each column, NaN where the column has no data
+     * @param max receives the maximum of each column
+     * @param mean receives the mean of each column
+     * @return number of columns with data, 0 if nothing in the range is summarised yet
+     */
+    public synchronized int query(long from_ms, long to_ms, int columns, int channel, float[] min, float[] max, float[] mean){
+        Arrays.fill(min, 0, columns, Float.NaN);
+        Arrays.fill(max, 0, columns, Float.NaN);
+        Arrays.fill(mean, 0, columns, Float.NaN);
+        if(levels == 0 || columns <= 0 || to_ms <= from_ms){
+            return 0;
+        }
+        // the range in level 0 blocks
+        long first = firstBlockAtOrAfter(from_ms);
+        long end = firstBlockAtOrAfter(to_ms);
+        if(first >= end){
+            return 0;
+        }
+        int level = levelFor(end - first, columns);
+        long blocks = ((end - 1) >> level) - (first >> level) + 1;
+        long firstAtLevel = first >> level;
+
+        int filled = 0;
+        for(int col = 0; col < columns; col++){
+            long a = (firstAtLevel + blocks * col / columns) << level;
+            long b = (firstAtLevel + blocks * (col + 1) / columns) << level;
+            a = Math.max(a, first);
+            b = Math.min(b, end);
+            if(a >= b){
+                continue;
+            }
+            if(summarise(a, b, level, channel, min, max, mean, col)){
+                filled++;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Level a query of a number of level 0 blocks reads, the highest with at least
+     * MIN_BLOCKS_PER_COLUMN blocks per column
+     */
+    synchronized int levelFor(long blocks, int columns){
+        int level = 0;
+        while(level + 1 < levels && (blocks >> (level + 1)) >= (long) columns * MIN_BLOCKS_PER_COLUMN){
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Write the completed blocks to a file
+     */
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        try{
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(channels);
+            out.writeInt(blockShift);
+            out.writeInt(levels);
+            for(int level = 0; level < levels; level++){
+                out.writeInt(counts[level]);
+                if(level == 0){
+                    for(int i = 0; i < counts[0]; i++){
+                        out.writeLong(blockTimes[i]);
+                    }
+                }
+                for(int block = 0; block < counts[level]; block++){
+                    float[] chunk = chunks[level][block >> CHUNK_SHIFT];
+                    int at = (block & CHUNK_MASK) * channels * STATS;
+                    for(int i = 0; i < channels * STATS; i++){
+                        out.writeFloat(chunk[at + i]);
+                    }
+                }
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Read a pyramid written by save
+     */
+    public static SummaryPyramid load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try{
+            if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("not a summary pyramid: " + file);
+            }
+            int channels = in.readInt();
+            int blockShift = in.readInt();
+            int levels = in.readInt();
+            if(channels <= 0 || channels > MAX_CHANNELS || blockShift < 0 || blockShift > MAX_BLOCK_SHIFT
+                    || levels < 0 || levels > MAX_LEVELS){
+                throw new IOException("corrupt summary pyramid: " + file);
+            }
+            SummaryPyramid pyramid = new SummaryPyramid(channels, blockShift);
+            pyramid.levels = levels;
+            for(int level = 0; level < levels; level++){
+                int count = in.readInt();
+                // each level holds the merged pairs of the level below
+                if(count < 0 || (level > 0 && count != pyramid.counts[level - 1] / 2)){
+                    throw new IOException("corrupt summary pyramid: " + file);
+                }
+                if(level == 0){
+                    pyramid.blockTimes = new long[Math.max(count, 64)];
+                    for(int i = 0; i < count; i++){
+                        pyramid.blockTimes[i] = in.readLong();
+                    }
+                }
+                pyramid.counts[level] = count;
+                int stride = pyramid.channels * STATS;
+                for(int block = 0; block < count; block++){
+                    float[] chunk = pyramid.allocate(level, block);
+                    int at = (block & CHUNK_MASK) * stride;
+                    for(int i = 0; i < stride; i++){
+                        chunk[at + i] = in.readFloat();
+                    }
+                }
+            }
+            return pyramid;
+        }finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Build the pyramid of the fsr channels of a recorded session, keyed by host time
+     */
+    public static SummaryPyramid fromSession(File session_file) throws IOException {
+        final SummaryPyramid pyramid = new SummaryPyramid(SessionIndex.FSR_CHANNELS, DEFAULT_BLOCK_SHIFT);
+        SessionReader reader = new SessionReader(session_file);
+        try{
+            reader.readByHostTime(Long.MIN_VALUE, Long.MAX_VALUE, new SessionReader.FrameVisitor() {
+                @Override
+                public void onFsr(long device_time, long host_micros, int[] data) {
+                    pyramid.push(host_micros / 1000, data);
+                }
+
+                @Override
+                public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                }
+            });
+        }finally{
+            reader.close();
+        }
+        return pyramid;
+    }
+
+    private void completeBlock(){
+        int block = counts[0];
+        if(levels == 0){
+            levels = 1;
+        }
+        float[] chunk = allocate(0, block);
+        if(block == blockTimes.length){
+            blockTimes = Arrays.copyOf(blockTimes, block * 2);
+        }
+        blockTimes[block] = block > 0 ? Math.max(partialTime, blockTimes[block - 1]) : partialTime;
+        float samples = 1 << blockShift;
+        int at = (block & CHUNK_MASK) * channels * STATS;
+        for(int c = 0; c < channels; c++){
+            chunk[at + c * STATS + STAT_MIN] = partialMin[c];
+            chunk[at + c * STATS + STAT_MAX] = partialMax[c];
+            chunk[at + c * STATS + STAT_MEAN] = (float) (partialSum[c] / samples);
+        }
+        counts[0] = block + 1;
+
+        // merge pairs upwards while the level below has an even number of blocks
+        int level = 0;
+        while(counts[level] % 2 == 0 && level + 1 < MAX_LEVELS){
+            int below = counts[level] - 2;
+            int up = counts[level + 1];
+            if(level + 1 == levels){
+                levels++;
+            }
+            float[] dst = allocate(level + 1, up);
+            // a pair never straddles two chunks
+            float[] src = chunks[level][below >> CHUNK_SHIFT];
+            int first = (below & CHUNK_MASK) * channels * STATS;
+            int second = first + channels * STATS;
+            int to = (up & CHUNK_MASK) * channels * STATS;
+            for(int i = 0; i < channels * STATS; i += STATS){
+                dst[to + i + STAT_MIN] = Math.min(src[first + i + STAT_MIN], src[second + i + STAT_MIN]);
+                dst[to + i + STAT_MAX] = Math.max(src[first + i + STAT_MAX], src[second + i + STAT_MAX]);
+                dst[to + i + STAT_MEAN] = (src[first + i + STAT_MEAN] + src[second + i + STAT_MEAN]) / 2;
+            }
+            counts[level + 1] = up + 1;
+            level++;
+        }
+    }
+
+    // chunk holding a block, added if missing
+    private float[] allocate(int level, int block){
+        int index = block >> CHUNK_SHIFT;
+        if(chunks[level] == null){
+            chunks[level] = new float[Math.max(index + 1, 4)][];
+        }else if(index >= chunks[level].length){
+            chunks[level] = Arrays.copyOf(chunks[level], Math.max(index + 1, chunks[level].length * 2));
+        }
+        int stride = channels * STATS;
+        float[] chunk = chunks[level][index];
+        if(chunk == null){
+            // the first chunk starts small and grows, short pyramids stay small
+            chunk = new float[(index == 0 ? 16 : 1 << CHUNK_SHIFT) * stride];
+            chunks[level][index] = chunk;
+        }else if(chunk.length <= (block & CHUNK_MASK) * stride){
+            chunk = Arrays.copyOf(chunk, Math.min(chunk.length * 2, (1 << CHUNK_SHIFT) * stride));
+            chunks[level][index] = chunk;
+        }
+        return chunk;
+    }
+
+    // index of the first level 0 block starting at or after time, counts[0] if none
+    private long firstBlockAtOrAfter(long time){
+        int lo = 0, hi = counts[0];
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(blockTimes[mid] < time){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // combines the level 0 block range [a, b) using the largest complete blocks up to top_level
+    private boolean summarise(long a, long b, int top_level, int channel, float[] min, float[] max, float[] mean, int col){
+        float lo = Float.POSITIVE_INFINITY;
+        float hi = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        long covered = 0;
+        while(a < b){
+            int level = top_level;
+            while(level > 0 && (((a & ((1L << level) - 1)) != 0) || a + (1L << level) > b || (a >> level) >= counts[level])){
+                level--;
+            }
+            if(a >= counts[0]){
+                break;
+            }
+            int block = (int) (a >> level);
+            float[] chunk = chunks[level][block >> CHUNK_SHIFT];
+            int at = ((block & CHUNK_MASK) * channels + channel) * STATS;
+            lo = Math.min(lo, chunk[at + STAT_MIN]);
+            hi = Math.max(hi, chunk[at + STAT_MAX]);
+            sum += (double) chunk[at + STAT_MEAN] * (1L << level);
+            covered += 1L << level;
+            a += 1L << level;
+        }
+        if(covered == 0){
+            return false;
+        }
+        min[col] = lo;
+        max[col] = hi;
+        mean[col] = (float) (sum / covered);
+        return true;
+    }
+}
@@ -0,0 +1,371 @@
+package com.biointeractivetech.cypressble;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records short sessions around events instead of the whole stream.
+ *
+ * The latest fsr and imu frames are kept in a preallocated ring. When the trigger fires, frames
+ * keep coming into the ring for the post-trigger window, then the frames from the pre-trigger
+ * window up to the end of the post-trigger window are copied to a second preallocated buffer and
+ * a writer thread saves them as a session file readable with SessionReader. Memory is fixed at
+ * construction; if the ring is too small for both windows at the stream rate, the start of the
+ * pre-trigger window is lost.
+ *
+ * The trigger is evaluated once per frame and fires on its rising edge only, so a load held
+ * above a threshold gives one capture. A trigger during a post-trigger window is ignored,
+ * and a capture completing while the previous one is still being written is counted as missed.
+ *
+ * The frame methods must be called from one thread, normally the bluetooth callback thread.
+ */
+public class TriggeredCapture {
+    public static final String CAPTURE_EXTENSION = ".hbs";
+
+    private static final int FSR_CHANNELS = SessionIndex.FSR_CHANNELS;
+    private static final byte FRAME_FSR = SessionIndex.FRAME_FSR;
+    private static final byte FRAME_IMU = SessionIndex.FRAME_IMU;
+
+    /**
+     * Implement this interface to decide when to capture, both methods must run in constant time
+     */
+    public interface Trigger {
+        /**
+         * @return true while the fsr frame meets the trigger condition
+         */
+        boolean onFsr(long host_micros, int[] data);
+
+        /**
+         * @return true while the imu frame meets the trigger condition
+         */
+        boolean onImu(long host_micros, float roll, float pitch, float yaw);
+    }
+
+    /**
+     * Implement this interface to be told about saved captures, called on the writer thread
+     */
+    public interface Listener {
+        void onCaptureSaved(File file, int frames);
+    }
+
+    /**
+     * Fires while the sum of the fsr channels is at or above a threshold
+     */
+    public static class LoadThreshold implements Trigger {
+        private final int threshold;
+
+        /**
+         * @param total_load threshold on the sum of the raw counts of all channels
+         */
+        public LoadThreshold(int total_load){
+            threshold = total_load;
+        }
+
+        @Override
+        public boolean onFsr(long host_micros, int[] data) {
+            int total = 0;
+            for(int c = 0; c < FSR_CHANNELS; c++){
+                total += data[c];
+            }
+            return total >= threshold;
+        }
+
+        @Override
+        public boolean onImu(long host_micros, float roll, float pitch, float yaw) {
+            return false;
+        }
+    }
+
+    /**
+     * Fires while roll or pitch changes faster than a rate, as in a fall or stumble. Yaw is left
+     * out as turning is part of normal walking.
+     */
+    public static class AngleRate implements Trigger {
+        private final float threshold;
+        private boolean started = false;
+        private long lastTime;
+        private float lastRoll;
+        private float lastPitch;
+
+        /**
+         * @param degrees_per_second threshold on the rate of change of roll or pitch
+         */
+        public AngleRate(float degrees_per_second){
+            threshold = degrees_per_second;
+        }
+
+        @Override
+        public boolean onFsr(long host_micros, int[] data) {
+            return false;
+        }
+
+        @Override
+        public boolean onImu(long host_micros, float roll, float pitch, float yaw) {
+            boolean fired = false;
+            long elapsed = host_micros - lastTime;
+            if(started && elapsed > 0){
+                float change = Math.max(Math.abs(roll - lastRoll), Math.abs(pitch - lastPitch));
+                fired = change * 1e6f / elapsed >= threshold;
+            }
+            started = true;
+            lastTime = host_micros;
+            lastRoll = roll;
+            lastPitch = pitch;
+            return fired;
+        }
+    }
+
+    private final File directory;
+    private final Trigger trigger;
+    private final long preMicros;
+    private final long postMicros;
+    private volatile Listener listener = null;
+
+    // ring of the latest frames, only touched by the frame thread
+    private final int capacity;
+    private final byte[] types;
+    private final int[] deviceTimes;
+    private final long[] hostTimes;
+    private final float[] values;
+    private long written = 0;
+
+    // trigger condition of the last frame of each stream, for edge detection
+    private boolean fsrCondition = false;
+    private boolean imuCondition = false;
+    private volatile boolean triggered = false;
+    private long triggerTime;
+
+    // frames handed to the writer thread, guarded by this
+    private final byte[] snapshotTypes;
+    private final int[] snapshotDeviceTimes;
+    private final long[] snapshotHostTimes;
+    private final float[] snapshotValues;
+    private int snapshotFrames = 0;
+    private long snapshotTriggerTime;
+    private boolean snapshotPending = false;
+    private boolean closed = false;
+    private int captures = 0;
+    private int missed = 0;
+
+    private final Thread writer;
+
+    /**
+     * @param directory directory the captures are saved to, created if missing
+     * @param trigger condition starting a capture
+     * @param pre_ms time kept before the trigger
+     * @param post_ms time captured after the trigger
+     * @param capacity_frames frames held in memory, at least the frame rate times both windows
+     */
+    public TriggeredCapture(File directory, Trigger trigger, long pre_ms, long post_ms, int capacity_frames){
+        this.directory = directory;
+        this.trigger = trigger;
+        preMicros = pre_ms * 1000;
+        postMicros = post_ms * 1000;
+        capacity = capacity_frames;
+        types = new byte[capacity_frames];
+        deviceTimes = new int[capacity_frames];
+        hostTimes = new long[capacity_frames];
+        values = new float[capacity_frames * FSR_CHANNELS];
+        snapshotTypes = new byte[capacity_frames];
+        snapshotDeviceTimes = new int[capacity_frames];
+        snapshotHostTimes = new long[capacity_frames];
+        snapshotValues = new float[capacity_frames * FSR_CHANNELS];
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "TriggeredCapture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setListener(Listener capture_listener){
+        listener = capture_listener;
+    }
+
+    /**
+     * @param device_time device time stamp in milliseconds
+     * @param host_micros frame time on the host clock in microseconds
+     * @param data fsr values, the first 10 are kept
+     */
+    public void onFsr(int device_time, long host_micros, int[] data){
+        int slot = (int) (written % capacity);
+        types[slot] = FRAME_FSR;
+        deviceTimes[slot] = device_time;
+        hostTimes[slot] = host_micros;
+        int at = slot * FSR_CHANNELS;
+        for(int c = 0; c < FSR_CHANNELS; c++){
+            values[at + c] = data[c];
+        }
+        written++;
+        boolean condition = trigger.onFsr(host_micros, data);
+        boolean rising = condition && !fsrCondition;
+        fsrCondition = condition;
+        onFrame(host_micros, rising);
+    }
+
+    /**
+     * @param host_micros frame time on the host clock in microseconds
+     */
+    public void onImu(long host_micros, float roll, float pitch, float yaw){
+        int slot = (int) (written % capacity);
+        types[slot] = FRAME_IMU;
+        deviceTimes[slot] = 0;
+        hostTimes[slot] = host_micros;
+        int at = slot * FSR_CHANNELS;
+        values[at] = roll;
+        values[at + 1] = pitch;
+        values[at + 2] = yaw;
+        written++;
+        boolean condition = trigger.onImu(host_micros, roll, pitch, yaw);
+        boolean rising = condition && !imuCondition;
+        imuCondition = condition;
+        onFrame(host_micros, rising);
+    }
+
+    private void onFrame(long host_micros, boolean rising){
+        if(!triggered){
+            if(rising){
+                triggered = true;
+                triggerTime = host_micros;
+            }
+        }else if(host_micros - triggerTime >= postMicros){
+            triggered = false;
+            handOver();
+        }
+    }
+
+    // copies the capture window to the writer, the only part not constant time per frame
+    private void handOver(){
+        long count = Math.min(written, capacity);
+        long start = written - count;
+        // frames arrive in order, walk back to the start of the pre-trigger window
+        long from = written;
+        long earliest = triggerTime - preMicros;
+        while(from > start && hostTimes[(int) ((from - 1) % capacity)] >= earliest){
+            from--;
+        }
+        synchronized(this){
+            if(snapshotPending || closed){
+                missed++;
+                return;
+            }
+            int frames = 0;
+            for(long i = from; i < written; i++){
+                int slot = (int) (i % capacity);
+                snapshotTypes[frames] = types[slot];
+                snapshotDeviceTimes[frames] = deviceTimes[slot];
+                snapshotHostTimes[frames] = hostTimes[slot];
+                System.arraycopy(values, slot * FSR_CHANNELS, snapshotValues, frames * FSR_CHANNELS, FSR_CHANNELS);
+                frames++;
+            }
+            snapshotFrames = frames;
+            snapshotTriggerTime = triggerTime;
+            snapshotPending = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true between a trigger and the end of its post-trigger window
+     */
+    public boolean isCapturing(){
+        return triggered;
+    }
+
+    /**
+     * @return number of captures saved
+     */
+    public synchronized int getCaptureCount(){
+        return captures;
+    }
+
+    /**
+     * @return number of captures dropped because the previous one was still being written
+     */
+    public synchronized int getMissedCount(){
+        return missed;
+    }
+
+    /**
+     * Stop the writer thread once the capture being written, if any, is saved. Returns at once,
+     * the last capture is still reported to the listener; captures completing afterwards are
+     * counted as missed.
+     */
+    public void close(){
+        synchronized(this){
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the writer thread to end after close
+     * @param timeout_ms longest wait, 0 to wait forever
+     * @return true if the writer has ended
+     */
+    public boolean awaitClose(long timeout_ms) throws InterruptedException {
+        writer.join(timeout_ms);
+        return !writer.isAlive();
+    }
+
+    private void writeLoop(){
+        int[] fsr = new int[FSR_CHANNELS];
+        while(true){
+            int frames;
+            long time;
+            synchronized(this){
+                while(!snapshotPending && !closed){
+                    try{
+                        wait();
+                    }catch(InterruptedException e){
+                        return;
+                    }
+                }
+                if(!snapshotPending){
+                    return;
+                }
+                frames = snapshotFrames;
+                time = snapshotTriggerTime;
+            }
+            // the snapshot is not touched by the frame thread until snapshotPending is cleared
+            File file = null;
+            try{
+                if(!directory.isDirectory() && !directory.mkdirs()){
+                    throw new IOException("unable to create " + directory);
+                }
+                file = new File(directory, "capture-" + System.currentTimeMillis() + "-" + time + CAPTURE_EXTENSION);
+                SessionRecorder recorder = new SessionRecorder(file);
+                try{
+                    for(int i = 0; i < frames; i++){
+                        int at = i * FSR_CHANNELS;
+                        if(snapshotTypes[i] == FRAME_FSR){
+                            for(int c = 0; c < FSR_CHANNELS; c++){
+                                fsr[c] = (int) snapshotValues[at + c];
+                            }
+                            recorder.writeFsr(snapshotDeviceTimes[i], snapshotHostTimes[i], fsr);
+                        }else{
+                            recorder.writeImu(snapshotHostTimes[i], snapshotValues[at], snapshotValues[at + 1], snapshotValues[at + 2]);
+                        }
+                    }
+                }finally{
+                    recorder.close();
+                }
+            }catch(IOException e){
+                e.printStackTrace();
+                file = null;
+            }
+            synchronized(this){
+                snapshotPending = false;
+                if(file != null){
+                    captures++;
+                }
+            }
+            Listener notify = listener;
+            if(notify != null && file != null){
+                notify.onCaptureSaved(file, frames);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the duration, hysteresis and signals of AlertRules, and benchmarks evaluation with
+ * hundreds of active rules.
+ *
+ * The benchmark writes a JSON report with the frame rate per rule count and fails if any rule
+ * count evaluates frames slower than required or allocates while doing so. Tune with
+ * -Dalerts.rules (largest rule count), -Dalerts.frames (frames per run), -Dalerts.minRate (frames
+ * per second required, default 1000, twice the fastest stream) and -Dalerts.report (report path).
+ */
+public class AlertRulesTest {
+    private static final int[] IDLE = new int[PacketDecoders.FSR_CHANNELS];
+
+    private final int maxRules = Integer.getInteger("alerts.rules", 800);
+    private final int frames = Integer.getInteger("alerts.frames", 200000);
+    private final double minRate = Double.parseDouble(System.getProperty("alerts.minRate", "1000"));
+    private final String reportPath = System.getProperty("alerts.report", "build/reports/benchmark/alert-rules.json");
+
+    private static class RecordingListener implements AlertRules.Listener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onAlert(AlertRules.Rule rule, boolean raised, long host_micros, float value) {
+            events.add(rule.getId() + (raised ? " raised " : " cleared ") + host_micros / 1000);
+        }
+    }
+
+    private static int[] heel(int load){
+        int[] data = new int[PacketDecoders.FSR_CHANNELS];
+        data[0] = load;
+        return data;
+    }
+
+    @Test
+    public void alertIsRaisedOnceConditionHeldForDuration() {
+        RecordingListener listener = new RecordingListener();
+        AlertRules.Rule rule = new AlertRules.Rule("heel", AlertRules.SIGNAL_FSR, 0, true, false, 500, 0, 2000);
+        AlertRules alerts = new AlertRules(new AlertRules.Rule[]{rule}, listener);
+
+        // 50 Hz, the load drops out briefly at 1 s, which restarts the duration
+        for(int ms = 0; ms <= 5000; ms += 20){
+            alerts.onFsr(ms * 1000L, ms == 1000 || ms > 4000 ? IDLE : heel(600), null);
+        }
+        assertEquals(2, listener.events.size());
+        assertEquals("heel raised 3020", listener.events.get(0));
+        assertEquals("heel cleared 4020", listener.events.get(1));
+        assertEquals(1, rule.getRaisedCount());
+        assertFalse(rule.isRaised());
+        assertEquals(2, alerts.getEventCount());
+    }
+
+    @Test
+    public void hysteresisKeepsAlertAtThreshold() {
+        RecordingListener listener = new RecordingListener();
+        AlertRules alerts = new AlertRules(new AlertRules.Rule[]{
+                new AlertRules.Rule("heel", AlertRules.SIGNAL_FSR, 0, true, false, 500, 50, 0)}, listener);
+        int[] loads = {510, 490, 460, 505, 449, 470, 520};
+        for(int i = 0; i < loads.length; i++){
+            alerts.onFsr(i * 1000L, heel(loads[i]), null);
+        }
+        assertEquals(3, listener.events.size());
+        assertEquals("heel raised 0", listener.events.get(0));
+        assertEquals("heel cleared 4", listener.events.get(1));
+        assertEquals("heel raised 6", listener.events.get(2));
+    }
+
+    @Test
+    public void signalsAreRoutedToTheirRules() {
+        RecordingListener listener = new RecordingListener();
+        AlertRules alerts = new AlertRules(new AlertRules.Rule[]{
+                new AlertRules.Rule("trunk", AlertRules.SIGNAL_PITCH, 0, true, true, 30, 0, 0),
+                new AlertRules.Rule("load", AlertRules.SIGNAL_LOAD, 0, true, false, 900, 0, 0),
+                new AlertRules.Rule("force", AlertRules.SIGNAL_FORCE, 2, true, false, 5, 0, 0),
+                new AlertRules.Rule("unloaded", AlertRules.SIGNAL_LOAD, 0, false, false, 10, 0, 0)}, listener);
+        assertEquals(4, alerts.getRuleCount());
+
+        alerts.onImu(1000, 0, -35, 0);
+        int[] data = {200, 200, 200, 200, 200, 0, 0, 0, 0, 0};
+        // without calibration the force rule never fires
+        alerts.onFsr(2000, data, null);
+        float[] force = new float[PacketDecoders.FSR_CHANNELS];
+        force[2] = 6;
+        alerts.onFsr(3000, data, force);
+        alerts.onFsr(4000, IDLE, force);
+        alerts.onImu(5000, 0, 10, 0);
+        assertEquals(6, listener.events.size());
+        assertEquals("trunk raised 1", listener.events.get(0));
+        assertEquals("load raised 2", listener.events.get(1));
+        assertEquals("force raised 3", listener.events.get(2));
+        assertEquals("load cleared 4", listener.events.get(3));
+        assertEquals("unloaded raised 4", listener.events.get(4));
+        assertEquals("trunk cleared 5", listener.events.get(5));
+    }
+
+    @Test
+    public void hundredsOfRulesStayFastAndAllocationFree() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = null;
+        if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()){
+            threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        long thread = Thread.currentThread().getId();
+
+        // a walk at 100 fsr frames per second with an imu frame every other one
+        Random random = new Random(48);
+        int[][] fsr = new int[100][PacketDecoders.FSR_CHANNELS];
+        float[][] imu = new float[50][3];
+        for(int i = 0; i < fsr.length; i++){
+            for(int c = 0; c < PacketDecoders.FSR_CHANNELS; c++){
+                fsr[i][c] = i < 60 ? 70 + random.nextInt(60) : random.nextInt(10);
+            }
+        }
+        for(float[] angles : imu){
+            for(int a = 0; a < 3; a++){
+                angles[a] = (float) random.nextGaussian() * 20;
+            }
+        }
+
+        List<Integer> counts = new ArrayList<Integer>();
+        for(int n = 10; n < maxRules; n *= 2){
+            counts.add(n);
+        }
+        counts.add(maxRules);
+        double[] rates = new double[counts.size()];
+        long[] allocated = new long[counts.size()];
+        long[] events = new long[counts.size()];
+        for(int r = 0; r < counts.size(); r++){
+            AlertRules alerts = new AlertRules(randomRules(counts.get(r), random), new AlertRules.Listener() {
+                @Override
+                public void onAlert(AlertRules.Rule rule, boolean raised, long host_micros, float value) {
+                }
+            });
+            // the first run warms up the jit, best of the rest counts
+            runFrames(alerts, fsr, imu);
+            rates[r] = 0;
+            for(int run = 0; run < 3; run++){
+                long before = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+                long start = System.nanoTime();
+                runFrames(alerts, fsr, imu);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long after = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+                rates[r] = Math.max(rates[r], frames * 1.5 / seconds);
+                allocated[r] = Math.max(allocated[r], after - before);
+            }
+            events[r] = alerts.getEventCount();
+        }
+
+        writeReport(counts, rates, allocated, events);
+        for(int r = 0; r < counts.size(); r++){
+            assertTrue(String.format(Locale.US, "%d rules evaluate %.0f frames per second, required %.0f",
+                    counts.get(r), rates[r], minRate), rates[r] >= minRate);
+            // a few kB for the measurement itself
+            assertTrue(counts.get(r) + " rules allocate " + allocated[r] + " bytes", allocated[r] <= 4096);
+            assertTrue(events[r] > 0);
+        }
+    }
+
+    private void runFrames(AlertRules alerts, int[][] fsr, float[][] imu){
+        for(int i = 0; i < frames; i++){
+            long host = i * 10000L;
+            alerts.onFsr(host, fsr[i % fsr.length], null);
+            if(i % 2 == 0){
+                float[] angles = imu[(i / 2) % imu.length];
+                alerts.onImu(host + 5000, angles[0], angles[1], angles[2]);
+            }
+        }
+    }
+
+    private static AlertRules.Rule[] randomRules(int count, Random random){
+        AlertRules.Rule[] rules = new AlertRules.Rule[count];
+        for(int i = 0; i < count; i++){
+            int signal = random.nextInt(AlertRules.SIGNAL_YAW + 1);
+            float threshold;
+            if(signal == AlertRules.SIGNAL_LOAD){
+                threshold = 200 + random.nextInt(1000);
+            }else if(signal <= AlertRules.SIGNAL_FORCE){
+                threshold = 20 + random.nextInt(120);
+            }else{
+                threshold = random.nextInt(40);
+            }
+            rules[i] = new AlertRules.Rule("rule " + i, signal, random.nextInt(PacketDecoders.FSR_CHANNELS),
+                    random.nextBoolean(), signal > AlertRules.SIGNAL_LOAD, threshold, threshold / 10, random.nextInt(3000));
+        }
+        return rules;
+    }
+
+    private void writeReport(List<Integer> counts, double[] rates, long[] allocated, long[] events) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"suite\": \"alert rules\",\n");
+        sb.append("  \"frames per run\": ").append((long) (frames * 1.5)).append(",\n");
+        sb.append("  \"runs\": [\n");
+        for(int r = 0; r < counts.size(); r++){
+            sb.append(String.format(Locale.US,
+                    "    {\"rules\": %d, \"frames per second\": %.0f, \"ns per rule\": %.2f, \"bytes\": %d, \"alerts\": %d}",
+                    counts.get(r), rates[r], 1e9 / rates[r] / counts.get(r), allocated[r], events[r]));
+            sb.append(r + 1 < counts.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+
+        File report = new File(reportPath);
+        File dir = report.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs()){
+            throw new IOException("cannot create " + dir);
+        }
+        FileWriter writer = new FileWriter(report);
+        try{
+            writer.write(sb.toString());
+        }finally{
+            writer.close();
+        }
+        System.out.print(sb);
+    }
+}
@@ -0,0 +1,301 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bytes allocated per frame on the streaming paths, measured with the thread allocation counter
+ * of the JVM over a million synthetic frames each: fsr and imu packets through DaqBleManager
+ * decode and BluetoothLeService dispatch to a data listener and two pooled frame listeners, uart
+ * text the same way, and scan
+ * record parsing as DeviceScanActivity and the warm start scan do it.
+ *
+ * Each path has its own budget in bytes per frame. Fsr, imu and scan parsing allocate nothing
+ * while not recording. Uart hands every line over as a new String.
+ * Frame json broadcasts are turned off for those, they allocate by nature and consumers
+ * that need an allocation free path read the shared ring or a data listener instead; the fsr path
+ * of the default configuration, building and broadcasting the json of every frame, has a budget
+ * of its own so it does not grow unnoticed.
+ *
+ * The measurements go to a JSON report. Tune with -Dalloc.frames and -Dalloc.fsr, -Dalloc.imu,
+ * -Dalloc.uart, -Dalloc.scan, -Dalloc.broadcast (budgets) and -Dalloc.report (report path).
+ */
+public class AllocationBudgetTest {
+    // one-off allocations a measurement may include: compilation, class initialisation
+    private static final long SLACK_BYTES = 64 * 1024;
+
+    private final int frames = Integer.getInteger("alloc.frames", 1000000);
+    private final double fsrBudget = Double.parseDouble(System.getProperty("alloc.fsr", "0"));
+    private final double imuBudget = Double.parseDouble(System.getProperty("alloc.imu", "0"));
+    private final double uartBudget = Double.parseDouble(System.getProperty("alloc.uart", "128"));
+    private final double scanBudget = Double.parseDouble(System.getProperty("alloc.scan", "0"));
+    // about 1.8 KB per frame measured
+    private final double broadcastBudget = Double.parseDouble(System.getProperty("alloc.broadcast", "2048"));
+
+    // one line per measured path, shared by the test instances
+    private static final List<String> results = new ArrayList<String>();
+
+    private com.sun.management.ThreadMXBean threads;
+    private BluetoothLeService service;
+    private CountingConsumer consumer;
+
+    private interface FramePath {
+        void frame(int i);
+    }
+
+    private static class CountingConsumer implements DaqBleManager.CypressInterface, FramePool.Listener {
+        long fsr, imu, uart, pooled;
+        long checksum;
+
+        @Override
+        public void onFrame(FramePool.Frame frame) {
+            checksum += frame.getHostMicros();
+            pooled++;
+        }
+
+        @Override
+        public void bleConnectionStateUpdate(int state) {
+        }
+
+        @Override
+        public void fsrDataRecieved(int time, int[] data) {
+            checksum += time + data[0] + data[data.length - 1];
+            fsr++;
+        }
+
+        @Override
+        public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+            checksum += (long) (roll + pitch + yaw);
+            imu++;
+        }
+
+        @Override
+        public void uartDataRecieved(String data) {
+            checksum += data.length();
+            uart++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("thread allocation counters not available", bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        service = new BluetoothLeService();
+        service.daqManager.create(service, null, null);
+        service.setBroadcastFrames(false);
+        consumer = new CountingConsumer();
+        service.addDataListener(consumer);
+        // pooled frames fanned out to two consumers, one keeps each frame until the next arrives
+        service.getFramePool().setLeakTracking(false);
+        service.addFrameListener(consumer);
+        service.addFrameListener(new FramePool.Listener() {
+            private FramePool.Frame held;
+
+            @Override
+            public void onFrame(FramePool.Frame frame) {
+                if(held != null){
+                    held.release();
+                }
+                held = frame.retain();
+            }
+        });
+    }
+
+    @Test
+    public void fsrPathStaysWithinBudget() {
+        final byte[] packet = new byte[1 + 4 + 2 * PacketDecoders.FSR_CHANNELS];
+        packet[0] = (byte) ('F' | 0x80);
+        FramePath path = new FramePath() {
+            @Override
+            public void frame(int i) {
+                int t = i * 20;
+                packet[1] = (byte) (t >>> 24);
+                packet[2] = (byte) (t >>> 16);
+                packet[3] = (byte) (t >>> 8);
+                packet[4] = (byte) t;
+                packet[5 + (i % 20)] = (byte) i;
+                service.daqManager.decodePacket(packet, i);
+            }
+        };
+        assertBudget("fsr", fsrBudget, path, 2);
+
+        double[][] polynomials = new double[FsrCalibration.CHANNELS][];
+        for(int c = 0; c < polynomials.length; c++){
+            polynomials[c] = new double[]{0.5 * c, 1.5, 0.01};
+        }
+        service.daqManager.setFsrCalibration(new FsrCalibration(polynomials));
+        assertBudget("calibrated fsr", fsrBudget, path, 2);
+        assertEquals(8L * frames, consumer.fsr);
+        assertEquals(consumer.fsr, consumer.pooled);
+        assertEquals(0, service.getFramePool().getExhaustedCount());
+    }
+
+    @Test
+    public void broadcastFsrPathStaysWithinBudget() {
+        // the default configuration: every frame also goes out as a json broadcast
+        service.setBroadcastFrames(true);
+        final byte[] packet = new byte[1 + 4 + 2 * PacketDecoders.FSR_CHANNELS];
+        packet[0] = (byte) ('F' | 0x80);
+        assertBudget("broadcast fsr", broadcastBudget, new FramePath() {
+            @Override
+            public void frame(int i) {
+                int t = i * 20;
+                packet[1] = (byte) (t >>> 24);
+                packet[2] = (byte) (t >>> 16);
+                packet[3] = (byte) (t >>> 8);
+                packet[4] = (byte) t;
+                packet[5 + (i % 20)] = (byte) i;
+                service.daqManager.decodePacket(packet, i);
+            }
+        }, 2);
+        assertEquals(4L * frames, consumer.fsr);
+    }
+
+    @Test
+    public void imuPathStaysWithinBudget() {
+        final byte[] packet = {(byte) ('I' | 0x80), 0x10, 0x01, 0x20, 0x00, (byte) 0xf0, (byte) 0xff};
+        assertBudget("imu", imuBudget, new FramePath() {
+            @Override
+            public void frame(int i) {
+                packet[1] = (byte) i;
+                service.daqManager.decodePacket(packet, i);
+            }
+        }, 1);
+        assertEquals(2L * frames, consumer.imu);
+        assertEquals(consumer.imu, consumer.pooled);
+        assertEquals(0, service.getFramePool().getExhaustedCount());
+    }
+
+    @Test
+    public void uartPathStaysWithinBudget() {
+        final byte[] packet = "$info,habit,1.0;\n".getBytes();
+        assertBudget("uart", uartBudget, new FramePath() {
+            @Override
+            public void frame(int i) {
+                service.daqManager.decodePacket(packet, i);
+            }
+        }, 1);
+        assertEquals(2L * frames, consumer.uart);
+    }
+
+    @Test
+    public void scanParsingStaysWithinBudget() {
+        final byte[] habit = {
+                2, 1, 6,
+                17, 7, 0x31, 0x1, (byte) 0x9b, 0x5f, (byte) 0x80, 0x0, 0x0, (byte) 0x80,
+                0x0, 0x10, 0x0, 0x0, (byte) 0xd0, (byte) 0xcd, 0x3, 0x0,
+                0, 0};
+        final byte[] other = {2, 1, 6, 3, 3, 0x0d, 0x18, 0, 0};
+        final String[] addresses = new String[64];
+        for(int i = 0; i < addresses.length; i++){
+            addresses[i] = String.format(Locale.US, "00:A0:50:00:00:%02X", i);
+        }
+        final ScanScheduler<String> scheduler = new ScanScheduler<String>(new ScanScheduler.AdvertisementSource() {
+            @Override
+            public void startScan() {
+            }
+
+            @Override
+            public void stopScan() {
+            }
+        }, new ScanScheduler.Timer() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+            }
+        }, new ScanScheduler.Listener<String>() {
+            @Override
+            public void onDeviceFound(String device, String address, int rssi) {
+            }
+
+            @Override
+            public void onScanStateChanged(boolean active) {
+            }
+        }, 1000, 0, 0, 60000);
+        scheduler.start();
+        final int[] matches = new int[1];
+        // a crowded room: the same devices advertise over and over, half of them not ours
+        assertBudget("scan", scanBudget, new FramePath() {
+            @Override
+            public void frame(int i) {
+                byte[] record = (i & 1) == 0 ? habit : other;
+                if(ScanRecordFilter.isHabitDevice(record)){
+                    matches[0]++;
+                }
+                scheduler.onAdvertisement(addresses[i & 63], addresses[i & 63], -60, record);
+            }
+        }, 1);
+        assertEquals(frames, matches[0]);
+        assertEquals(32, scheduler.getFoundCount());
+    }
+
+    // runs the path once to warm up and once measured, then checks bytes per frame
+    private void assertBudget(String name, double budget, FramePath path, int frames_per_call){
+        long thread = Thread.currentThread().getId();
+        for(int i = 0; i < frames; i++){
+            path.frame(i);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < frames; i++){
+            path.frame(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        long measured = (long) frames * frames_per_call;
+        double perFrame = (double) allocated / measured;
+        synchronized(results){
+            results.add(String.format(Locale.US,
+                    "    {\"path\": \"%s\", \"frames\": %d, \"bytes per frame\": %.3f, \"budget\": %.0f}",
+                    name, measured, perFrame, budget));
+        }
+        assertTrue(String.format(Locale.US, "%s path allocates %.3f bytes per frame, budget %.0f", name, perFrame, budget),
+                allocated <= budget * measured + SLACK_BYTES);
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"suite\": \"allocation budget\",\n");
+        sb.append("  \"paths\": [\n");
+        synchronized(results){
+            for(int i = 0; i < results.size(); i++){
+                sb.append(results.get(i));
+                sb.append(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            results.clear();
+        }
+        sb.append("  ]\n}\n");
+
+        File report = new File(System.getProperty("alloc.report", "build/reports/benchmark/allocation.json"));
+        File dir = report.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs()){
+            throw new IOException("cannot create " + dir);
+        }
+        FileWriter writer = new FileWriter(report);
+        try{
+            writer.write(sb.toString());
+        }finally{
+            writer.close();
+        }
+    }
+}
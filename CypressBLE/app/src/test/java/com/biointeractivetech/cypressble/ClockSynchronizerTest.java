@@ -0,0 +1,175 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ClockSynchronizer against simulated devices whose clocks drift against the host
+ */
+public class ClockSynchronizerTest {
+    private static final double MIN_DELAY_MS = 7.5;
+    private static final double MEAN_EXTRA_DELAY_MS = 15;
+    private static final double FRAME_PERIOD_MS = 10;
+
+    /**
+     * A device clock with its own start value and rate, and a link with random delays
+     */
+    private static class SimulatedDevice {
+        final double startHostMs;
+        final double startDeviceMs;
+        final double ppm;
+        final Random random;
+
+        SimulatedDevice(double start_host_ms, double start_device_ms, double ppm, long seed){
+            this.startHostMs = start_host_ms;
+            this.startDeviceMs = start_device_ms;
+            this.ppm = ppm;
+            this.random = new Random(seed);
+        }
+
+        int deviceTime(double host_ms){
+            long t = (long) Math.floor(startDeviceMs + (host_ms - startHostMs) * (1 + ppm * 1e-6));
+            return (int) t;
+        }
+
+        long arrivalNanos(double host_ms){
+            double delay = MIN_DELAY_MS - MEAN_EXTRA_DELAY_MS * Math.log(1 - random.nextDouble());
+            // occasional stall of the link, as seen when the phone is busy
+            if(random.nextInt(500) == 0){
+                delay += 200;
+            }
+            return (long) ((host_ms + delay) * 1e6);
+        }
+    }
+
+    @Test
+    public void tracksOffsetAndDrift() {
+        SimulatedDevice device = new SimulatedDevice(1000, 123456, 80, 1);
+        ClockSynchronizer sync = new ClockSynchronizer();
+
+        double worst = 0;
+        for(int i = 0; i < 360000; i++){
+            double host = 1000 + i * FRAME_PERIOD_MS;
+            int deviceTime = device.deviceTime(host);
+            double mapped = sync.onFrame(deviceTime, device.arrivalNanos(host));
+            if(i > 2000){
+                worst = Math.max(worst, Math.abs(mapped - (host + MIN_DELAY_MS)));
+            }
+        }
+        assertTrue(sync.isLocked());
+        assertEquals(80, sync.getDriftPpm(), 5);
+        assertTrue("worst error " + worst, worst < 3);
+    }
+
+    @Test
+    public void handlesCounterWrap() {
+        SimulatedDevice device = new SimulatedDevice(0, Integer.MAX_VALUE - 60000.0, -50, 2);
+        ClockSynchronizer sync = new ClockSynchronizer();
+
+        double worst = 0;
+        for(int i = 0; i < 30000; i++){
+            double host = i * FRAME_PERIOD_MS;
+            double mapped = sync.onFrame(device.deviceTime(host), device.arrivalNanos(host));
+            if(i > 2000){
+                worst = Math.max(worst, Math.abs(mapped - (host + MIN_DELAY_MS)));
+            }
+        }
+        assertTrue("worst error " + worst, worst < 3);
+        assertEquals(-50, sync.getDriftPpm(), 10);
+    }
+
+    @Test
+    public void alignsTwoDevicesOnSharedTimebase() {
+        SimulatedDevice left = new SimulatedDevice(0, 5000, 120, 3);
+        SimulatedDevice right = new SimulatedDevice(0, 987654, -90, 4);
+        ClockSynchronizer leftSync = new ClockSynchronizer();
+        ClockSynchronizer rightSync = new ClockSynchronizer();
+
+        double worst = 0;
+        for(int i = 0; i < 180000; i++){
+            double host = i * FRAME_PERIOD_MS;
+            double l = leftSync.onFrame(left.deviceTime(host), left.arrivalNanos(host));
+            double r = rightSync.onFrame(right.deviceTime(host), right.arrivalNanos(host));
+            if(i > 2000){
+                worst = Math.max(worst, Math.abs(l - r));
+            }
+        }
+        // the two devices sampled at the same host instant map to nearly the same time
+        assertTrue("worst disagreement " + worst, worst < 4);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        SimulatedDevice device = new SimulatedDevice(0, 1000, 0, 7);
+        ClockSynchronizer sync = new ClockSynchronizer();
+        for(int i = 0; i < 1000; i++){
+            double host = i * FRAME_PERIOD_MS;
+            sync.onFrame(device.deviceTime(host), device.arrivalNanos(host));
+        }
+        sync.reset();
+        assertFalse(sync.isLocked());
+        assertTrue(Double.isNaN(sync.toHostTime(1000)));
+
+        // device restarted its counter from zero
+        SimulatedDevice restarted = new SimulatedDevice(20000, 0, 0, 8);
+        double mapped = 0;
+        for(int i = 0; i < 1000; i++){
+            double host = 20000 + i * FRAME_PERIOD_MS;
+            mapped = sync.onFrame(restarted.deviceTime(host), restarted.arrivalNanos(host)) - host;
+        }
+        assertEquals(MIN_DELAY_MS, mapped, 3);
+    }
+
+    // runs the device from host time from_ms for count frames, returns the last mapping error
+    private static double run(ClockSynchronizer sync, SimulatedDevice device, double from_ms, int count){
+        double error = 0;
+        for(int i = 0; i < count; i++){
+            double host = from_ms + i * FRAME_PERIOD_MS;
+            error = sync.onFrame(device.deviceTime(host), device.arrivalNanos(host)) - host;
+        }
+        return error;
+    }
+
+    @Test
+    public void backwardJumpStartsOver() {
+        ClockSynchronizer sync = new ClockSynchronizer();
+        run(sync, new SimulatedDevice(0, 500000, 60, 9), 0, 5000);
+        assertTrue(sync.isLocked());
+
+        // the device restarted mid stream and counts from zero again
+        SimulatedDevice restarted = new SimulatedDevice(50000, 0, 60, 10);
+        assertEquals(MIN_DELAY_MS, run(sync, restarted, 50000, 1), 60);
+        assertEquals(1, sync.getResetCount());
+        assertEquals(MIN_DELAY_MS, run(sync, restarted, 50010, 1000), 3);
+        assertEquals(1, sync.getResetCount());
+    }
+
+    @Test
+    public void reconnectAfterRestartStartsOver() {
+        ClockSynchronizer sync = new ClockSynchronizer();
+        run(sync, new SimulatedDevice(0, 1000, 0, 11), 0, 500);
+
+        // away for two minutes, restarted and running a minute before it connected again, so
+        // its counter is ahead of where it stopped
+        sync.onReconnect();
+        SimulatedDevice restarted = new SimulatedDevice(125000, 60000, 0, 12);
+        run(sync, restarted, 125000, 1);
+        assertEquals(1, sync.getResetCount());
+        assertEquals(MIN_DELAY_MS, run(sync, restarted, 125010, 1000), 3);
+    }
+
+    @Test
+    public void reconnectWithoutRestartKeepsFit() {
+        ClockSynchronizer sync = new ClockSynchronizer();
+        SimulatedDevice device = new SimulatedDevice(0, 1000, 40, 13);
+        run(sync, device, 0, 20000);
+        sync.onReconnect();
+        // frames resume after a minute away on the same counter
+        assertEquals(MIN_DELAY_MS, run(sync, device, 260000, 100), 3);
+        assertEquals(0, sync.getResetCount());
+        assertTrue(sync.isLocked());
+    }
+}
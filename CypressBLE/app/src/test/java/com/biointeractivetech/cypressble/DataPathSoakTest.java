@@ -0,0 +1,275 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Soak and saturation run of the data path: DaqBleManager decode, BluetoothLeService dispatch
+ * and JSON serialisation, and in-process consumers, driven with synthetic fsr, imu and uart
+ * packets at escalating rates.
+ *
+ * Each step records sustained throughput, latency from the scheduled packet time to the end of
+ * dispatch, GC activity and heap growth, and a JSON report is written marking the highest rate
+ * the path sustained. Tune with -Dsoak.seconds (per step), -Dsoak.minRate (rate that must be
+ * sustained for the test to pass) and -Dsoak.report (report path).
+ */
+public class DataPathSoakTest {
+    private static final int[] RATES = {100, 250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000};
+    private static final double SUSTAINED_FRACTION = 0.97;
+    private static final long SUSTAINED_P99_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    // packet mix per cycle: mostly fsr, with imu and uart interleaved
+    private static final int MIX_CYCLE = 10;
+    private static final int MIX_IMU = 8;
+    private static final int MIX_UART = 9;
+
+    private final double secondsPerStep = Double.parseDouble(System.getProperty("soak.seconds", "1"));
+    private final int minSustainedRate = Integer.getInteger("soak.minRate", 500);
+    private final String reportPath = System.getProperty("soak.report", "build/reports/soak/data-path.json");
+
+    private BluetoothLeService service;
+    private CountingConsumer consumer;
+    private ExecutorService windowExecutor;
+
+    private byte[][] fsrPackets;
+    private byte[] imuPacket;
+    private byte[] uartPacket;
+
+    private static class StepResult {
+        int rate;
+        long frames;
+        double seconds;
+        double throughput;
+        LatencyHistogram latency = new LatencyHistogram();
+        long gcCount;
+        long gcMillis;
+        long heapGrowth;
+        boolean sustained;
+    }
+
+    private static class CountingConsumer implements DaqBleManager.CypressInterface {
+        volatile long fsr, imu, uart;
+        long checksum;
+
+        @Override
+        public void bleConnectionStateUpdate(int state) {
+        }
+
+        @Override
+        public void fsrDataRecieved(int time, int[] data) {
+            checksum += time + data[0] + data[data.length - 1];
+            fsr++;
+        }
+
+        @Override
+        public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+            checksum += (long) (roll + pitch + yaw);
+            imu++;
+        }
+
+        @Override
+        public void uartDataRecieved(String data) {
+            checksum += data.length();
+            uart++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        service = new BluetoothLeService();
+        service.daqManager.create(service, null, null);
+
+        consumer = new CountingConsumer();
+        service.addDataListener(consumer);
+
+        // a realistic inference consumer: one second and quarter second windows at 100 Hz
+        windowExecutor = Executors.newSingleThreadExecutor();
+        SensorWindowEngine fsrEngine = new SensorWindowEngine(SensorWindowFeeder.FSR_CHANNELS, 512, windowExecutor);
+        SensorWindowEngine.WindowListener meanOfWindow = new SensorWindowEngine.WindowListener() {
+            @Override
+            public void onWindow(SensorWindow window) {
+                for(int c = 0; c < window.getChannels(); c++){
+                    window.getMean(c);
+                }
+            }
+        };
+        fsrEngine.addWindow(100, 50, meanOfWindow);
+        fsrEngine.addWindow(25, 5, meanOfWindow);
+        SensorWindowEngine imuEngine = new SensorWindowEngine(SensorWindowFeeder.IMU_CHANNELS, 256, windowExecutor);
+        imuEngine.addWindow(50, 10, meanOfWindow);
+        service.setSensorWindows(fsrEngine, imuEngine);
+
+        fsrPackets = new byte[256][];
+        for(int i = 0; i < fsrPackets.length; i++){
+            fsrPackets[i] = new byte[15];
+            fsrPackets[i][0] = (byte) ('F' | 0x80);
+            for(int c = 0; c < 10; c++){
+                fsrPackets[i][5 + c] = (byte) ((i * 7 + c * 13) & 0xff);
+            }
+        }
+        imuPacket = new byte[]{(byte) ('I' | 0x80), 0x10, 0x01, 0x20, 0x00, (byte) 0xf0, (byte) 0xff};
+        uartPacket = "$info,habit,1.0;\n".getBytes();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        windowExecutor.shutdown();
+        windowExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void escalatingRates() throws IOException {
+        // warm up so the first step does not measure class loading and compilation
+        runStep(1000, 0.5);
+
+        List<StepResult> results = new ArrayList<StepResult>();
+        int maxSustained = 0;
+        for(int rate : RATES){
+            StepResult result = runStep(rate, secondsPerStep);
+            results.add(result);
+            if(!result.sustained){
+                break;
+            }
+            maxSustained = rate;
+        }
+
+        writeReport(results, maxSustained);
+        assertTrue("frames were lost between decode and consumers", consumer.fsr > 0 && consumer.imu > 0 && consumer.uart > 0);
+        assertTrue("highest sustained rate " + maxSustained + " packets/s is below " + minSustainedRate,
+                maxSustained >= minSustainedRate);
+    }
+
+    private StepResult runStep(int rate, double seconds){
+        StepResult result = new StepResult();
+        result.rate = rate;
+        long total = (long) (rate * seconds);
+        long period = 1000000000L / rate;
+
+        long expectedFsr = consumer.fsr, expectedImu = consumer.imu, expectedUart = consumer.uart;
+        long heapBefore = usedHeapAfterGc();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcMillis();
+
+        long start = System.nanoTime();
+        for(long i = 0; i < total; i++){
+            long scheduled = start + i * period;
+            long now = System.nanoTime();
+            if(now < scheduled){
+                long wait = scheduled - now;
+                if(wait > 200000){
+                    LockSupport.parkNanos(wait - 100000);
+                }
+                while(System.nanoTime() < scheduled){
+                    // spin for the last stretch, parking is too coarse at high rates
+                }
+            }
+
+            int kind = (int) (i % MIX_CYCLE);
+            byte[] packet;
+            if(kind == MIX_IMU){
+                packet = imuPacket;
+                expectedImu++;
+            }else if(kind == MIX_UART){
+                packet = uartPacket;
+                expectedUart++;
+            }else{
+                packet = fsrPackets[(int) (i & 0xff)];
+                int t = (int) (i * 10);
+                packet[1] = (byte) (t >>> 24);
+                packet[2] = (byte) (t >>> 16);
+                packet[3] = (byte) (t >>> 8);
+                packet[4] = (byte) t;
+                expectedFsr++;
+            }
+            service.daqManager.decodePacket(packet, scheduled);
+            result.latency.record(System.nanoTime() - scheduled);
+        }
+        long end = System.nanoTime();
+
+        result.frames = total;
+        result.seconds = (end - start) / 1e9;
+        result.throughput = total / result.seconds;
+        result.gcCount = gcCount() - gcCountBefore;
+        result.gcMillis = gcMillis() - gcTimeBefore;
+        result.heapGrowth = usedHeapAfterGc() - heapBefore;
+        result.sustained = result.throughput >= rate * SUSTAINED_FRACTION
+                && result.latency.getPercentile(99) <= SUSTAINED_P99_NANOS;
+
+        assertEquals(expectedFsr, consumer.fsr);
+        assertEquals(expectedImu, consumer.imu);
+        assertEquals(expectedUart, consumer.uart);
+        return result;
+    }
+
+    private void writeReport(List<StepResult> results, int maxSustained) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"suite\": \"data path soak\",\n");
+        sb.append(String.format(Locale.US, "  \"seconds per step\": %.2f,\n", secondsPerStep));
+        sb.append("  \"max sustained rate\": ").append(maxSustained).append(",\n");
+        sb.append("  \"steps\": [\n");
+        for(int i = 0; i < results.size(); i++){
+            StepResult r = results.get(i);
+            sb.append(String.format(Locale.US,
+                    "    {\"rate\": %d, \"frames\": %d, \"throughput\": %.1f, \"sustained\": %b, "
+                            + "\"latency us\": {\"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f}, "
+                            + "\"gc count\": %d, \"gc ms\": %d, \"heap growth bytes\": %d}",
+                    r.rate, r.frames, r.throughput, r.sustained,
+                    r.latency.getPercentile(50) / 1e3, r.latency.getPercentile(90) / 1e3,
+                    r.latency.getPercentile(99) / 1e3, r.latency.getPercentile(99.9) / 1e3, r.latency.getMax() / 1e3,
+                    r.gcCount, r.gcMillis, r.heapGrowth));
+            sb.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+
+        File report = new File(reportPath);
+        File dir = report.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs()){
+            throw new IOException("cannot create " + dir);
+        }
+        FileWriter writer = new FileWriter(report);
+        try{
+            writer.write(sb.toString());
+        }finally{
+            writer.close();
+        }
+        System.out.print(sb);
+    }
+
+    private static long usedHeapAfterGc(){
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount(){
+        long count = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis(){
+        long millis = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
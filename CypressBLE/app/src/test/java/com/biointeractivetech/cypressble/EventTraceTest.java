@@ -0,0 +1,135 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the ring, level filtering and dump of EventTrace and the text EventTraceDecoder makes
+ * of a dump
+ */
+public class EventTraceTest {
+    private static byte[] dump(EventTrace trace) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.dump(out);
+        return out.toByteArray();
+    }
+
+    private static String[] decode(byte[] dump) throws IOException {
+        StringWriter out = new StringWriter();
+        int count = EventTraceDecoder.decode(new ByteArrayInputStream(dump), out);
+        String text = out.toString();
+        String[] lines = text.isEmpty() ? new String[0] : text.split("\n");
+        assertEquals(count, lines.length);
+        return lines;
+    }
+
+    @Test
+    public void dumpDecodesToOneLinePerEvent() throws IOException {
+        EventTrace trace = new EventTrace(16);
+        String command = "$real,enable;fsr,100;";
+        trace.event(EventTrace.EVENT_COMMAND_SENT, command.length(),
+                EventTrace.packAscii(command, 0), EventTrace.packAscii(command, 8));
+        trace.event(EventTrace.EVENT_COMMAND_RETRY, 13);
+        trace.event(EventTrace.EVENT_ADVERTISEMENT, EventTrace.packAddress("0D:58:40:2E:00:6C"), -61, 31);
+        trace.event(EventTrace.EVENT_SERVICE_ACTION, BluetoothLeService.BROADCAST_ACTION_GATT_CONNECT.hashCode());
+
+        String[] lines = decode(dump(trace));
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("       0.000  command sent"));
+        assertTrue(lines[0], lines[0].endsWith("length 21 \"$real,enable;fsr...\""));
+        assertTrue(lines[1], lines[1].contains("command retry") && lines[1].endsWith("length 13"));
+        assertTrue(lines[2], lines[2].endsWith("0D:58:40:2E:00:6C rssi -61 length 31"));
+        assertTrue(lines[3], lines[3].endsWith(BluetoothLeService.BROADCAST_ACTION_GATT_CONNECT));
+    }
+
+    @Test
+    public void fullRingKeepsNewestEvents() throws IOException {
+        EventTrace trace = new EventTrace(4);
+        for(int i = 0; i < 10; i++){
+            trace.event(EventTrace.EVENT_COMMAND_RETRY, i);
+        }
+        String[] lines = decode(dump(trace));
+        assertEquals(4, lines.length);
+        for(int i = 0; i < 4; i++){
+            assertTrue(lines[i], lines[i].endsWith("length " + (6 + i)));
+        }
+
+        trace.clear();
+        assertEquals(0, decode(dump(trace)).length);
+    }
+
+    @Test
+    public void disabledLevelsAreNotRecorded() throws IOException {
+        EventTrace trace = new EventTrace(16);
+        trace.setLevels(EventTrace.LEVEL_WARN);
+        assertTrue(trace.isEnabled(EventTrace.LEVEL_WARN));
+        assertFalse(trace.isEnabled(EventTrace.LEVEL_DEBUG));
+        trace.event(EventTrace.EVENT_COMMAND_SENT, 1);
+        trace.event(EventTrace.EVENT_ALREADY_CONNECTED, 2);
+        trace.event(EventTrace.EVENT_COMMAND_RETRY, 3);
+        String[] lines = decode(dump(trace));
+        assertEquals(1, lines.length);
+        assertTrue(lines[0], lines[0].contains("command retry"));
+
+        trace.setLevels(0);
+        trace.event(EventTrace.EVENT_COMMAND_RETRY, 4);
+        assertEquals(1, decode(dump(trace)).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDumpIsRejected() throws IOException {
+        EventTrace trace = new EventTrace(16);
+        trace.event(EventTrace.EVENT_COMMAND_RETRY, 1);
+        trace.event(EventTrace.EVENT_COMMAND_RETRY, 2);
+        byte[] dump = dump(trace);
+        byte[] cut = new byte[dump.length - 10];
+        System.arraycopy(dump, 0, cut, 0, cut.length);
+        decode(cut);
+    }
+
+    @Test
+    public void dumpWhileWritingHasNoTornRecords() throws Exception {
+        final EventTrace trace = new EventTrace(64);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] writers = new Thread[2];
+        for(int w = 0; w < writers.length; w++){
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(long i = 1; !stop.get(); i++){
+                        trace.event(EventTrace.EVENT_ALREADY_CONNECTED, i, i, i);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        try{
+            for(int round = 0; round < 2000; round++){
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(dump(trace)));
+                assertEquals(EventTrace.MAGIC, in.readInt());
+                assertEquals(EventTrace.VERSION, in.readInt());
+                int count = in.readInt();
+                for(int i = 0; i < count; i++){
+                    assertEquals(EventTrace.EVENT_ALREADY_CONNECTED, in.readUnsignedByte());
+                    in.readLong();
+                    long a = in.readLong();
+                    assertEquals(a, in.readLong());
+                    assertEquals(a, in.readLong());
+                }
+            }
+        }finally{
+            stop.set(true);
+            for(Thread writer : writers){
+                writer.join();
+            }
+        }
+    }
+}
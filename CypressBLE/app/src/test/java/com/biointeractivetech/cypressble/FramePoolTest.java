@@ -0,0 +1,132 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reference counting, exhaustion and leak checks of FramePool, and frames shared by consumers
+ * on other threads
+ */
+public class FramePoolTest {
+    private static final int[] DATA = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    @Test
+    public void lastReleaseReturnsFrameToPool() {
+        FramePool pool = new FramePool(4, false);
+        FramePool.Frame frame = pool.acquireFsr(20, 20000, DATA, null);
+        assertEquals(3, pool.getAvailable());
+        assertEquals(1, frame.getReferenceCount());
+        assertEquals(FramePool.TYPE_FSR, frame.getType());
+        assertEquals(10, frame.getCount(9));
+        assertFalse(frame.hasForce());
+        assertTrue(Float.isNaN(frame.getForce(0)));
+
+        frame.retain();
+        frame.retain();
+        frame.release();
+        frame.release();
+        assertEquals(3, pool.getAvailable());
+        frame.release();
+        assertEquals(4, pool.getAvailable());
+        assertEquals(0, frame.getReferenceCount());
+    }
+
+    @Test
+    public void exhaustionIsCounted() {
+        FramePool pool = new FramePool(2, false);
+        FramePool.Frame a = pool.acquireImu(1, 1, 2, 3);
+        FramePool.Frame b = pool.acquireImu(2, 4, 5, 6);
+        assertNull(pool.acquireImu(3, 7, 8, 9));
+        assertNull(pool.acquireFsr(4, 4, DATA, null));
+        assertEquals(2, pool.getExhaustedCount());
+        assertEquals(2, pool.getPeakInUse());
+
+        a.release();
+        FramePool.Frame c = pool.acquireImu(5, 10, 11, 12);
+        assertSame(a, c);
+        assertEquals(11, c.getPitch(), 0);
+        assertEquals(3, pool.getAcquiredCount());
+        b.release();
+        c.release();
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingTwiceFails() {
+        FramePool pool = new FramePool(1, false);
+        FramePool.Frame frame = pool.acquireImu(1, 1, 2, 3);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void reportsFramesHeldTooLong() throws InterruptedException {
+        FramePool pool = new FramePool(4, true);
+        FramePool.Frame held = pool.acquireFsr(1, 1, DATA, null);
+        pool.acquireFsr(2, 2, DATA, null).release();
+        Thread.sleep(5);
+        assertEquals(1, pool.checkLeaks(1));
+        held.release();
+        assertEquals(0, pool.checkLeaks(1));
+        assertEquals(0, new FramePool(4, false).checkLeaks(0));
+    }
+
+    @Test
+    public void consumersOnOtherThreadsShareFrames() throws InterruptedException {
+        final FramePool pool = new FramePool(64, false);
+        final int consumers = 3;
+        final int frames = 100000;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<BlockingQueue<FramePool.Frame>> queues = new ArrayList<BlockingQueue<FramePool.Frame>>();
+        Thread[] threads = new Thread[consumers];
+        for(int t = 0; t < consumers; t++){
+            final BlockingQueue<FramePool.Frame> queue = new ArrayBlockingQueue<FramePool.Frame>(64);
+            queues.add(queue);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        for(int i = 0; i < frames; i++){
+                            FramePool.Frame frame = queue.take();
+                            if(frame.getDeviceTime() != i || frame.getCount(0) != (i & 0xff)){
+                                throw new AssertionError("frame " + i + " was recycled while held");
+                            }
+                            frame.release();
+                        }
+                    }catch(Throwable e){
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        int[] data = new int[FramePool.CHANNELS];
+        for(int i = 0; i < frames; i++){
+            data[0] = i & 0xff;
+            FramePool.Frame frame;
+            while((frame = pool.acquireFsr(i, i, data, null)) == null){
+                Thread.yield();
+            }
+            for(BlockingQueue<FramePool.Frame> queue : queues){
+                queue.put(frame.retain());
+            }
+            frame.release();
+        }
+        for(Thread thread : threads){
+            thread.join(30000);
+        }
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(64, pool.getAvailable());
+        assertEquals(frames, pool.getAcquiredCount());
+    }
+}
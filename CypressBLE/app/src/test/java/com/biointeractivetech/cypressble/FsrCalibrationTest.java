@@ -0,0 +1,171 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the calibration tables and the calibrated decode path against direct evaluation of
+ * the calibration polynomials
+ */
+public class FsrCalibrationTest {
+    private static final int CHANNELS = FsrCalibration.CHANNELS;
+
+    // relative error of rounding a double to float, with room for the table's own rounding
+    private static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void tableMatchesPolynomialForEveryCount() {
+        Random random = new Random(40);
+        for(int trial = 0; trial < 50; trial++){
+            double[][] polynomials = randomPolynomials(random);
+            FsrCalibration calibration = new FsrCalibration(polynomials);
+            for(int c = 0; c < CHANNELS; c++){
+                for(int raw = 0; raw < FsrCalibration.LEVELS; raw++){
+                    assertClose(polynomial(polynomials[c], raw), calibration.apply(c, raw));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void channelsWithoutPolynomialPassRawCountsThrough() {
+        double[][] polynomials = new double[3][];
+        polynomials[1] = new double[]{2, 0.5};
+        polynomials[2] = new double[0];
+        FsrCalibration calibration = new FsrCalibration(polynomials);
+        for(int raw = 0; raw < FsrCalibration.LEVELS; raw++){
+            assertEquals(raw, calibration.apply(0, raw), 0);
+            assertEquals(2 + 0.5 * raw, calibration.apply(1, raw), 0);
+            assertEquals(raw, calibration.apply(2, raw), 0);
+            assertEquals(raw, calibration.apply(CHANNELS - 1, raw), 0);
+        }
+    }
+
+    @Test
+    public void decoderDeliversCalibratedSamples() {
+        Random random = new Random(41);
+        double[][] polynomials = randomPolynomials(random);
+        PacketDecoders.Fsr decoder = new PacketDecoders.Fsr(10);
+        decoder.setCalibration(new FsrCalibration(polynomials));
+        RecordingSink sink = new RecordingSink();
+
+        byte[] packet = fsrPacket(1000, 3, random);
+        assertTrue(decoder.decode(packet, sink));
+        assertEquals(3, sink.forces.size());
+        assertEquals(0, sink.rawOnly);
+        for(int s = 0; s < 3; s++){
+            assertEquals(1000 + 10 * s, (int) sink.times.get(s));
+            for(int c = 0; c < CHANNELS; c++){
+                int raw = packet[5 + s * CHANNELS + c] & 0xff;
+                assertEquals(raw, sink.raws.get(s)[c]);
+                assertClose(polynomial(polynomials[c], raw), sink.forces.get(s)[c]);
+            }
+        }
+    }
+
+    @Test
+    public void calibrationSwapsBetweenPackets() {
+        Random random = new Random(42);
+        PacketDecoders.Fsr decoder = new PacketDecoders.Fsr(10);
+        RecordingSink sink = new RecordingSink();
+
+        assertTrue(decoder.decode(fsrPacket(0, 1, random), sink));
+        assertEquals("uncalibrated samples stay raw", 1, sink.rawOnly);
+
+        double[][] first = randomPolynomials(random);
+        decoder.setCalibration(new FsrCalibration(first));
+        byte[] packet = fsrPacket(10, 1, random);
+        decoder.decode(packet, sink);
+        double[][] second = randomPolynomials(random);
+        decoder.setCalibration(new FsrCalibration(second));
+        decoder.decode(packet, sink);
+
+        for(int c = 0; c < CHANNELS; c++){
+            int raw = packet[5 + c] & 0xff;
+            assertClose(polynomial(first[c], raw), sink.forces.get(0)[c]);
+            assertClose(polynomial(second[c], raw), sink.forces.get(1)[c]);
+        }
+
+        decoder.setCalibration(null);
+        decoder.decode(packet, sink);
+        assertEquals(2, sink.rawOnly);
+        assertEquals(2, sink.forces.size());
+    }
+
+    // independent of FsrCalibration.evaluate so a mistake there is caught
+    private static double polynomial(double[] coefficients, int raw){
+        double value = 0;
+        for(int i = 0; i < coefficients.length; i++){
+            value += coefficients[i] * Math.pow(raw, i);
+        }
+        return value;
+    }
+
+    private static void assertClose(double expected, float actual){
+        assertEquals(expected, actual, Math.max(Math.abs(expected), 1) * TOLERANCE);
+    }
+
+    // force curves of the shape the bench calibration produces, up to cubic
+    private static double[][] randomPolynomials(Random random){
+        double[][] polynomials = new double[CHANNELS][];
+        for(int c = 0; c < CHANNELS; c++){
+            int order = random.nextInt(4);
+            polynomials[c] = new double[order + 1];
+            double scale = 1;
+            for(int i = 0; i <= order; i++){
+                polynomials[c][i] = (random.nextDouble() * 2 - 1) * 10 * scale;
+                scale /= 255;
+            }
+        }
+        return polynomials;
+    }
+
+    private static byte[] fsrPacket(int time, int samples, Random random){
+        byte[] packet = new byte[5 + samples * CHANNELS];
+        packet[0] = (byte) DaqBleManager.HEADER_FSR;
+        packet[1] = (byte) (time >> 24);
+        packet[2] = (byte) (time >> 16);
+        packet[3] = (byte) (time >> 8);
+        packet[4] = (byte) time;
+        for(int i = 5; i < packet.length; i++){
+            packet[i] = (byte) random.nextInt(256);
+        }
+        return packet;
+    }
+
+    private static class RecordingSink implements DaqBleManager.CypressInterface, DaqBleManager.CalibratedFsrInterface {
+        final List<Integer> times = new ArrayList<Integer>();
+        final List<int[]> raws = new ArrayList<int[]>();
+        final List<float[]> forces = new ArrayList<float[]>();
+        int rawOnly = 0;
+
+        @Override
+        public void fsrForceRecieved(int time, int[] data, float[] force) {
+            times.add(time);
+            raws.add(data.clone());
+            forces.add(force.clone());
+        }
+
+        @Override
+        public void fsrDataRecieved(int time, int[] data) {
+            rawOnly++;
+        }
+
+        @Override
+        public void bleConnectionStateUpdate(int state) {
+        }
+
+        @Override
+        public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+        }
+
+        @Override
+        public void uartDataRecieved(String data) {
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives LinkProbe with a recording sender and a manually advanced clock
+ */
+public class LinkProbeTest {
+    private static final long TIMEOUT = 2000;
+
+    private FakeTimer timer;
+    private List<String> sent;
+    private List<Long> roundTrips;
+    private List<Long> stalls;
+    private LinkProbe probe;
+
+    @Before
+    public void setUp() {
+        timer = new FakeTimer();
+        sent = new ArrayList<String>();
+        roundTrips = new ArrayList<Long>();
+        stalls = new ArrayList<Long>();
+        probe = new LinkProbe(new LinkProbe.Sender() {
+            @Override
+            public void send(String command) {
+                sent.add(command);
+            }
+        }, timer, new LatencyHistogram(), LinkProbe.DEFAULT_COMMAND, LinkProbe.DEFAULT_REPLY, TIMEOUT);
+        probe.setListener(new LinkProbe.Listener() {
+            @Override
+            public void onRoundTrip(long round_trip_nanos) {
+                roundTrips.add(round_trip_nanos);
+            }
+
+            @Override
+            public void onStall(long waited_nanos) {
+                stalls.add(waited_nanos);
+            }
+        });
+    }
+
+    @Test
+    public void matchesRepliesSplitOverNotifications() {
+        // uart text without a probe in flight is not a reply
+        probe.onUartData("$info,1,2;", 10);
+        assertEquals(0, probe.getReplyCount());
+
+        assertTrue(probe.probe());
+        assertEquals(1, sent.size());
+        assertEquals(LinkProbe.DEFAULT_COMMAND, sent.get(0));
+        assertEquals(1, timer.pending());
+
+        probe.onUartData("F,1,2,3;$in", 100);
+        assertEquals(0, probe.getReplyCount());
+        probe.onUartData("fo,fw 1.2;", 250);
+        assertEquals(1, probe.getReplyCount());
+        assertEquals(1, roundTrips.size());
+        assertEquals(1, probe.getHistogram().getCount());
+        assertEquals(0, timer.pending());
+        assertFalse(probe.isStalled());
+
+        // a long run of other text before the reply
+        assertTrue(probe.probe());
+        for(int i = 0; i < 100; i++){
+            probe.onUartData("F,1,2,3,4,5,6,7,8,9,10;", 300);
+        }
+        probe.onUartData("$i", 400);
+        probe.onUartData("nfo;", 500);
+        assertEquals(2, probe.getReplyCount());
+        assertEquals(0, probe.getStallCount());
+    }
+
+    @Test
+    public void refusesProbesWhileOneIsInFlight() {
+        assertTrue(probe.probe());
+        assertFalse(probe.probe());
+        assertEquals(1, sent.size());
+        assertEquals(1, probe.getProbeCount());
+        probe.onUartData("$info;", 100);
+        assertTrue(probe.probe());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void reportsStallsAndRecovers() {
+        assertTrue(probe.probe());
+        timer.advance(TIMEOUT - 1);
+        assertFalse(probe.isStalled());
+        assertTrue(stalls.isEmpty());
+        timer.advance(1);
+        assertTrue(probe.isStalled());
+        assertEquals(1, stalls.size());
+        assertEquals(1, probe.getStallCount());
+
+        // the late reply of the stalled probe is not counted
+        probe.onUartData("$info;", 100);
+        assertEquals(0, probe.getReplyCount());
+        assertTrue(probe.isStalled());
+
+        assertTrue(probe.probe());
+        probe.onUartData("$info;", 200);
+        assertFalse(probe.isStalled());
+        assertEquals(1, probe.getReplyCount());
+        timer.advance(TIMEOUT * 2);
+        assertEquals(1, stalls.size());
+    }
+
+    @Test
+    public void probeSentDuringReplyKeepsItsStallCheck() {
+        assertTrue(probe.probe());
+        // the periodic probe runs after the reply released the lock and before its check is removed
+        timer.beforeRemove = new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(probe.probe());
+            }
+        };
+        probe.onUartData("$info;", 100);
+        assertEquals(1, probe.getReplyCount());
+        assertEquals(2, probe.getProbeCount());
+        assertEquals(1, timer.pending());
+
+        // the second probe's reply is lost, its check still fires and frees the probe
+        timer.advance(TIMEOUT);
+        assertEquals(1, probe.getStallCount());
+        assertTrue(probe.probe());
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void staleStallCheckIgnoresLaterProbe() {
+        assertTrue(probe.probe());
+        Runnable first = timer.tasks.get(0).runnable;
+        probe.onUartData("$info;", 100);
+        assertTrue(probe.probe());
+
+        // the first probe's check was already running when its reply arrived
+        first.run();
+        assertEquals(0, probe.getStallCount());
+        assertFalse(probe.isStalled());
+        probe.onUartData("$info;", 200);
+        assertEquals(2, probe.getReplyCount());
+    }
+
+    @Test
+    public void probesPeriodicallyUntilStopped() {
+        probe.start(500);
+        timer.advance(0);
+        assertEquals(1, sent.size());
+        probe.onUartData("$info;", 100);
+        timer.advance(500);
+        assertEquals(2, sent.size());
+        // no reply, the next periods find the probe in flight until it stalls
+        timer.advance(1500);
+        assertEquals(2, sent.size());
+        timer.advance(500);
+        assertEquals(1, probe.getStallCount());
+        assertEquals(3, sent.size());
+        probe.onUartData("$info;", 100);
+
+        probe.stop();
+        timer.advance(5000);
+        assertEquals(3, sent.size());
+        assertEquals(0, timer.pending());
+    }
+
+    private static class FakeTimer implements ScanScheduler.Timer {
+        private static class Task {
+            final Runnable runnable;
+            final long due;
+
+            Task(Runnable runnable, long due) {
+                this.runnable = runnable;
+                this.due = due;
+            }
+        }
+
+        private final List<Task> tasks = new ArrayList<Task>();
+        private long now = 0;
+        // runs once at the next removeCallbacks, before the task is removed
+        Runnable beforeRemove = null;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(new Task(task, now + delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            if (beforeRemove != null) {
+                Runnable hook = beforeRemove;
+                beforeRemove = null;
+                hook.run();
+            }
+            Iterator<Task> it = tasks.iterator();
+            while (it.hasNext()) {
+                if (it.next().runnable == task) {
+                    it.remove();
+                }
+            }
+        }
+
+        int pending() {
+            return tasks.size();
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (true) {
+                Task next = null;
+                for (Task t : tasks) {
+                    if (t.due <= end && (next == null || t.due < next.due)) {
+                        next = t;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                now = next.due;
+                next.runnable.run();
+            }
+            now = end;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the packet decoders and their registry in DaqBleManager: single and multi sample
+ * packets, the stamps of packed samples, unknown and malformed packets, and that single sample
+ * packets decode exactly as the original inline parser did
+ */
+public class PacketDecodersTest {
+    private DaqBleManager daq;
+    private RecordingCallback callback;
+
+    private static class RecordingCallback implements DaqBleManager.CypressInterface {
+        final List<Integer> fsrTimes = new ArrayList<Integer>();
+        final List<int[]> fsr = new ArrayList<int[]>();
+        final List<float[]> imu = new ArrayList<float[]>();
+        final List<String> uart = new ArrayList<String>();
+
+        @Override
+        public void bleConnectionStateUpdate(int state) {
+        }
+
+        @Override
+        public void fsrDataRecieved(int time, int[] data) {
+            fsrTimes.add(time);
+            fsr.add(data.clone());
+        }
+
+        @Override
+        public void imuDataRecieved(int time, float roll, float pitch, float yaw) {
+            imu.add(new float[]{roll, pitch, yaw});
+        }
+
+        @Override
+        public void uartDataRecieved(String data) {
+            uart.add(data);
+        }
+    }
+
+    // header, device time, then samples of 10 channels whose value is sample * 16 + channel
+    private static byte[] fsrPacket(int time, int samples){
+        byte[] packet = new byte[5 + samples * PacketDecoders.FSR_CHANNELS];
+        packet[0] = (byte) DaqBleManager.HEADER_FSR;
+        packet[1] = (byte) (time >>> 24);
+        packet[2] = (byte) (time >>> 16);
+        packet[3] = (byte) (time >>> 8);
+        packet[4] = (byte) time;
+        for(int s = 0; s < samples; s++){
+            for(int c = 0; c < PacketDecoders.FSR_CHANNELS; c++){
+                packet[5 + s * PacketDecoders.FSR_CHANNELS + c] = (byte) (s * 16 + c);
+            }
+        }
+        return packet;
+    }
+
+    @Before
+    public void setUp() {
+        daq = new DaqBleManager();
+        callback = new RecordingCallback();
+        daq.create(callback, null, null);
+    }
+
+    @Test
+    public void packedFsrSamplesAreStampedOnePeriodApart() {
+        daq.decodePacket(fsrPacket(1000, 3), 0);
+        assertEquals(3, callback.fsr.size());
+        // the default period is the default fsr delay of the device
+        assertEquals(Arrays.asList(1000, 1050, 1100), callback.fsrTimes);
+        for(int s = 0; s < 3; s++){
+            assertEquals(s * 16, callback.fsr.get(s)[0]);
+            assertEquals(s * 16 + 9, callback.fsr.get(s)[9]);
+        }
+
+        daq.setFsrDelay(10);
+        daq.decodePacket(fsrPacket(2000, 2), 0);
+        assertEquals(Arrays.asList(1000, 1050, 1100, 2000, 2010), callback.fsrTimes);
+        assertEquals(0, daq.getMalformedPacketCount());
+    }
+
+    @Test
+    public void packedImuSamplesAreDecodedInOrder() {
+        // yaw, roll, pitch little endian tenths of a degree: 12.3, -4.5, 90.0 then 0, 0, -180.0,
+        // delivered as roll, pitch, yaw
+        byte[] packet = {(byte) DaqBleManager.HEADER_IMU,
+                123, 0, (byte) 0xd3, (byte) 0xff, (byte) 0x84, 0x03,
+                0, 0, 0, 0, (byte) 0xf8, (byte) 0xf8};
+        daq.decodePacket(packet, 0);
+        assertEquals(2, callback.imu.size());
+        // whole degrees, the division is done on integers as the device format always was
+        assertArrayEquals(new float[]{-4, 90, 12}, callback.imu.get(0), 0);
+        assertArrayEquals(new float[]{0, -180, 0}, callback.imu.get(1), 0);
+    }
+
+    @Test
+    public void unknownAndMalformedPacketsAreCounted() {
+        daq.decodePacket(new byte[]{(byte) 0xa0, 1, 2}, 0);
+        daq.decodePacket(new byte[]{(byte) 0xa0}, 0);
+        // fsr with a partial sample, imu with a partial sample, fsr without any sample
+        daq.decodePacket(Arrays.copyOf(fsrPacket(0, 2), 5 + 15), 0);
+        daq.decodePacket(new byte[]{(byte) DaqBleManager.HEADER_IMU, 1, 2, 3}, 0);
+        daq.decodePacket(fsrPacket(0, 0), 0);
+        // empty notifications are ignored
+        daq.decodePacket(new byte[0], 0);
+
+        assertEquals(2, daq.getUnknownPacketCount(0xa0));
+        assertEquals(2, daq.getUnknownPacketCount());
+        assertEquals(3, daq.getMalformedPacketCount());
+        assertTrue(callback.fsr.isEmpty());
+        assertTrue(callback.imu.isEmpty());
+        assertTrue(callback.uart.isEmpty());
+    }
+
+    @Test
+    public void registeredDecoderReplacesDefault() {
+        final int[] seen = new int[1];
+        daq.registerDecoder(0xa0, new DaqBleManager.PacketDecoder() {
+            @Override
+            public boolean decode(byte[] packet, DaqBleManager.CypressInterface sink) {
+                seen[0] += packet.length;
+                return packet.length > 1;
+            }
+        });
+        daq.decodePacket(new byte[]{(byte) 0xa0, 1, 2}, 0);
+        daq.decodePacket(new byte[]{(byte) 0xa0}, 0);
+        assertEquals(4, seen[0]);
+        assertEquals(0, daq.getUnknownPacketCount());
+        assertEquals(1, daq.getMalformedPacketCount());
+
+        // unregistering the uart decoder of a header counts its text as unknown
+        daq.registerDecoder('$', null);
+        daq.decodePacket("$info;".getBytes(), 0);
+        assertEquals(1, daq.getUnknownPacketCount('$'));
+        assertTrue(callback.uart.isEmpty());
+    }
+
+    @Test
+    public void singleSamplePacketsMatchOriginalParser() {
+        Random random = new Random(3);
+        byte[] fsr = new byte[15];
+        byte[] imu = new byte[7];
+        byte[] text = new byte[20];
+        for(int i = 0; i < 10000; i++){
+            random.nextBytes(fsr);
+            fsr[0] = (byte) DaqBleManager.HEADER_FSR;
+            random.nextBytes(imu);
+            imu[0] = (byte) DaqBleManager.HEADER_IMU;
+            random.nextBytes(text);
+            text[0] &= 0x7f;
+
+            RecordingCallback original = new RecordingCallback();
+            OriginalParser.parse(fsr, original);
+            OriginalParser.parse(imu, original);
+            OriginalParser.parse(text, original);
+            daq.decodePacket(fsr, 0);
+            daq.decodePacket(imu, 0);
+            daq.decodePacket(text, 0);
+
+            assertEquals(original.fsrTimes.get(0), callback.fsrTimes.get(i));
+            assertArrayEquals(original.fsr.get(0), callback.fsr.get(i));
+            float[] expected = original.imu.get(0);
+            float[] actual = callback.imu.get(i);
+            for(int k = 0; k < 3; k++){
+                assertEquals(Float.floatToRawIntBits(expected[k]), Float.floatToRawIntBits(actual[k]));
+            }
+            assertEquals(original.uart.get(0), callback.uart.get(i));
+        }
+    }
+
+    // the parser DaqBleManager had inline before decoders were registered by header
+    private static class OriginalParser {
+        static void parse(byte[] data_raw, DaqBleManager.CypressInterface callback){
+            final int[] data = new int[data_raw.length];
+            for(int i = 0; i < data.length; i++){
+                data[i] = data_raw[i] & 0x00ff;
+            }
+            if(data[0] == ('F' | 0x80) && data.length == 15){
+                int time = 0;
+                time += (data[1] << 24) & 0xFF000000;
+                time += (data[2] << 16) & 0xFF0000;
+                time += (data[3] << 8) & 0xFF00;
+                time += (data[4]) & 0xFF;
+                callback.fsrDataRecieved(time, Arrays.copyOfRange(data, 5, 15));
+            }else if(data[0] == ('I' | 0x80) && data.length == 7){
+                float yaw =     ((data_raw[2] << 8) | (data[1] & 0x000000FF))/10;
+                float roll =    ((data_raw[4] << 8) | (data[3] & 0x000000FF))/10;
+                float pitch =   ((data_raw[6] << 8) | (data[5] & 0x000000FF))/10;
+                callback.imuDataRecieved(0, roll, pitch, yaw);
+            }else{
+                String parsed_data = "";
+                for(int i = 0; i < data.length; i++){
+                    parsed_data += ((char)data[i]);
+                }
+                callback.uartDataRecieved(parsed_data);
+            }
+        }
+    }
+}
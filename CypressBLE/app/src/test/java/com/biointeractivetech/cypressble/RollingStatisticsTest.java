@@ -0,0 +1,168 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RollingStatistics against statistics computed naively over the same windows, and reads
+ * racing the samples pushed
+ */
+public class RollingStatisticsTest {
+    private static final int[] WINDOWS = {1, 3, 7, 20};
+
+    // mean, variance, min and max of the last n samples before end, or NaN if there are none
+    private static double[] naive(double[][] history, int channel, int end, int window){
+        int n = Math.min(end, window);
+        if(n == 0){
+            return new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        }
+        double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(int i = end - n; i < end; i++){
+            double x = history[i][channel];
+            sum += x;
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+        }
+        double mean = sum / n;
+        double squares = 0;
+        for(int i = end - n; i < end; i++){
+            double d = history[i][channel] - mean;
+            squares += d * d;
+        }
+        return new double[]{mean, squares / n, min, max};
+    }
+
+    private static void assertMatches(RollingStatistics statistics, int stream, int channels,
+                                      double[][] history, int end){
+        double[] out = new double[channels * RollingStatistics.STATS];
+        for(int w = 0; w < WINDOWS.length; w++){
+            int n = statistics.read(stream, w, out);
+            assertEquals(Math.min(end, WINDOWS[w]), n);
+            for(int c = 0; c < channels; c++){
+                double[] expected = naive(history, c, end, WINDOWS[w]);
+                for(int s = 0; s < RollingStatistics.STATS; s++){
+                    String what = "sample " + end + " window " + WINDOWS[w] + " channel " + c + " stat " + s;
+                    double actual = out[c * RollingStatistics.STATS + s];
+                    if(Double.isNaN(expected[s])){
+                        assertTrue(what, Double.isNaN(actual));
+                    }else{
+                        // the running accumulators drift by rounding between recomputations
+                        assertEquals(what, expected[s], actual, 1e-6 * Math.max(1, Math.abs(expected[s])));
+                    }
+                    assertEquals(what, actual, statistics.get(stream, w, c, s), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fsrMatchesNaiveWindows() {
+        RollingStatistics statistics = new RollingStatistics(WINDOWS);
+        Random random = new Random(1);
+        int frames = 500;
+        double[][] history = new double[frames][RollingStatistics.FSR_CHANNELS];
+        int[] data = new int[RollingStatistics.FSR_CHANNELS];
+        assertMatches(statistics, RollingStatistics.STREAM_FSR, RollingStatistics.FSR_CHANNELS, history, 0);
+        for(int i = 0; i < frames; i++){
+            for(int c = 0; c < data.length; c++){
+                // few distinct values, so the deques see many ties
+                data[c] = c == 0 ? 100 : random.nextInt(c * 3 + 1) * 40;
+                history[i][c] = data[c];
+            }
+            statistics.fsrDataRecieved(i * 10, data);
+            assertMatches(statistics, RollingStatistics.STREAM_FSR, RollingStatistics.FSR_CHANNELS, history, i + 1);
+        }
+    }
+
+    @Test
+    public void imuMatchesNaiveWindows() {
+        RollingStatistics statistics = new RollingStatistics(WINDOWS);
+        Random random = new Random(2);
+        int frames = 500;
+        double[][] history = new double[frames][RollingStatistics.IMU_CHANNELS];
+        for(int i = 0; i < frames; i++){
+            // a slow ramp with noise, rising and falling runs exercise both deques
+            float roll = (float) (Math.sin(i * 0.05) * 90 + random.nextGaussian());
+            float pitch = (float) (i * 0.5 - 100);
+            float yaw = (float) (-i * 0.25 + random.nextInt(5));
+            history[i][SensorWindowFeeder.IMU_ROLL] = roll;
+            history[i][SensorWindowFeeder.IMU_PITCH] = pitch;
+            history[i][SensorWindowFeeder.IMU_YAW] = yaw;
+            statistics.imuDataRecieved(0, roll, pitch, yaw);
+            assertMatches(statistics, RollingStatistics.STREAM_IMU, RollingStatistics.IMU_CHANNELS, history, i + 1);
+        }
+        // the fsr stream is kept apart
+        assertTrue(Double.isNaN(statistics.get(RollingStatistics.STREAM_FSR, 0, 0, RollingStatistics.STAT_MEAN)));
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        RollingStatistics statistics = new RollingStatistics(WINDOWS);
+        for(int i = 0; i < 30; i++){
+            statistics.imuDataRecieved(0, i, i, i);
+        }
+        statistics.reset();
+        double[] out = new double[RollingStatistics.IMU_CHANNELS * RollingStatistics.STATS];
+        assertEquals(0, statistics.read(RollingStatistics.STREAM_IMU, 3, out));
+        assertTrue(Double.isNaN(out[RollingStatistics.STAT_MEAN]));
+
+        statistics.imuDataRecieved(0, 5, 5, 5);
+        assertEquals(1, statistics.read(RollingStatistics.STREAM_IMU, 3, out));
+        assertEquals(5, out[RollingStatistics.STAT_MIN], 0);
+        assertEquals(5, out[RollingStatistics.STAT_MAX], 0);
+        assertEquals(0, out[RollingStatistics.STAT_VARIANCE], 0);
+    }
+
+    @Test
+    public void readRacingPushSeesWholeSamples() throws Exception {
+        final RollingStatistics statistics = new RollingStatistics(WINDOWS);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int window = WINDOWS.length - 1;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] out = new double[RollingStatistics.FSR_CHANNELS * RollingStatistics.STATS];
+                while(!done.get() && failure.get() == null){
+                    int n = statistics.read(RollingStatistics.STREAM_FSR, window, out);
+                    if(n == 0){
+                        continue;
+                    }
+                    // sample i holds i on every channel, so a consistent copy covers n
+                    // consecutive values and every channel agrees
+                    double min = out[RollingStatistics.STAT_MIN];
+                    double max = out[RollingStatistics.STAT_MAX];
+                    if(max - min != n - 1 || Math.abs(out[RollingStatistics.STAT_MEAN] - (min + max) / 2) > 1e-6){
+                        failure.set("window of " + n + " samples from " + min + " to " + max
+                                + " with mean " + out[RollingStatistics.STAT_MEAN]);
+                    }
+                    for(int c = 1; c < RollingStatistics.FSR_CHANNELS; c++){
+                        for(int s = 0; s < RollingStatistics.STATS; s++){
+                            if(out[c * RollingStatistics.STATS + s] != out[s]){
+                                failure.set("channel " + c + " differs from channel 0 at sample " + max);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        int[] data = new int[RollingStatistics.FSR_CHANNELS];
+        try{
+            for(int i = 0; i < 200000 && failure.get() == null; i++){
+                Arrays.fill(data, i);
+                statistics.fsrDataRecieved(i, data);
+            }
+        }finally{
+            done.set(true);
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+}
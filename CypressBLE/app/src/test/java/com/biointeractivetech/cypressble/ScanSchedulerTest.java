@@ -0,0 +1,283 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives ScanScheduler with a fake radio and a manually advanced clock
+ */
+public class ScanSchedulerTest {
+    private static final long WINDOW = 1000;
+    private static final long IDLE_MIN = 500;
+    private static final long IDLE_MAX = 2000;
+    private static final long TIMEOUT = 30000;
+
+    private FakeTimer timer;
+    private FakeAdvertisementSource radio;
+    private List<String> found;
+    private List<Boolean> states;
+    private ScanScheduler<String> scheduler;
+
+    @Before
+    public void setUp() {
+        timer = new FakeTimer();
+        radio = new FakeAdvertisementSource();
+        found = new ArrayList<String>();
+        states = new ArrayList<Boolean>();
+        scheduler = new ScanScheduler<String>(radio, timer, new ScanScheduler.Listener<String>() {
+            @Override
+            public void onDeviceFound(String device, String address, int rssi) {
+                found.add(address);
+            }
+
+            @Override
+            public void onScanStateChanged(boolean active) {
+                states.add(active);
+            }
+        }, WINDOW, IDLE_MIN, IDLE_MAX, TIMEOUT);
+    }
+
+    @Test
+    public void filterMatchesHabitServiceUuid() {
+        assertTrue(ScanRecordFilter.isHabitDevice(habitRecord()));
+        assertFalse(ScanRecordFilter.isHabitDevice(otherRecord()));
+        assertFalse(ScanRecordFilter.isHabitDevice(new byte[0]));
+        assertFalse(ScanRecordFilter.isHabitDevice(new byte[]{17, 7, 0x31, 0x1}));
+    }
+
+    @Test
+    public void reportsEachMatchingDeviceOnce() {
+        scheduler.start();
+        radio.advertise("AA", habitRecord());
+        radio.advertise("AA", habitRecord());
+        radio.advertise("BB", otherRecord());
+        radio.advertise("CC", habitRecord());
+        radio.advertise("BB", habitRecord());
+
+        assertEquals(2, found.size());
+        assertEquals("AA", found.get(0));
+        assertEquals("CC", found.get(1));
+    }
+
+    @Test
+    public void alternatesScanAndIdleWindowsWithBackoff() {
+        scheduler.start();
+        assertTrue(radio.scanning);
+
+        timer.advance(WINDOW);
+        assertFalse(radio.scanning);
+        timer.advance(IDLE_MIN * 2 - 1);
+        assertFalse(radio.scanning);
+        timer.advance(1);
+        assertTrue(radio.scanning);
+
+        // a window that finds a device resets the idle time
+        radio.advertise("AA", habitRecord());
+        timer.advance(WINDOW);
+        assertFalse(radio.scanning);
+        timer.advance(IDLE_MIN);
+        assertTrue(radio.scanning);
+
+        // quiet windows never idle longer than the maximum
+        long[] expectedIdle = {IDLE_MIN * 2, IDLE_MIN * 4, IDLE_MAX, IDLE_MAX};
+        for (long idle : expectedIdle) {
+            timer.advance(WINDOW);
+            assertFalse(radio.scanning);
+            timer.advance(idle - 1);
+            assertFalse(radio.scanning);
+            timer.advance(1);
+            assertTrue(radio.scanning);
+        }
+        assertTrue(scheduler.isActive());
+    }
+
+    @Test
+    public void ignoresAdvertisementsWhileIdle() {
+        scheduler.start();
+        timer.advance(WINDOW);
+        radio.deliver("AA", habitRecord());
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void stopsEarlyWhenExpectedDevicesFound() {
+        scheduler.setExpectedDevices(2);
+        scheduler.start();
+        radio.advertise("AA", habitRecord());
+        assertTrue(scheduler.isActive());
+        radio.advertise("BB", habitRecord());
+
+        assertFalse(scheduler.isActive());
+        assertFalse(radio.scanning);
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void stopsOnlyOnceExpectedAddressesFound() {
+        scheduler.setExpectedAddresses(Arrays.asList("AA", "BB"));
+        scheduler.start();
+        radio.advertise("CC", habitRecord());
+        radio.advertise("DD", habitRecord());
+        radio.advertise("AA", habitRecord());
+        assertTrue(scheduler.isActive());
+        // a remembered device is reported even if its record lacks the service uuid
+        radio.advertise("BB", otherRecord());
+
+        assertFalse(scheduler.isActive());
+        assertEquals(Arrays.asList("CC", "DD", "AA", "BB"), found);
+    }
+
+    @Test
+    public void stopsWhenTargetSeenEvenWithoutServiceUuid() {
+        scheduler.setTargetAddress("BB");
+        scheduler.start();
+        radio.advertise("AA", otherRecord());
+        assertTrue(scheduler.isActive());
+        radio.advertise("BB", otherRecord());
+
+        assertFalse(scheduler.isActive());
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void timesOutAfterSessionPeriod() {
+        scheduler.start();
+        timer.advance(TIMEOUT);
+        assertFalse(scheduler.isActive());
+        assertFalse(radio.scanning);
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void restartCancelsEarlierSession() {
+        for (int i = 0; i < 5; i++) {
+            scheduler.start();
+            timer.advance(WINDOW / 2);
+        }
+        // one timeout and one window callback, not one per restart
+        assertEquals(2, timer.pending());
+        timer.advance(TIMEOUT - WINDOW / 2 - 1);
+        assertTrue(scheduler.isActive());
+        timer.advance(1);
+        assertFalse(scheduler.isActive());
+
+        assertFalse(radio.scanning);
+        assertEquals(radio.starts, radio.stops);
+        assertEquals(Boolean.TRUE, states.get(0));
+        assertEquals(Boolean.FALSE, states.get(states.size() - 1));
+        assertEquals(2, states.size());
+    }
+
+    @Test
+    public void stopCancelsPendingCallbacks() {
+        scheduler.start();
+        scheduler.stop();
+        assertEquals(0, timer.pending());
+        assertFalse(radio.scanning);
+        timer.advance(TIMEOUT * 2);
+        assertFalse(radio.scanning);
+        assertEquals(1, radio.starts);
+    }
+
+    private static byte[] habitRecord() {
+        return new byte[]{
+                2, 1, 6,
+                17, 7, 0x31, 0x1, (byte) 0x9b, 0x5f, (byte) 0x80, 0x0, 0x0, (byte) 0x80,
+                0x0, 0x10, 0x0, 0x0, (byte) 0xd0, (byte) 0xcd, 0x3, 0x0,
+                0, 0};
+    }
+
+    private static byte[] otherRecord() {
+        return new byte[]{2, 1, 6, 3, 3, 0x0d, 0x18, 0, 0};
+    }
+
+    private class FakeAdvertisementSource implements ScanScheduler.AdvertisementSource {
+        boolean scanning;
+        int starts;
+        int stops;
+
+        @Override
+        public void startScan() {
+            assertFalse(scanning);
+            scanning = true;
+            starts++;
+        }
+
+        @Override
+        public void stopScan() {
+            assertTrue(scanning);
+            scanning = false;
+            stops++;
+        }
+
+        void advertise(String address, byte[] record) {
+            assertTrue(scanning);
+            deliver(address, record);
+        }
+
+        // a late advertisement can still arrive after the radio was stopped
+        void deliver(String address, byte[] record) {
+            scheduler.onAdvertisement(address, address, -60, record);
+        }
+    }
+
+    private static class FakeTimer implements ScanScheduler.Timer {
+        private static class Task {
+            final Runnable runnable;
+            final long due;
+
+            Task(Runnable runnable, long due) {
+                this.runnable = runnable;
+                this.due = due;
+            }
+        }
+
+        private final List<Task> tasks = new ArrayList<Task>();
+        private long now = 0;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(new Task(task, now + delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            Iterator<Task> it = tasks.iterator();
+            while (it.hasNext()) {
+                if (it.next().runnable == task) {
+                    it.remove();
+                }
+            }
+        }
+
+        int pending() {
+            return tasks.size();
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (true) {
+                Task next = null;
+                for (Task t : tasks) {
+                    if (t.due <= end && (next == null || t.due < next.due)) {
+                        next = t;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                now = next.due;
+                next.runnable.run();
+            }
+            now = end;
+        }
+    }
+}
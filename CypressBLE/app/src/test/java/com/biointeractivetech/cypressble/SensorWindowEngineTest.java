@@ -0,0 +1,153 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks window scheduling, features, validity and dropping of SensorWindowEngine, and the
+ * timebase SensorWindowFeeder stamps the service streams with
+ */
+public class SensorWindowEngineTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // holds the windows until the test runs them, like a listener falling behind
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+    }
+
+    private static class RecordingListener implements SensorWindowEngine.WindowListener {
+        final List<Long> starts = new ArrayList<Long>();
+        final List<Double> means = new ArrayList<Double>();
+        final List<Double> variances = new ArrayList<Double>();
+        final List<float[]> copies = new ArrayList<float[]>();
+        final List<Long> firstTimes = new ArrayList<Long>();
+        final List<Boolean> valid = new ArrayList<Boolean>();
+
+        @Override
+        public void onWindow(SensorWindow window) {
+            starts.add(window.getStartIndex());
+            means.add(window.getMean(0));
+            variances.add(window.getVariance(0));
+            float[] copy = new float[window.getLength()];
+            window.copyChannel(0, copy, 0);
+            copies.add(copy);
+            firstTimes.add(window.getTime(0));
+            valid.add(window.isValid());
+        }
+    }
+
+    // sample i has the value i and the time 1000 + i * 10
+    private static void feed(SensorWindowEngine engine, int from, int to){
+        for(int i = from; i < to; i++){
+            engine.push(1000 + i * 10, new float[]{i});
+        }
+    }
+
+    @Test
+    public void windowsFollowHopWithFeaturesOfTheirSamples() {
+        RecordingListener listener = new RecordingListener();
+        SensorWindowEngine engine = new SensorWindowEngine(1, 8, DIRECT);
+        engine.addWindow(4, 2, listener);
+        feed(engine, 0, 12);
+
+        assertEquals(5, listener.starts.size());
+        for(int w = 0; w < 5; w++){
+            long start = w * 2;
+            assertEquals(start, (long) listener.starts.get(w));
+            assertEquals(start + 1.5, listener.means.get(w), 1e-9);
+            // population variance of four consecutive integers
+            assertEquals(1.25, listener.variances.get(w), 1e-9);
+            assertEquals(1000 + start * 10, (long) listener.firstTimes.get(w));
+            assertTrue(listener.valid.get(w));
+        }
+        // the last window wraps around the end of the ring
+        assertArrayEquals(new float[]{8, 9, 10, 11}, listener.copies.get(4), 0);
+        assertEquals(0, engine.getDroppedWindows());
+    }
+
+    @Test
+    public void windowOverwrittenBeforeItIsReadIsInvalid() {
+        RecordingListener listener = new RecordingListener();
+        QueuedExecutor executor = new QueuedExecutor();
+        SensorWindowEngine engine = new SensorWindowEngine(1, 8, executor);
+        engine.addWindow(4, 4, listener);
+        feed(engine, 0, 4);
+        executor.queued.remove(0).run();
+        assertTrue(listener.valid.get(0));
+
+        // the second window is read only after the producer wrapped into it
+        feed(engine, 4, 8);
+        feed(engine, 8, 11);
+        executor.queued.remove(0).run();
+        assertEquals(4L, (long) listener.starts.get(1));
+        assertFalse(listener.valid.get(1));
+    }
+
+    @Test
+    public void windowsOfBusyListenerAreDropped() {
+        RecordingListener listener = new RecordingListener();
+        QueuedExecutor executor = new QueuedExecutor();
+        SensorWindowEngine engine = new SensorWindowEngine(1, 16, executor);
+        engine.addWindow(1, 1, listener);
+        feed(engine, 0, 6);
+        // every view is still waiting for the listener
+        assertEquals(4, executor.queued.size());
+        assertEquals(2, engine.getDroppedWindows());
+
+        for(Runnable window : executor.queued){
+            window.run();
+        }
+        executor.queued.clear();
+        feed(engine, 6, 7);
+        assertEquals(1, executor.queued.size());
+        assertEquals(2, engine.getDroppedWindows());
+    }
+
+    @Test
+    public void feederStampsFsrAndImuWithArrivalTime() {
+        BluetoothLeService service = new BluetoothLeService();
+        service.daqManager.create(service, null, null);
+        service.setBroadcastFrames(false);
+        RecordingListener fsr = new RecordingListener();
+        RecordingListener imu = new RecordingListener();
+        SensorWindowEngine fsrEngine = new SensorWindowEngine(SensorWindowFeeder.FSR_CHANNELS, 8, DIRECT);
+        fsrEngine.addWindow(1, 1, fsr);
+        SensorWindowEngine imuEngine = new SensorWindowEngine(SensorWindowFeeder.IMU_CHANNELS, 8, DIRECT);
+        imuEngine.addWindow(1, 1, imu);
+        service.setSensorWindows(fsrEngine, imuEngine);
+
+        // one fsr frame at a device time unrelated to the host clock
+        byte[] fsrPacket = new byte[15];
+        fsrPacket[0] = (byte) ('F' | 0x80);
+        fsrPacket[2] = 0x6a;
+        fsrPacket[5] = 0x01;
+        byte[] imuPacket = {(byte) ('I' | 0x80), 0x10, 0x01, 0x20, 0x00, (byte) 0xf0, (byte) 0xff};
+        service.daqManager.decodePacket(fsrPacket, 5000000000L);
+        service.daqManager.decodePacket(imuPacket, 5004000000L);
+
+        assertEquals(1, fsr.firstTimes.size());
+        assertEquals(5000L, (long) fsr.firstTimes.get(0));
+        assertEquals(1, imu.firstTimes.size());
+        assertEquals(5004L, (long) imu.firstTimes.get(0));
+
+        // replaced engines are no longer fed
+        service.setSensorWindows(null, null);
+        service.daqManager.decodePacket(fsrPacket, 5010000000L);
+        assertEquals(1, fsr.firstTimes.size());
+    }
+}
@@ -0,0 +1,192 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that summarising a session in parallel segments gives the features of a single pass,
+ * and benchmarks the batch analysis at increasing parallelism.
+ *
+ * The benchmark writes a JSON report with the time and speedup per worker count. Tune with
+ * -Dbatch.frames (frames per session), -Dbatch.minSpeedup (speedup required on all cores, not
+ * checked by default as build machines may have a single core) and -Dbatch.report (report path).
+ */
+public class SessionBatchAnalyzerTest {
+    private static final int SESSIONS = 8;
+    // gait cycle of a synthetic walk at 100 fsr frames per second
+    private static final int CYCLE = 100;
+    private static final int STANCE = 60;
+
+    private final int framesPerSession = Integer.getInteger("batch.frames", 100000);
+    private final double minSpeedup = Double.parseDouble(System.getProperty("batch.minSpeedup", "0"));
+    private final String reportPath = System.getProperty("batch.report", "build/reports/benchmark/session-batch.json");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void segmentedSummaryMatchesSinglePass() throws IOException {
+        File session = writeSession(folder.newFile("walk.hbs"), 50000, new Random(43));
+
+        final SessionFeatures expected = new SessionFeatures();
+        SessionReader reader = new SessionReader(session);
+        try{
+            reader.readByHostTime(Long.MIN_VALUE, Long.MAX_VALUE, new SessionReader.FrameVisitor() {
+                @Override
+                public void onFsr(long device_time, long host_micros, int[] data) {
+                    expected.addFsr(host_micros, data);
+                }
+
+                @Override
+                public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                    expected.addImu(host_micros, roll, pitch, yaw);
+                }
+            });
+        }finally{
+            reader.close();
+        }
+        assertEquals(50000 / CYCLE, expected.getStepCount());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try{
+            // one index entry per segment puts many boundaries in the middle of a step
+            for(int entries : new int[]{1, 3, SessionBatchAnalyzer.DEFAULT_SEGMENT_ENTRIES}){
+                assertSame(expected, new SessionBatchAnalyzer(pool, entries).analyze(session));
+            }
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelAnalysisScalesWithWorkers() throws IOException {
+        Random random = new Random(44);
+        List<File> sessions = new ArrayList<File>();
+        for(int i = 0; i < SESSIONS; i++){
+            sessions.add(writeSession(folder.newFile("session-" + i + ".hbs"), framesPerSession, random));
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> workers = new ArrayList<Integer>();
+        for(int n = 1; n < cores; n *= 2){
+            workers.add(n);
+        }
+        workers.add(cores);
+
+        List<SessionFeatures> reference = null;
+        double[] seconds = new double[workers.size()];
+        for(int w = 0; w < workers.size(); w++){
+            ForkJoinPool pool = new ForkJoinPool(workers.get(w));
+            try{
+                SessionBatchAnalyzer analyzer = new SessionBatchAnalyzer(pool, SessionBatchAnalyzer.DEFAULT_SEGMENT_ENTRIES);
+                // the first run warms up the jit and the page cache, best of the rest counts
+                analyzer.analyze(sessions);
+                seconds[w] = Double.MAX_VALUE;
+                for(int run = 0; run < 3; run++){
+                    long start = System.nanoTime();
+                    List<SessionFeatures> results = analyzer.analyze(sessions);
+                    seconds[w] = Math.min(seconds[w], (System.nanoTime() - start) / 1e9);
+                    if(reference == null){
+                        reference = results;
+                    }
+                    for(int i = 0; i < SESSIONS; i++){
+                        assertSame(reference.get(i), results.get(i));
+                    }
+                }
+            }finally{
+                pool.shutdown();
+            }
+        }
+
+        double speedup = seconds[0] / seconds[workers.size() - 1];
+        writeReport(workers, seconds, cores);
+        assertTrue(String.format(Locale.US, "speedup %.2f on %d cores, required %.2f", speedup, cores, minSpeedup),
+                speedup >= minSpeedup);
+    }
+
+    private static void assertSame(SessionFeatures expected, SessionFeatures actual){
+        assertEquals(expected.getFsrFrameCount(), actual.getFsrFrameCount());
+        assertEquals(expected.getImuFrameCount(), actual.getImuFrameCount());
+        assertEquals(expected.getDuration(), actual.getDuration());
+        assertEquals(expected.getStepCount(), actual.getStepCount());
+        assertEquals(expected.getPeakLoad(), actual.getPeakLoad(), 0);
+        assertEquals(expected.getPeakLoadTime(), actual.getPeakLoadTime());
+        for(int c = 0; c <= SessionFeatures.FSR_CHANNELS; c++){
+            assertEquals(expected.getFsrMin(c), actual.getFsrMin(c), 0);
+            assertEquals(expected.getFsrMax(c), actual.getFsrMax(c), 0);
+            assertEquals(expected.getFsrMean(c), actual.getFsrMean(c), 1e-9 * Math.abs(expected.getFsrMean(c)));
+            assertEquals(expected.getFsrVariance(c), actual.getFsrVariance(c), 1e-9 * expected.getFsrVariance(c));
+        }
+        for(int a = 0; a < SessionFeatures.IMU_CHANNELS; a++){
+            assertEquals(expected.getImuMin(a), actual.getImuMin(a), 0);
+            assertEquals(expected.getImuMax(a), actual.getImuMax(a), 0);
+            assertEquals(expected.getImuMean(a), actual.getImuMean(a), 1e-9);
+            assertEquals(expected.getImuVariance(a), actual.getImuVariance(a), 1e-9 * expected.getImuVariance(a));
+        }
+    }
+
+    // a walk: each cycle loads the foot for STANCE frames, with an imu frame every other fsr frame
+    private static File writeSession(File file, int fsr_frames, Random random) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file);
+        try{
+            int[] data = new int[SessionFeatures.FSR_CHANNELS];
+            for(int i = 0; i < fsr_frames; i++){
+                boolean stance = i % CYCLE < STANCE;
+                for(int c = 0; c < data.length; c++){
+                    data[c] = stance ? 70 + random.nextInt(60) : random.nextInt(10);
+                }
+                long host = i * 10000L;
+                recorder.writeFsr(i * 10, host, data);
+                if(i % 2 == 0){
+                    recorder.writeImu(host + 5000, (float) random.nextGaussian() * 5,
+                            (float) random.nextGaussian() * 5, (float) (i % 3600) / 10);
+                }
+            }
+        }finally{
+            recorder.close();
+        }
+        return file;
+    }
+
+    private void writeReport(List<Integer> workers, double[] seconds, int cores) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"suite\": \"session batch analysis\",\n");
+        sb.append("  \"sessions\": ").append(SESSIONS).append(",\n");
+        sb.append("  \"fsr frames per session\": ").append(framesPerSession).append(",\n");
+        sb.append("  \"cores\": ").append(cores).append(",\n");
+        sb.append("  \"runs\": [\n");
+        for(int w = 0; w < workers.size(); w++){
+            sb.append(String.format(Locale.US,
+                    "    {\"workers\": %d, \"seconds\": %.3f, \"frames per second\": %.0f, \"speedup\": %.2f}",
+                    workers.get(w), seconds[w], SESSIONS * framesPerSession * 1.5 / seconds[w], seconds[0] / seconds[w]));
+            sb.append(w + 1 < workers.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+
+        File report = new File(reportPath);
+        File dir = report.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs()){
+            throw new IOException("cannot create " + dir);
+        }
+        FileWriter writer = new FileWriter(report);
+        try{
+            writer.write(sb.toString());
+        }finally{
+            writer.close();
+        }
+        System.out.print(sb);
+    }
+}
@@ -0,0 +1,302 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks range reads of a recorded session against a scan of every frame written, for spans
+ * starting and ending on and around the index entries, and the index rebuilt from the session
+ * against the one written while recording
+ */
+public class SessionReaderTest {
+    // fsr frames at 100 Hz with an imu frame after every fourth, about 12 index entries
+    private static final int FSR_FRAMES = 2500;
+    private static final int IMU_EVERY = 4;
+    private static final int DEVICE_START = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // device time, host time and fsr channel 0 or -1 for imu, per frame in file order
+    private final List<long[]> written = new ArrayList<long[]>();
+
+    // host time of fsr frame i, some frames are stamped up to 20 frames late, all within a block
+    private static long host(int i, long step_back){
+        long host = 1000000L + i * 10000L + (i % 13 == 5 ? 200000 : 0);
+        return host - step_back;
+    }
+
+    private File record(String name, int step_at, long step_back) throws IOException {
+        File file = folder.newFile(name);
+        written.clear();
+        SessionRecorder recorder = new SessionRecorder(file);
+        int[] data = new int[SessionIndex.FSR_CHANNELS];
+        for(int i = 0; i < FSR_FRAMES; i++){
+            long back = i >= step_at ? step_back : 0;
+            int deviceTime = DEVICE_START + i * 10;
+            data[0] = i;
+            recorder.writeFsr(deviceTime, host(i, back), data);
+            written.add(new long[]{deviceTime, host(i, back), i});
+            if(i % IMU_EVERY == 0){
+                recorder.writeImu(host(i, back) + 5000, i, 0, 0);
+                written.add(new long[]{deviceTime, host(i, back) + 5000, -1});
+            }
+        }
+        recorder.close();
+        return file;
+    }
+
+    private List<long[]> expected(boolean by_device_time, long from, long to){
+        List<long[]> frames = new ArrayList<long[]>();
+        for(long[] frame : written){
+            long key = by_device_time ? frame[0] : frame[1];
+            if(key >= from && key <= to){
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private static List<long[]> read(SessionReader reader, boolean by_device_time, long from, long to) throws IOException {
+        final List<long[]> frames = new ArrayList<long[]>();
+        SessionReader.FrameVisitor visitor = new SessionReader.FrameVisitor() {
+            @Override
+            public void onFsr(long device_time, long host_micros, int[] data) {
+                frames.add(new long[]{device_time, host_micros, data[0]});
+            }
+
+            @Override
+            public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                frames.add(new long[]{device_time, host_micros, -1});
+            }
+        };
+        int visited = by_device_time ? reader.readByDeviceTime(from, to, visitor) : reader.readByHostTime(from, to, visitor);
+        assertEquals(frames.size(), visited);
+        return frames;
+    }
+
+    private void assertRange(SessionReader reader, boolean by_device_time, long from, long to) throws IOException {
+        List<long[]> expected = expected(by_device_time, from, to);
+        List<long[]> actual = read(reader, by_device_time, from, to);
+        String span = (by_device_time ? "device " : "host ") + from + ".." + to;
+        assertEquals(span, expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertArrayEquals(span, expected.get(i), actual.get(i));
+        }
+    }
+
+    private void assertSubset(SessionReader reader, boolean by_device_time, long from, long to) throws IOException {
+        List<long[]> expected = expected(by_device_time, from, to);
+        List<long[]> actual = read(reader, by_device_time, from, to);
+        int at = 0;
+        for(long[] frame : actual){
+            while(at < expected.size() && expected.get(at)[2] != frame[2]){
+                at++;
+            }
+            assertTrue(at < expected.size());
+            assertArrayEquals(expected.get(at), frame);
+            at++;
+        }
+    }
+
+    // key of the frame an index entry points at
+    private long entryKey(int entry, boolean by_device_time){
+        long[] frame = written.get(entry * SessionIndex.INTERVAL);
+        return by_device_time ? frame[0] : frame[1];
+    }
+
+    @Test
+    public void boundedRangesAtEntryEdges() throws IOException {
+        File file = record("edges.hbts", Integer.MAX_VALUE, 0);
+        SessionReader reader = new SessionReader(file);
+        try{
+            int entries = reader.getIndex().size();
+            assertEquals((written.size() + SessionIndex.INTERVAL - 1) / SessionIndex.INTERVAL, entries);
+            for(int pass = 0; pass < 2; pass++){
+                boolean byDevice = pass == 0;
+                for(int e = 0; e < entries; e++){
+                    long key = entryKey(e, byDevice);
+                    assertRange(reader, byDevice, key, key);
+                    assertRange(reader, byDevice, key - 1, key - 1);
+                    assertRange(reader, byDevice, key + 1, key + 1);
+                    assertRange(reader, byDevice, key - 15, key + 15);
+                    if(e + 1 < entries){
+                        long next = entryKey(e + 1, byDevice);
+                        // one block exactly, open at either end, and across an edge
+                        assertRange(reader, byDevice, key, next);
+                        assertRange(reader, byDevice, key, next - 1);
+                        assertRange(reader, byDevice, key + 1, next);
+                        assertRange(reader, byDevice, (key + next) / 2, next + 25);
+                    }
+                    if(e + 3 < entries){
+                        assertRange(reader, byDevice, key - 1, entryKey(e + 3, byDevice) + 1);
+                    }
+                }
+            }
+        }finally{
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rangesBeyondTheRecording() throws IOException {
+        File file = record("beyond.hbts", Integer.MAX_VALUE, 0);
+        SessionReader reader = new SessionReader(file);
+        try{
+            for(int pass = 0; pass < 2; pass++){
+                boolean byDevice = pass == 0;
+                // the late stamped frames make the last frame written not the one with the highest key
+                long first = Long.MAX_VALUE;
+                long end = Long.MIN_VALUE;
+                for(long[] frame : written){
+                    first = Math.min(first, byDevice ? frame[0] : frame[1]);
+                    end = Math.max(end, byDevice ? frame[0] : frame[1]);
+                }
+                assertEquals(written.size(), read(reader, byDevice, Long.MIN_VALUE, Long.MAX_VALUE).size());
+                assertRange(reader, byDevice, Long.MIN_VALUE, first);
+                assertRange(reader, byDevice, Long.MIN_VALUE, first + 100);
+                assertRange(reader, byDevice, end - 100, Long.MAX_VALUE);
+                assertRange(reader, byDevice, end, end);
+                assertEquals(0, read(reader, byDevice, Long.MIN_VALUE, first - 1).size());
+                assertEquals(0, read(reader, byDevice, end + 1, Long.MAX_VALUE).size());
+                assertEquals(0, read(reader, byDevice, first + 1000, first).size());
+            }
+        }finally{
+            reader.close();
+        }
+    }
+
+    @Test
+    public void keysSteppingBackStaySearchable() throws IOException {
+        // the host clock steps back by three blocks of frames in the middle of the recording, so the
+        // index raises the keys of the entries that follow
+        final int stepAt = 1200;
+        final long stepBack = 3 * SessionIndex.INTERVAL * 10000L;
+        File file = record("stepped.hbts", stepAt, stepBack);
+        SessionReader reader = new SessionReader(file);
+        try{
+            long lastBefore = Long.MIN_VALUE;
+            long firstAfter = Long.MAX_VALUE;
+            for(int i = 0; i < FSR_FRAMES; i++){
+                if(i < stepAt){
+                    lastBefore = Math.max(lastBefore, host(i, 0) + 5000);
+                }else{
+                    firstAfter = Math.min(firstAfter, host(i, stepBack));
+                }
+            }
+            assertTrue(firstAfter < lastBefore);
+
+            List<long[]> all = read(reader, false, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(written.size(), all.size());
+            for(int i = 0; i < all.size(); i++){
+                assertArrayEquals(written.get(i), all.get(i));
+            }
+            // spans clear of the keys recorded twice are read exactly
+            assertRange(reader, false, host(100, 0), firstAfter - 1);
+            assertRange(reader, false, host(200, 0), host(400, 0));
+            assertRange(reader, false, lastBefore + 1, host(2000, stepBack));
+            assertRange(reader, false, host(2100, stepBack), Long.MAX_VALUE);
+            // device time did not step back
+            assertRange(reader, true, DEVICE_START + 11000, DEVICE_START + 13000);
+            // spans with keys recorded twice may leave frames out, but never return frames outside the span
+            assertSubset(reader, false, firstAfter, lastBefore);
+            assertSubset(reader, false, firstAfter - 100000, firstAfter + 100000);
+            assertSubset(reader, false, lastBefore - 100000, lastBefore + 100000);
+        }finally{
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rebuildMatchesWrittenIndex() throws IOException {
+        for(int pass = 0; pass < 2; pass++){
+            File file = pass == 0
+                    ? record("rebuild.hbts", Integer.MAX_VALUE, 0)
+                    : record("rebuild-stepped.hbts", 1200, 3 * SessionIndex.INTERVAL * 10000L);
+            File indexFile = SessionIndex.indexFileFor(file);
+            byte[] recorded = readAll(indexFile);
+            assertTrue(indexFile.delete());
+
+            SessionIndex rebuilt = SessionIndex.rebuild(file);
+            assertArrayEquals(recorded, readAll(indexFile));
+            assertEquals((recorded.length - SessionIndex.INDEX_HEADER_SIZE) / SessionIndex.ENTRY_SIZE, rebuilt.size());
+            SessionIndex opened = SessionIndex.open(file);
+            assertEquals(rebuilt.size(), opened.size());
+
+            // every entry points at the frame starting its block
+            final long[] first = new long[1];
+            SessionReader.FrameVisitor visitor = new SessionReader.FrameVisitor() {
+                @Override
+                public void onFsr(long device_time, long host_micros, int[] data) {
+                    first[0] = data[0];
+                }
+
+                @Override
+                public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                    first[0] = -1;
+                }
+            };
+            SessionReader reader = new SessionReader(file, rebuilt);
+            try{
+                for(int e = 0; e < rebuilt.size(); e++){
+                    long offset = rebuilt.getOffset(e);
+                    assertEquals(offset, opened.getOffset(e));
+                    first[0] = -2;
+                    assertEquals(1, reader.readRange(offset, offset + SessionIndex.FSR_FRAME_SIZE, visitor));
+                    assertEquals(written.get(e * SessionIndex.INTERVAL)[2], first[0]);
+                }
+            }finally{
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void staleIndexIsRebuilt() throws IOException {
+        File file = record("stale.hbts", Integer.MAX_VALUE, 0);
+        File indexFile = SessionIndex.indexFileFor(file);
+        byte[] recorded = readAll(indexFile);
+
+        // cut the recording where the last block starts, the index then points past its end
+        RandomAccessFile session = new RandomAccessFile(file, "rw");
+        try{
+            SessionIndex index = SessionIndex.open(file);
+            session.setLength(index.getOffset(index.size() - 1));
+        }finally{
+            session.close();
+        }
+        SessionIndex reopened = SessionIndex.open(file);
+        assertEquals((recorded.length - SessionIndex.INDEX_HEADER_SIZE) / SessionIndex.ENTRY_SIZE - 1, reopened.size());
+        assertEquals(recorded.length - SessionIndex.ENTRY_SIZE, indexFile.length());
+
+        SessionReader reader = new SessionReader(file);
+        try{
+            int kept = reopened.size() * SessionIndex.INTERVAL;
+            assertEquals(kept, read(reader, false, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            written.subList(kept, written.size()).clear();
+            assertRange(reader, true, entryKey(reopened.size() - 1, true) - 5, Long.MAX_VALUE);
+        }finally{
+            reader.close();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try{
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        }finally{
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes and reads the shared ring through separate mappings of one file, as the service and a
+ * consumer process do.
+ */
+public class SharedRingBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsFramesInOrder() throws IOException {
+        SharedRingBuffer ring = new SharedRingBuffer(folder.newFile("stream.ring"), 100);
+        assertEquals(128, ring.getSlotCount());
+        SharedRingBuffer.Reader reader = SharedRingBuffer.Reader.open(ring.getFile());
+        SharedRingBuffer.Frame frame = new SharedRingBuffer.Frame();
+        assertFalse(reader.poll(frame));
+
+        int[] data = new int[SharedRingBuffer.VALUES];
+        for(int i = 0; i < 100; i++){
+            if(i % 3 == 2){
+                ring.publishImu(i * 1000L, i, -i, i / 2f);
+            }else{
+                fill(data, i);
+                ring.publishFsr(i * 10, i * 1000L, data);
+            }
+        }
+        assertEquals(100, reader.getBacklog());
+        for(int i = 0; i < 100; i++){
+            assertTrue(reader.poll(frame));
+            assertEquals(i, frame.sequence);
+            assertEquals(i * 1000L, frame.hostMicros);
+            if(i % 3 == 2){
+                assertEquals(SharedRingBuffer.TYPE_IMU, frame.type);
+                assertEquals(-i, frame.values[1], 0);
+                assertEquals(i / 2f, frame.values[2], 0);
+            }else{
+                assertEquals(SharedRingBuffer.TYPE_FSR, frame.type);
+                assertEquals(i * 10, frame.deviceTime);
+                assertFrame(frame);
+            }
+        }
+        assertFalse(reader.poll(frame));
+        assertEquals(0, reader.getLostCount());
+    }
+
+    @Test
+    public void slowReaderLosesOldestFrames() throws IOException {
+        SharedRingBuffer ring = new SharedRingBuffer(folder.newFile("stream.ring"), 16);
+        SharedRingBuffer.Reader reader = SharedRingBuffer.Reader.open(ring.getFile());
+        int[] data = new int[SharedRingBuffer.VALUES];
+        for(int i = 0; i < 50; i++){
+            fill(data, i);
+            ring.publishFsr(i, i, data);
+        }
+        SharedRingBuffer.Frame frame = new SharedRingBuffer.Frame();
+        for(int i = 34; i < 50; i++){
+            assertTrue(reader.poll(frame));
+            assertEquals(i, frame.sequence);
+            assertFrame(frame);
+        }
+        assertFalse(reader.poll(frame));
+        assertEquals(34, reader.getLostCount());
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesTornFrames() throws Exception {
+        final SharedRingBuffer ring = new SharedRingBuffer(folder.newFile("stream.ring"), 64);
+        final SharedRingBuffer.Reader reader = SharedRingBuffer.Reader.open(ring.getFile());
+        final int frames = 500000;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final long[] read = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedRingBuffer.Frame frame = new SharedRingBuffer.Frame();
+                long last = -1;
+                try{
+                    while(reader.await(frame, 2000)){
+                        assertTrue(frame.sequence > last);
+                        assertEquals(frame.sequence, frame.hostMicros);
+                        assertFrame(frame);
+                        last = frame.sequence;
+                        read[0]++;
+                    }
+                    assertTrue(reader.isClosed());
+                }catch(Throwable t){
+                    failure.set(t);
+                }
+            }
+        });
+        consumer.start();
+
+        int[] data = new int[SharedRingBuffer.VALUES];
+        for(int i = 0; i < frames; i++){
+            fill(data, i);
+            ring.publishFsr(i, i, data);
+        }
+        ring.close();
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(frames, read[0] + reader.getLostCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownLayout() throws IOException {
+        File file = folder.newFile("stream.ring");
+        new SharedRingBuffer(file, 16);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 128).order(ByteOrder.nativeOrder())
+                    .putInt(SharedRingBuffer.OFFSET_VERSION, SharedRingBuffer.LAYOUT_VERSION + 1);
+        }finally{
+            raf.close();
+        }
+        SharedRingBuffer.Reader.open(file);
+    }
+
+    // every value derives from the frame number, a torn copy mixes two frames
+    private static void fill(int[] data, int i){
+        for(int c = 0; c < data.length; c++){
+            data[c] = (i + c * 7) & 0xffff;
+        }
+    }
+
+    private static void assertFrame(SharedRingBuffer.Frame frame){
+        for(int c = 0; c < SharedRingBuffer.VALUES; c++){
+            assertEquals((frame.sequence + c * 7) & 0xffff, frame.values[c], 0);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks channel projection and the latest, average and min max decimation of StreamDecimator
+ */
+public class StreamDecimatorTest {
+    private static class RecordingListener implements StreamDecimator.Listener {
+        final List<float[]> values = new ArrayList<float[]>();
+        final List<Long> times = new ArrayList<Long>();
+        final List<Integer> frames = new ArrayList<Integer>();
+
+        @Override
+        public void onDecimatedFrame(StreamDecimator decimator, long host_micros, int window_frames, float[] window) {
+            values.add(window.clone());
+            times.add(host_micros);
+            frames.add(window_frames);
+        }
+    }
+
+    // 100 Hz for one second, channel c of frame i is i * 10 + c
+    private static void feed(StreamDecimator decimator, int count){
+        int[] data = new int[PacketDecoders.FSR_CHANNELS];
+        for(int i = 0; i < count; i++){
+            for(int c = 0; c < data.length; c++){
+                data[c] = i * 10 + c;
+            }
+            decimator.push(i * 10000L, data);
+        }
+    }
+
+    @Test
+    public void everyFrameIsProjectedWithoutRate() {
+        RecordingListener listener = new RecordingListener();
+        StreamDecimator decimator = new StreamDecimator("chart", new int[]{7, 2}, 0, StreamDecimator.MODE_LATEST, listener);
+        feed(decimator, 100);
+        assertEquals(100, listener.values.size());
+        assertArrayEquals(new float[]{507, 502}, listener.values.get(50), 0);
+        assertEquals(100, decimator.getOutputCount());
+    }
+
+    @Test
+    public void latestAtTenHertz() {
+        RecordingListener listener = new RecordingListener();
+        StreamDecimator decimator = new StreamDecimator("dash", new int[]{0}, 10, StreamDecimator.MODE_LATEST, listener);
+        feed(decimator, 100);
+        // the first frame at once, then one every 100 ms
+        assertEquals(10, listener.values.size());
+        assertArrayEquals(new float[]{0}, listener.values.get(0), 0);
+        assertEquals(100000L, (long) listener.times.get(1));
+        assertArrayEquals(new float[]{100}, listener.values.get(1), 0);
+        assertEquals(10, (int) listener.frames.get(1));
+        assertEquals(100, decimator.getInputCount());
+    }
+
+    @Test
+    public void averageAndMinMaxCoverTheWindow() {
+        RecordingListener average = new RecordingListener();
+        StreamDecimator averager = new StreamDecimator("mean", new int[]{1, 3}, 10, StreamDecimator.MODE_AVERAGE, average);
+        feed(averager, 100);
+        // frames 1 to 10 close the second window
+        assertArrayEquals(new float[]{56, 58}, average.values.get(1), 0);
+
+        RecordingListener range = new RecordingListener();
+        StreamDecimator ranger = new StreamDecimator("range", new int[]{1, 3}, 10, StreamDecimator.MODE_MIN_MAX, range);
+        feed(ranger, 100);
+        assertArrayEquals(new float[]{1, 3, 1, 3}, range.values.get(0), 0);
+        assertArrayEquals(new float[]{11, 13, 101, 103}, range.values.get(1), 0);
+    }
+
+    @Test
+    public void gapRestartsTheWindows() {
+        RecordingListener listener = new RecordingListener();
+        StreamDecimator decimator = new StreamDecimator("dash", new int[]{0}, 10, StreamDecimator.MODE_LATEST, listener);
+        int[] data = new int[PacketDecoders.FSR_CHANNELS];
+        decimator.push(0, data);
+        decimator.push(10000, data);
+        // the device went quiet for 5 s
+        decimator.push(5000000, data);
+        decimator.push(5050000, data);
+        decimator.push(5100000, data);
+        assertEquals(3, listener.values.size());
+        assertEquals(5000000L, (long) listener.times.get(1));
+        assertEquals(5100000L, (long) listener.times.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelOutOfRangeFails() {
+        new StreamDecimator("bad", new int[]{PacketDecoders.FSR_CHANNELS}, 10, StreamDecimator.MODE_LATEST, new RecordingListener());
+    }
+}
@@ -0,0 +1,148 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks interpolation, gap handling, reordering and clock handling of StreamResampler on a
+ * single channel whose value is the frame time
+ */
+public class StreamResamplerTest {
+    private static final int LOOK_BEHIND = 8;
+
+    private static class RecordingListener implements StreamResampler.Listener {
+        final List<Long> indices = new ArrayList<Long>();
+        final List<Double> times = new ArrayList<Double>();
+        final List<Float> values = new ArrayList<Float>();
+        final List<Integer> flags = new ArrayList<Integer>();
+
+        @Override
+        public void onResampledFrame(long index, double time, float[] frame, int frame_flags) {
+            indices.add(index);
+            times.add(time);
+            values.add(frame[0]);
+            flags.add(frame_flags);
+        }
+
+        float[] values(){
+            float[] out = new float[values.size()];
+            for(int i = 0; i < out.length; i++){
+                out[i] = values.get(i);
+            }
+            return out;
+        }
+    }
+
+    private static void push(StreamResampler resampler, int time, int value){
+        resampler.push(time, new int[]{value});
+    }
+
+    // 100 Hz output from frames every 25 ms
+    private static RecordingListener resample(int mode){
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, mode, 100, 0, LOOK_BEHIND, listener);
+        for(int t = 0; t <= 50; t += 25){
+            push(resampler, t, t);
+        }
+        return listener;
+    }
+
+    @Test
+    public void linearInterpolatesBetweenFrames() {
+        RecordingListener listener = resample(StreamResampler.MODE_LINEAR);
+        assertArrayEquals(new float[]{0, 10, 20, 30, 40, 50}, listener.values(), 1e-4f);
+        assertEquals(50.0, listener.times.get(5), 0);
+        assertEquals(5L, (long) listener.indices.get(5));
+    }
+
+    @Test
+    public void holdRepeatsEarlierFrame() {
+        RecordingListener listener = resample(StreamResampler.MODE_HOLD);
+        assertArrayEquals(new float[]{0, 0, 0, 25, 25, 50}, listener.values(), 0);
+    }
+
+    @Test
+    public void gapLongerThanMaximumIsFlagged() {
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, StreamResampler.MODE_LINEAR, 20, 0, LOOK_BEHIND, listener);
+        push(resampler, 0, 0);
+        push(resampler, 50, 50);
+        assertArrayEquals(new float[]{0, 0, 0, 0, 0, 50}, listener.values(), 0);
+        for(int i = 1; i <= 4; i++){
+            assertEquals(StreamResampler.FLAG_GAP, (int) listener.flags.get(i));
+        }
+        assertEquals(0, (int) listener.flags.get(5));
+        assertEquals(4, resampler.getGapFrames());
+    }
+
+    @Test
+    public void longDropoutRestartsGridWithOneGapFrame() {
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, StreamResampler.MODE_LINEAR, 30, 0, LOOK_BEHIND, listener);
+        push(resampler, 0, 0);
+        push(resampler, 10, 10);
+        // 30 s without frames would be 3000 gap frames at this rate
+        push(resampler, 30010, 30010);
+        assertEquals(4, listener.values.size());
+        assertEquals(StreamResampler.FLAG_GAP, (int) listener.flags.get(2));
+        assertEquals(20.0, listener.times.get(2), 0);
+        assertEquals(10, listener.values.get(2), 0);
+        assertEquals(0L, (long) listener.indices.get(3));
+        assertEquals(30010.0, listener.times.get(3), 0);
+        assertEquals(1, resampler.getGapFrames());
+    }
+
+    @Test
+    public void lateFrameInsideWindowIsUsedAndTooLateIsDropped() {
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, StreamResampler.MODE_HOLD, 100, 20, LOOK_BEHIND, listener);
+        push(resampler, 0, 0);
+        push(resampler, 20, 20);
+        // out of order but newer than the last grid point emitted
+        push(resampler, 10, 10);
+        push(resampler, 40, 40);
+        assertArrayEquals(new float[]{0, 10, 20}, listener.values(), 0);
+        assertEquals(0, resampler.getDroppedFrames());
+
+        push(resampler, 5, 5);
+        assertEquals(1, resampler.getDroppedFrames());
+        assertEquals(3, listener.values.size());
+    }
+
+    @Test
+    public void deviceTimeWrapsAround() {
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, StreamResampler.MODE_HOLD, 100, 0, LOOK_BEHIND, listener);
+        int time = Integer.MAX_VALUE - 25;
+        for(int i = 0; i < 6; i++){
+            push(resampler, time, i);
+            time += 10;
+        }
+        assertArrayEquals(new float[]{0, 1, 2, 3, 4, 5}, listener.values(), 0);
+        for(int i = 0; i < 6; i++){
+            assertEquals((long) i, (long) listener.indices.get(i));
+            assertEquals(Integer.MAX_VALUE - 25 + i * 10.0, listener.times.get(i), 0);
+            assertEquals(0, (int) listener.flags.get(i));
+        }
+    }
+
+    @Test
+    public void clockResetStartsNewGrid() {
+        RecordingListener listener = new RecordingListener();
+        StreamResampler resampler = new StreamResampler(1, 100, StreamResampler.MODE_HOLD, 100, 0, LOOK_BEHIND, listener);
+        push(resampler, 5000, 1);
+        push(resampler, 5010, 2);
+        // the device restarted and counts from 0 again
+        push(resampler, 0, 3);
+        push(resampler, 10, 4);
+        assertArrayEquals(new float[]{1, 2, 3, 4}, listener.values(), 0);
+        assertEquals(0L, (long) listener.indices.get(2));
+        assertEquals(0.0, listener.times.get(2), 0);
+        assertEquals(10.0, listener.times.get(3), 0);
+        assertEquals(0, resampler.getGapFrames());
+    }
+}
@@ -0,0 +1,189 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs StreamUplink against a collector stand-in on the loopback interface
+ */
+public class StreamUplinkTest {
+    private static final int BATCH = 1400;
+    private static final long DEADLINE = 20;
+    private static final int FSR_RECORD_SIZE = StreamUplink.RECORD_HEADER_SIZE + 32;
+
+    private ServerSocket server;
+    private StreamUplink uplink;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(10000);
+        uplink = new StreamUplink("127.0.0.1", server.getLocalPort(), 64 * 1024, BATCH, DEADLINE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        uplink.stop();
+        server.close();
+    }
+
+    @Test
+    public void deliversFramesInOrderInBoundedBatches() throws IOException {
+        uplink.start();
+        Socket collector = server.accept();
+        collector.setSoTimeout(10000);
+        DataInputStream in = new DataInputStream(collector.getInputStream());
+
+        // fits the buffer, so nothing is dropped however slow the collector is to start reading
+        final int frames = 1500;
+        int[] data = new int[10];
+        for(int i = 0; i < frames; i++){
+            for(int c = 0; c < data.length; c++){
+                data[c] = (i + c) & 0xff;
+            }
+            uplink.offerFsr(i * 10, i * 10000L, data);
+        }
+
+        int received = 0;
+        int expectedSequence = 0;
+        while(received < frames){
+            int rest = in.readInt();
+            assertTrue(rest + 4 <= StreamUplink.BATCH_HEADER_SIZE + BATCH);
+            assertEquals(expectedSequence++, in.readInt());
+            int records = in.readInt();
+            assertTrue(records > 0);
+            assertEquals(rest - 8, records * FSR_RECORD_SIZE);
+            for(int r = 0; r < records; r++){
+                assertEquals(StreamUplink.RECORD_FSR, in.readByte());
+                assertEquals(32, in.readUnsignedShort());
+                assertEquals(received * 10, in.readInt());
+                assertEquals(received * 10000L, in.readLong());
+                for(int c = 0; c < 10; c++){
+                    assertEquals((received + c) & 0xff, in.readShort());
+                }
+                received++;
+            }
+        }
+        assertEquals(0, uplink.getDroppedCount());
+        assertEquals(0, uplink.getQueueDepth());
+        assertTrue(uplink.getBytesSent() >= frames * FSR_RECORD_SIZE);
+        collector.close();
+    }
+
+    @Test
+    public void flushesPartialBatchAtDeadline() throws IOException {
+        uplink.start();
+        Socket collector = server.accept();
+        collector.setSoTimeout(10000);
+        DataInputStream in = new DataInputStream(collector.getInputStream());
+
+        long start = System.nanoTime();
+        uplink.offerImu(123456789L, 1.5f, -2.5f, 90f);
+        uplink.offerUart(123456790L, "$info,1.0;");
+
+        int rest = in.readInt();
+        long waited = (System.nanoTime() - start) / 1000000;
+        assertEquals(0, in.readInt());
+        assertEquals(2, in.readInt());
+        assertEquals(8 + 2 * StreamUplink.RECORD_HEADER_SIZE + 20 + 8 + 10, rest);
+        assertTrue("flushed after " + waited + " ms", waited < 1000);
+
+        assertEquals(StreamUplink.RECORD_IMU, in.readByte());
+        assertEquals(20, in.readUnsignedShort());
+        assertEquals(123456789L, in.readLong());
+        assertEquals(1.5f, in.readFloat(), 0);
+        assertEquals(-2.5f, in.readFloat(), 0);
+        assertEquals(90f, in.readFloat(), 0);
+
+        assertEquals(StreamUplink.RECORD_UART, in.readByte());
+        assertEquals(18, in.readUnsignedShort());
+        assertEquals(123456790L, in.readLong());
+        byte[] text = new byte[10];
+        in.readFully(text);
+        assertEquals("$info,1.0;", new String(text, "ISO-8859-1"));
+        collector.close();
+    }
+
+    @Test
+    public void reconnectsAfterCollectorDrops() throws Exception {
+        uplink.start();
+        Socket first = server.accept();
+        first.setSoTimeout(10000);
+        uplink.offerUart(1, "a");
+        DataInputStream in = new DataInputStream(first.getInputStream());
+        in.readInt();
+        assertEquals(0, in.readInt());
+        first.close();
+
+        // the broken connection is only noticed on a write, keep offering until the uplink is back
+        server.setSoTimeout(100);
+        Socket second = null;
+        for(int attempt = 0; attempt < 100 && second == null; attempt++){
+            uplink.offerUart(2, "b");
+            try{
+                second = server.accept();
+            }catch(IOException e){
+                // not back yet
+            }
+        }
+        assertNotNull("uplink did not reconnect", second);
+        second.setSoTimeout(10000);
+        // frames offered while the connection was broken went out with the failed writes
+        uplink.offerUart(3, "c");
+        in = new DataInputStream(second.getInputStream());
+        in.readInt();
+        assertEquals("sequence restarts with the connection", 0, in.readInt());
+        assertEquals(1, uplink.getReconnectCount());
+        second.close();
+    }
+
+    @Test
+    public void dropsOldestFramesWhenCollectorIsAway() throws IOException {
+        int port = server.getLocalPort();
+        server.close();
+        StreamUplink away = new StreamUplink("127.0.0.1", port, 1024, BATCH, DEADLINE);
+        away.start();
+        try{
+            int[] data = new int[10];
+            for(int i = 0; i < 100; i++){
+                away.offerFsr(i, i, data);
+            }
+            assertFalse(away.isConnected());
+            assertEquals(1024 / FSR_RECORD_SIZE, away.getQueueDepth());
+            assertEquals(100 - 1024 / FSR_RECORD_SIZE, away.getDroppedCount());
+            assertTrue(away.getQueuedBytes() <= 1024);
+        }finally{
+            away.stop();
+        }
+    }
+
+    @Test
+    public void stopReturnsAtOnceAndIsFinal() throws Exception {
+        uplink.start();
+        Socket collector = server.accept();
+        uplink.stop();
+        assertTrue(uplink.awaitStop(10000));
+        assertFalse(uplink.isConnected());
+        collector.close();
+
+        // a stopped uplink does not connect again
+        uplink.start();
+        server.setSoTimeout(200);
+        try{
+            server.accept().close();
+            fail("stopped uplink connected again");
+        }catch(SocketTimeoutException e){
+            // nothing connected
+        }
+    }
+}
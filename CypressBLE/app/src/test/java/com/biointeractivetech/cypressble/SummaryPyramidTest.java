@@ -0,0 +1,293 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks SummaryPyramid queries against a scan of the samples of the blocks each column covers,
+ * the level a query reads, the incomplete newest block and the file round trip
+ */
+public class SummaryPyramidTest {
+    private static final int CHANNELS = 3;
+    private static final int BLOCK_SHIFT = 4;
+    private static final int BLOCK = 1 << BLOCK_SHIFT;
+    // not a power of two of blocks, and a partial block at the end
+    private static final int SAMPLES = 1000 * BLOCK + 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final long[] times = new long[SAMPLES];
+    private final int[][] values = new int[SAMPLES][CHANNELS];
+
+    private SummaryPyramid build(){
+        Random random = new Random(35);
+        SummaryPyramid pyramid = new SummaryPyramid(CHANNELS, BLOCK_SHIFT);
+        long time = 1000;
+        for(int i = 0; i < SAMPLES; i++){
+            // 10 ms apart with the odd repeated time stamp
+            time += random.nextInt(8) == 0 ? 0 : 10;
+            times[i] = time;
+            for(int c = 0; c < CHANNELS; c++){
+                values[i][c] = random.nextInt(4096) - (c == 2 ? 2048 : 0);
+            }
+            pyramid.push(time, values[i]);
+        }
+        return pyramid;
+    }
+
+    // index of the first complete level 0 block starting at or after a time
+    private static int firstBlock(long[] times, int blocks, long time){
+        int block = 0;
+        while(block < blocks && times[block * BLOCK] < time){
+            block++;
+        }
+        return block;
+    }
+
+    // checks every column of a query against the samples of the blocks the column covers
+    private void assertQuery(SummaryPyramid pyramid, long from, long to, int columns, int channel){
+        float[] min = new float[columns];
+        float[] max = new float[columns];
+        float[] mean = new float[columns];
+        int filled = pyramid.query(from, to, columns, channel, min, max, mean);
+        String span = from + ".." + to + " in " + columns;
+
+        int blocks = pyramid.getBlockCount(0);
+        int first = firstBlock(times, blocks, from);
+        int end = firstBlock(times, blocks, to);
+        if(first >= end){
+            assertEquals(span, 0, filled);
+            return;
+        }
+        int level = pyramid.levelFor(end - first, columns);
+        long levelBlocks = ((end - 1) >> level) - (first >> level) + 1;
+        long firstAtLevel = first >> level;
+        int expectedFilled = 0;
+        int covered = 0;
+        for(int col = 0; col < columns; col++){
+            long a = Math.max((firstAtLevel + levelBlocks * col / columns) << level, first);
+            long b = Math.min((firstAtLevel + levelBlocks * (col + 1) / columns) << level, end);
+            if(a >= b){
+                assertTrue(span, Float.isNaN(min[col]) && Float.isNaN(max[col]) && Float.isNaN(mean[col]));
+                continue;
+            }
+            // edges inside the range are snapped to blocks of the level read
+            assertTrue(span, a == first || a % (1L << level) == 0);
+            assertEquals(span, a, first + covered);
+            covered += b - a;
+            expectedFilled++;
+
+            int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+            double sum = 0;
+            for(long i = a * BLOCK; i < b * BLOCK; i++){
+                int v = values[(int) i][channel];
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+                sum += v;
+            }
+            assertEquals(span, lo, min[col], 0);
+            assertEquals(span, hi, max[col], 0);
+            assertEquals(span, sum / ((b - a) * BLOCK), mean[col], 0.01);
+        }
+        assertEquals(span, end - first, covered);
+        assertEquals(span, expectedFilled, filled);
+    }
+
+    @Test
+    public void queriesMatchSamples(){
+        SummaryPyramid pyramid = build();
+        assertEquals(SAMPLES / BLOCK, pyramid.getBlockCount(0));
+        for(int level = 1; level < pyramid.getLevels(); level++){
+            assertEquals(pyramid.getBlockCount(level - 1) / 2, pyramid.getBlockCount(level));
+        }
+        assertEquals(1, pyramid.getBlockCount(pyramid.getLevels() - 1));
+
+        long start = times[0];
+        long last = times[SAMPLES - 1];
+        Random random = new Random(350);
+        int[] columnCounts = {1, 3, 7, 64, 100, 333, 2000};
+        for(int columns : columnCounts){
+            for(int channel = 0; channel < CHANNELS; channel++){
+                assertQuery(pyramid, Long.MIN_VALUE, Long.MAX_VALUE, columns, channel);
+                assertQuery(pyramid, start, last + 1, columns, channel);
+            }
+            for(int i = 0; i < 40; i++){
+                long a = start - 100 + (long) (random.nextDouble() * (last - start + 200));
+                long b = a + 1 + (long) (random.nextDouble() * (last + 100 - a));
+                assertQuery(pyramid, a, b, columns, random.nextInt(CHANNELS));
+            }
+        }
+        // ranges starting and ending on block edges
+        for(int block = 0; block + 64 < SAMPLES / BLOCK; block += 61){
+            long a = times[block * BLOCK];
+            long b = times[(block + 64) * BLOCK];
+            assertQuery(pyramid, a, b, 4, 0);
+            assertQuery(pyramid, a + 1, b + 1, 4, 1);
+            assertQuery(pyramid, a - 1, b - 1, 16, 2);
+        }
+    }
+
+    @Test
+    public void emptyRanges(){
+        SummaryPyramid pyramid = build();
+        float[] min = new float[8];
+        float[] max = new float[8];
+        float[] mean = new float[8];
+        assertEquals(0, pyramid.query(times[0] - 1000, times[0], 8, 0, min, max, mean));
+        assertEquals(0, pyramid.query(times[SAMPLES - 1] + 1, Long.MAX_VALUE, 8, 0, min, max, mean));
+        assertEquals(0, pyramid.query(times[500], times[500], 8, 0, min, max, mean));
+        assertEquals(0, pyramid.query(times[600], times[500], 8, 0, min, max, mean));
+        for(int i = 0; i < 8; i++){
+            assertTrue(Float.isNaN(min[i]) && Float.isNaN(max[i]) && Float.isNaN(mean[i]));
+        }
+        assertEquals(0, new SummaryPyramid(CHANNELS, BLOCK_SHIFT).query(Long.MIN_VALUE, Long.MAX_VALUE, 8, 0, min, max, mean));
+    }
+
+    @Test
+    public void levelKeepsFourToEightBlocksPerColumn(){
+        SummaryPyramid pyramid = build();
+        int levels = pyramid.getLevels();
+        int[] columnCounts = {1, 2, 5, 16, 50};
+        for(int columns : columnCounts){
+            for(long blocks = 1; blocks <= SAMPLES / BLOCK; blocks = blocks * 3 / 2 + 1){
+                int level = pyramid.levelFor(blocks, columns);
+                long perColumn = (blocks >> level) / columns;
+                if(level > 0){
+                    assertTrue(blocks + " in " + columns, perColumn >= 4);
+                }
+                if(level + 1 < levels){
+                    assertTrue(blocks + " in " + columns, (blocks >> (level + 1)) < 4L * columns);
+                }
+            }
+        }
+        assertEquals(0, pyramid.levelFor(SAMPLES / BLOCK, SAMPLES));
+        // 1000 blocks are 7 blocks of level 7 and 3 of level 8
+        assertEquals(7, pyramid.levelFor(SAMPLES / BLOCK, 1));
+        assertEquals(levels - 1, pyramid.levelFor(4L << levels, 1));
+    }
+
+    @Test
+    public void partialBlocksStayHidden(){
+        SummaryPyramid pyramid = new SummaryPyramid(1, BLOCK_SHIFT);
+        float[] min = new float[1];
+        float[] max = new float[1];
+        float[] mean = new float[1];
+        int[] sample = new int[1];
+        // three blocks of ones, so the top level has a pair and a single block
+        for(int i = 0; i < 3 * BLOCK; i++){
+            sample[0] = 1;
+            pyramid.push(i, sample);
+        }
+        assertEquals(2, pyramid.getLevels());
+        assertEquals(1, pyramid.getBlockCount(1));
+
+        // a block of 100s is not visible until its last sample
+        for(int i = 0; i < BLOCK - 1; i++){
+            sample[0] = 100;
+            pyramid.push(3 * BLOCK + i, sample);
+            assertEquals(1, pyramid.query(0, Long.MAX_VALUE, 1, 0, min, max, mean));
+            assertEquals(1, max[0], 0);
+            assertEquals(3, pyramid.getBlockCount(0));
+        }
+        pyramid.push(4 * BLOCK - 1, sample);
+        assertEquals(3, pyramid.getLevels());
+        assertEquals(1, pyramid.getBlockCount(2));
+        assertEquals(1, pyramid.query(0, Long.MAX_VALUE, 1, 0, min, max, mean));
+        assertEquals(1, min[0], 0);
+        assertEquals(100, max[0], 0);
+        assertEquals(25.75, mean[0], 1e-4);
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws IOException {
+        SummaryPyramid pyramid = build();
+        File file = folder.newFile("round.pyr");
+        pyramid.save(file);
+        SummaryPyramid loaded = SummaryPyramid.load(file);
+
+        assertEquals(CHANNELS, loaded.getChannels());
+        assertEquals(BLOCK, loaded.getBlockSize());
+        assertEquals(pyramid.getLevels(), loaded.getLevels());
+        for(int level = 0; level < pyramid.getLevels(); level++){
+            assertEquals(pyramid.getBlockCount(level), loaded.getBlockCount(level));
+        }
+        float[][] a = new float[3][200];
+        float[][] b = new float[3][200];
+        Random random = new Random(3500);
+        for(int i = 0; i < 100; i++){
+            long from = times[random.nextInt(SAMPLES)];
+            long to = from + 1 + random.nextInt(200000);
+            int columns = 1 + random.nextInt(200);
+            int channel = random.nextInt(CHANNELS);
+            assertEquals(pyramid.query(from, to, columns, channel, a[0], a[1], a[2]),
+                    loaded.query(from, to, columns, channel, b[0], b[1], b[2]));
+            for(int s = 0; s < 3; s++){
+                assertArrayEquals(a[s], b[s], 0);
+            }
+        }
+
+        // the loaded pyramid keeps growing as the original would
+        int[] sample = new int[CHANNELS];
+        for(int i = 0; i < 5 * BLOCK; i++){
+            pyramid.push(times[SAMPLES - 1] + 10 * i, sample);
+        }
+        pyramid.save(file);
+        loaded = SummaryPyramid.load(file);
+        for(int level = 0; level < pyramid.getLevels(); level++){
+            assertEquals(pyramid.getBlockCount(level), loaded.getBlockCount(level));
+        }
+    }
+
+    @Test
+    public void corruptFilesFailToLoad() throws IOException {
+        SummaryPyramid pyramid = build();
+        File file = folder.newFile("corrupt.pyr");
+        // offsets of channels, block shift, levels and the level 1 block count
+        int level1 = 20 + 4 + pyramid.getBlockCount(0) * (8 + CHANNELS * 3 * 4);
+        int[][] corruptions = {
+                {8, 0}, {8, -1}, {8, Integer.MAX_VALUE},
+                {12, -1}, {12, 31}, {12, Integer.MAX_VALUE},
+                {16, -1}, {16, 33},
+                {20, -5}, {level1, pyramid.getBlockCount(1) + 1}};
+        for(int[] corruption : corruptions){
+            pyramid.save(file);
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try{
+                out.seek(corruption[0]);
+                out.writeInt(corruption[1]);
+            }finally{
+                out.close();
+            }
+            try{
+                SummaryPyramid.load(file);
+                fail("loaded with " + corruption[1] + " at " + corruption[0]);
+            }catch(IOException e){
+                // expected
+            }
+        }
+
+        // cut short
+        pyramid.save(file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try{
+            out.setLength(out.length() - 5);
+        }finally{
+            out.close();
+        }
+        try{
+            SummaryPyramid.load(file);
+            fail("loaded a truncated file");
+        }catch(IOException e){
+            // expected
+        }
+    }
+}
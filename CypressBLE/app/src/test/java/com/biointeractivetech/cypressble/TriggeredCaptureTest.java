@@ -0,0 +1,120 @@
+package com.biointeractivetech.cypressble;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frames TriggeredCapture saves around a trigger and the counting of captures it
+ * has to drop, on a 100 Hz fsr stream with an imu frame between every two fsr frames
+ */
+public class TriggeredCaptureTest {
+    private static final long PRE_MS = 100;
+    private static final long POST_MS = 50;
+    private static final int LOAD = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // frames from..to-1, loaded while the frame index is in [load_from, load_to)
+    private static void feed(TriggeredCapture capture, int from, int to, int load_from, int load_to){
+        int[] data = new int[SessionIndex.FSR_CHANNELS];
+        for(int i = from; i < to; i++){
+            data[0] = i >= load_from && i < load_to ? LOAD : 0;
+            data[1] = i;
+            capture.onFsr(i * 10, i * 10000L, data);
+            capture.onImu(i * 10000L + 5000, i, 0, 0);
+        }
+    }
+
+    @Test
+    public void savesPreAndPostTriggerWindows() throws Exception {
+        File directory = folder.newFolder("captures");
+        final CountDownLatch saved = new CountDownLatch(1);
+        final File[] files = new File[1];
+        final int[] frames = new int[1];
+        TriggeredCapture capture = new TriggeredCapture(directory, new TriggeredCapture.LoadThreshold(LOAD / 2),
+                PRE_MS, POST_MS, 64);
+        capture.setListener(new TriggeredCapture.Listener() {
+            @Override
+            public void onCaptureSaved(File file, int frame_count) {
+                files[0] = file;
+                frames[0] = frame_count;
+                saved.countDown();
+            }
+        });
+
+        // the trigger fires at frame 50, the post window ends with fsr frame 55
+        feed(capture, 0, 50, 50, 60);
+        assertFalse(capture.isCapturing());
+        feed(capture, 50, 55, 50, 60);
+        assertTrue(capture.isCapturing());
+        feed(capture, 55, 80, 50, 60);
+        assertTrue(saved.await(10, TimeUnit.SECONDS));
+        capture.close();
+        assertTrue(capture.awaitClose(10000));
+
+        // fsr frames 40 to 55 and the imu frames between them
+        assertEquals(31, frames[0]);
+        final long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        final int[] counts = new int[3];
+        SessionReader reader = new SessionReader(files[0]);
+        try{
+            reader.readByHostTime(Long.MIN_VALUE, Long.MAX_VALUE, new SessionReader.FrameVisitor() {
+                @Override
+                public void onFsr(long device_time, long host_micros, int[] data) {
+                    range[0] = Math.min(range[0], host_micros);
+                    range[1] = Math.max(range[1], host_micros);
+                    assertEquals(host_micros / 10000, data[1]);
+                    if(data[0] == LOAD){
+                        counts[2]++;
+                    }
+                    counts[0]++;
+                }
+
+                @Override
+                public void onImu(long device_time, long host_micros, float roll, float pitch, float yaw) {
+                    assertEquals(host_micros / 10000, (long) roll);
+                    counts[1]++;
+                }
+            });
+        }finally{
+            reader.close();
+        }
+        assertEquals(16, counts[0]);
+        assertEquals(15, counts[1]);
+        // loaded frames 50 to 55
+        assertEquals(6, counts[2]);
+        assertEquals(400000, range[0]);
+        assertEquals(550000, range[1]);
+        assertEquals(1, capture.getCaptureCount());
+        assertEquals(0, capture.getMissedCount());
+    }
+
+    @Test
+    public void captureWhileWritingIsMissed() throws Exception {
+        TriggeredCapture capture = new TriggeredCapture(folder.newFolder("captures"),
+                new TriggeredCapture.LoadThreshold(LOAD / 2), PRE_MS, POST_MS, 64);
+        // holding the lock keeps the writer from taking the first capture
+        synchronized(capture){
+            feed(capture, 0, 60, 50, 60);
+            feed(capture, 60, 80, 70, 80);
+            assertEquals(1, capture.getMissedCount());
+        }
+        capture.close();
+        assertTrue(capture.awaitClose(10000));
+        assertEquals(1, capture.getCaptureCount());
+
+        // nothing is written once closed
+        feed(capture, 80, 100, 90, 100);
+        assertEquals(2, capture.getMissedCount());
+        assertEquals(1, capture.getCaptureCount());
+    }
+}